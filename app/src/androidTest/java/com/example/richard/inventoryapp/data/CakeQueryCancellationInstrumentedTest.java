@@ -0,0 +1,89 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SdkSuppress;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a query of {@link CakeProvider} whose cancellation signal is cancelled while its
+ * rows are being read stops reading them. Runs on a device, where the rows are read a cursor
+ * window at a time, so the query is cancelled between the first window and the next; under
+ * Robolectric every row is read into the first window at once. The cakes are written to a
+ * catalog of their own, so the app's own catalog is left alone.
+ */
+@RunWith(AndroidJUnit4.class)
+@SdkSuppress(minSdkVersion = 16)
+public class CakeQueryCancellationInstrumentedTest {
+
+    private static final String TENANT = "cancellation_test";
+
+    /** Number of cakes, with long enough names that their rows fill more than one window */
+    private static final int CAKES = 4000;
+
+    /** Length of the name of each cake, in characters */
+    private static final int NAME_LENGTH = 1000;
+
+    private ContentResolver mResolver;
+    private Uri mCakesUri;
+
+    @Before
+    public void insertCakes() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        mCakesUri = CakeContract.forTenant(CakeEntry.CONTENT_URI, TENANT);
+
+        char[] padding = new char[NAME_LENGTH];
+        Arrays.fill(padding, 'x');
+        ContentValues[] cakes = new ContentValues[CAKES];
+        for (int i = 0; i < CAKES; i++) {
+            cakes[i] = new ContentValues();
+            cakes[i].put(CakeEntry.COLUMN_CAKE_NAME, i + new String(padding));
+            cakes[i].put(CakeEntry.COLUMN_CAKE_OCCASION, CakeEntry.OCCASION_BIRTHDAY);
+            cakes[i].put(CakeEntry.COLUMN_CAKE_QUANTITY, 1);
+        }
+        assertEquals(CAKES, mResolver.bulkInsert(mCakesUri, cakes));
+    }
+
+    @After
+    public void deleteCakes() {
+        mResolver.delete(mCakesUri, null, null);
+    }
+
+    @Test
+    public void query_cancelledMidScan_stopsReading() {
+        CancellationSignal signal = new CancellationSignal();
+        Cursor cursor = mResolver.query(mCakesUri, new String[] {
+                CakeEntry._ID, CakeEntry.COLUMN_CAKE_NAME }, null, null, CakeEntry._ID, signal);
+        assertNotNull(cursor);
+        try {
+            // Counting reads the first window of rows
+            assertEquals(CAKES, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertTrue(cursor.getString(1).startsWith("0"));
+
+            signal.cancel();
+            cursor.moveToLast();
+            fail("Read the last rows of a cancelled query");
+        } catch (OperationCanceledException expected) {
+            // The query stopped before filling the next window
+        } finally {
+            cursor.close();
+        }
+    }
+}
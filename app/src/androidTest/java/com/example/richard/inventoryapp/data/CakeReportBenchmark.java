@@ -0,0 +1,105 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of the parallel {@link CakeReportEngine} against a sequential scan of the same
+ * table. Runs on a device, against a database file with write-ahead logging, and logs the
+ * speedup.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CakeReportBenchmark {
+
+    private static final String LOG_TAG = CakeReportBenchmark.class.getSimpleName();
+
+    /** Number of cakes in the benchmark table */
+    private static final int ROWS = 200000;
+
+    /** Number of times each engine builds the report, after one warm-up run */
+    private static final int RUNS = 5;
+
+    private File mFile;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void createDatabase() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mFile = new File(context.getCacheDir(), "report_benchmark.db");
+        SQLiteDatabase.deleteDatabase(mFile);
+        mDatabase = SQLiteDatabase.openOrCreateDatabase(mFile, null);
+        mDatabase.enableWriteAheadLogging();
+        new CakeDbHelper(context).onCreate(mDatabase);
+
+        int[] occasions = {
+                CakeEntry.OCCASION_UNKNOWN, CakeEntry.OCCASION_BIRTHDAY, CakeEntry.OCCASION_WEDDING
+        };
+        long now = System.currentTimeMillis();
+        CakeStatementCache statements = new CakeStatementCache(mDatabase);
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < ROWS; i++) {
+                statements.insert("Cake " + i, occasions[i % 3], 5 + i % 50, i % 30, null,
+                        2 + i % 20, now - (i % 10) * 24L * 60 * 60 * 1000);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        statements.close();
+    }
+
+    @After
+    public void deleteDatabase() {
+        mDatabase.close();
+        SQLiteDatabase.deleteDatabase(mFile);
+    }
+
+    @Test
+    public void parallelSpeedup() throws Exception {
+        long now = System.currentTimeMillis();
+
+        CakeReportEngine sequential = new CakeReportEngine(mDatabase, 1);
+        CakeReportEngine parallel = new CakeReportEngine(mDatabase);
+        try {
+            CakeReport expected = sequential.buildReport(now);
+            CakeReport actual = parallel.buildReport(now);
+            assertArrayEquals(expected.units, actual.units);
+            assertArrayEquals(expected.ageUnits, actual.ageUnits);
+            assertEquals(expected.getTotalRetailValue(), actual.getTotalRetailValue(), 0.01);
+
+            long sequentialNanos = time(sequential, now);
+            long parallelNanos = time(parallel, now);
+
+            Log.i(LOG_TAG, String.format("%d rows: sequential %.1f ms, parallel (%d cores) %.1f ms"
+                            + " (%.2fx)", ROWS, sequentialNanos / 1e6,
+                    Runtime.getRuntime().availableProcessors(), parallelNanos / 1e6,
+                    (double) sequentialNanos / parallelNanos));
+        } finally {
+            sequential.shutdown();
+            parallel.shutdown();
+        }
+    }
+
+    private static long time(CakeReportEngine engine, long now) {
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            engine.buildReport(now);
+        }
+        return (System.nanoTime() - start) / RUNS;
+    }
+}
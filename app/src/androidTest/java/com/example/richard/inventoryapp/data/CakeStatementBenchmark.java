@@ -0,0 +1,169 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of the compiled statements in {@link CakeStatementCache} against the
+ * ContentValues based SQLiteDatabase methods they replace. Runs on a device, against an
+ * in-memory database with the real schema, and logs the throughput of both paths.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CakeStatementBenchmark {
+
+    private static final String LOG_TAG = CakeStatementBenchmark.class.getSimpleName();
+
+    /** Number of rows written by each measured run */
+    private static final int ROWS = 5000;
+
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void createDatabase() {
+        mDatabase = SQLiteDatabase.create(null);
+        new CakeDbHelper(InstrumentationRegistry.getTargetContext()).onCreate(mDatabase);
+    }
+
+    @After
+    public void closeDatabase() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void insertThroughput() throws Exception {
+        long valuesNanos = timeValuesInserts();
+        mDatabase.delete(CakeEntry.TABLE_NAME, null, null);
+        long statementNanos = timeStatementInserts();
+
+        report("insert", valuesNanos, statementNanos);
+    }
+
+    @Test
+    public void updateQuantityThroughput() throws Exception {
+        timeStatementInserts();
+
+        long start = System.nanoTime();
+        mDatabase.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int id = 1; id <= ROWS; id++) {
+                values.put(CakeEntry.COLUMN_CAKE_QUANTITY, id % 20);
+                assertEquals(1, mDatabase.update(CakeEntry.TABLE_NAME, values,
+                        CakeEntry._ID + "=?", new String[] { String.valueOf(id) }));
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        long valuesNanos = System.nanoTime() - start;
+
+        CakeStatementCache statements = new CakeStatementCache(mDatabase);
+        start = System.nanoTime();
+        mDatabase.beginTransaction();
+        try {
+            for (int id = 1; id <= ROWS; id++) {
+                assertEquals(1, statements.updateQuantity(id, id % 20));
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        long statementNanos = System.nanoTime() - start;
+        statements.close();
+
+        report("update quantity", valuesNanos, statementNanos);
+    }
+
+    @Test
+    public void deleteThroughput() throws Exception {
+        timeStatementInserts();
+
+        long start = System.nanoTime();
+        mDatabase.beginTransaction();
+        try {
+            for (int id = 1; id <= ROWS / 2; id++) {
+                assertEquals(1, mDatabase.delete(CakeEntry.TABLE_NAME, CakeEntry._ID + "=?",
+                        new String[] { String.valueOf(id) }));
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        long valuesNanos = System.nanoTime() - start;
+
+        CakeStatementCache statements = new CakeStatementCache(mDatabase);
+        start = System.nanoTime();
+        mDatabase.beginTransaction();
+        try {
+            for (int id = ROWS / 2 + 1; id <= ROWS; id++) {
+                assertEquals(1, statements.deleteById(id));
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        long statementNanos = System.nanoTime() - start;
+        statements.close();
+
+        report("delete", valuesNanos, statementNanos);
+    }
+
+    private long timeValuesInserts() {
+        long start = System.nanoTime();
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < ROWS; i++) {
+                ContentValues values = new ContentValues();
+                values.put(CakeEntry.COLUMN_CAKE_NAME, "Cake " + i);
+                values.put(CakeEntry.COLUMN_CAKE_OCCASION, CakeEntry.OCCASION_BIRTHDAY);
+                values.put(CakeEntry.COLUMN_CAKE_PRICE, 9.99);
+                values.put(CakeEntry.COLUMN_CAKE_QUANTITY, i % 20);
+                assertTrue(mDatabase.insert(CakeEntry.TABLE_NAME, null, values) != -1);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long timeStatementInserts() {
+        CakeStatementCache statements = new CakeStatementCache(mDatabase);
+        long start = System.nanoTime();
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < ROWS; i++) {
+                assertTrue(statements.insert("Cake " + i, CakeEntry.OCCASION_BIRTHDAY, 9.99,
+                        i % 20, null, 4.5, System.currentTimeMillis()) != -1);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        long elapsed = System.nanoTime() - start;
+        statements.close();
+        return elapsed;
+    }
+
+    private static void report(String operation, long valuesNanos, long statementNanos) {
+        Log.i(LOG_TAG, String.format("%s: ContentValues %.0f ops/s, compiled statement %.0f ops/s"
+                        + " (%.2fx)", operation, opsPerSecond(valuesNanos),
+                opsPerSecond(statementNanos), (double) valuesNanos / statementNanos));
+    }
+
+    private static double opsPerSecond(long nanos) {
+        return ROWS * 1e9 / nanos;
+    }
+}
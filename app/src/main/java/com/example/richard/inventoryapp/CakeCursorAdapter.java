@@ -15,15 +15,23 @@
  */
 package com.example.richard.inventoryapp;
 
+import android.content.ContentUris;
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.Button;
 import android.widget.CursorAdapter;
+import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.example.richard.inventoryapp.data.CakeChangeSet;
 import com.example.richard.inventoryapp.data.CakeContract;
+import com.example.richard.inventoryapp.data.CakeMetrics;
+import com.example.richard.inventoryapp.data.CakeRow;
 
 /**
  * {@link CakeCursorAdapter} is an adapter for a list or grid view
@@ -32,6 +40,32 @@ import com.example.richard.inventoryapp.data.CakeContract;
  */
 public class CakeCursorAdapter extends CursorAdapter {
 
+    /** Loader that decodes the cake photos in the background */
+    private final CakeImageLoader mImageLoader;
+
+    /** Size of the photo in a list item, in pixels */
+    private final int mImageSize;
+
+    /** Quantity changes that haven't made it into the cursor yet */
+    private final CakeQuantityBuffer mQuantityBuffer;
+
+    /** Sells one of the cake whose id is the tag of the clicked button */
+    private final View.OnClickListener mSellListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View view) {
+            mQuantityBuffer.adjust((Long) view.getTag(), -1);
+        }
+    };
+
+    /** Whether the list is being left alone while the cursor is swapped */
+    private boolean mQuietSwap;
+
+    /** Row every list item is bound from, read again for each item */
+    private final CakeRow mRow = new CakeRow();
+
+    /** Column offsets of the current cursor, found on the first bind after a swap */
+    private CakeRow.Mapper mMapper;
+
     /**
      * Constructs a new {@link CakeCursorAdapter}.
      *
@@ -40,6 +74,48 @@ public class CakeCursorAdapter extends CursorAdapter {
      */
     public CakeCursorAdapter(Context context, Cursor c) {
         super(context, c, 0 /* flags */);
+        mImageLoader = CakeImageLoader.getInstance(context);
+        mImageSize = context.getResources().getDimensionPixelSize(R.dimen.list_item_image_size);
+        mQuantityBuffer = CakeQuantityBuffer.getInstance(context);
+    }
+
+    /**
+     * Swap in a new cursor of the same query, redrawing only what the changes need. If the
+     * rows have only changed values, the visible items of the updated rows are bound again
+     * and the rest of the list is left as it is. Otherwise the whole list is refreshed.
+     *
+     * @param cursor  The new cursor, or null
+     * @param changes The rows that differ from the current cursor
+     * @param list    The list that shows this adapter
+     */
+    public void swapCursor(Cursor cursor, CakeChangeSet changes, AbsListView list) {
+        if (cursor == null || getCursor() == null || !changes.isUpdateOnly()) {
+            swapCursor(cursor);
+            return;
+        }
+
+        mQuietSwap = true;
+        try {
+            swapCursor(cursor);
+        } finally {
+            mQuietSwap = false;
+        }
+
+        int first = list.getFirstVisiblePosition();
+        int count = getCount();
+        for (int i = 0; i < list.getChildCount() && first + i < count; i++) {
+            if (changes.isUpdated(getItemId(first + i))) {
+                // Binds the new values to the item view that is already there
+                getView(first + i, list.getChildAt(i), list);
+            }
+        }
+    }
+
+    @Override
+    public void notifyDataSetChanged() {
+        if (!mQuietSwap) {
+            super.notifyDataSetChanged();
+        }
     }
 
     /**
@@ -54,7 +130,9 @@ public class CakeCursorAdapter extends CursorAdapter {
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup parent) {
         // Inflate a list item view using the layout specified in list_item.xml
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+        View view = LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+        view.findViewById(R.id.sell).setOnClickListener(mSellListener);
+        return view;
     }
 
     /**
@@ -69,22 +147,35 @@ public class CakeCursorAdapter extends CursorAdapter {
      */
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
+        long start = CakeMetrics.begin("CakeCursorAdapter.bindView");
+        try {
+            bindCake(view, context, cursor);
+        } finally {
+            CakeMetrics.end(start, "bind", "list_item", 1);
+        }
+    }
+
+    /**
+     * Bind the cake in the current row of the cursor to the list item views.
+     */
+    private void bindCake(View view, Context context, Cursor cursor) {
 
         TextView nameTextView = (TextView) view.findViewById(R.id.name);
         TextView occasionTextView = (TextView) view.findViewById(R.id.occasion);
         TextView priceTextView = (TextView) view.findViewById(R.id.price);
         TextView quantityTextView = (TextView) view.findViewById(R.id.quantity);
+        ImageView imageView = (ImageView) view.findViewById(R.id.image);
+        Button sellButton = (Button) view.findViewById(R.id.sell);
 
-        // Find the columns of cake attributes that we're interested in
-        int nameColumnIndex = cursor.getColumnIndex(CakeContract.CakeEntry.COLUMN_CAKE_NAME);
-        int occasionColumnIndex = cursor.getColumnIndex(CakeContract.CakeEntry.COLUMN_CAKE_OCCASION);
-        int priceColumnIndex = cursor.getColumnIndex(CakeContract.CakeEntry.COLUMN_CAKE_PRICE);
-        int quantityColumnIndex = cursor.getColumnIndex(CakeContract.CakeEntry.COLUMN_CAKE_QUANTITY);
-
-        // Read the cake attributes from the Cursor for the current cake
-        String cakeName = cursor.getString(nameColumnIndex);
+        // Read the cake attributes from the Cursor for the current cake. The columns are only
+        // looked up when the cursor has different ones from the last.
+        if (mMapper == null || !mMapper.matches(cursor)) {
+            mMapper = new CakeRow.Mapper(cursor);
+        }
+        CakeRow row = mMapper.read(cursor, mRow);
+        CharArrayBuffer cakeName = row.getNameBuffer();
 
-        int cakeOccasion = cursor.getInt(occasionColumnIndex);
+        int cakeOccasion = row.getOccasion();
         String cakeOccasionString = new String();
         switch (cakeOccasion) {
             case CakeContract.CakeEntry.OCCASION_BIRTHDAY:
@@ -98,16 +189,30 @@ public class CakeCursorAdapter extends CursorAdapter {
                 break;
         }
 
-        Double cakePrice = cursor.getDouble(priceColumnIndex);
+        double cakePrice = row.getPrice();
         String cakePriceString = "$" + cakePrice;
 
-        int cakeQuantity = cursor.getInt(quantityColumnIndex);
+        // Show the quantity with the taps on "Sell" that haven't been written yet
+        long id = row.getId();
+        int cakeQuantity = Math.max(row.getQuantity() + mQuantityBuffer.getPendingDelta(id), 0);
         String cakeQuantityString = cakeQuantity + " left";
+        sellButton.setTag(id);
+        sellButton.setEnabled(cakeQuantity > 0);
 
         // Update the TextViews with the attributes for the current cake
-        nameTextView.setText(cakeName);
+        nameTextView.setText(cakeName.data, 0, cakeName.sizeCopied);
         occasionTextView.setText(cakeOccasionString);
         priceTextView.setText(cakePriceString);
         quantityTextView.setText(cakeQuantityString);
+
+        // Show the photo of the cake, or the placeholder if it doesn't have one. The photo is
+        // decoded in the background, so scrolling isn't held up by it.
+        if (!row.hasImage()) {
+            mImageLoader.showPlaceholder(imageView, R.drawable.ic_attach_money_black_48dp);
+        } else {
+            mImageLoader.loadImage(
+                    ContentUris.withAppendedId(CakeContract.CakeEntry.CONTENT_URI, id),
+                    row.getImageName(), imageView, mImageSize, R.drawable.ic_attach_money_black_48dp);
+        }
     }
 }
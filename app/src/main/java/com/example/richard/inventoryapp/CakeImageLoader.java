@@ -0,0 +1,738 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp;
+
+import android.app.ActivityManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.widget.ImageView;
+
+import com.example.richard.inventoryapp.data.CakeCacheRegistry;
+import com.example.richard.inventoryapp.data.CakeMetrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CakeImageLoader} loads cake photos into {@link ImageView}s.
+ *
+ * Photos are decoded on background threads and downsampled to the size they are displayed at.
+ * Thumbnails are kept in a memory cache, backed by a disk cache of ready-made thumbnails, and
+ * bitmaps evicted from the memory cache are reused for the next decode so that scrolling a long
+ * list doesn't keep allocating new pixel buffers.
+ *
+ * A bitmap is only reused once no view displays it any more, otherwise the next decode would
+ * draw another cake's photo into a row that is still on screen. The loader counts the views it
+ * has put each thumbnail in, so views have to be given their photo or placeholder through
+ * {@link #loadImage} and {@link #showPlaceholder} rather than directly.
+ */
+public class CakeImageLoader {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = CakeImageLoader.class.getSimpleName();
+
+    /** Name of the directory in the app's cache directory that holds the thumbnails */
+    private static final String DISK_CACHE_DIRECTORY = "thumbnails";
+
+    /** Maximum number of bytes the thumbnails on disk may take up */
+    private static final long DISK_CACHE_SIZE = 20 * 1024 * 1024;
+
+    /** Fraction of the app's memory class that the memory cache may take up */
+    private static final int MEMORY_CACHE_FRACTION = 8;
+
+    /** Number of threads that decode photos */
+    private static final int DECODE_THREADS = 2;
+
+    /** Shared instance, created on first use */
+    private static CakeImageLoader sInstance;
+
+    /** Resolver used to open the photos */
+    private final ContentResolver mResolver;
+
+    /** Thumbnails that are ready to be displayed, keyed by photo key and size */
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    /** Bitmaps that were evicted from the memory cache and can be decoded into again */
+    private final Set<SoftReference<Bitmap>> mReusableBitmaps =
+            new HashSet<SoftReference<Bitmap>>();
+
+    /**
+     * Number of views that display each thumbnail, or are about to. Weak, so that the bitmaps
+     * of views that are gone without being told are simply collected. Guarded by
+     * mReusableBitmaps, like the other bookkeeping of the reuse.
+     */
+    private final Map<Bitmap, Integer> mDisplayCounts = new WeakHashMap<Bitmap, Integer>();
+
+    /**
+     * Thumbnails that were evicted from the memory cache while a view still displayed them.
+     * They become reusable once the last of those views moves on to another photo.
+     */
+    private final Set<Bitmap> mEvictedBitmaps =
+            Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+
+    /**
+     * Whether the memory cache is being trimmed because memory runs low, in which case the
+     * evicted bitmaps are let go of rather than kept for reuse. Guarded by mReusableBitmaps.
+     */
+    private boolean mTrimming;
+
+    /** Directory that holds the thumbnails on disk */
+    private final File mDiskCacheDirectory;
+
+    /**
+     * Executor that decodes the photos. Newest requests are served first, because those are the
+     * rows that have just scrolled into view.
+     */
+    private final ThreadPoolExecutor mExecutor;
+
+    /** Handler used to hand decoded thumbnails back to the main thread */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Return the shared {@link CakeImageLoader}.
+     *
+     * @param context of the app
+     */
+    public static synchronized CakeImageLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CakeImageLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private CakeImageLoader(Context context) {
+        mResolver = context.getContentResolver();
+
+        // Size the memory cache from the per-app memory limit of the device, in bytes
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryCacheSize =
+                activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_CACHE_FRACTION;
+
+        mMemoryCache = new LruCache<String, Bitmap>(memoryCacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return getByteCount(bitmap);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                                        Bitmap newValue) {
+                // Keep the pixel buffer around so the next decode can write into it, but not
+                // before the views that still display it have moved on
+                synchronized (mReusableBitmaps) {
+                    if (mTrimming) {
+                        return;
+                    }
+                    if (mDisplayCounts.containsKey(oldValue)) {
+                        mEvictedBitmaps.add(oldValue);
+                    } else {
+                        addReusableBitmap(oldValue);
+                    }
+                }
+            }
+        };
+
+        // The thumbnails are the biggest cache of the app and are rebuilt from the disk cache,
+        // so they are the first to go when memory runs low
+        CakeCacheRegistry.getInstance().register("thumbnails", CakeCacheRegistry.PRIORITY_LOW,
+                new CakeCacheRegistry.Cache() {
+                    @Override
+                    public long getSize() {
+                        // The bitmaps kept for reuse take up memory just the same
+                        synchronized (mReusableBitmaps) {
+                            long size = mMemoryCache.size();
+                            for (SoftReference<Bitmap> reference : mReusableBitmaps) {
+                                Bitmap bitmap = reference.get();
+                                if (bitmap != null && !bitmap.isRecycled()) {
+                                    size += getByteCount(bitmap);
+                                }
+                            }
+                            return size;
+                        }
+                    }
+
+                    @Override
+                    public void trimToSize(long maxSize) {
+                        // The bitmaps kept for reuse would only save the next decode some work,
+                        // so they go first, and the ones evicted now don't take their place
+                        synchronized (mReusableBitmaps) {
+                            mReusableBitmaps.clear();
+                            mTrimming = true;
+                            try {
+                                mMemoryCache.trimToSize(
+                                        (int) Math.min(maxSize, mMemoryCache.maxSize()));
+                            } finally {
+                                mTrimming = false;
+                            }
+                        }
+                    }
+                });
+
+        mDiskCacheDirectory = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+
+        mExecutor = new ThreadPoolExecutor(DECODE_THREADS, DECODE_THREADS, 0L,
+                TimeUnit.MILLISECONDS, new LinkedBlockingDeque<Runnable>() {
+                    @Override
+                    public boolean offer(Runnable runnable) {
+                        // Queue new work at the head, so the executor runs it first
+                        return offerFirst(runnable);
+                    }
+                });
+    }
+
+    /**
+     * Display a photo in the given {@link ImageView}. The placeholder is shown until the photo has
+     * been decoded. Any earlier request for the same view is cancelled.
+     *
+     * @param source        content URI the photo can be opened from
+     * @param key           key that changes whenever the photo changes
+     * @param imageView     view to display the photo in
+     * @param size          width and height of the view, in pixels
+     * @param placeholderId drawable resource to show until the photo is ready
+     */
+    public void loadImage(Uri source, String key, ImageView imageView, int size,
+                          int placeholderId) {
+        String cacheKey = key + "@" + size;
+
+        // Take the thumbnail from the cache and count the view as displaying it in one go, so it
+        // can't be evicted and handed to a decode in between
+        Bitmap bitmap;
+        synchronized (mReusableBitmaps) {
+            bitmap = mMemoryCache.get(cacheKey);
+            if (bitmap != null) {
+                acquire(bitmap);
+            }
+        }
+        if (bitmap != null) {
+            cancel(imageView);
+            display(imageView, bitmap);
+            return;
+        }
+
+        // If the view is already waiting for this very photo, let that request finish
+        LoadTask pending = (LoadTask) imageView.getTag(R.id.tag_image_task);
+        if (pending != null && pending.mCacheKey.equals(cacheKey)) {
+            return;
+        }
+
+        showPlaceholder(imageView, placeholderId);
+
+        LoadTask task = new LoadTask(source, cacheKey, imageView, size);
+        imageView.setTag(R.id.tag_image_task, task);
+        task.mFuture = mExecutor.submit(task);
+    }
+
+    /**
+     * Display a placeholder in the given {@link ImageView} instead of a photo, cancelling any
+     * pending request for the view.
+     *
+     * @param imageView     view to display the placeholder in
+     * @param placeholderId drawable resource to show
+     */
+    public void showPlaceholder(ImageView imageView, int placeholderId) {
+        cancel(imageView);
+        display(imageView, null);
+        imageView.setImageResource(placeholderId);
+    }
+
+    /**
+     * Cancel the pending request of the given view, if there is one.
+     */
+    public void cancel(ImageView imageView) {
+        LoadTask pending = (LoadTask) imageView.getTag(R.id.tag_image_task);
+        if (pending != null) {
+            pending.mFuture.cancel(false);
+            imageView.setTag(R.id.tag_image_task, null);
+        }
+    }
+
+    /**
+     * Callback for the outcome of {@link #storeImage}.
+     */
+    public interface OnImageStoredListener {
+
+        /**
+         * Called on the main thread once the copy of a photo is over.
+         *
+         * @param cakeUri content URI of the cake
+         * @param stored  whether the whole photo reached the provider. If not, the cake keeps
+         *                the photo it had.
+         */
+        void onImageStored(Uri cakeUri, boolean stored);
+    }
+
+    /**
+     * Copy a photo from the given source into the provider as the photo of the given cake.
+     * The copy happens on a background thread. If it fails part of the way, the write end is
+     * closed with an error, so that the provider doesn't take the part that arrived for the
+     * whole photo.
+     *
+     * @param source   content URI of the photo to copy, for example one picked from the gallery
+     * @param cakeUri  content URI of the cake
+     * @param listener told of the outcome on the main thread, may be null
+     */
+    public void storeImage(final Uri source, final Uri cakeUri,
+                           final OnImageStoredListener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                InputStream in = null;
+                ParcelFileDescriptor out = null;
+                String error = null;
+                try {
+                    in = mResolver.openInputStream(source);
+                    out = mResolver.openFileDescriptor(cakeUri, "w");
+                    if (in == null || out == null) {
+                        throw new FileNotFoundException("Unable to open " + source);
+                    }
+                    // Not closed by itself: the descriptor is closed below, with the outcome
+                    OutputStream stream = new FileOutputStream(out.getFileDescriptor());
+                    byte[] buffer = new byte[8192];
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        stream.write(buffer, 0, count);
+                    }
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to store photo " + source + " for " + cakeUri, e);
+                    error = "Failed to read " + source + ": " + e;
+                } catch (SecurityException e) {
+                    // The app that the photo was picked from has taken back the permission
+                    Log.e(LOG_TAG, "Not allowed to read photo " + source, e);
+                    error = "Not allowed to read " + source;
+                } finally {
+                    closeQuietly(in);
+                    if (out != null && !closeOutput(out, error)) {
+                        error = "Failed to close the photo of " + cakeUri;
+                    }
+                }
+
+                if (listener != null) {
+                    final boolean stored = error == null;
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onImageStored(cakeUri, stored);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Close the write end of a photo, passing the error on to the provider if there is one and
+     * the platform supports it. Return whether the close succeeded.
+     */
+    private static boolean closeOutput(ParcelFileDescriptor out, String error) {
+        try {
+            if (error != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                out.closeWithError(error);
+            } else {
+                out.close();
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to close the photo output", e);
+            return false;
+        }
+    }
+
+    /**
+     * Produce the thumbnail for a request, from the disk cache if possible and otherwise by
+     * decoding the photo. Runs on a decode thread.
+     */
+    private Bitmap loadThumbnail(Uri source, String cacheKey, int size) {
+        File cached = new File(mDiskCacheDirectory, Integer.toHexString(cacheKey.hashCode())
+                + "_" + cacheKey.length() + ".jpg");
+
+        if (cached.exists()) {
+            Bitmap bitmap = decodeThumbnail(cached, size);
+            if (bitmap != null) {
+                // Mark the file as recently used for the disk cache trimming
+                cached.setLastModified(System.currentTimeMillis());
+                return bitmap;
+            }
+        }
+
+        Bitmap bitmap = decodeSampled(source, size);
+        if (bitmap != null) {
+            writeThumbnail(cached, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decode a photo so that it is no more than twice as big as needed, then crop and scale it to
+     * an exact square of the given size. All thumbnails end up with the same dimensions, which is
+     * what allows their pixel buffers to be reused on every Android version.
+     */
+    private Bitmap decodeSampled(Uri source, int size) {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = mResolver.openFileDescriptor(source, "r");
+            if (descriptor == null) {
+                return null;
+            }
+            FileDescriptor fd = descriptor.getFileDescriptor();
+
+            // First decode only the dimensions to work out how much to downsample
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fd, null, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, size);
+            options.inJustDecodeBounds = false;
+            Bitmap sampled = BitmapFactory.decodeFileDescriptor(fd, null, options);
+            if (sampled == null) {
+                return null;
+            }
+
+            Bitmap thumbnail = obtainBitmap(size);
+            cropInto(sampled, thumbnail);
+            sampled.recycle();
+            return thumbnail;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to decode photo " + source, e);
+            return null;
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException ignored) {
+                    // Nothing useful left to do with the descriptor
+                }
+            }
+        }
+    }
+
+    /**
+     * Decode a thumbnail from the disk cache, into a reusable bitmap if one is available.
+     */
+    private Bitmap decodeThumbnail(File file, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inBitmap = takeReusableBitmap(size);
+        try {
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        } catch (IllegalArgumentException e) {
+            // The reusable bitmap didn't fit after all, so decode into a new one
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(file.getPath(), options);
+        }
+    }
+
+    /**
+     * Write a thumbnail to the disk cache, and trim the disk cache if it has grown too large.
+     */
+    private void writeThumbnail(File file, Bitmap bitmap) {
+        if (!mDiskCacheDirectory.exists() && !mDiskCacheDirectory.mkdirs()) {
+            return;
+        }
+
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write thumbnail " + file, e);
+            file.delete();
+        } finally {
+            closeQuietly(out);
+        }
+
+        trimDiskCache();
+    }
+
+    /**
+     * Delete the least recently used thumbnails until the disk cache fits its size limit again.
+     */
+    private synchronized void trimDiskCache() {
+        File[] files = mDiskCacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= DISK_CACHE_SIZE) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long difference = lhs.lastModified() - rhs.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+
+        // Trim well below the limit, so that the directory isn't listed again on every write
+        for (int i = 0; i < files.length && total > DISK_CACHE_SIZE * 3 / 4; i++) {
+            total -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    /**
+     * Return a mutable bitmap of the given square size, reusing an evicted one if possible.
+     */
+    private Bitmap obtainBitmap(int size) {
+        Bitmap bitmap = takeReusableBitmap(size);
+        if (bitmap != null) {
+            // From KitKat on the buffer may be larger than needed, so shrink the bitmap to the
+            // exact size or the thumbnail would be cropped at the wrong size and cached as such
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                    && (bitmap.getWidth() != size || bitmap.getHeight() != size
+                    || bitmap.getConfig() != Bitmap.Config.ARGB_8888)) {
+                bitmap.reconfigure(size, size, Bitmap.Config.ARGB_8888);
+            }
+            bitmap.eraseColor(0);
+            return bitmap;
+        }
+        return Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Put a bitmap in the given view, or nothing if it is null, and count the view as no longer
+     * displaying the bitmap it had before. The new bitmap must already have been acquired.
+     * Runs on the main thread.
+     */
+    private void display(ImageView imageView, Bitmap bitmap) {
+        Bitmap previous = (Bitmap) imageView.getTag(R.id.tag_image_bitmap);
+        imageView.setTag(R.id.tag_image_bitmap, bitmap);
+        if (bitmap != null) {
+            imageView.setImageBitmap(bitmap);
+        }
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    /**
+     * Count one more view as displaying the given thumbnail, so it isn't reused meanwhile.
+     */
+    private void acquire(Bitmap bitmap) {
+        synchronized (mReusableBitmaps) {
+            Integer count = mDisplayCounts.get(bitmap);
+            mDisplayCounts.put(bitmap, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Count one view fewer as displaying the given thumbnail. Once none does and it has been
+     * evicted from the memory cache, it is free to be decoded into again.
+     */
+    private void release(Bitmap bitmap) {
+        synchronized (mReusableBitmaps) {
+            Integer count = mDisplayCounts.get(bitmap);
+            if (count != null && count > 1) {
+                mDisplayCounts.put(bitmap, count - 1);
+                return;
+            }
+            mDisplayCounts.remove(bitmap);
+            if (mEvictedBitmaps.remove(bitmap)) {
+                addReusableBitmap(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Offer a bitmap that nothing displays or caches any more for the next decode.
+     * Called with mReusableBitmaps held.
+     */
+    private void addReusableBitmap(Bitmap bitmap) {
+        if (bitmap.isMutable()) {
+            mReusableBitmaps.add(new SoftReference<Bitmap>(bitmap));
+        }
+    }
+
+    /**
+     * Remove and return an evicted bitmap that a thumbnail of the given size can be decoded
+     * into, or null if there is none.
+     */
+    private Bitmap takeReusableBitmap(int size) {
+        synchronized (mReusableBitmaps) {
+            Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
+            while (iterator.hasNext()) {
+                Bitmap candidate = iterator.next().get();
+                if (candidate == null || candidate.isRecycled() || !candidate.isMutable()) {
+                    iterator.remove();
+                } else if (canReuse(candidate, size)) {
+                    iterator.remove();
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return whether a thumbnail of the given size can be decoded into the candidate bitmap.
+     * Before KitKat the dimensions have to match exactly, afterwards the buffer only has to be
+     * large enough.
+     */
+    private static boolean canReuse(Bitmap candidate, int size) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return candidate.getAllocationByteCount() >= size * size * 4;
+        }
+        return candidate.getWidth() == size && candidate.getHeight() == size
+                && candidate.getConfig() == Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Return the number of bytes the pixels of a bitmap take up.
+     */
+    private static int getByteCount(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Draw the source bitmap into the square target, scaled to fill it and centered.
+     */
+    private static void cropInto(Bitmap source, Bitmap target) {
+        int size = target.getWidth();
+        float scale = Math.max((float) size / source.getWidth(),
+                (float) size / source.getHeight());
+
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        matrix.postTranslate((size - source.getWidth() * scale) / 2f,
+                (size - source.getHeight() * scale) / 2f);
+
+        new Canvas(target).drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+    }
+
+    /**
+     * Return the largest power of two sample size that keeps both dimensions at least as large
+     * as the requested size.
+     */
+    static int calculateInSampleSize(int width, int height, int size) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= size && height / (inSampleSize * 2) >= size) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Close a stream, ignoring null and any error while closing.
+     */
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+                // Nothing useful left to do with the stream
+            }
+        }
+    }
+
+    /**
+     * A single request to display a photo in a view.
+     */
+    private class LoadTask implements Runnable {
+
+        private final Uri mSource;
+        private final String mCacheKey;
+        private final ImageView mImageView;
+        private final int mSize;
+        private Future<?> mFuture;
+
+        LoadTask(Uri source, String cacheKey, ImageView imageView, int size) {
+            mSource = source;
+            mCacheKey = cacheKey;
+            mImageView = imageView;
+            mSize = size;
+        }
+
+        @Override
+        public void run() {
+            // Another request may have finished the same photo while this one was queued. The
+            // thumbnail counts as displayed from here on, until the view has it or turns it down.
+            Bitmap bitmap;
+            synchronized (mReusableBitmaps) {
+                bitmap = mMemoryCache.get(mCacheKey);
+                if (bitmap != null) {
+                    acquire(bitmap);
+                }
+            }
+            if (bitmap == null) {
+                long start = CakeMetrics.begin("CakeImageLoader.loadThumbnail");
+                try {
+                    bitmap = loadThumbnail(mSource, mCacheKey, mSize);
+                } finally {
+                    CakeMetrics.end(start, "decode", "thumbnail", bitmap != null ? 1 : 0);
+                }
+                if (bitmap == null) {
+                    return;
+                }
+                acquire(bitmap);
+                mMemoryCache.put(mCacheKey, bitmap);
+            }
+
+            final Bitmap result = bitmap;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Only show the photo if the view hasn't been recycled for another cake
+                    if (mImageView.getTag(R.id.tag_image_task) == LoadTask.this) {
+                        mImageView.setTag(R.id.tag_image_task, null);
+                        display(mImageView, result);
+                    } else {
+                        release(result);
+                    }
+                }
+            });
+        }
+    }
+}
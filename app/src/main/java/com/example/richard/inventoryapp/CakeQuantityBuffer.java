@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.util.LongSparseArray;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.example.richard.inventoryapp.data.CakeContract;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+/**
+ * {@link CakeQuantityBuffer} collects quick changes to the quantities of cakes, such as a row
+ * of taps on the "Sell" button, and writes them out together.
+ *
+ * Every change is added to the pending change of its cake straight away, so the list can show
+ * the new quantity at once. The pending changes are written {@link #FLUSH_DELAY} milliseconds
+ * after the first one, as one batch in a single transaction, however many taps there were. Call
+ * {@link #flushInBackground()} when the app goes to the background: it saves the changes that
+ * aren't in the database yet to the buffer's preferences before it returns, and then starts
+ * writing them. If the app is killed before they are written, the next process reads them back
+ * and writes them then.
+ *
+ * Every batch has a number, which the provider records with its changes, and a batch it has
+ * already applied is never applied again. So a saved batch can be sent again after a restart
+ * without knowing whether it made it into the database the first time. The numbers only go up:
+ * the next one is saved to the preferences before a batch is sent.
+ *
+ * A batch that fails to be written is kept, with its number, and tried again later, waiting
+ * twice as long after each failure, up to {@link #MAX_RETRY_DELAY}, so a busy or locked
+ * database does not lose any taps. Changes made in the meantime wait for it, in a batch of
+ * their own.
+ *
+ * A change stays counted by {@link #getPendingDelta} after it has been written, until
+ * {@link #onDataReloaded(long)} says the list has read the quantities with a query that started
+ * after the change was committed, so the list never shows the old quantity in between. A load
+ * that was already running when the change was committed does not hold it, so it does not
+ * clear it either.
+ */
+public class CakeQuantityBuffer {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = CakeQuantityBuffer.class.getSimpleName();
+
+    /** How long changes are collected before they are written, in milliseconds */
+    private static final long FLUSH_DELAY = 750;
+
+    /** How long to wait before trying a failed batch again the first time, in milliseconds */
+    private static final long MIN_RETRY_DELAY = 2000;
+
+    /** Longest wait before trying a failed batch again, in milliseconds */
+    private static final long MAX_RETRY_DELAY = 60000;
+
+    /** Name of the preferences the changes that aren't written yet are saved to */
+    @VisibleForTesting
+    static final String PREFS_NAME = "quantity_buffer";
+
+    /** Number of the next batch, saved before any batch with a lower number is sent */
+    private static final String PREF_NEXT_BATCH = "next_batch";
+
+    /** Number and changes of the batch being written */
+    private static final String PREF_WRITING_BATCH = "writing_batch";
+    private static final String PREF_WRITING = "writing";
+
+    /** Number and changes of the batch being collected */
+    private static final String PREF_PENDING_BATCH = "pending_batch";
+    private static final String PREF_PENDING = "pending";
+
+    /**
+     * Listener that is told, on the main thread, when the pending quantities have changed in a
+     * way the list should show.
+     */
+    public interface OnPendingChangeListener {
+        void onPendingChanged();
+    }
+
+    /** Shared instance, created on first use */
+    private static CakeQuantityBuffer sInstance;
+
+    /** Resolver the changes are written through */
+    private final ContentResolver mResolver;
+
+    /** Preferences the changes that aren't written yet are saved to */
+    private final SharedPreferences mPrefs;
+
+    /** Changes not written yet, by cake id. Guarded by the buffer's lock. */
+    private final LongSparseArray<Integer> mPending = new LongSparseArray<Integer>();
+
+    /** Number of the batch of {@link #mPending}. Guarded by the buffer's lock. */
+    private long mPendingBatch;
+
+    /**
+     * Changes of the batch being written, or of a failed batch waiting to be tried again, by
+     * cake id. Guarded by the buffer's lock.
+     */
+    private final LongSparseArray<Integer> mWriting = new LongSparseArray<Integer>();
+
+    /** Number of the batch of {@link #mWriting}. Guarded by the buffer's lock. */
+    private long mWritingBatch;
+
+    /**
+     * Whether the batch of {@link #mWriting} failed and waits to be tried again. Guarded by the
+     * buffer's lock.
+     */
+    private boolean mRetrying;
+
+    /** Number the next batch gets. Guarded by the buffer's lock. */
+    private long mNextBatch;
+
+    /**
+     * Number of the next batch last saved by {@link #writeBatch()}, which only sends lower
+     * numbers. Guarded by the buffer's lock.
+     */
+    private long mSavedNextBatch;
+
+    /** Batches written but not read back by the list yet, oldest first. Guarded by the lock. */
+    private final List<WrittenBatch> mWritten = new ArrayList<WrittenBatch>();
+
+    /** Wait before the next try of a failed batch, in milliseconds. Guarded by the lock. */
+    private long mRetryDelay = MIN_RETRY_DELAY;
+
+    /** Held while a batch is written, so batches are written one at a time and in order */
+    private final Object mFlushLock = new Object();
+
+    /** Handler of the thread that writes the batches */
+    private final Handler mHandler;
+
+    /** Listener of the pending changes, if any. Only used on the main thread. */
+    private OnPendingChangeListener mListener;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Changes of a batch that has been written, and when the provider committed it.
+     */
+    private static final class WrittenBatch {
+
+        /** {@link System#nanoTime()} at which the batch was committed */
+        final long committedAt;
+
+        /** Changes of the batch, by cake id */
+        final LongSparseArray<Integer> deltas;
+
+        WrittenBatch(long committedAt, LongSparseArray<Integer> deltas) {
+            this.committedAt = committedAt;
+            this.deltas = deltas;
+        }
+    }
+
+    /**
+     * Return the shared {@link CakeQuantityBuffer}.
+     *
+     * @param context of the app
+     */
+    public static synchronized CakeQuantityBuffer getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CakeQuantityBuffer(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private CakeQuantityBuffer(Context context) {
+        this(context, startThread());
+    }
+
+    /**
+     * Create a buffer that writes its batches on the thread of a looper, and send the changes
+     * saved by the last process again.
+     */
+    @VisibleForTesting
+    CakeQuantityBuffer(Context context, Looper looper) {
+        mResolver = context.getContentResolver();
+        mHandler = new Handler(looper);
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+        mWritingBatch = mPrefs.getLong(PREF_WRITING_BATCH, 0);
+        readDeltas(mPrefs.getString(PREF_WRITING, null), mWriting);
+        mPendingBatch = mPrefs.getLong(PREF_PENDING_BATCH, 0);
+        readDeltas(mPrefs.getString(PREF_PENDING, null), mPending);
+        mNextBatch = Math.max(mPrefs.getLong(PREF_NEXT_BATCH, 1),
+                Math.max(mWritingBatch, mPendingBatch) + 1);
+        mSavedNextBatch = mNextBatch;
+        if (mWriting.size() > 0 || mPending.size() > 0) {
+            mHandler.post(mFlush);
+        }
+    }
+
+    private static Looper startThread() {
+        HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        return thread.getLooper();
+    }
+
+    /**
+     * Set the listener of the pending changes, or clear it with null. Call this on the main
+     * thread.
+     */
+    public void setOnPendingChangeListener(OnPendingChangeListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Add to the quantity of a cake. The change is written with the others in the next batch.
+     * Call this on the main thread.
+     *
+     * @param id    of the cake
+     * @param delta amount to add, negative to take cakes away
+     */
+    public void adjust(long id, int delta) {
+        synchronized (this) {
+            boolean first = mPending.size() == 0;
+            if (first) {
+                mPendingBatch = mNextBatch++;
+            }
+            mPending.put(id, mPending.get(id, 0) + delta);
+            if (first && !mRetrying) {
+                mHandler.postDelayed(mFlush, FLUSH_DELAY);
+            }
+        }
+        if (mListener != null) {
+            mListener.onPendingChanged();
+        }
+    }
+
+    /**
+     * Return how much the quantity of a cake has been changed since the list last read it.
+     */
+    public synchronized int getPendingDelta(long id) {
+        int delta = mPending.get(id, 0) + mWriting.get(id, 0);
+        for (int i = 0; i < mWritten.size(); i++) {
+            delta += mWritten.get(i).deltas.get(id, 0);
+        }
+        return delta;
+    }
+
+    /**
+     * Save the changes that aren't in the database yet, and write them soon, as a single batch,
+     * on the thread that writes the batches. Call this from onStop(): the changes are handed to
+     * the preferences before it returns, and the system waits for the preferences to reach the
+     * disk before it counts the activity as stopped and may kill the app. Does not wait for the
+     * disk or the database itself, so it is safe to call on the main thread.
+     */
+    public void flushInBackground() {
+        synchronized (this) {
+            if (mPending.size() > 0 || mWriting.size() > 0) {
+                save();
+            }
+        }
+        mHandler.removeCallbacks(mFlush);
+        mHandler.post(mFlush);
+    }
+
+    /**
+     * Write the changes now, and return once they are in the database: the failed batch waiting
+     * to be tried again first, if any, and then the pending changes as a single batch. Safe to
+     * call from any thread but the main one, as it waits for the database, and does nothing if
+     * there are no changes. If a batch cannot be written, it is kept and tried again later.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            while (writeBatch()) {
+                // Go on with the changes made while the last batch was written
+            }
+        }
+    }
+
+    /**
+     * Write the batch being written, after taking the pending changes for it if there is none.
+     * Call this with {@link #mFlushLock} held. Return whether it was written and more changes
+     * are waiting.
+     */
+    private boolean writeBatch() {
+        long[] ids;
+        int[] deltas;
+        long batch;
+        boolean saveNextBatch;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlush);
+            if (mWriting.size() == 0) {
+                if (mPending.size() == 0) {
+                    return false;
+                }
+                for (int i = 0; i < mPending.size(); i++) {
+                    mWriting.put(mPending.keyAt(i), mPending.valueAt(i));
+                }
+                mWritingBatch = mPendingBatch;
+                mPending.clear();
+                mPendingBatch = 0;
+            }
+            ids = new long[mWriting.size()];
+            deltas = new int[mWriting.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = mWriting.keyAt(i);
+                deltas[i] = mWriting.valueAt(i);
+            }
+            batch = mWritingBatch;
+
+            // A number must never be handed out again once a batch with it has been sent, or the
+            // provider would skip the batch that gets it, so the next number is saved first
+            saveNextBatch = mSavedNextBatch <= batch;
+            if (saveNextBatch) {
+                mSavedNextBatch = mNextBatch;
+            }
+        }
+        if (saveNextBatch) {
+            mPrefs.edit().putLong(PREF_NEXT_BATCH, mSavedNextBatch).commit();
+        }
+
+        Bundle extras = new Bundle();
+        extras.putLongArray(CakeContract.EXTRA_IDS, ids);
+        extras.putIntArray(CakeContract.EXTRA_DELTAS, deltas);
+        extras.putLong(CakeContract.EXTRA_BATCH, batch);
+        Bundle result = null;
+        try {
+            result = mResolver.call(CakeEntry.CONTENT_URI,
+                    CakeContract.METHOD_ADJUST_QUANTITIES, null, extras);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to write " + ids.length + " quantity changes", e);
+        }
+
+        synchronized (this) {
+            if (result == null) {
+                // Keep the batch as it is, and try it again later, before the taps made since
+                mHandler.postDelayed(mFlush, mRetryDelay);
+                mRetryDelay = Math.min(mRetryDelay * 2, MAX_RETRY_DELAY);
+                mRetrying = true;
+                return false;
+            }
+
+            // Kept until the list has read the new quantities
+            LongSparseArray<Integer> written = mWriting.clone();
+            mWritten.add(new WrittenBatch(
+                    result.getLong(CakeContract.RESULT_COMMITTED_AT), written));
+            mRetryDelay = MIN_RETRY_DELAY;
+            mRetrying = false;
+            mWriting.clear();
+            mWritingBatch = 0;
+            save();
+            return mPending.size() > 0;
+        }
+    }
+
+    /**
+     * Save the batch being written and the pending changes to the preferences. The write to
+     * the disk happens in the background. Call this with the buffer's lock held, so the saves
+     * reach the preferences in the order they were made.
+     */
+    private void save() {
+        mPrefs.edit()
+                .putLong(PREF_NEXT_BATCH, mNextBatch)
+                .putLong(PREF_WRITING_BATCH, mWritingBatch)
+                .putString(PREF_WRITING, writeDeltas(mWriting))
+                .putLong(PREF_PENDING_BATCH, mPendingBatch)
+                .putString(PREF_PENDING, writeDeltas(mPending))
+                .apply();
+    }
+
+    /**
+     * Return changes by cake id as a string, each as the id and the change separated by a
+     * colon, separated by commas.
+     */
+    private static String writeDeltas(LongSparseArray<Integer> deltas) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < deltas.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(deltas.keyAt(i)).append(':').append(deltas.valueAt(i));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Add the changes of a string made by {@link #writeDeltas} to the ones by cake id. A string
+     * that can't be read is logged and skipped.
+     */
+    private static void readDeltas(String string, LongSparseArray<Integer> deltas) {
+        if (TextUtils.isEmpty(string)) {
+            return;
+        }
+        try {
+            for (String delta : string.split(",")) {
+                int colon = delta.indexOf(':');
+                deltas.put(Long.parseLong(delta.substring(0, colon)),
+                        Integer.parseInt(delta.substring(colon + 1)));
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to read saved quantity changes " + string, e);
+            deltas.clear();
+        }
+    }
+
+    /**
+     * Note that the list has just read the quantities again, so the batches committed before
+     * its query started are part of it now. Call this on the main thread when a new cursor
+     * arrives.
+     *
+     * @param startedAt {@link System#nanoTime()} at which the query of the new cursor started
+     * @return true if any batch stopped being counted, so the quantities shown should be drawn
+     * again
+     */
+    public synchronized boolean onDataReloaded(long startedAt) {
+        boolean cleared = false;
+        Iterator<WrittenBatch> batches = mWritten.iterator();
+        while (batches.hasNext()) {
+            if (batches.next().committedAt - startedAt < 0) {
+                batches.remove();
+                cleared = true;
+            }
+        }
+        return cleared;
+    }
+}
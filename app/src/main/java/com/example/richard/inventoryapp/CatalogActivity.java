@@ -15,27 +15,47 @@
  */
 package com.example.richard.inventoryapp;
 
+import android.app.AlertDialog;
 import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.CursorLoader;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.support.design.widget.FloatingActionButton;
+import android.support.design.widget.Snackbar;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.ActionMode;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.Spinner;
+import android.widget.Toast;
 
+import com.example.richard.inventoryapp.data.CakeCacheRegistry;
 import com.example.richard.inventoryapp.data.CakeContract;
 import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+import com.example.richard.inventoryapp.data.CakeMetrics;
+import com.example.richard.inventoryapp.data.CakeNameMatches;
+import com.example.richard.inventoryapp.data.CakeQueryLoader;
+import com.example.richard.inventoryapp.data.CakeSnapshot;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
 
 /**
@@ -44,15 +64,68 @@ import java.text.DecimalFormat;
 public class CatalogActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor> {
 
+    /** Tag for the log messages */
+    private static final String LOG_TAG = CatalogActivity.class.getSimpleName();
+
     /** Identifier for the cake data loader */
     private static final int CAKE_LOADER = 0;
 
+    /** Identifier for the loader of the first screen of cakes, used when none was cached */
+    private static final int FIRST_PAGE_LOADER = 1;
+
+    /** Number of cakes loaded by the first page loader, enough to fill the screen */
+    private static final int FIRST_PAGE_SIZE = 20;
+
+    /** Name of the file in the cache directory that keeps the first page between launches */
+    private static final String SNAPSHOT_FILE_NAME = "catalog_snapshot";
+
+    /** Name of the preferences file that remembers the sort order and filter */
+    private static final String PREFS_NAME = "catalog";
+
+    /** Preference key of the sort order */
+    private static final String PREF_SORT_ORDER = "sort_order";
+
+    /** Preference key of the occasion filter */
+    private static final String PREF_OCCASION_FILTER = "occasion_filter";
+
+    /** Value of the occasion filter that shows cakes of every occasion */
+    private static final int FILTER_ALL = -1;
+
+    /** Columns of the table shown in the list */
+    private static final String[] PROJECTION = {
+            CakeEntry._ID,
+            CakeEntry.COLUMN_CAKE_NAME,
+            CakeEntry.COLUMN_CAKE_QUANTITY,
+            CakeEntry.COLUMN_CAKE_OCCASION,
+            CakeEntry.COLUMN_CAKE_PRICE,
+            CakeEntry.COLUMN_CAKE_IMAGE
+    };
+
     /** Adapter for the ListView */
     CakeCursorAdapter mCursorAdapter;
 
+    /** ListView which is populated with the cake data */
+    private ListView mCakeListView;
+
+    /** Sort order of the list, one of the SORT_ constants in {@link CakeEntry} */
+    private String mSortOrder = CakeEntry.SORT_NAME;
+
+    /** Occasion that the list is filtered on, or {@link #FILTER_ALL} */
+    private int mOccasionFilter = FILTER_ALL;
+
+    /** Time the current load was started, for the loader round-trip metric */
+    private long mLoadStart;
+
+    /** Whether the full list has been loaded, after which the first page is no longer needed */
+    private boolean mFullListLoaded;
+
+    /** Taps on "Sell" that are collected before they are written */
+    private CakeQuantityBuffer mQuantityBuffer;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        CakeMetrics.markStartup("catalog_create");
         setContentView(R.layout.activity_catalog);
 
         // Setup FAB to open EditorActivity
@@ -66,19 +139,29 @@ public class CatalogActivity extends AppCompatActivity implements
         });
 
         // Find the ListView which will be populated with the cake data
-        ListView cakeListView = (ListView) findViewById(R.id.list);
+        mCakeListView = (ListView) findViewById(R.id.list);
 
         // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
         View emptyView = findViewById(R.id.empty_view);
-        cakeListView.setEmptyView(emptyView);
+        mCakeListView.setEmptyView(emptyView);
 
         // Setup an Adapter to create a list item for each row of cake data in the Cursor.
         // There is no cake data yet (until the loader finishes) so pass in null for the Cursor.
         mCursorAdapter = new CakeCursorAdapter(this, null);
-        cakeListView.setAdapter(mCursorAdapter);
+        mCakeListView.setAdapter(mCursorAdapter);
+
+        // Show every tap on "Sell" straight away, before it has been written
+        mQuantityBuffer = CakeQuantityBuffer.getInstance(this);
+        mQuantityBuffer.setOnPendingChangeListener(
+                new CakeQuantityBuffer.OnPendingChangeListener() {
+                    @Override
+                    public void onPendingChanged() {
+                        mCursorAdapter.notifyDataSetChanged();
+                    }
+                });
 
         // Setup the item click listener
-        cakeListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        mCakeListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
                 // Create new intent to go to {@link EditorActivity}
@@ -99,8 +182,148 @@ public class CatalogActivity extends AppCompatActivity implements
             }
         });
 
-        // Kick off the loader
-        getLoaderManager().initLoader(CAKE_LOADER, null, this);
+        // A long press starts selecting cakes, which can then be edited all at once
+        mCakeListView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        mCakeListView.setMultiChoiceModeListener(mSelectionListener);
+
+        // Restore the sort order and filter the user picked last time
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        mSortOrder = prefs.getString(PREF_SORT_ORDER, CakeEntry.SORT_NAME);
+        if (getSortMenuId(mSortOrder) == 0) {
+            mSortOrder = CakeEntry.SORT_NAME;
+        }
+        mOccasionFilter = prefs.getInt(PREF_OCCASION_FILTER, FILTER_ALL);
+
+        // Show the first page saved by the last launch straight away. It is only a memory
+        // mapping of a small file, so no database has to be opened to fill the first frame.
+        Cursor snapshot = null;
+        if (savedInstanceState == null) {
+            snapshot = CakeSnapshot.open(getSnapshotFile(), mSortOrder, mOccasionFilter);
+            if (snapshot != null) {
+                mCursorAdapter.swapCursor(snapshot);
+                CakeMetrics.markStartup("snapshot_shown");
+            }
+        }
+
+        // Kick off the loaders. The full list loads behind the cached first page and takes its
+        // place when it arrives. Without a cached page, on the first launch or after the sort
+        // order or filter changed, a short query fills the screen first instead. After a
+        // configuration change the full list is kept by the loader manager already.
+        if (savedInstanceState == null && snapshot == null) {
+            getLoaderManager().initLoader(FIRST_PAGE_LOADER, null, this);
+        }
+        getLoaderManager().initLoader(CAKE_LOADER, null, mCatalogCallbacks);
+
+        // Record when the first frame is about to be drawn
+        final View content = findViewById(android.R.id.content);
+        content.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        content.getViewTreeObserver().removeOnPreDrawListener(this);
+                        CakeMetrics.markStartup("first_frame");
+                        return true;
+                    }
+                });
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // The app may be about to go to the background, where it can be killed at any time, so
+        // save the taps on "Sell" that aren't written yet, to be written by the next launch if
+        // need be, and write them now rather than at the end of the batching window. It is a
+        // single short transaction, and only runs if there were taps, on the buffer's own
+        // thread so stopping never waits for the database.
+        mQuantityBuffer.flushInBackground();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mQuantityBuffer.setOnPendingChangeListener(null);
+    }
+
+    /**
+     * Return the file that the first page of the catalog is saved to.
+     */
+    private File getSnapshotFile() {
+        return new File(getCacheDir(), SNAPSHOT_FILE_NAME);
+    }
+
+    /**
+     * Save the first page of the given list, so the next launch can show it straight away.
+     * The rows are copied here and written to the file in the background.
+     */
+    private void saveSnapshot(Cursor data) {
+        final CakeSnapshot snapshot =
+                CakeSnapshot.capture(data, FIRST_PAGE_SIZE, mSortOrder, mOccasionFilter);
+        final File file = getSnapshotFile();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot.writeTo(file);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to save the catalog snapshot", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Switch the list to a new sort order and occasion filter. The new query goes to the
+     * provider, which reads the rows in order straight from an index.
+     */
+    private void setSortAndFilter(String sortOrder, int occasionFilter) {
+        if (sortOrder.equals(mSortOrder) && occasionFilter == mOccasionFilter) {
+            return;
+        }
+        mSortOrder = sortOrder;
+        mOccasionFilter = occasionFilter;
+
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                .putString(PREF_SORT_ORDER, mSortOrder)
+                .putInt(PREF_OCCASION_FILTER, mOccasionFilter)
+                .apply();
+
+        invalidateOptionsMenu();
+        getLoaderManager().destroyLoader(FIRST_PAGE_LOADER);
+        getLoaderManager().restartLoader(CAKE_LOADER, null, mCatalogCallbacks);
+    }
+
+    /**
+     * Return the id of the menu item for the given sort order, or 0 if there is none.
+     */
+    private static int getSortMenuId(String sortOrder) {
+        if (CakeEntry.SORT_NAME.equals(sortOrder)) {
+            return R.id.action_sort_name;
+        } else if (CakeEntry.SORT_PRICE_ASC.equals(sortOrder)) {
+            return R.id.action_sort_price_asc;
+        } else if (CakeEntry.SORT_PRICE_DESC.equals(sortOrder)) {
+            return R.id.action_sort_price_desc;
+        } else if (CakeEntry.SORT_QUANTITY_ASC.equals(sortOrder)) {
+            return R.id.action_sort_quantity_asc;
+        } else if (CakeEntry.SORT_QUANTITY_DESC.equals(sortOrder)) {
+            return R.id.action_sort_quantity_desc;
+        }
+        return 0;
+    }
+
+    /**
+     * Return the id of the menu item for the given occasion filter.
+     */
+    private static int getFilterMenuId(int occasionFilter) {
+        switch (occasionFilter) {
+            case CakeEntry.OCCASION_BIRTHDAY:
+                return R.id.action_filter_birthday;
+            case CakeEntry.OCCASION_WEDDING:
+                return R.id.action_filter_wedding;
+            case CakeEntry.OCCASION_UNKNOWN:
+                return R.id.action_filter_unknown;
+            default:
+                return R.id.action_filter_all;
+        }
     }
 
     /**
@@ -127,11 +350,206 @@ public class CatalogActivity extends AppCompatActivity implements
     }
 
     /**
-     * Helper method to delete all cakes in the database.
+     * Helper method to delete all cakes in the database. The provider only hides the cakes at
+     * first, so the delete returns straight away and can be undone from the snackbar.
      */
     private void deleteAllCakes() {
         int rowsDeleted = getContentResolver().delete(CakeEntry.CONTENT_URI, null, null);
         Log.v("CatalogActivity", rowsDeleted + " rows deleted from cake database");
+
+        if (rowsDeleted != 0) {
+            Snackbar.make(findViewById(R.id.list), R.string.catalog_delete_all_done,
+                    Snackbar.LENGTH_LONG)
+                    .setAction(R.string.action_undo, new View.OnClickListener() {
+                        @Override
+                        public void onClick(View view) {
+                            undoOrRedo(CakeContract.METHOD_UNDO);
+                        }
+                    })
+                    .show();
+        }
+    }
+
+    /**
+     * Callbacks of the action mode of the list, which is shown while cakes are selected.
+     */
+    private final AbsListView.MultiChoiceModeListener mSelectionListener =
+            new AbsListView.MultiChoiceModeListener() {
+                @Override
+                public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
+                                                      boolean checked) {
+                    mode.setTitle(getString(R.string.catalog_selected,
+                            mCakeListView.getCheckedItemCount()));
+                }
+
+                @Override
+                public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+                    mode.getMenuInflater().inflate(R.menu.menu_catalog_selection, menu);
+                    return true;
+                }
+
+                @Override
+                public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+                    return false;
+                }
+
+                @Override
+                public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+                    if (item.getItemId() == R.id.action_bulk_edit) {
+                        showBulkEditDialog(mCakeListView.getCheckedItemIds(), mode);
+                        return true;
+                    }
+                    return false;
+                }
+
+                @Override
+                public void onDestroyActionMode(ActionMode mode) {
+                }
+            };
+
+    /**
+     * Ask how to change the price or quantity of the given cakes, or of every cake shown if
+     * there are no ids, and make the change. The action mode, if any, is closed once the
+     * change is made; it stays open if the dialog is cancelled, so the selection isn't lost.
+     */
+    private void showBulkEditDialog(final long[] ids, final ActionMode mode) {
+        View view = getLayoutInflater().inflate(R.layout.dialog_bulk_edit, null);
+        final Spinner operationSpinner = (Spinner) view.findViewById(R.id.spinner_bulk_operation);
+        final EditText valueEditText = (EditText) view.findViewById(R.id.edit_bulk_value);
+
+        // The options are in the order of the BULK_ constants, so the position is the operation
+        ArrayAdapter operationSpinnerAdapter = ArrayAdapter.createFromResource(this,
+                R.array.array_bulk_edit_options, android.R.layout.simple_spinner_item);
+        operationSpinnerAdapter.setDropDownViewResource(
+                android.R.layout.simple_dropdown_item_1line);
+        operationSpinner.setAdapter(operationSpinnerAdapter);
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.bulk_edit_title);
+        builder.setView(view);
+        builder.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                double value;
+                try {
+                    value = Double.parseDouble(valueEditText.getText().toString().trim());
+                } catch (NumberFormatException e) {
+                    value = Double.NaN;
+                }
+                bulkEdit(ids, operationSpinner.getSelectedItemPosition(), value, mode);
+            }
+        });
+        builder.setNegativeButton(android.R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Change the price or quantity of the given cakes, or of every cake shown if there are no
+     * ids, with a single call to the provider, in the background. Once it is made, shows how
+     * many cakes changed, with an undo button if the change can be undone, and closes the
+     * action mode, if any. Shows a toast instead, and leaves the action mode open, if the
+     * amount doesn't fit the operation.
+     *
+     * The changes to the cakes run one at a time on {@link AsyncTask#SERIAL_EXECUTOR}, so an
+     * undo always comes after the change it undoes.
+     */
+    private void bulkEdit(long[] ids, int operation, double value, final ActionMode mode) {
+        final Bundle extras = new Bundle();
+        if (ids != null) {
+            extras.putLongArray(CakeContract.EXTRA_IDS, ids);
+        } else {
+            // The same filter as the list, so exactly the cakes shown are changed
+            extras.putString(CakeContract.EXTRA_SELECTION, getSelection());
+            extras.putStringArray(CakeContract.EXTRA_SELECTION_ARGS, getSelectionArgs());
+        }
+        extras.putInt(CakeContract.EXTRA_OPERATION, operation);
+        extras.putDouble(CakeContract.EXTRA_VALUE, value);
+
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bundle result;
+                boolean valid = true;
+                try {
+                    result = getContentResolver().call(CakeContract.BASE_CONTENT_URI,
+                            CakeContract.METHOD_BULK_EDIT, null, extras);
+                } catch (IllegalArgumentException e) {
+                    result = null;
+                    valid = false;
+                }
+                final Bundle finalResult = result;
+                final boolean finalValid = valid;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing()) {
+                            return;
+                        }
+                        if (!finalValid) {
+                            Toast.makeText(CatalogActivity.this,
+                                    R.string.catalog_bulk_edit_invalid, Toast.LENGTH_SHORT)
+                                    .show();
+                            return;
+                        }
+                        showBulkEditDone(finalResult);
+                        if (mode != null) {
+                            mode.finish();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Show how many cakes a bulk edit changed, with an undo button if the change can be undone.
+     */
+    private void showBulkEditDone(Bundle result) {
+        // Only a change that was made, and that the undo history could keep, can be undone
+        int rows = result != null ? result.getInt(CakeContract.RESULT_ROWS) : 0;
+        boolean undoable = result != null && result.getBoolean(CakeContract.RESULT_UNDOABLE);
+        Snackbar snackbar = Snackbar.make(findViewById(R.id.list),
+                getString(rows == 0 || undoable ? R.string.catalog_bulk_edit_done
+                        : R.string.catalog_bulk_edit_done_no_undo, rows),
+                Snackbar.LENGTH_LONG);
+        if (undoable) {
+            snackbar.setAction(R.string.action_undo, new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    undoOrRedo(CakeContract.METHOD_UNDO);
+                }
+            });
+        }
+        snackbar.show();
+    }
+
+    /**
+     * Undo the last change to the cakes, or redo the last undone one, depending on the provider
+     * method given, in the background after any change still being made. Shows a toast if
+     * there was nothing to undo or redo.
+     */
+    private void undoOrRedo(final String method) {
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bundle result = getContentResolver().call(CakeContract.BASE_CONTENT_URI, method,
+                        null, null);
+                if (result != null && result.getInt(CakeContract.RESULT_ROWS) != 0) {
+                    return;
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isFinishing()) {
+                            int message = CakeContract.METHOD_UNDO.equals(method)
+                                    ? R.string.catalog_nothing_to_undo
+                                    : R.string.catalog_nothing_to_redo;
+                            Toast.makeText(CatalogActivity.this, message, Toast.LENGTH_SHORT)
+                                    .show();
+                        }
+                    }
+                });
+            }
+        });
     }
 
     @Override
@@ -142,6 +560,18 @@ public class CatalogActivity extends AppCompatActivity implements
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        // Tick the current sort order and filter
+        menu.findItem(getSortMenuId(mSortOrder)).setChecked(true);
+        menu.findItem(getFilterMenuId(mOccasionFilter)).setChecked(true);
+
+        // The metrics screen is only offered in debug builds
+        menu.findItem(R.id.action_show_metrics).setVisible(BuildConfig.DEBUG);
+        return true;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
@@ -154,39 +584,250 @@ public class CatalogActivity extends AppCompatActivity implements
             case R.id.action_delete_all_entries:
                 deleteAllCakes();
                 return true;
+            // Respond to a click on the "Edit all shown" menu option
+            case R.id.action_bulk_edit_shown:
+                showBulkEditDialog(null, null);
+                return true;
+            // Respond to a click on the "Find duplicates" menu option
+            case R.id.action_find_duplicates:
+                findDuplicates();
+                return true;
+            // Respond to a click on the "Undo" and "Redo" menu options
+            case R.id.action_undo:
+                undoOrRedo(CakeContract.METHOD_UNDO);
+                return true;
+            case R.id.action_redo:
+                undoOrRedo(CakeContract.METHOD_REDO);
+                return true;
+            // Respond to a click on the "Show metrics" menu option
+            case R.id.action_show_metrics:
+                showMetricsDialog();
+                return true;
+            // Respond to a click on one of the sort orders
+            case R.id.action_sort_name:
+                setSortAndFilter(CakeEntry.SORT_NAME, mOccasionFilter);
+                return true;
+            case R.id.action_sort_price_asc:
+                setSortAndFilter(CakeEntry.SORT_PRICE_ASC, mOccasionFilter);
+                return true;
+            case R.id.action_sort_price_desc:
+                setSortAndFilter(CakeEntry.SORT_PRICE_DESC, mOccasionFilter);
+                return true;
+            case R.id.action_sort_quantity_asc:
+                setSortAndFilter(CakeEntry.SORT_QUANTITY_ASC, mOccasionFilter);
+                return true;
+            case R.id.action_sort_quantity_desc:
+                setSortAndFilter(CakeEntry.SORT_QUANTITY_DESC, mOccasionFilter);
+                return true;
+            // Respond to a click on one of the occasion filters
+            case R.id.action_filter_all:
+                setSortAndFilter(mSortOrder, FILTER_ALL);
+                return true;
+            case R.id.action_filter_birthday:
+                setSortAndFilter(mSortOrder, CakeEntry.OCCASION_BIRTHDAY);
+                return true;
+            case R.id.action_filter_wedding:
+                setSortAndFilter(mSortOrder, CakeEntry.OCCASION_WEDDING);
+                return true;
+            case R.id.action_filter_unknown:
+                setSortAndFilter(mSortOrder, CakeEntry.OCCASION_UNKNOWN);
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Find the pairs of cakes with similar names in the whole catalog, in the background, and
+     * list them. The provider compares each name only with the names that share a rare
+     * trigram with it, so the pass doesn't compare every pair of cakes.
+     */
+    private void findDuplicates() {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bundle result = getContentResolver().call(CakeContract.BASE_CONTENT_URI,
+                        CakeContract.METHOD_FIND_DUPLICATE_NAMES, null, null);
+                final CakeNameMatches matches = CakeNameMatches.fromBundle(result);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isFinishing()) {
+                            showDuplicatesDialog(matches);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * List the pairs of cakes with similar names. Tapping a pair opens the newer cake of the
+     * two, which is most likely the duplicate.
+     */
+    private void showDuplicatesDialog(final CakeNameMatches matches) {
+        if (matches.size() == 0) {
+            Toast.makeText(this, R.string.duplicates_none, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] pairs = new String[matches.size()];
+        for (int i = 0; i < pairs.length; i++) {
+            pairs[i] = getString(R.string.duplicates_pair, matches.names[i],
+                    matches.matchNames[i], Math.round(matches.similarities[i] * 100));
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.duplicates_title);
+        builder.setItems(pairs, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
+                intent.setData(ContentUris.withAppendedId(CakeEntry.CONTENT_URI,
+                        Math.max(matches.ids[which], matches.matchIds[which])));
+                startActivity(intent);
+            }
+        });
+        builder.setNegativeButton(android.R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * Show the recorded timings of the provider, the list and the loaders, and the memory
+     * taken by the caches.
+     */
+    private void showMetricsDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.action_show_metrics);
+        builder.setMessage(CakeMetrics.dumpToString() + "\n"
+                + CakeCacheRegistry.getInstance().dumpToString());
+        builder.setPositiveButton(android.R.string.ok, null);
+        builder.setNeutralButton(R.string.metrics_reset, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {
+                CakeMetrics.reset();
+            }
+        });
+        builder.create().show();
+    }
+
+    /**
+     * Callbacks of the loader of the full list, which tells which cakes have changed each
+     * time the catalog changes, so the list only redraws those.
+     */
+    private final LoaderManager.LoaderCallbacks<CakeQueryLoader.Result> mCatalogCallbacks =
+            new LoaderManager.LoaderCallbacks<CakeQueryLoader.Result>() {
+                @Override
+                public Loader<CakeQueryLoader.Result> onCreateLoader(int i, Bundle bundle) {
+                    mLoadStart = CakeMetrics.now();
+
+                    // This loader will execute the ContentProvider's query method on a
+                    // background thread, and again after every change to the catalog
+                    return new CakeQueryLoader(CatalogActivity.this,
+                            CakeEntry.CONTENT_URI,  // Provider content URI to query
+                            PROJECTION,             // Columns to include in the results
+                            getSelection(),         // Occasion filter, if any
+                            getSelectionArgs(),     // Occasion to filter on
+                            mSortOrder);            // Sort order picked by the user
+                }
+
+                @Override
+                public void onLoadFinished(Loader<CakeQueryLoader.Result> loader,
+                                           CakeQueryLoader.Result result) {
+                    onCatalogLoaded(result);
+                }
+
+                @Override
+                public void onLoaderReset(Loader<CakeQueryLoader.Result> loader) {
+                    // Callback called when the data needs to be deleted
+                    mCursorAdapter.swapCursor(null);
+                }
+            };
+
+    /**
+     * Return the selection that filters the list on the occasion, or null if it isn't filtered.
+     * The occasion is a parameter, so the value never becomes part of the SQL text.
+     */
+    private String getSelection() {
+        return mOccasionFilter != FILTER_ALL ? CakeEntry.SELECTION_OCCASION : null;
+    }
+
+    /**
+     * Return the arguments of {@link #getSelection()}.
+     */
+    private String[] getSelectionArgs() {
+        if (mOccasionFilter == FILTER_ALL) {
+            return null;
+        }
+        return new String[] { String.valueOf(mOccasionFilter) };
+    }
+
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // Define a projection that specifies the columns from the table we care about.
-        String[] projection = {
-                CakeEntry._ID,
-                CakeEntry.COLUMN_CAKE_NAME,
-                CakeEntry.COLUMN_CAKE_QUANTITY,
-                CakeEntry.COLUMN_CAKE_OCCASION,
-                CakeEntry.COLUMN_CAKE_PRICE
-        };
+        // The first page asks the provider for only as many rows as fit on the screen
+        Uri uri = CakeEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(CakeEntry.QUERY_PARAMETER_LIMIT,
+                        String.valueOf(FIRST_PAGE_SIZE))
+                .build();
 
         // This loader will execute the ContentProvider's query method on a background thread
         return new CursorLoader(this,   // Parent activity context
-                CakeEntry.CONTENT_URI,   // Provider content URI to query
-                projection,             // Columns to include in the resulting Cursor
-                null,                   // No selection clause
-                null,                   // No selection arguments
-                null);                  // Default sort order
+                uri,                    // Provider content URI to query
+                PROJECTION,             // Columns to include in the resulting Cursor
+                getSelection(),         // Occasion filter, if any
+                getSelectionArgs(),     // Occasion to filter on
+                mSortOrder);            // Sort order picked by the user
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Update {@link CakeCursorAdapter} with this new cursor containing updated cake data
-        mCursorAdapter.swapCursor(data);
+        // Show the first page only if the full list hasn't beaten it
+        if (!mFullListLoaded) {
+            mCursorAdapter.swapCursor(data);
+            CakeMetrics.markStartup("first_page_loaded");
+        }
+    }
+
+    /**
+     * Show a result of the full list, redrawing only the cakes that changed.
+     */
+    private void onCatalogLoaded(CakeQueryLoader.Result result) {
+        Cursor data = result != null ? result.getCursor() : null;
+
+        // Record the round trip from creating the loader to receiving its first result
+        CakeMetrics.recordSince(mLoadStart, "loader", "catalog", data != null ? data.getCount() : 0);
+        mLoadStart = 0;
+
+        // Update {@link CakeCursorAdapter} with this new cursor containing updated cake data.
+        // It holds the quantity changes committed before its query started, so those no longer
+        // need adding on.
+        boolean cleared = result != null && mQuantityBuffer.onDataReloaded(result.getStartedAt());
+        if (data == null) {
+            mCursorAdapter.swapCursor(null);
+        } else {
+            mCursorAdapter.swapCursor(data, result.getChanges(), mCakeListView);
+            if (cleared) {
+                // The quantities shown no longer add on the changes the cursor now holds
+                mCursorAdapter.notifyDataSetChanged();
+            }
+            if (!result.getChanges().isEmpty()) {
+                // Keep the first page for the next launch, now that the cakes have changed
+                saveSnapshot(data);
+            }
+        }
+
+        if (!mFullListLoaded) {
+            mFullListLoaded = true;
+            CakeMetrics.markStartup("full_list_loaded");
+            // The first page is covered by the full list now, so stop it from reloading
+            getLoaderManager().destroyLoader(FIRST_PAGE_LOADER);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                reportFullyDrawn();
+            }
+        }
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
-        // Callback called when the data needs to be deleted
-        mCursorAdapter.swapCursor(null);
+        // Callback called when the data needs to be deleted. The first page cursor is only in
+        // the adapter until the full list arrives.
+        if (!mFullListLoaded) {
+            mCursorAdapter.swapCursor(null);
+        }
     }
 }
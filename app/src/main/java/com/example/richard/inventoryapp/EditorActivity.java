@@ -17,17 +17,22 @@ package com.example.richard.inventoryapp;
 
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AppCompatActivity;
+import android.text.Editable;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
@@ -35,27 +40,56 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.ImageView;
 import android.widget.Spinner;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.example.richard.inventoryapp.data.CakeContract;
 import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+import com.example.richard.inventoryapp.data.CakeMetrics;
+import com.example.richard.inventoryapp.data.CakeNameMatches;
+import com.example.richard.inventoryapp.data.CakeQueryLoader;
+import com.example.richard.inventoryapp.data.CakeRow;
 
 /**
  * Allows user to create a new cake or edit an existing one.
  */
 public class EditorActivity extends AppCompatActivity implements
-        LoaderManager.LoaderCallbacks<Cursor> {
+        LoaderManager.LoaderCallbacks<CakeQueryLoader.Result> {
 
     /** Identifier for the cake data loader */
     private static final int EXISTING_CAKE_LOADER = 0;
 
+    /** Request code for picking a photo of the cake */
+    private static final int PICK_IMAGE_REQUEST = 1;
+
+    /** Key under which the picked photo that still has to be saved is kept across rotations */
+    private static final String STATE_PICKED_IMAGE_URI = "picked_image_uri";
+
+    /** Pause in typing after which the name is compared with the other cakes, in milliseconds */
+    private static final long SIMILAR_NAMES_DELAY = 300;
+
     /** Content URI for the existing cake (null if it's a new cake) */
     private Uri mCurrentCakeUri;
 
     /** EditText field to enter the cake's name */
     private EditText mNameEditText;
 
+    /** TextView under the name that lists the cakes with a similar name */
+    private TextView mSimilarNamesTextView;
+
+    /** Handler that waits for a pause in typing before the name is looked up */
+    private final Handler mHandler = new Handler();
+
+    /** Looks up the cakes with a name like the one typed, posted after every change to it */
+    private final Runnable mFindSimilarNames = new Runnable() {
+        @Override
+        public void run() {
+            findSimilarNames();
+        }
+    };
+
     /** EditText field to enter the cake's quantity */
     private EditText mQuantityEditText;
 
@@ -65,12 +99,27 @@ public class EditorActivity extends AppCompatActivity implements
     /** EditText field to enter the cake's type */
     private Spinner mOccasionSpinner;
 
+    /** ImageView that shows the cake's photo and opens a picker when tapped */
+    private ImageView mImageView;
+
+    /** Content URI of a newly picked photo that still has to be saved (null if none) */
+    private Uri mPickedImageUri;
+
+    /** Loader that decodes the photos in the background */
+    private CakeImageLoader mImageLoader;
+
+    /** Size of the photo in the editor, in pixels */
+    private int mImageSize;
+
     /**
      * Type of the cake. The possible valid values are in the CakeContract.java file:
      * {@link CakeEntry#OCCASION_UNKNOWN}, {@link CakeEntry#OCCASION_BIRTHDAY} or {@link CakeEntry#OCCASION_WEDDING}.
      */
     private int mType = CakeContract.CakeEntry.OCCASION_UNKNOWN;
 
+    /** Time the cake loader was started, for the loader round-trip metric */
+    private long mLoadStart;
+
     /** Boolean flag that keeps track of whether the cake has been edited (true) or not (false) */
     private boolean mCakeHasChanged = false;
 
@@ -116,9 +165,36 @@ public class EditorActivity extends AppCompatActivity implements
 
         // Find all relevant views that we will need to read user input from
         mNameEditText = (EditText) findViewById(R.id.edit_cake_name);
+        mSimilarNamesTextView = (TextView) findViewById(R.id.edit_cake_similar_names);
         mQuantityEditText = (EditText) findViewById(R.id.edit_cake_breed);
         mPriceEditText = (EditText) findViewById(R.id.edit_cake_weight);
         mOccasionSpinner = (Spinner) findViewById(R.id.spinner_cake_occasion);
+        mImageView = (ImageView) findViewById(R.id.edit_cake_image);
+
+        mImageLoader = CakeImageLoader.getInstance(this);
+        mImageSize = getResources().getDimensionPixelSize(R.dimen.editor_image_size);
+
+        // Show the photo picked before a rotation again, it hasn't been saved yet
+        if (savedInstanceState != null) {
+            mPickedImageUri = savedInstanceState.getParcelable(STATE_PICKED_IMAGE_URI);
+            if (mPickedImageUri != null) {
+                mCakeHasChanged = true;
+                mImageLoader.loadImage(mPickedImageUri, mPickedImageUri.toString(), mImageView,
+                        mImageSize, R.drawable.ic_attach_money_black_48dp);
+            }
+        }
+
+        // Let the user pick a photo from any app that offers images
+        mImageView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                Intent pickIntent = new Intent(Intent.ACTION_GET_CONTENT);
+                pickIntent.setType("image/*");
+                startActivityForResult(
+                        Intent.createChooser(pickIntent, getString(R.string.editor_pick_image)),
+                        PICK_IMAGE_REQUEST);
+            }
+        });
 
         // Setup OnTouchListeners on all the input fields, so we can determine if the user
         // has touched or modified them. This will let us know if there are unsaved changes
@@ -128,9 +204,98 @@ public class EditorActivity extends AppCompatActivity implements
         mPriceEditText.setOnTouchListener(mTouchListener);
         mOccasionSpinner.setOnTouchListener(mTouchListener);
 
+        // Warn about cakes with a similar name while the name is typed, once the typing pauses
+        mNameEditText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mHandler.removeCallbacks(mFindSimilarNames);
+                mHandler.postDelayed(mFindSimilarNames, SIMILAR_NAMES_DELAY);
+            }
+        });
+
         setupSpinner();
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(STATE_PICKED_IMAGE_URI, mPickedImageUri);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mFindSimilarNames);
+    }
+
+    /**
+     * Look up the cakes whose name is like the one typed, in the background, and list them
+     * under the name. The provider finds them through its trigram index of the names, so the
+     * lookup takes about as long however big the catalog is.
+     */
+    private void findSimilarNames() {
+        final String name = mNameEditText.getText().toString().trim();
+        if (TextUtils.isEmpty(name)) {
+            mSimilarNamesTextView.setVisibility(View.GONE);
+            return;
+        }
+        final Bundle extras = new Bundle();
+        extras.putString(CakeContract.EXTRA_NAME, name);
+        extras.putLong(CakeContract.EXTRA_CAKE_ID,
+                mCurrentCakeUri != null ? ContentUris.parseId(mCurrentCakeUri) : -1);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bundle result = getContentResolver().call(CakeContract.BASE_CONTENT_URI,
+                        CakeContract.METHOD_FIND_SIMILAR_NAMES, null, extras);
+                final CakeNameMatches matches = CakeNameMatches.fromBundle(result);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        showSimilarNames(name, matches);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * List the cakes found for the given name under it, unless the name has changed since.
+     */
+    private void showSimilarNames(String name, CakeNameMatches matches) {
+        if (isFinishing() || !name.equals(mNameEditText.getText().toString().trim())) {
+            return;
+        }
+        if (matches.size() == 0) {
+            mSimilarNamesTextView.setVisibility(View.GONE);
+            return;
+        }
+        mSimilarNamesTextView.setText(getString(R.string.editor_similar_names,
+                TextUtils.join(", ", matches.matchNames)));
+        mSimilarNamesTextView.setVisibility(View.VISIBLE);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == PICK_IMAGE_REQUEST && resultCode == RESULT_OK && data != null
+                && data.getData() != null) {
+            // Keep the picked photo until the cake is saved, and show a preview of it
+            mPickedImageUri = data.getData();
+            mCakeHasChanged = true;
+            mImageLoader.loadImage(mPickedImageUri, mPickedImageUri.toString(), mImageView,
+                    mImageSize, R.drawable.ic_attach_money_black_48dp);
+        }
+    }
+
     /**
      * Setup the dropdown spinner that allows the user to select the type of the cake.
      */
@@ -184,7 +349,8 @@ public class EditorActivity extends AppCompatActivity implements
         // and check if all the fields in the editor are blank
         if (mCurrentCakeUri == null &&
                 TextUtils.isEmpty(nameString) && TextUtils.isEmpty(breedString) &&
-                TextUtils.isEmpty(weightString) && mType == CakeContract.CakeEntry.OCCASION_UNKNOWN) {
+                TextUtils.isEmpty(weightString) && mType == CakeContract.CakeEntry.OCCASION_UNKNOWN
+                && mPickedImageUri == null) {
             // Since no fields were modified, we can return early without creating a new cake.
             // No need to create ContentValues and no need to do any ContentProvider operations.
             return;
@@ -219,6 +385,7 @@ public class EditorActivity extends AppCompatActivity implements
                 // Otherwise, the insertion was successful and we can display a toast.
                 Toast.makeText(this, getString(R.string.editor_insert_cake_successful),
                         Toast.LENGTH_SHORT).show();
+                storePickedImage(newUri);
             }
         } else {
             // Otherwise this is an EXISTING cake, so update the cake with content URI: mCurrentCakeUri
@@ -236,10 +403,34 @@ public class EditorActivity extends AppCompatActivity implements
                 // Otherwise, the update was successful and we can display a toast.
                 Toast.makeText(this, getString(R.string.editor_update_cake_successful),
                         Toast.LENGTH_SHORT).show();
+                storePickedImage(mCurrentCakeUri);
             }
         }
     }
 
+    /**
+     * Copy the newly picked photo, if there is one, into the provider for the given cake.
+     * The copy runs in the background, so it carries on after the editor has closed, and the
+     * user is told if it fails, since the cake has already been reported as saved by then.
+     */
+    private void storePickedImage(Uri cakeUri) {
+        if (mPickedImageUri != null) {
+            // The editor may be gone by the time the copy is over
+            final Context appContext = getApplicationContext();
+            mImageLoader.storeImage(mPickedImageUri, cakeUri,
+                    new CakeImageLoader.OnImageStoredListener() {
+                        @Override
+                        public void onImageStored(Uri uri, boolean stored) {
+                            if (!stored) {
+                                Toast.makeText(appContext,
+                                        appContext.getString(R.string.editor_store_image_failed),
+                                        Toast.LENGTH_LONG).show();
+                            }
+                        }
+                    });
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_editor.xml file.
@@ -334,7 +525,9 @@ public class EditorActivity extends AppCompatActivity implements
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
+    public Loader<CakeQueryLoader.Result> onCreateLoader(int i, Bundle bundle) {
+        mLoadStart = CakeMetrics.now();
+
         // Since the editor shows all cake attributes, define a projection that contains
         // all columns from the cake table
         String[] projection = {
@@ -342,10 +535,13 @@ public class EditorActivity extends AppCompatActivity implements
                 CakeEntry.COLUMN_CAKE_NAME,
                 CakeEntry.COLUMN_CAKE_QUANTITY,
                 CakeContract.CakeEntry.COLUMN_CAKE_OCCASION,
-                CakeContract.CakeEntry.COLUMN_CAKE_PRICE};
+                CakeContract.CakeEntry.COLUMN_CAKE_PRICE,
+                CakeContract.CakeEntry.COLUMN_CAKE_IMAGE};
 
-        // This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(this,   // Parent activity context
+        // This loader will execute the ContentProvider's query method on a background thread.
+        // It only delivers again if this cake has changed, so edits in progress aren't
+        // overwritten whenever another cake is changed.
+        return new CakeQueryLoader(this,   // Parent activity context
                 mCurrentCakeUri,         // Query the content URI for the current cake
                 projection,             // Columns to include in the resulting Cursor
                 null,                   // No selection clause
@@ -354,7 +550,12 @@ public class EditorActivity extends AppCompatActivity implements
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+    public void onLoadFinished(Loader<CakeQueryLoader.Result> loader,
+                               CakeQueryLoader.Result result) {
+        Cursor cursor = result != null ? result.getCursor() : null;
+        CakeMetrics.recordSince(mLoadStart, "loader", "editor", cursor != null ? cursor.getCount() : 0);
+        mLoadStart = 0;
+
         // Bail early if the cursor is null or there is less than 1 row in the cursor
         if (cursor == null || cursor.getCount() < 1) {
             return;
@@ -363,23 +564,25 @@ public class EditorActivity extends AppCompatActivity implements
         // Proceed with moving to the first row of the cursor and reading data from it
         // (This should be the only row in the cursor)
         if (cursor.moveToFirst()) {
-            // Find the columns of cake attributes that we're interested in
-            int nameColumnIndex = cursor.getColumnIndex(CakeContract.CakeEntry.COLUMN_CAKE_NAME);
-            int quantityColumnIndex = cursor.getColumnIndex(CakeContract.CakeEntry.COLUMN_CAKE_QUANTITY);
-            int typeColumnIndex = cursor.getColumnIndex(CakeContract.CakeEntry.COLUMN_CAKE_OCCASION);
-            int priceColumnIndex = cursor.getColumnIndex(CakeContract.CakeEntry.COLUMN_CAKE_PRICE);
-
-            // Extract out the value from the Cursor for the given column index
-            String name = cursor.getString(nameColumnIndex);
-            String quantity = cursor.getString(quantityColumnIndex);
-            int type = cursor.getInt(typeColumnIndex);
-            int price = cursor.getInt(priceColumnIndex);
+            // Extract out the values of the cake attributes from the Cursor
+            CakeRow row = new CakeRow.Mapper(cursor).read(cursor, new CakeRow());
+            String name = row.getName();
+            String quantity = String.valueOf(row.getQuantity());
+            int type = row.getOccasion();
+            int price = (int) row.getPrice();
+            String imageName = row.getImageName();
 
             // Update the views on the screen with the values from the database
             mNameEditText.setText(name);
             mQuantityEditText.setText(quantity);
             mPriceEditText.setText(Integer.toString(price));
 
+            // Show the stored photo, unless the user has already picked a new one
+            if (imageName != null && mPickedImageUri == null) {
+                mImageLoader.loadImage(mCurrentCakeUri, imageName, mImageView, mImageSize,
+                        R.drawable.ic_attach_money_black_48dp);
+            }
+
             // Gender is a dropdown spinner, so map the constant value from the database
             // into one of the dropdown options (0 is Unknown, 1 is Male, 2 is Female).
             // Then call setSelection() so that option is displayed on screen as the current selection.
@@ -398,7 +601,7 @@ public class EditorActivity extends AppCompatActivity implements
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
+    public void onLoaderReset(Loader<CakeQueryLoader.Result> loader) {
         // If the loader is invalidated, clear out all the data from the input fields.
         mNameEditText.setText("");
         mQuantityEditText.setText("");
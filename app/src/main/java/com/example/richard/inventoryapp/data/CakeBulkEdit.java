@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+/**
+ * The single UPDATE of a {@link CakeContract#METHOD_BULK_EDIT}, for {@link CakeProvider}.
+ *
+ * The new value of each cake is worked out by SQLite from its old one, so however many cakes are
+ * changed, it is one statement with the amount as its first argument, run in the caller's
+ * transaction. The price history trigger still records every price that changes.
+ */
+final class CakeBulkEdit {
+
+    private CakeBulkEdit() {}
+
+    /**
+     * Return whether the operation is one of the BULK_ constants of {@link CakeContract}, with
+     * an amount that makes sense for it.
+     */
+    static boolean isValid(int operation, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return false;
+        }
+        switch (operation) {
+            case CakeContract.BULK_SET_PRICE:
+                return value >= 0;
+            case CakeContract.BULK_ADD_PRICE:
+                return true;
+            case CakeContract.BULK_SCALE_PRICE:
+                return value >= -100;
+            case CakeContract.BULK_SET_QUANTITY:
+                return value >= 0 && value <= Integer.MAX_VALUE && value == Math.floor(value);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return the column the operation changes.
+     */
+    static String getColumn(int operation) {
+        return operation == CakeContract.BULK_SET_QUANTITY
+                ? CakeEntry.COLUMN_CAKE_QUANTITY : CakeEntry.COLUMN_CAKE_PRICE;
+    }
+
+    /**
+     * Return the SQL expression of the new value of the column, with the amount as its "?".
+     */
+    private static String getExpression(int operation) {
+        String price = CakeEntry.COLUMN_CAKE_PRICE;
+        switch (operation) {
+            case CakeContract.BULK_ADD_PRICE:
+                return "MAX(ROUND(" + price + "+?, 2), 0)";
+            case CakeContract.BULK_SCALE_PRICE:
+                return "MAX(ROUND(" + price + "*(100+?)/100, 2), 0)";
+            case CakeContract.BULK_SET_QUANTITY:
+                return "CAST(? AS INTEGER)";
+            default:
+                return "ROUND(?, 2)";
+        }
+    }
+
+    /**
+     * Change the cakes that match the selection, in the caller's transaction. The selection
+     * must already hide the deleted cakes. Return the number of cakes whose value changed.
+     */
+    static int apply(SQLiteDatabase database, int operation, double value, String selection,
+                     String[] selectionArgs) {
+        String column = getColumn(operation);
+        SQLiteStatement statement = database.compileStatement("UPDATE " + CakeEntry.TABLE_NAME
+                + " SET " + column + "=" + getExpression(operation)
+                + " WHERE " + changedSelection(operation, selection));
+        try {
+            // The amount comes first, in the SET, and again after the selection's arguments
+            int index = 1;
+            statement.bindDouble(index++, value);
+            if (selectionArgs != null) {
+                for (String arg : selectionArgs) {
+                    statement.bindString(index++, arg);
+                }
+            }
+            statement.bindDouble(index, value);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Return the selection of the cakes {@link #apply} changes, whose arguments are those of
+     * the given selection followed by the amount. Cakes that already have the new value are
+     * left out, so they aren't counted, recorded in the undo history or given a price history
+     * entry.
+     */
+    static String changedSelection(int operation, String selection) {
+        String where = getExpression(operation) + " IS NOT " + getColumn(operation);
+        return selection != null ? "(" + selection + ") AND " + where : where;
+    }
+}
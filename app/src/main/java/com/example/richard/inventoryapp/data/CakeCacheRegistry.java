@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.content.ComponentCallbacks2;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * {@link CakeCacheRegistry} knows every in-memory cache of the app, how many bytes each one
+ * holds, and which ones to give up first when the system runs short of memory.
+ *
+ * Each cache registers itself with a name and a priority. When the app is told to trim its
+ * memory, the caches are shrunk in order of priority, lowest first, by a share that depends on
+ * how urgent the request is: while the app is in the foreground only the caches that are cheap
+ * to rebuild give up part of what they hold, and once the app is in the background and likely
+ * to be killed everything goes. Dropping a cache only ever costs a slower next lookup, while
+ * being killed loses the catalog the user was looking at, so the app rather runs slow for a
+ * moment than holds on to its caches.
+ *
+ * The sizes are the caches' own estimates and are printed by {@link #dump(PrintWriter)}, which
+ * is part of "adb shell dumpsys activity provider com.example.richard.inventoryapp".
+ */
+public final class CakeCacheRegistry {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = CakeCacheRegistry.class.getSimpleName();
+
+    /** Priority of a cache that is big and cheap to rebuild, such as decoded thumbnails */
+    public static final int PRIORITY_LOW = 0;
+
+    /** Priority of a cache that takes some work to rebuild, such as an open database */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /** Priority of a cache that is small and on a path that has to stay fast */
+    public static final int PRIORITY_HIGH = 2;
+
+    /**
+     * A cache that can tell how big it is and be made smaller. The methods may be called from
+     * any thread, and without any lock of the registry held.
+     */
+    public interface Cache {
+
+        /**
+         * Return the number of bytes the cache holds, or an estimate of it.
+         */
+        long getSize();
+
+        /**
+         * Remove entries until the cache holds at most the given number of bytes. 0 empties
+         * it. The cache may refill afterwards as it is used.
+         */
+        void trimToSize(long maxSize);
+    }
+
+    /**
+     * A registered cache.
+     */
+    private static final class Entry {
+        final String name;
+        final int priority;
+        final Cache cache;
+
+        Entry(String name, int priority, Cache cache) {
+            this.name = name;
+            this.priority = priority;
+            this.cache = cache;
+        }
+    }
+
+    /** Shared instance, created on first use */
+    private static CakeCacheRegistry sInstance;
+
+    /** Registered caches, lowest priority first, guarded by the registry's lock */
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+
+    /**
+     * Return the shared {@link CakeCacheRegistry}.
+     */
+    public static synchronized CakeCacheRegistry getInstance() {
+        if (sInstance == null) {
+            sInstance = new CakeCacheRegistry();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    CakeCacheRegistry() {
+    }
+
+    /**
+     * Add a cache to the registry. A cache that goes away has to be unregistered, or it is
+     * kept alive by the registry.
+     *
+     * @param name     shown by {@link #dump(PrintWriter)}
+     * @param priority one of the PRIORITY_ constants
+     * @param cache    to register
+     */
+    public synchronized void register(String name, int priority, Cache cache) {
+        Entry entry = new Entry(name, priority, cache);
+        int i = 0;
+        while (i < mEntries.size() && mEntries.get(i).priority <= priority) {
+            i++;
+        }
+        mEntries.add(i, entry);
+    }
+
+    /**
+     * Remove a cache from the registry.
+     */
+    public synchronized void unregister(Cache cache) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            if (mEntries.get(i).cache == cache) {
+                mEntries.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Return the number of bytes all registered caches hold together.
+     */
+    public long getTotalSize() {
+        long total = 0;
+        for (Entry entry : getEntries()) {
+            total += entry.cache.getSize();
+        }
+        return total;
+    }
+
+    /**
+     * Shrink the caches for the given level of {@link ComponentCallbacks2#onTrimMemory}.
+     */
+    public void onTrimMemory(int level) {
+        long before = 0;
+        long after = 0;
+        for (Entry entry : getEntries()) {
+            long size = entry.cache.getSize();
+            before += size;
+            float kept = getKeptShare(entry.priority, level);
+            if (kept < 1) {
+                entry.cache.trimToSize((long) (size * kept));
+                size = entry.cache.getSize();
+            }
+            after += size;
+        }
+        Log.i(LOG_TAG, "Trimmed caches for level " + level + " from " + before + " to " + after
+                + " bytes");
+    }
+
+    /**
+     * Empty every cache, as the whole system is short of memory.
+     */
+    public void onLowMemory() {
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    /**
+     * Return the share of a cache of the given priority that is kept at the given trim level.
+     *
+     * The levels of a running app come before those of an app in the background: the UI hidden
+     * level frees what only the screen needs, and each background level frees more, as the app
+     * is closer to being killed.
+     */
+    @VisibleForTesting
+    static float getKeptShare(int priority, int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 0;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return priority == PRIORITY_HIGH ? 0.5f : 0;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Nothing is on screen, so the thumbnails aren't needed until the app comes back
+            return priority == PRIORITY_LOW ? 0 : 1;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return priority == PRIORITY_HIGH ? 0.5f : 0;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return priority == PRIORITY_LOW ? 0.25f : priority == PRIORITY_NORMAL ? 0.5f : 1;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return priority == PRIORITY_LOW ? 0.5f : 1;
+        }
+        return 1;
+    }
+
+    /**
+     * Print the size of every cache, biggest first, and the total.
+     */
+    public void dump(PrintWriter writer) {
+        List<Entry> entries = getEntries();
+        final long[] sizes = new long[entries.size()];
+        Integer[] order = new Integer[entries.size()];
+        long total = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            sizes[i] = entries.get(i).cache.getSize();
+            order[i] = i;
+            total += sizes[i];
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return sizes[lhs] < sizes[rhs] ? 1 : sizes[lhs] > sizes[rhs] ? -1 : 0;
+            }
+        });
+
+        writer.println("Caches (bytes, priority):");
+        for (Integer i : order) {
+            Entry entry = entries.get(i);
+            writer.println("  " + entry.name + ": " + sizes[i] + ", " + entry.priority);
+        }
+        writer.println("  total: " + total);
+    }
+
+    /**
+     * Return what {@link #dump(PrintWriter)} prints, as a string.
+     */
+    public String dumpToString() {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        dump(writer);
+        writer.flush();
+        return out.toString();
+    }
+
+    /**
+     * Return a copy of the registered caches, lowest priority first, so they can be called
+     * without the registry's lock. A cache may take locks of its own that are also held while
+     * registering, such as a pool that opens a catalog.
+     */
+    private synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(mEntries);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import java.util.Arrays;
+
+/**
+ * The rows that changed between two results of the same query, by row id, as delivered by
+ * {@link CakeQueryLoader}.
+ *
+ * A row is inserted if only the new result has it, removed if only the old one has it, and
+ * updated if both have it with different values. The rows that are in both results may also
+ * have moved, for example when a change of price moves a cake in a list sorted by price.
+ */
+public final class CakeChangeSet {
+
+    private static final long[] NONE = new long[0];
+
+    /** Change set of the first result of a query, where every row is new */
+    static final CakeChangeSet INITIAL = new CakeChangeSet(true, NONE, NONE, NONE, true);
+
+    private final boolean mInitial;
+    private final long[] mInserted;
+    private final long[] mUpdated;
+    private final long[] mRemoved;
+    private final boolean mMoved;
+
+    CakeChangeSet(boolean initial, long[] inserted, long[] updated, long[] removed,
+                  boolean moved) {
+        mInitial = initial;
+        mInserted = inserted;
+        mUpdated = updated;
+        mRemoved = removed;
+        mMoved = moved;
+        // Sorted, so {@link #isUpdated} can search them
+        Arrays.sort(mUpdated);
+    }
+
+    /**
+     * Return whether this is the first result of the query, with nothing to compare it to.
+     */
+    public boolean isInitial() {
+        return mInitial;
+    }
+
+    /**
+     * Return the ids of the rows that are new in this result.
+     */
+    public long[] getInserted() {
+        return mInserted.clone();
+    }
+
+    /**
+     * Return the ids of the rows whose values have changed, in ascending order.
+     */
+    public long[] getUpdated() {
+        return mUpdated.clone();
+    }
+
+    /**
+     * Return the ids of the rows that have left this result.
+     */
+    public long[] getRemoved() {
+        return mRemoved.clone();
+    }
+
+    /**
+     * Return whether the row with the given id has changed values.
+     */
+    public boolean isUpdated(long id) {
+        return Arrays.binarySearch(mUpdated, id) >= 0;
+    }
+
+    /**
+     * Return whether the rows are still in the same places, so only the values of the
+     * {@link #getUpdated updated} rows need to be shown again.
+     */
+    public boolean isUpdateOnly() {
+        return !mInitial && !mMoved && mInserted.length == 0 && mRemoved.length == 0;
+    }
+
+    /**
+     * Return whether nothing in the result has changed.
+     */
+    public boolean isEmpty() {
+        return isUpdateOnly() && mUpdated.length == 0;
+    }
+
+    @Override
+    public String toString() {
+        if (mInitial) {
+            return "CakeChangeSet{initial}";
+        }
+        return "CakeChangeSet{inserted=" + mInserted.length
+                + ", updated=" + mUpdated.length
+                + ", removed=" + mRemoved.length
+                + ", moved=" + mMoved + "}";
+    }
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.VisibleForTesting;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * In-memory, column-oriented copy of the visible cakes, for {@link CakeProvider} to answer
+ * {@link CakeContract#METHOD_FIND_TOP_CAKES} without going back to SQLite for every change of a
+ * dashboard's filter or sort.
+ *
+ * The copy is kept as parallel primitive arrays (id, occasion, price in cents and quantity)
+ * plus an index into a dictionary of distinct names, so a row costs about 28 bytes instead of a
+ * row in a CursorWindow plus the objects read out of it. Filters, sorts and top-N queries run
+ * over those arrays without boxing.
+ *
+ * The copy is bounded. A catalog of more than {@link #MAX_ROWS} visible cakes isn't copied at
+ * all and {@link #query} returns null, for the provider to answer with SQL instead. The copy is
+ * registered with {@link CakeCacheRegistry}, which may drop it when memory runs low; it is then
+ * loaded again by the next query.
+ *
+ * The provider tells the copy of every change to the cakes once it is committed. A change to a
+ * single cake reloads just that row, anything else the whole copy; either happens on the next
+ * query rather than on the writer's thread, so writers never wait for the copy. Those notes are
+ * kept under a lock of their own, and the arrays under the lock of the object, which is only
+ * held by queries and trimming.
+ */
+final class CakeColumnIndex implements CakeCacheRegistry.Cache {
+
+    /** Columns that {@link #query} can sort on, see {@link CakeContract#SORT_ID} */
+    static final int SORT_ID = CakeContract.SORT_ID;
+    static final int SORT_NAME = CakeContract.SORT_NAME;
+    static final int SORT_PRICE = CakeContract.SORT_PRICE;
+    static final int SORT_QUANTITY = CakeContract.SORT_QUANTITY;
+
+    /** Largest number of visible cakes that are copied */
+    static final int MAX_ROWS = 100000;
+
+    /**
+     * Number of single cakes changed since the last query above which the whole copy is
+     * reloaded instead, as one query is then cheaper than a query per cake
+     */
+    private static final int MAX_CHANGED_ROWS = 64;
+
+    /** Number of low bits of a sort key that hold the row position */
+    private static final int POSITION_BITS = 31;
+
+    /**
+     * Largest sort value. Values are clamped to 0 and this, so that a sort key always fits in a
+     * positive long next to the row position. Prices up to $42 million and any quantity or name
+     * rank a catalog can have sort exactly.
+     */
+    private static final long MAX_SORT_VALUE = (1L << 32) - 1;
+
+    /** Columns read from the table, in the order the load methods expect them */
+    private static final String[] COLUMNS = {
+            CakeEntry._ID,
+            CakeEntry.COLUMN_CAKE_OCCASION,
+            CakeEntry.COLUMN_CAKE_PRICE,
+            CakeEntry.COLUMN_CAKE_QUANTITY,
+            CakeEntry.COLUMN_CAKE_NAME
+    };
+
+    /** Largest number of visible cakes copied by this index */
+    private final int mMaxRows;
+
+    /** Guards {@link #mReloadAll} and {@link #mChangedIds} */
+    private final Object mChangesLock = new Object();
+
+    /** Whether the whole copy has to be loaded again before the next query */
+    private boolean mReloadAll = true;
+
+    /** Cakes that changed since the last query, to be loaded again before the next one */
+    private final Set<Long> mChangedIds = new HashSet<Long>();
+
+    /** Rows, sorted by id. Only the first mSize entries of each array are in use. */
+    private long[] mIds = new long[0];
+    private int[] mOccasions = new int[0];
+    private long[] mPriceCents = new long[0];
+    private int[] mQuantities = new int[0];
+    private int[] mNameRefs = new int[0];
+    private int mSize;
+
+    /** Distinct names, and the position of each name in that list */
+    private final List<String> mNames = new ArrayList<String>();
+    private final HashMap<String, Integer> mNameLookup = new HashMap<String, Integer>();
+
+    /** Alphabetical rank of each name in {@link #mNames}, or null if it has to be recomputed */
+    private int[] mNameRanks;
+
+    /** Deleted-through id the copy was loaded with, see {@link CakeProvider} */
+    private long mDeletedThroughId = -1;
+
+    /** Whether the catalog had more than {@link #mMaxRows} visible cakes at the last load */
+    private boolean mTooLarge;
+
+    /** Estimate of the memory held, in bytes, readable without the lock of the arrays */
+    private volatile long mFootprint;
+
+    /**
+     * Constructs a new, empty {@link CakeColumnIndex} for catalogs of up to {@link #MAX_ROWS}
+     * cakes. Nothing is loaded until the first query.
+     */
+    CakeColumnIndex() {
+        this(MAX_ROWS);
+    }
+
+    /**
+     * Constructs a new, empty {@link CakeColumnIndex}.
+     *
+     * @param maxRows largest number of visible cakes to copy
+     */
+    @VisibleForTesting
+    CakeColumnIndex(int maxRows) {
+        mMaxRows = maxRows;
+    }
+
+    /**
+     * Note that a cake has changed, or that any number of them may have, once the change is
+     * committed. Called by the writers; never waits for a query.
+     *
+     * @param id _id of the only cake that changed, or -1 if more may have
+     */
+    void onCakesChanged(long id) {
+        synchronized (mChangesLock) {
+            if (mReloadAll) {
+                return;
+            }
+            if (id == -1 || mChangedIds.size() >= MAX_CHANGED_ROWS) {
+                mReloadAll = true;
+                mChangedIds.clear();
+            } else {
+                mChangedIds.add(id);
+            }
+        }
+    }
+
+    /**
+     * Return the ids of the visible cakes that match the filter, in the requested order, or
+     * null if there are too many cakes to copy, in which case the caller has to run the query
+     * against the table. Ties are broken by _id, from low to high.
+     *
+     * @param database         to load the changed cakes from
+     * @param deletedThroughId the cakes up to this _id are hidden
+     * @param occasion         occasion to keep, or {@link CakeContract#ANY_OCCASION}
+     * @param minQuantity      smallest quantity to keep, use 0 or less to keep every cake
+     * @param sortColumn       one of the SORT_ constants
+     * @param descending       whether to sort from high to low
+     * @param limit            maximum number of ids to return, for top-N queries
+     */
+    synchronized long[] query(SQLiteDatabase database, long deletedThroughId, int occasion,
+                              int minQuantity, int sortColumn, boolean descending, int limit) {
+        if (!catchUp(database, deletedThroughId)) {
+            return null;
+        }
+        if (sortColumn == SORT_NAME && mNameRanks == null) {
+            rankNames();
+        }
+
+        // Build a sort key for every matching row, with the sort value in the high bits and the
+        // row position in the low bits. Sorting the keys then sorts the rows, ties broken by id.
+        long[] keys = new long[mSize];
+        int matches = 0;
+        for (int position = 0; position < mSize; position++) {
+            if ((occasion == CakeContract.ANY_OCCASION || mOccasions[position] == occasion)
+                    && mQuantities[position] >= minQuantity) {
+                long value = Math.min(Math.max(getSortValue(position, sortColumn), 0),
+                        MAX_SORT_VALUE);
+                if (descending) {
+                    value = MAX_SORT_VALUE - value;
+                }
+                keys[matches++] = (value << POSITION_BITS) | position;
+            }
+        }
+
+        int count = Math.min(matches, Math.max(limit, 0));
+        boolean select = count < matches / 4;
+        if (select) {
+            // Only a few rows are wanted, so select them instead of sorting everything
+            selectSmallest(keys, matches, count);
+        }
+        Arrays.sort(keys, 0, select ? count : matches);
+
+        long[] ids = new long[count];
+        long positionMask = (1L << POSITION_BITS) - 1;
+        for (int i = 0; i < count; i++) {
+            ids[i] = mIds[(int) (keys[i] & positionMask)];
+        }
+        return ids;
+    }
+
+    @Override
+    public long getSize() {
+        return mFootprint;
+    }
+
+    /**
+     * Let go of the whole copy if it holds more than the given number of bytes; the next query
+     * loads it again. A part of the copy would be of no use, so there is nothing in between.
+     */
+    @Override
+    public synchronized void trimToSize(long maxSize) {
+        if (mFootprint <= maxSize) {
+            return;
+        }
+        synchronized (mChangesLock) {
+            mReloadAll = true;
+            mChangedIds.clear();
+        }
+        setRows(new long[0], new int[0], new long[0], new int[0], new int[0], 0,
+                new ArrayList<String>(), new HashMap<String, Integer>());
+    }
+
+    /**
+     * Apply the changes noted since the last query. Return false if the catalog is too large to
+     * copy. On failure the whole copy is loaded again by the next query.
+     */
+    private boolean catchUp(SQLiteDatabase database, long deletedThroughId) {
+        boolean reloadAll;
+        Long[] changedIds;
+        synchronized (mChangesLock) {
+            reloadAll = mReloadAll || deletedThroughId != mDeletedThroughId;
+            changedIds = mChangedIds.toArray(new Long[mChangedIds.size()]);
+            mReloadAll = false;
+            mChangedIds.clear();
+        }
+
+        boolean caughtUp = false;
+        try {
+            if (reloadAll || (mTooLarge && changedIds.length > 0)) {
+                // A catalog too large to copy is counted again whenever it changes
+                reloadAll(database, deletedThroughId);
+            } else if (!mTooLarge) {
+                for (int i = 0; i < changedIds.length && !mTooLarge; i++) {
+                    reloadRow(database, changedIds[i]);
+                }
+                if (mNames.size() > mSize * 2 + MAX_CHANGED_ROWS) {
+                    compactNames();
+                }
+            }
+            caughtUp = true;
+        } finally {
+            if (!caughtUp) {
+                onCakesChanged(-1);
+            }
+        }
+        return !mTooLarge;
+    }
+
+    /**
+     * Load the whole copy, unless there are more than {@link #mMaxRows} visible cakes.
+     */
+    private void reloadAll(SQLiteDatabase database, long deletedThroughId) {
+        String selection = CakeEntry._ID + ">?";
+        String[] selectionArgs = { String.valueOf(deletedThroughId) };
+        mDeletedThroughId = deletedThroughId;
+
+        // Counting walks the table without reading the rows, so a catalog that is too large
+        // costs little to turn down
+        mTooLarge = DatabaseUtils.queryNumEntries(database, CakeEntry.TABLE_NAME, selection,
+                selectionArgs) > mMaxRows;
+        if (mTooLarge) {
+            setRows(new long[0], new int[0], new long[0], new int[0], new int[0], 0,
+                    new ArrayList<String>(), new HashMap<String, Integer>());
+            return;
+        }
+
+        Cursor cursor = database.query(CakeEntry.TABLE_NAME, COLUMNS, selection, selectionArgs,
+                null, null, CakeEntry._ID, String.valueOf(mMaxRows));
+        try {
+            int count = cursor.getCount();
+            long[] ids = new long[count];
+            int[] occasions = new int[count];
+            long[] priceCents = new long[count];
+            int[] quantities = new int[count];
+            int[] nameRefs = new int[count];
+            List<String> names = new ArrayList<String>();
+            HashMap<String, Integer> nameLookup = new HashMap<String, Integer>();
+
+            int position = 0;
+            while (position < count && cursor.moveToNext()) {
+                ids[position] = cursor.getLong(0);
+                occasions[position] = cursor.getInt(1);
+                priceCents[position] = Math.round(cursor.getDouble(2) * 100);
+                quantities[position] = cursor.getInt(3);
+                nameRefs[position] = intern(cursor.getString(4), names, nameLookup);
+                position++;
+            }
+            setRows(ids, occasions, priceCents, quantities, nameRefs, position, names,
+                    nameLookup);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Load a single cake again after it has been inserted, updated or deleted.
+     */
+    private void reloadRow(SQLiteDatabase database, long id) {
+        int position = Arrays.binarySearch(mIds, 0, mSize, id);
+        Cursor cursor = database.query(CakeEntry.TABLE_NAME, COLUMNS,
+                CakeEntry._ID + "=? AND " + CakeEntry._ID + ">?",
+                new String[] { String.valueOf(id), String.valueOf(mDeletedThroughId) },
+                null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                if (position >= 0) {
+                    removeAt(position);
+                }
+                return;
+            }
+            if (position < 0) {
+                if (mSize == mMaxRows) {
+                    // The catalog may have outgrown the copy, which a full load finds out
+                    reloadAll(database, mDeletedThroughId);
+                    return;
+                }
+                position = -position - 1;
+                insertAt(position, id);
+            }
+            mOccasions[position] = cursor.getInt(1);
+            mPriceCents[position] = Math.round(cursor.getDouble(2) * 100);
+            mQuantities[position] = cursor.getInt(3);
+            int nameRef = intern(cursor.getString(4), mNames, mNameLookup);
+            if (nameRef == mNames.size() - 1) {
+                // A new name was added, so the alphabetical ranks are out of date
+                mNameRanks = null;
+            }
+            mNameRefs[position] = nameRef;
+        } finally {
+            cursor.close();
+            mFootprint = computeFootprint();
+        }
+    }
+
+    private void setRows(long[] ids, int[] occasions, long[] priceCents, int[] quantities,
+                         int[] nameRefs, int size, List<String> names,
+                         HashMap<String, Integer> nameLookup) {
+        mIds = ids;
+        mOccasions = occasions;
+        mPriceCents = priceCents;
+        mQuantities = quantities;
+        mNameRefs = nameRefs;
+        mSize = size;
+        mNames.clear();
+        mNames.addAll(names);
+        mNameLookup.clear();
+        mNameLookup.putAll(nameLookup);
+        mNameRanks = null;
+        mFootprint = computeFootprint();
+    }
+
+    private void insertAt(int position, long id) {
+        if (mSize == mIds.length) {
+            int capacity = Math.min(Math.max(16, mSize * 3 / 2), mMaxRows);
+            mIds = Arrays.copyOf(mIds, capacity);
+            mOccasions = Arrays.copyOf(mOccasions, capacity);
+            mPriceCents = Arrays.copyOf(mPriceCents, capacity);
+            mQuantities = Arrays.copyOf(mQuantities, capacity);
+            mNameRefs = Arrays.copyOf(mNameRefs, capacity);
+        }
+        int tail = mSize - position;
+        System.arraycopy(mIds, position, mIds, position + 1, tail);
+        System.arraycopy(mOccasions, position, mOccasions, position + 1, tail);
+        System.arraycopy(mPriceCents, position, mPriceCents, position + 1, tail);
+        System.arraycopy(mQuantities, position, mQuantities, position + 1, tail);
+        System.arraycopy(mNameRefs, position, mNameRefs, position + 1, tail);
+        mIds[position] = id;
+        mSize++;
+    }
+
+    private void removeAt(int position) {
+        int tail = mSize - position - 1;
+        System.arraycopy(mIds, position + 1, mIds, position, tail);
+        System.arraycopy(mOccasions, position + 1, mOccasions, position, tail);
+        System.arraycopy(mPriceCents, position + 1, mPriceCents, position, tail);
+        System.arraycopy(mQuantities, position + 1, mQuantities, position, tail);
+        System.arraycopy(mNameRefs, position + 1, mNameRefs, position, tail);
+        mSize--;
+    }
+
+    /**
+     * Drop the names no cake uses any more. Renames only ever add names, so without this the
+     * dictionary of a catalog that is edited a lot would keep growing until the next full load.
+     */
+    private void compactNames() {
+        List<String> names = new ArrayList<String>();
+        HashMap<String, Integer> nameLookup = new HashMap<String, Integer>();
+        for (int position = 0; position < mSize; position++) {
+            mNameRefs[position] = intern(mNames.get(mNameRefs[position]), names, nameLookup);
+        }
+        mNames.clear();
+        mNames.addAll(names);
+        mNameLookup.clear();
+        mNameLookup.putAll(nameLookup);
+        mNameRanks = null;
+        mFootprint = computeFootprint();
+    }
+
+    /**
+     * Return an estimate of the memory held by the copy, in bytes.
+     */
+    private long computeFootprint() {
+        long bytes = mIds.length * 8L + mOccasions.length * 4L + mPriceCents.length * 8L
+                + mQuantities.length * 4L + mNameRefs.length * 4L;
+        for (String name : mNames) {
+            // Object headers of the String and its chars, the chars, and the map entry
+            bytes += 40 + name.length() * 2 + 32;
+        }
+        return bytes;
+    }
+
+    private long getSortValue(int position, int sortColumn) {
+        switch (sortColumn) {
+            case SORT_NAME:
+                return mNameRanks[mNameRefs[position]];
+            case SORT_PRICE:
+                return mPriceCents[position];
+            case SORT_QUANTITY:
+                return mQuantities[position];
+            default:
+                return mIds[position];
+        }
+    }
+
+    /**
+     * Move the count smallest of the first size keys to the front of the array, in any order.
+     * Keeps a max-heap of the smallest keys seen so far in the front of the array.
+     */
+    private static void selectSmallest(long[] keys, int size, int count) {
+        if (count == 0) {
+            return;
+        }
+        for (int i = count / 2 - 1; i >= 0; i--) {
+            siftDown(keys, i, count);
+        }
+        for (int i = count; i < size; i++) {
+            if (keys[i] < keys[0]) {
+                keys[0] = keys[i];
+                siftDown(keys, 0, count);
+            }
+        }
+    }
+
+    private static void siftDown(long[] heap, int index, int size) {
+        long value = heap[index];
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] > heap[child]) {
+                child++;
+            }
+            if (heap[child] <= value) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = value;
+    }
+
+    /**
+     * Work out the alphabetical rank of every name in the dictionary. Equal ranks are never
+     * given, as the names are distinct.
+     */
+    private void rankNames() {
+        Integer[] order = new Integer[mNames.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return mNames.get(lhs).compareTo(mNames.get(rhs));
+            }
+        });
+        mNameRanks = new int[order.length];
+        for (int rank = 0; rank < order.length; rank++) {
+            mNameRanks[order[rank]] = rank;
+        }
+    }
+
+    /**
+     * Return the position of the name in the dictionary, adding it at the end if it is new.
+     */
+    private static int intern(String name, List<String> names, HashMap<String, Integer> lookup) {
+        if (name == null) {
+            name = "";
+        }
+        Integer ref = lookup.get(name);
+        if (ref == null) {
+            ref = names.size();
+            names.add(name);
+            lookup.put(name, ref);
+        }
+        return ref;
+    }
+}
@@ -19,6 +19,8 @@ import android.content.ContentResolver;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import java.util.List;
+
 /**
  * API Contract for the Cakes app.
  */
@@ -50,6 +52,327 @@ public final class CakeContract {
      */
     public static final String PATH_CAKES = "cakes";
 
+    /**
+     * Path of the price history of the cakes.
+     */
+    public static final String PATH_PRICE_HISTORY = "price_history";
+
+    /**
+     * Path of the batches of stock of the cakes.
+     */
+    public static final String PATH_STOCK_BATCHES = "stock_batches";
+
+    /**
+     * Path of the pickup slots that custom orders can be booked into.
+     */
+    public static final String PATH_PICKUP_SLOTS = "pickup_slots";
+
+    /**
+     * Path of the reservations of custom orders.
+     */
+    public static final String PATH_RESERVATIONS = "reservations";
+
+    /**
+     * Path of the ingredients the cakes are made from.
+     */
+    public static final String PATH_INGREDIENTS = "ingredients";
+
+    /**
+     * Path of the recipes of the cakes and of the parts they share.
+     */
+    public static final String PATH_RECIPES = "recipes";
+
+    /**
+     * Path of the lines of the recipes.
+     */
+    public static final String PATH_RECIPE_ITEMS = "recipe_items";
+
+    /**
+     * Path of the export of the cakes.
+     */
+    public static final String PATH_EXPORT = "export";
+
+    /**
+     * Content URI of an export of every cake, for apps that read the whole catalog, such as a
+     * till or an accounting app. Open it with
+     * {@link ContentResolver#openFileDescriptor(Uri, String)} in mode "r" and read the cakes
+     * from the stream in the layout described by {@link CakeExport}, of type
+     * {@link CakeExport#MIME_TYPE}. The cakes are written into a pipe as they are read from the
+     * database, in order of _id, so a large catalog is never held in memory or copied through
+     * cursor windows. Give another app access to it with
+     * {@link android.content.Intent#FLAG_GRANT_READ_URI_PERMISSION}.
+     */
+    public static final Uri EXPORT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_EXPORT);
+
+    /**
+     * Path of the catalogs of other shops. The URIs of the catalog of a shop are the usual URIs
+     * with this path and the name of the shop in front, as made by {@link #forTenant}. Each shop
+     * has a database of its own, opened on first use; the URIs without the prefix are the
+     * catalog of this device's own shop.
+     */
+    public static final String PATH_TENANTS = "tenants";
+
+    /**
+     * Return the URI of the catalog of a shop that matches the given URI of the device's own
+     * catalog. The name may only hold letters, digits and underscores. Provider methods are
+     * called on the catalog of a shop by passing its name as the arg of
+     * {@link ContentResolver#call(Uri, String, String, android.os.Bundle)}.
+     *
+     * @param uri    in the device's own catalog, such as {@link CakeEntry#CONTENT_URI}
+     * @param tenant name of the shop
+     */
+    public static Uri forTenant(Uri uri, String tenant) {
+        if (!isValidTenant(tenant)) {
+            throw new IllegalArgumentException("Invalid tenant " + tenant);
+        }
+        Uri.Builder builder = uri.buildUpon().path(PATH_TENANTS).appendPath(tenant);
+        for (String segment : uri.getPathSegments()) {
+            builder.appendPath(segment);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Return the name of the shop whose catalog the URI belongs to, or null for the device's
+     * own catalog.
+     */
+    public static String getTenant(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() >= 2 && PATH_TENANTS.equals(segments.get(0))) {
+            return segments.get(1);
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether the given name can be used as the name of a shop.
+     */
+    public static boolean isValidTenant(String tenant) {
+        return tenant != null && tenant.matches("[A-Za-z0-9_]+");
+    }
+
+    /**
+     * Provider method that builds an inventory report of the whole catalog. Call it with
+     * {@link ContentResolver#call(Uri, String, String, android.os.Bundle)} on the
+     * {@link #BASE_CONTENT_URI}, and read the result with {@link CakeReport#fromBundle}.
+     */
+    public static final String METHOD_INVENTORY_REPORT = "inventory_report";
+
+    /**
+     * Provider methods that undo the last change to the cakes, or redo the last change that was
+     * undone. Call them like {@link #METHOD_INVENTORY_REPORT}. The result holds the number of
+     * cakes changed under {@link #RESULT_ROWS}, which is 0 if there was nothing to undo or redo.
+     */
+    public static final String METHOD_UNDO = "undo";
+    public static final String METHOD_REDO = "redo";
+
+    /** Key of the number of cakes changed in the result of a provider method */
+    public static final String RESULT_ROWS = "rows";
+
+    /**
+     * Provider method that adds to the quantities of a batch of cakes in a single transaction,
+     * with a single notification. Pass the ids under {@link #EXTRA_IDS} and the amount to add to
+     * each under {@link #EXTRA_DELTAS}; a negative amount takes cakes away, and a quantity never
+     * goes below 0. The result holds the number of cakes changed under {@link #RESULT_ROWS},
+     * and when the change was committed under {@link #RESULT_COMMITTED_AT}.
+     *
+     * A batch that may be sent more than once, such as one saved to be sent again after the app
+     * was killed, can be numbered under {@link #EXTRA_BATCH}. Numbered batches must be sent in
+     * increasing order: a batch whose number isn't higher than that of the last one applied has
+     * already been applied, and changes nothing.
+     */
+    public static final String METHOD_ADJUST_QUANTITIES = "adjust_quantities";
+
+    /** Key of the long batch number passed to {@link #METHOD_ADJUST_QUANTITIES}, above 0 */
+    public static final String EXTRA_BATCH = "batch";
+
+    /**
+     * Key of the {@link System#nanoTime()} at which the change of a provider method was
+     * committed, in its result. A query that starts after this time sees the change.
+     */
+    public static final String RESULT_COMMITTED_AT = "committed_at";
+
+    /** Key of the long[] of cake ids passed to a provider method */
+    public static final String EXTRA_IDS = "ids";
+
+    /** Key of the int[] of quantity changes passed to {@link #METHOD_ADJUST_QUANTITIES} */
+    public static final String EXTRA_DELTAS = "deltas";
+
+    /**
+     * Provider method that throws away the stock batches that have expired, taking what was
+     * left of them off the quantities of their cakes. Pass the time to sweep up to under
+     * {@link #EXTRA_TIME}, or nothing for the current time. The result holds the number of
+     * batches removed under {@link #RESULT_ROWS}. The provider also sweeps by itself while the
+     * app is idle. Each chunk of the sweep is a change in the undo history, like adding a batch
+     * is, so an undo brings back the batches along with the quantities.
+     */
+    public static final String METHOD_SWEEP_EXPIRED = "sweep_expired";
+
+    /** Key of a time passed to a provider method, in milliseconds since the epoch */
+    public static final String EXTRA_TIME = "time";
+
+    /**
+     * Provider method that books a custom order into a pickup slot. Pass the _id of the slot
+     * under {@link #EXTRA_SLOT_ID}, the cake under {@link #EXTRA_CAKE_ID}, the number of cakes
+     * under {@link #EXTRA_QUANTITY} and, optionally, the customer under {@link #EXTRA_CUSTOMER}.
+     * The check for room and the booking are a single atomic step, so a slot is never overbooked
+     * however many tills book it at once. The result holds the _id of the new reservation under
+     * {@link #RESULT_RESERVATION_ID}, or -1 if the slot doesn't have room for the order. Cancel
+     * a reservation by deleting its URI in {@link ReservationEntry}.
+     */
+    public static final String METHOD_RESERVE = "reserve";
+
+    /** Key of the _id of a pickup slot passed to {@link #METHOD_RESERVE} */
+    public static final String EXTRA_SLOT_ID = "slot_id";
+
+    /**
+     * Key of the _id of a cake passed to {@link #METHOD_RESERVE} or
+     * {@link #METHOD_FIND_SIMILAR_NAMES}
+     */
+    public static final String EXTRA_CAKE_ID = "cake_id";
+
+    /** Key of the number of cakes passed to {@link #METHOD_RESERVE} */
+    public static final String EXTRA_QUANTITY = "quantity";
+
+    /** Key of the name of the customer passed to {@link #METHOD_RESERVE} */
+    public static final String EXTRA_CUSTOMER = "customer";
+
+    /** Key of the _id of the reservation in the result of {@link #METHOD_RESERVE} */
+    public static final String RESULT_RESERVATION_ID = "reservation_id";
+
+    /**
+     * Provider method that works out the ingredients needed for a production run. Pass the _id
+     * of each cake to make under {@link #EXTRA_IDS} and how many of it under
+     * {@link #EXTRA_COUNTS}. The result is a {@link CakeProductionPlan#toBundle() bundle} of
+     * the demand for every ingredient and how much of it is missing; read it with
+     * {@link CakeProductionPlan#fromBundle}.
+     */
+    public static final String METHOD_PLAN_PRODUCTION = "plan_production";
+
+    /** Key of the int[] of numbers of cakes passed to {@link #METHOD_PLAN_PRODUCTION} */
+    public static final String EXTRA_COUNTS = "counts";
+
+    /**
+     * Provider method that changes the price or quantity of many cakes at once, as a single
+     * UPDATE in a single transaction with a single notification, recorded as a single step of
+     * the undo history. Pass the cakes either as their ids under {@link #EXTRA_IDS}, or as a
+     * selection under {@link #EXTRA_SELECTION} and {@link #EXTRA_SELECTION_ARGS}, such as
+     * {@link CakeEntry#SELECTION_OCCASION}; with neither, every cake is changed. Pass one of the
+     * BULK_ constants under {@link #EXTRA_OPERATION} and its amount under {@link #EXTRA_VALUE}.
+     * The result holds the number of cakes changed under {@link #RESULT_ROWS}, and whether the
+     * change can be undone under {@link #RESULT_UNDOABLE}. An edit of more cakes than the undo
+     * history keeps can't be, and clears the history instead.
+     */
+    public static final String METHOD_BULK_EDIT = "bulk_edit";
+
+    /** Key of the selection passed to {@link #METHOD_BULK_EDIT} */
+    public static final String EXTRA_SELECTION = "selection";
+
+    /** Key of the String[] of arguments of {@link #EXTRA_SELECTION} */
+    public static final String EXTRA_SELECTION_ARGS = "selection_args";
+
+    /** Key of the operation passed to {@link #METHOD_BULK_EDIT}, one of the BULK_ constants */
+    public static final String EXTRA_OPERATION = "operation";
+
+    /** Key of the double amount of the operation passed to {@link #METHOD_BULK_EDIT} */
+    public static final String EXTRA_VALUE = "value";
+
+    /** Key of whether the change of {@link #METHOD_BULK_EDIT} can be undone, in its result */
+    public static final String RESULT_UNDOABLE = "undoable";
+
+    /**
+     * Operations of {@link #METHOD_BULK_EDIT}: set the price to the value, add the value to the
+     * price, change the price by the value in percent, or set the quantity to the value, which
+     * must be a whole number. Prices never go below 0 and are rounded to the cent.
+     */
+    public static final int BULK_SET_PRICE = 0;
+    public static final int BULK_ADD_PRICE = 1;
+    public static final int BULK_SCALE_PRICE = 2;
+    public static final int BULK_SET_QUANTITY = 3;
+
+    /**
+     * Provider method that finds the cakes whose names are like a given one, such as "Racing
+     * Car" for "Racing-Car Cake", to warn about a near-duplicate while a name is typed. Pass
+     * the name under {@link #EXTRA_NAME}, the _id of the cake being edited, which is left out,
+     * under {@link #EXTRA_CAKE_ID}, and optionally how alike the names must be under
+     * {@link #EXTRA_SIMILARITY}. The result is a {@link CakeNameMatches#toBundle() bundle} of
+     * the most similar cakes; read it with {@link CakeNameMatches#fromBundle}.
+     */
+    public static final String METHOD_FIND_SIMILAR_NAMES = "find_similar_names";
+
+    /**
+     * Provider method that finds the pairs of cakes in the whole catalog whose names are alike,
+     * so near-duplicates can be merged. Optionally pass how alike the names must be under
+     * {@link #EXTRA_SIMILARITY}. The result is read like that of
+     * {@link #METHOD_FIND_SIMILAR_NAMES}.
+     */
+    public static final String METHOD_FIND_DUPLICATE_NAMES = "find_duplicate_names";
+
+    /** Key of the name passed to {@link #METHOD_FIND_SIMILAR_NAMES} */
+    public static final String EXTRA_NAME = "name";
+
+    /**
+     * Key of the float similarity, above 0 and up to 1, that two names must have to be found
+     * by {@link #METHOD_FIND_SIMILAR_NAMES} or {@link #METHOD_FIND_DUPLICATE_NAMES}. The
+     * similarity is the share of the three-letter pieces of the two names that they have in
+     * common, ignoring case and punctuation.
+     */
+    public static final String EXTRA_SIMILARITY = "similarity";
+
+    /** Similarity of two names found when none is passed under {@link #EXTRA_SIMILARITY} */
+    public static final float DEFAULT_NAME_SIMILARITY = 0.5f;
+
+    /**
+     * Provider method that finds the ids of the cakes that match a filter, sorted, such as the
+     * ten best-stocked birthday cakes for a dashboard. Optionally pass the occasion to keep
+     * under {@link #EXTRA_OCCASION}, the smallest quantity to keep under
+     * {@link #EXTRA_MIN_QUANTITY}, one of the SORT_ constants under {@link #EXTRA_SORT}, whether
+     * to sort from high to low under {@link #EXTRA_DESCENDING}, and the largest number of ids
+     * to return under {@link #EXTRA_LIMIT}. The result holds the long[] of ids under
+     * {@link #RESULT_IDS}; ties are in the order of their _id. Prices are compared to the cent.
+     *
+     * The provider keeps a copy of the columns involved in memory, so changing the filter or
+     * sort over and over doesn't go back to the database. The copy follows every change, and is
+     * only built for catalogs of up to 100000 cakes; larger ones are queried from the database.
+     */
+    public static final String METHOD_FIND_TOP_CAKES = "find_top_cakes";
+
+    /**
+     * Key of the occasion passed to {@link #METHOD_FIND_TOP_CAKES}, one of the OCCASION_
+     * constants of {@link CakeEntry} or {@link #ANY_OCCASION}, which is the default
+     */
+    public static final String EXTRA_OCCASION = "occasion";
+
+    /** Key of the smallest quantity passed to {@link #METHOD_FIND_TOP_CAKES}, 0 by default */
+    public static final String EXTRA_MIN_QUANTITY = "min_quantity";
+
+    /** Key of the column passed to {@link #METHOD_FIND_TOP_CAKES}, {@link #SORT_ID} by default */
+    public static final String EXTRA_SORT = "sort";
+
+    /** Key of whether {@link #METHOD_FIND_TOP_CAKES} sorts from high to low, false by default */
+    public static final String EXTRA_DESCENDING = "descending";
+
+    /**
+     * Key of the largest number of ids returned by {@link #METHOD_FIND_TOP_CAKES}, all of them
+     * by default
+     */
+    public static final String EXTRA_LIMIT = "limit";
+
+    /** Key of the long[] of ids in the result of {@link #METHOD_FIND_TOP_CAKES} */
+    public static final String RESULT_IDS = "ids";
+
+    /** Occasion of {@link #METHOD_FIND_TOP_CAKES} that keeps cakes of every occasion */
+    public static final int ANY_OCCASION = -1;
+
+    /**
+     * Columns that {@link #METHOD_FIND_TOP_CAKES} can sort on: the _id, the name, the price and
+     * the quantity of the cakes.
+     */
+    public static final int SORT_ID = 0;
+    public static final int SORT_NAME = 1;
+    public static final int SORT_PRICE = 2;
+    public static final int SORT_QUANTITY = 3;
+
     /**
      * Inner class that defines constant values for the cakes database table.
      * Each entry in the table represents a single cake.
@@ -71,6 +394,28 @@ public final class CakeContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CAKES;
 
+        /**
+         * Query parameter of the {@link #CONTENT_URI} that limits the number of rows returned,
+         * for example to load just the first screen of the catalog.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Path, after {@link #CONTENT_URI}, of the URIs that look up a single cake by its
+         * {@link #COLUMN_CAKE_SKU}. Make them with {@link #buildSkuUri}.
+         */
+        public static final String PATH_SKU = "sku";
+
+        /**
+         * Return the content URI of the cake with the given SKU, for example the one scanned from
+         * its label. The URI can be queried, updated and deleted like the URI of the cake's _id.
+         * Looking up a SKU is a single index seek, and repeated lookups of the same SKU are
+         * answered from memory.
+         */
+        public static Uri buildSkuUri(String sku) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SKU).appendPath(sku).build();
+        }
+
         /** Name of database table for cakes */
         public final static String TABLE_NAME = "cakes";
 
@@ -111,6 +456,61 @@ public final class CakeContract {
          */
         public final static String COLUMN_CAKE_QUANTITY = "quantity";
 
+        /**
+         * File name of the cake's photo, or null if the cake has no photo.
+         *
+         * The file itself is owned by the provider. Read it by opening the cake's content URI
+         * with {@link ContentResolver#openFileDescriptor(Uri, String)} in mode "r", and replace
+         * it by opening the same URI in mode "w". A new file name is assigned every time the
+         * photo is replaced, so the name can be used as a cache key.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_CAKE_IMAGE = "image";
+
+        /**
+         * Cost of making or buying one of the cake, used to work out margins.
+         *
+         * Type: REAL
+         */
+        public final static String COLUMN_CAKE_COST = "cost";
+
+        /**
+         * Time the cake was stocked, in milliseconds since the epoch, used to work out the age
+         * of the stock. Set to the time of the insert if it isn't given.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_CAKE_STOCKED_AT = "stocked_at";
+
+        /**
+         * Stock keeping unit of the cake, such as the barcode on its label, or null if it has
+         * none. No two cakes have the same SKU.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_CAKE_SKU = "sku";
+
+        /**
+         * Sort orders for the {@link #CONTENT_URI}. Each one is backed by an index in the
+         * database, both on its own and after a filter on {@link #COLUMN_CAKE_OCCASION}, so the
+         * rows come back in order without a separate sorting step. The _id tie-breaker keeps
+         * the order stable and is free, because every index entry already ends with the _id.
+         */
+        public static final String SORT_NAME = COLUMN_CAKE_NAME + " ASC, " + _ID + " ASC";
+        public static final String SORT_PRICE_ASC = COLUMN_CAKE_PRICE + " ASC, " + _ID + " ASC";
+        public static final String SORT_PRICE_DESC = COLUMN_CAKE_PRICE + " DESC, " + _ID + " DESC";
+        public static final String SORT_QUANTITY_ASC =
+                COLUMN_CAKE_QUANTITY + " ASC, " + _ID + " ASC";
+        public static final String SORT_QUANTITY_DESC =
+                COLUMN_CAKE_QUANTITY + " DESC, " + _ID + " DESC";
+
+        /**
+         * Selection for the {@link #CONTENT_URI} that keeps only the cakes of one occasion.
+         * Pass the occasion as the single selection argument.
+         */
+        public static final String SELECTION_OCCASION = COLUMN_CAKE_OCCASION + "=?";
+
         /**
          * Possible values for the occasion of the cake.
          */
@@ -129,5 +529,501 @@ public final class CakeContract {
         }
     }
 
+    /**
+     * Inner class that defines constant values for the price history table.
+     * Each entry is the price a cake had from a point in time on, until the next entry of the
+     * same cake. Entries are added by the database itself whenever a cake is inserted or its
+     * price is changed.
+     *
+     * Query {@link #CONTENT_URI} with the {@link #QUERY_PARAMETER_AT} parameter for the price of
+     * every cake at that time, or the URI of a single cake, made with
+     * {@link android.content.ContentUris#withAppendedId}, for the price of that cake at that
+     * time. Without the parameter the URI of a single cake returns its whole history, newest
+     * first. Either lookup reads a single index entry per cake, however long the history is.
+     *
+     * The history is thinned out in the background once it is more than a year old: of the
+     * older entries of a cake only the last one is kept, which is the price the cake had a year
+     * ago. Prices at any time within the last year are always found; earlier ones may not be.
+     */
+    public static final class PriceHistoryEntry implements BaseColumns {
+
+        /** The content URI to access the price history in the provider */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PRICE_HISTORY);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of prices.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_PRICE_HISTORY;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the price of a single cake at a time.
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_PRICE_HISTORY;
+
+        /**
+         * Query parameter with the time to look up the prices at, in milliseconds since the
+         * epoch.
+         */
+        public static final String QUERY_PARAMETER_AT = "at";
+
+        /** Name of database table for the price history */
+        public final static String TABLE_NAME = "price_history";
+
+        /**
+         * Unique ID number for the entry (only for use in the database table).
+         *
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * {@link CakeEntry#_ID} of the cake the price belongs to.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_CAKE_ID = "cake_id";
+
+        /**
+         * Price of the cake from {@link #COLUMN_EFFECTIVE_AT} on.
+         *
+         * Type: REAL
+         */
+        public final static String COLUMN_PRICE = "price";
+
+        /**
+         * Time the price took effect, in milliseconds since the epoch. It is the time of the
+         * write that set the price, read from the same clock as
+         * {@link System#currentTimeMillis()}: a lookup at a time read after the write finds the
+         * new price, and one at a time read in an earlier millisecond finds the price from
+         * before it. The time can't be given by the caller, so a price that should have taken
+         * effect earlier is only found from the time it was written on. Entries with the same
+         * time, such as a change and its undo within a millisecond, follow each other in the
+         * order they were written.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_EFFECTIVE_AT = "effective_at";
+    }
+
+    /**
+     * Inner class that defines constant values for the stock batches table.
+     * Each entry is a batch of a cake baked at one time, which all expires at the same time.
+     *
+     * Inserting a batch into {@link #CONTENT_URI} adds its cakes to the quantity of the cake, in
+     * the same transaction. When cakes are sold, that is whenever the quantity of a cake goes
+     * down, they are taken out of its batches in the order the batches expire, so the oldest
+     * stock goes first, and a batch that is used up is removed. Stock that isn't in any batch,
+     * such as the quantities from before batches were kept, is only used once the batches are
+     * empty. Undo and redo change the quantity without going back to the batches.
+     *
+     * Query {@link #CONTENT_URI} for every batch, soonest to expire first, or with the
+     * {@link #QUERY_PARAMETER_EXPIRING_BEFORE} parameter for only the batches that expire before
+     * that time. Query the URI of a single cake, made with
+     * {@link android.content.ContentUris#withAppendedId}, for its batches in the order they are
+     * sold from. Every lookup reads only the index entries of the batches it returns.
+     */
+    public static final class StockBatchEntry implements BaseColumns {
+
+        /** The content URI to access the stock batches in the provider */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_STOCK_BATCHES);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of batches.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_STOCK_BATCHES;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the batches of a single cake.
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_STOCK_BATCHES;
+
+        /**
+         * Query parameter of the {@link #CONTENT_URI} with a time in milliseconds since the
+         * epoch. Only the batches that expire before it are returned.
+         */
+        public static final String QUERY_PARAMETER_EXPIRING_BEFORE = "before";
+
+        /** Name of database table for the stock batches */
+        public final static String TABLE_NAME = "stock_batches";
+
+        /**
+         * Unique ID number for the batch (only for use in the database table).
+         *
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * {@link CakeEntry#_ID} of the cake the batch belongs to.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_CAKE_ID = "cake_id";
+
+        /**
+         * Number of cakes of the batch that haven't been sold yet. Must be above 0 when the
+         * batch is inserted.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_QUANTITY = "quantity";
+
+        /**
+         * Time the batch was baked, in milliseconds since the epoch. Set to the time of the
+         * insert if it isn't given.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_BAKED_AT = "baked_at";
+
+        /**
+         * Time the batch can no longer be sold, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_EXPIRES_AT = "expires_at";
+
+        /**
+         * Order the batches of a cake are sold from: soonest to expire first, and the batch
+         * stocked first among those that expire together.
+         */
+        public static final String SORT_ALLOCATION = COLUMN_EXPIRES_AT + " ASC, " + _ID + " ASC";
+    }
+
+    /**
+     * Inner class that defines constant values for the pickup slots table.
+     * Each entry is a time that custom orders can be picked up at, with the number of cakes
+     * the bakery can have ready for it.
+     *
+     * Insert a slot into {@link #CONTENT_URI} with its start time and capacity; no two slots
+     * start at the same time. Query {@link #CONTENT_URI} with the {@link #QUERY_PARAMETER_FROM}
+     * and {@link #QUERY_PARAMETER_TO} parameters for the slots in a range of time, such as a
+     * month, in order, which is a single range of the index on the start time. The capacity of
+     * a slot can be changed through its URI, made with
+     * {@link android.content.ContentUris#withAppendedId}, but never to less than is booked.
+     */
+    public static final class PickupSlotEntry implements BaseColumns {
+
+        /** The content URI to access the pickup slots in the provider */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PICKUP_SLOTS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of slots.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_PICKUP_SLOTS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single slot.
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_PICKUP_SLOTS;
+
+        /**
+         * Query parameters of the {@link #CONTENT_URI} with the start and the end of the range of
+         * slots to return, in milliseconds since the epoch. The start is included and the end is
+         * not.
+         */
+        public static final String QUERY_PARAMETER_FROM = "from";
+        public static final String QUERY_PARAMETER_TO = "to";
+
+        /** Name of database table for the pickup slots */
+        public final static String TABLE_NAME = "pickup_slots";
+
+        /**
+         * Unique ID number for the slot (only for use in the database table).
+         *
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * Time the slot starts, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_STARTS_AT = "starts_at";
+
+        /**
+         * Number of cakes that can be booked into the slot.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_CAPACITY = "capacity";
+
+        /**
+         * Number of cakes booked into the slot so far. Only changed by the provider.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_BOOKED = "booked";
+
+        /**
+         * Number of cakes that can still be booked into the slot, returned by queries only.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_AVAILABLE = "available";
+    }
+
+    /**
+     * Inner class that defines constant values for the reservations table.
+     * Each entry is a custom order of a cake booked into a pickup slot, made with
+     * {@link #METHOD_RESERVE}.
+     *
+     * Query {@link #CONTENT_URI} with the {@link #QUERY_PARAMETER_SLOT} parameter for the
+     * reservations of a slot, or the URI of a single reservation, made with
+     * {@link android.content.ContentUris#withAppendedId}. Deleting the URI of a reservation
+     * cancels it and gives its room back to the slot.
+     */
+    public static final class ReservationEntry implements BaseColumns {
+
+        /** The content URI to access the reservations in the provider */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_RESERVATIONS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of reservations.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_RESERVATIONS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single reservation.
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_RESERVATIONS;
+
+        /**
+         * Query parameter of the {@link #CONTENT_URI} with the _id of the slot whose
+         * reservations to return.
+         */
+        public static final String QUERY_PARAMETER_SLOT = "slot";
+
+        /** Name of database table for the reservations */
+        public final static String TABLE_NAME = "reservations";
+
+        /**
+         * Unique ID number for the reservation (only for use in the database table).
+         *
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * {@link PickupSlotEntry#_ID} of the slot the order is picked up in.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SLOT_ID = "slot_id";
+
+        /**
+         * {@link CakeEntry#_ID} of the cake that was ordered.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_CAKE_ID = "cake_id";
+
+        /**
+         * Number of cakes ordered.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_QUANTITY = "quantity";
+
+        /**
+         * Name of the customer, or null if it wasn't given.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_CUSTOMER = "customer";
+
+        /**
+         * Time the order was booked, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_CREATED_AT = "created_at";
+    }
+
+    /**
+     * Inner class that defines constant values for the ingredients table.
+     * Each entry is something the cakes are made from, such as flour or sugar paste, with the
+     * amount of it in stock. Deleting an ingredient deletes the lines of the recipes that use it.
+     */
+    public static final class IngredientEntry implements BaseColumns {
+
+        /** The content URI to access the ingredients in the provider */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_INGREDIENTS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of ingredients.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_INGREDIENTS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single ingredient.
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_INGREDIENTS;
+
+        /** Name of database table for the ingredients */
+        public final static String TABLE_NAME = "ingredients";
+
+        /**
+         * Unique ID number for the ingredient (only for use in the database table).
+         *
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * Name of the ingredient, unique among the ingredients.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_NAME = "name";
+
+        /**
+         * Unit the amounts of the ingredient are in, such as "g", or null.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_UNIT = "unit";
+
+        /**
+         * Amount of the ingredient in stock.
+         *
+         * Type: REAL
+         */
+        public final static String COLUMN_STOCK = "stock";
+    }
+
+    /**
+     * Inner class that defines constant values for the recipes table.
+     * Each entry is either the recipe of a cake, or a part that several recipes share, such as
+     * a sponge or a buttercream. One batch of a recipe makes {@link #COLUMN_YIELD} units of it:
+     * cakes for the recipe of a cake, or units of the part, like batches or kilograms.
+     *
+     * The lines of a recipe are in {@link RecipeItemEntry}. Deleting a recipe deletes its lines
+     * and the lines of other recipes that use it. A recipe can't use itself, directly or through
+     * the recipes it uses, so an insert or update of a line that would make it is rejected.
+     */
+    public static final class RecipeEntry implements BaseColumns {
+
+        /** The content URI to access the recipes in the provider */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_RECIPES);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of recipes.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_RECIPES;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single recipe.
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_RECIPES;
+
+        /** Name of database table for the recipes */
+        public final static String TABLE_NAME = "recipes";
+
+        /**
+         * Unique ID number for the recipe (only for use in the database table).
+         *
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * Name of the recipe.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_NAME = "name";
+
+        /**
+         * {@link CakeEntry#_ID} of the cake this is the recipe of, or null for a shared part.
+         * A cake has at most one recipe.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_CAKE_ID = "cake_id";
+
+        /**
+         * Number of units one batch of the recipe makes, greater than 0. Defaults to 1.
+         *
+         * Type: REAL
+         */
+        public final static String COLUMN_YIELD = "yield";
+    }
+
+    /**
+     * Inner class that defines constant values for the recipe items table.
+     * Each entry is a line of a recipe: an amount of either an ingredient or another recipe,
+     * used by one batch of the recipe. Amounts of another recipe are in the units of its
+     * {@link RecipeEntry#COLUMN_YIELD}.
+     */
+    public static final class RecipeItemEntry implements BaseColumns {
+
+        /** The content URI to access the lines of the recipes in the provider */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_RECIPE_ITEMS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of lines.
+         */
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_RECIPE_ITEMS;
+
+        /** Name of database table for the lines of the recipes */
+        public final static String TABLE_NAME = "recipe_items";
+
+        /**
+         * Unique ID number for the line (only for use in the database table).
+         *
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * {@link RecipeEntry#_ID} of the recipe the line belongs to.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_RECIPE_ID = "recipe_id";
+
+        /**
+         * {@link IngredientEntry#_ID} of the ingredient used, or null if the line uses a recipe.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_INGREDIENT_ID = "ingredient_id";
+
+        /**
+         * {@link RecipeEntry#_ID} of the recipe used, or null if the line uses an ingredient.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SUB_RECIPE_ID = "sub_recipe_id";
+
+        /**
+         * Amount used by one batch of the recipe, greater than 0.
+         *
+         * Type: REAL
+         */
+        public final static String COLUMN_AMOUNT = "amount";
+    }
+
 }
 
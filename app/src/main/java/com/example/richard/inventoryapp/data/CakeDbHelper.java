@@ -15,11 +15,21 @@
  */
 package com.example.richard.inventoryapp.data;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
 import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+import com.example.richard.inventoryapp.data.CakeContract.IngredientEntry;
+import com.example.richard.inventoryapp.data.CakeContract.PickupSlotEntry;
+import com.example.richard.inventoryapp.data.CakeContract.PriceHistoryEntry;
+import com.example.richard.inventoryapp.data.CakeContract.RecipeEntry;
+import com.example.richard.inventoryapp.data.CakeContract.RecipeItemEntry;
+import com.example.richard.inventoryapp.data.CakeContract.ReservationEntry;
+import com.example.richard.inventoryapp.data.CakeContract.StockBatchEntry;
 
 /**
  * Database helper for Cakes app. Manages database creation and version management.
@@ -34,7 +44,49 @@ public class CakeDbHelper extends SQLiteOpenHelper {
     /**
      * Database version. If you change the database schema, you must increment the database version.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 12;
+
+    /**
+     * Name of the table of internal settings of the provider, such as which cakes have been
+     * deleted but not yet removed. Each row is a key and a numeric value.
+     */
+    static final String META_TABLE = "meta";
+
+    /** Columns of the {@link #META_TABLE} */
+    static final String META_KEY = "key";
+    static final String META_VALUE = "value";
+
+    /**
+     * Key of the {@link #META_TABLE} row that holds the highest _id of the cakes deleted by the
+     * last "delete all". Cakes with an _id up to this one are hidden from every query, and are
+     * removed from the table in the background later.
+     */
+    static final String META_DELETED_THROUGH_ID = "deleted_through_id";
+
+    /**
+     * Key of the {@link #META_TABLE} row that holds the highest batch number of the quantity
+     * changes applied so far. A batch with a number up to this one has already been applied.
+     */
+    static final String META_QUANTITY_BATCH = "quantity_batch";
+
+    /**
+     * Name of the table of the trigrams of the cake names, one row per cake and trigram, that
+     * {@link CakeNameIndex} finds similar names with.
+     */
+    static final String NAME_TRIGRAM_TABLE = "name_trigrams";
+
+    /** Columns of the {@link #NAME_TRIGRAM_TABLE} */
+    static final String NAME_TRIGRAM_CAKE_ID = "cake_id";
+    static final String NAME_TRIGRAM_TRIGRAM = "trigram";
+
+    /**
+     * Name of the table of the cakes whose name has to be split into trigrams, filled by the
+     * triggers on the cakes table and emptied by {@link CakeNameIndex#indexQueued}.
+     */
+    static final String NAME_QUEUE_TABLE = "name_queue";
+
+    /** Column of the {@link #NAME_QUEUE_TABLE} */
+    static final String NAME_QUEUE_CAKE_ID = "cake_id";
 
     /**
      * Constructs a new instance of {@link CakeDbHelper}.
@@ -42,7 +94,46 @@ public class CakeDbHelper extends SQLiteOpenHelper {
      * @param context of the app
      */
     public CakeDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, null);
+    }
+
+    /**
+     * Constructs a new instance of {@link CakeDbHelper} for the catalog of a shop.
+     *
+     * @param context of the app
+     * @param tenant  name of the shop, or null for the device's own catalog
+     */
+    public CakeDbHelper(Context context, String tenant) {
+        super(context, databaseNameFor(tenant), null, DATABASE_VERSION);
+
+        // Write-ahead logging lets readers on other threads carry on while a write is in
+        // progress, and gives each of them a connection of its own
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * Return the name of the database file of the catalog of a shop, or of the device's own
+     * catalog for null.
+     */
+    static String databaseNameFor(String tenant) {
+        if (tenant == null) {
+            return DATABASE_NAME;
+        }
+        return DATABASE_NAME.replace(".db", "_" + tenant + ".db");
+    }
+
+    /**
+     * This is called when the database has been opened.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Before Jelly Bean the helper can't turn on write-ahead logging itself
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
     }
 
     /**
@@ -56,10 +147,247 @@ public class CakeDbHelper extends SQLiteOpenHelper {
                 + CakeEntry.COLUMN_CAKE_NAME + " TEXT NOT NULL, "
                 + CakeEntry.COLUMN_CAKE_OCCASION + " INTEGER NOT NULL, "
                 + CakeEntry.COLUMN_CAKE_PRICE + " REAL NOT NULL DEFAULT 0, "
-                + CakeEntry.COLUMN_CAKE_QUANTITY + " INTEGER NOT NULL DEFAULT 0);";
+                + CakeEntry.COLUMN_CAKE_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+                + CakeEntry.COLUMN_CAKE_IMAGE + " TEXT, "
+                + CakeEntry.COLUMN_CAKE_COST + " REAL NOT NULL DEFAULT 0, "
+                + CakeEntry.COLUMN_CAKE_STOCKED_AT + " INTEGER NOT NULL DEFAULT 0, "
+                + CakeEntry.COLUMN_CAKE_SKU + " TEXT);";
 
         // Execute the SQL statement
         db.execSQL(SQL_CREATE_CAKES_TABLE);
+
+        createSortIndexes(db);
+        createMetaTable(db);
+        createPriceHistory(db);
+        createSkuIndex(db);
+        createStockBatches(db);
+        createReservations(db);
+        createRecipes(db);
+        createNameIndex(db);
+    }
+
+    /**
+     * Create the trigram table of the cake names, the queue of names still to be indexed, and
+     * the triggers that keep them up to date. SQLite can't split a name into trigrams, so a new
+     * or renamed cake is only queued here, and its trigrams are added by {@link CakeNameIndex};
+     * the trigrams of a renamed or deleted cake are removed straight away, so the table never
+     * holds a name a cake no longer has. The index on the trigram and cake is the one lookups
+     * read, and the index on the cake finds the trigrams of a cake to count or remove them.
+     */
+    private void createNameIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NAME_TRIGRAM_TABLE + " ("
+                + NAME_TRIGRAM_CAKE_ID + " INTEGER NOT NULL, "
+                + NAME_TRIGRAM_TRIGRAM + " TEXT NOT NULL)");
+        db.execSQL("CREATE INDEX " + NAME_TRIGRAM_TABLE + "_trigram_index ON "
+                + NAME_TRIGRAM_TABLE + " (" + NAME_TRIGRAM_TRIGRAM + ", "
+                + NAME_TRIGRAM_CAKE_ID + ")");
+        db.execSQL("CREATE INDEX " + NAME_TRIGRAM_TABLE + "_cake_index ON "
+                + NAME_TRIGRAM_TABLE + " (" + NAME_TRIGRAM_CAKE_ID + ")");
+        db.execSQL("CREATE TABLE " + NAME_QUEUE_TABLE + " ("
+                + NAME_QUEUE_CAKE_ID + " INTEGER PRIMARY KEY)");
+
+        String removeTrigrams = "DELETE FROM " + NAME_TRIGRAM_TABLE + " WHERE "
+                + NAME_TRIGRAM_CAKE_ID + "=OLD." + CakeEntry._ID + "; ";
+        String queueName = "INSERT OR IGNORE INTO " + NAME_QUEUE_TABLE + " ("
+                + NAME_QUEUE_CAKE_ID + ") VALUES (NEW." + CakeEntry._ID + "); ";
+        db.execSQL("CREATE TRIGGER " + CakeEntry.TABLE_NAME + "_name_insert AFTER INSERT ON "
+                + CakeEntry.TABLE_NAME + " BEGIN " + queueName + "END");
+        db.execSQL("CREATE TRIGGER " + CakeEntry.TABLE_NAME + "_name_update AFTER UPDATE OF "
+                + CakeEntry.COLUMN_CAKE_NAME + " ON " + CakeEntry.TABLE_NAME
+                + " WHEN OLD." + CakeEntry.COLUMN_CAKE_NAME + " IS NOT NEW."
+                + CakeEntry.COLUMN_CAKE_NAME + " BEGIN " + removeTrigrams + queueName + "END");
+        db.execSQL("CREATE TRIGGER " + CakeEntry.TABLE_NAME + "_name_delete AFTER DELETE ON "
+                + CakeEntry.TABLE_NAME + " BEGIN " + removeTrigrams + "DELETE FROM "
+                + NAME_QUEUE_TABLE + " WHERE " + NAME_QUEUE_CAKE_ID + "=OLD." + CakeEntry._ID
+                + "; END");
+    }
+
+    /**
+     * Create the ingredients, recipes and recipe items tables. A recipe line uses exactly one
+     * ingredient or one other recipe, which the CHECK keeps to. The unique indexes keep the
+     * ingredient names apart and a cake to one recipe, and the indexes on the lines find the
+     * lines of a recipe, and the lines that use an ingredient or a recipe when it is deleted.
+     */
+    private void createRecipes(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + IngredientEntry.TABLE_NAME + " ("
+                + IngredientEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + IngredientEntry.COLUMN_NAME + " TEXT NOT NULL, "
+                + IngredientEntry.COLUMN_UNIT + " TEXT, "
+                + IngredientEntry.COLUMN_STOCK + " REAL NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE UNIQUE INDEX " + IngredientEntry.TABLE_NAME + "_name_index ON "
+                + IngredientEntry.TABLE_NAME + " (" + IngredientEntry.COLUMN_NAME + ")");
+        db.execSQL("CREATE TABLE " + RecipeEntry.TABLE_NAME + " ("
+                + RecipeEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + RecipeEntry.COLUMN_NAME + " TEXT NOT NULL, "
+                + RecipeEntry.COLUMN_CAKE_ID + " INTEGER, "
+                + RecipeEntry.COLUMN_YIELD + " REAL NOT NULL DEFAULT 1 CHECK ("
+                + RecipeEntry.COLUMN_YIELD + " > 0))");
+        db.execSQL("CREATE UNIQUE INDEX " + RecipeEntry.TABLE_NAME + "_cake_index ON "
+                + RecipeEntry.TABLE_NAME + " (" + RecipeEntry.COLUMN_CAKE_ID + ")");
+        db.execSQL("CREATE TABLE " + RecipeItemEntry.TABLE_NAME + " ("
+                + RecipeItemEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + RecipeItemEntry.COLUMN_RECIPE_ID + " INTEGER NOT NULL, "
+                + RecipeItemEntry.COLUMN_INGREDIENT_ID + " INTEGER, "
+                + RecipeItemEntry.COLUMN_SUB_RECIPE_ID + " INTEGER, "
+                + RecipeItemEntry.COLUMN_AMOUNT + " REAL NOT NULL CHECK ("
+                + RecipeItemEntry.COLUMN_AMOUNT + " > 0), "
+                + "CHECK ((" + RecipeItemEntry.COLUMN_INGREDIENT_ID + " IS NULL) <> ("
+                + RecipeItemEntry.COLUMN_SUB_RECIPE_ID + " IS NULL)))");
+        db.execSQL("CREATE INDEX " + RecipeItemEntry.TABLE_NAME + "_recipe_index ON "
+                + RecipeItemEntry.TABLE_NAME + " (" + RecipeItemEntry.COLUMN_RECIPE_ID + ")");
+        db.execSQL("CREATE INDEX " + RecipeItemEntry.TABLE_NAME + "_ingredient_index ON "
+                + RecipeItemEntry.TABLE_NAME + " (" + RecipeItemEntry.COLUMN_INGREDIENT_ID + ")");
+        db.execSQL("CREATE INDEX " + RecipeItemEntry.TABLE_NAME + "_sub_recipe_index ON "
+                + RecipeItemEntry.TABLE_NAME + " (" + RecipeItemEntry.COLUMN_SUB_RECIPE_ID + ")");
+    }
+
+    /**
+     * Create the pickup slots and reservations tables. The slots are keyed by their start time
+     * with a unique index, so the slots of a month are one range of it, in order, and the CHECK
+     * keeps a slot from ever holding more than its capacity. The index on the slot of a
+     * reservation finds the orders to be picked up in a slot.
+     */
+    private void createReservations(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + PickupSlotEntry.TABLE_NAME + " ("
+                + PickupSlotEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + PickupSlotEntry.COLUMN_STARTS_AT + " INTEGER NOT NULL, "
+                + PickupSlotEntry.COLUMN_CAPACITY + " INTEGER NOT NULL, "
+                + PickupSlotEntry.COLUMN_BOOKED + " INTEGER NOT NULL DEFAULT 0, "
+                + "CHECK (" + PickupSlotEntry.COLUMN_BOOKED + " BETWEEN 0 AND "
+                + PickupSlotEntry.COLUMN_CAPACITY + "))");
+        db.execSQL("CREATE UNIQUE INDEX " + PickupSlotEntry.TABLE_NAME + "_start_index ON "
+                + PickupSlotEntry.TABLE_NAME + " (" + PickupSlotEntry.COLUMN_STARTS_AT + ")");
+        db.execSQL("CREATE TABLE " + ReservationEntry.TABLE_NAME + " ("
+                + ReservationEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + ReservationEntry.COLUMN_SLOT_ID + " INTEGER NOT NULL, "
+                + ReservationEntry.COLUMN_CAKE_ID + " INTEGER NOT NULL, "
+                + ReservationEntry.COLUMN_QUANTITY + " INTEGER NOT NULL, "
+                + ReservationEntry.COLUMN_CUSTOMER + " TEXT, "
+                + ReservationEntry.COLUMN_CREATED_AT + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX " + ReservationEntry.TABLE_NAME + "_slot_index ON "
+                + ReservationEntry.TABLE_NAME + " (" + ReservationEntry.COLUMN_SLOT_ID + ")");
+    }
+
+    /**
+     * Create the stock batches table and its indexes. The index on the expiry time lets a sweep
+     * or an "expiring before" lookup read just the range of batches that have expired, in
+     * order, and the index on the cake and expiry time lets a sale read the batches of its cake
+     * in the order they are sold from.
+     */
+    private void createStockBatches(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + StockBatchEntry.TABLE_NAME + " ("
+                + StockBatchEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + StockBatchEntry.COLUMN_CAKE_ID + " INTEGER NOT NULL, "
+                + StockBatchEntry.COLUMN_QUANTITY + " INTEGER NOT NULL, "
+                + StockBatchEntry.COLUMN_BAKED_AT + " INTEGER NOT NULL, "
+                + StockBatchEntry.COLUMN_EXPIRES_AT + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX " + StockBatchEntry.TABLE_NAME + "_expiry_index ON "
+                + StockBatchEntry.TABLE_NAME + " (" + StockBatchEntry.COLUMN_EXPIRES_AT + ")");
+        db.execSQL("CREATE INDEX " + StockBatchEntry.TABLE_NAME + "_cake_expiry_index ON "
+                + StockBatchEntry.TABLE_NAME + " (" + StockBatchEntry.COLUMN_CAKE_ID + ", "
+                + StockBatchEntry.COLUMN_EXPIRES_AT + ")");
+    }
+
+    /**
+     * Create the unique index on the SKU, which keeps every SKU to one cake and finds the cake
+     * of a SKU with a single seek. Cakes without a SKU don't take part, as NULLs never clash.
+     */
+    private void createSkuIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE UNIQUE INDEX " + CakeEntry.TABLE_NAME + "_sku_index ON "
+                + CakeEntry.TABLE_NAME + " (" + CakeEntry.COLUMN_CAKE_SKU + ")");
+    }
+
+    /**
+     * Create the table of internal settings of the provider.
+     */
+    private void createMetaTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + META_TABLE + " ("
+                + META_KEY + " TEXT PRIMARY KEY, "
+                + META_VALUE + " INTEGER NOT NULL)");
+    }
+
+    /**
+     * Create the price history table, its index and the triggers that fill it. The index on the
+     * cake and time lets a lookup of the price at a time seek straight to the entry, instead of
+     * reading the cake's whole history.
+     */
+    private void createPriceHistory(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + PriceHistoryEntry.TABLE_NAME + " ("
+                + PriceHistoryEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + PriceHistoryEntry.COLUMN_CAKE_ID + " INTEGER NOT NULL, "
+                + PriceHistoryEntry.COLUMN_PRICE + " REAL NOT NULL, "
+                + PriceHistoryEntry.COLUMN_EFFECTIVE_AT + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX " + PriceHistoryEntry.TABLE_NAME + "_cake_time_index ON "
+                + PriceHistoryEntry.TABLE_NAME + " (" + PriceHistoryEntry.COLUMN_CAKE_ID + ", "
+                + PriceHistoryEntry.COLUMN_EFFECTIVE_AT + ")");
+        createPriceTriggers(db);
+    }
+
+    /**
+     * Create the triggers that fill the price history. Every new cake gets an entry with its
+     * first price, and every change of price adds an entry with the new one.
+     *
+     * The entries are stamped with SQLite's 'now', which reads the same wall clock as
+     * {@link System#currentTimeMillis()} to the millisecond, once per statement. It is given in
+     * days as a floating point number, so it is rounded, not truncated, back to milliseconds;
+     * truncating made some entries a millisecond older than the write, and a lookup at a time
+     * read just before the write found the new price.
+     */
+    private void createPriceTriggers(SQLiteDatabase db) {
+        String now = "CAST(ROUND((julianday('now') - 2440587.5) * 86400000) AS INTEGER)";
+        String insertEntry = "INSERT INTO " + PriceHistoryEntry.TABLE_NAME + " ("
+                + PriceHistoryEntry.COLUMN_CAKE_ID + ", " + PriceHistoryEntry.COLUMN_PRICE + ", "
+                + PriceHistoryEntry.COLUMN_EFFECTIVE_AT + ") VALUES (NEW." + CakeEntry._ID
+                + ", NEW." + CakeEntry.COLUMN_CAKE_PRICE + ", " + now + "); ";
+        db.execSQL("CREATE TRIGGER " + CakeEntry.TABLE_NAME + "_price_insert AFTER INSERT ON "
+                + CakeEntry.TABLE_NAME + " BEGIN " + insertEntry + "END");
+        db.execSQL("CREATE TRIGGER " + CakeEntry.TABLE_NAME + "_price_update AFTER UPDATE OF "
+                + CakeEntry.COLUMN_CAKE_PRICE + " ON " + CakeEntry.TABLE_NAME
+                + " WHEN OLD." + CakeEntry.COLUMN_CAKE_PRICE + " IS NOT NEW."
+                + CakeEntry.COLUMN_CAKE_PRICE + " BEGIN " + insertEntry + "END");
+    }
+
+    /**
+     * Return the value of a key in the {@link #META_TABLE}, or the default if it hasn't been set.
+     */
+    static long readMeta(SQLiteDatabase db, String key, long defaultValue) {
+        Cursor cursor = db.query(META_TABLE, new String[] { META_VALUE }, META_KEY + "=?",
+                new String[] { key }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : defaultValue;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Set the value of a key in the {@link #META_TABLE}.
+     */
+    static void writeMeta(SQLiteDatabase db, String key, long value) {
+        ContentValues values = new ContentValues();
+        values.put(META_KEY, key);
+        values.put(META_VALUE, value);
+        db.insertWithOnConflict(META_TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Create the indexes behind the sort orders in {@link CakeEntry}. Every sort column gets an
+     * index of its own for the unfiltered list, and one that follows the occasion for the list
+     * filtered by {@link CakeEntry#SELECTION_OCCASION}.
+     */
+    private void createSortIndexes(SQLiteDatabase db) {
+        String[] sortColumns = {
+                CakeEntry.COLUMN_CAKE_NAME,
+                CakeEntry.COLUMN_CAKE_PRICE,
+                CakeEntry.COLUMN_CAKE_QUANTITY
+        };
+        for (String column : sortColumns) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + CakeEntry.TABLE_NAME + "_" + column
+                    + "_index ON " + CakeEntry.TABLE_NAME + " (" + column + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + CakeEntry.TABLE_NAME + "_occasion_"
+                    + column + "_index ON " + CakeEntry.TABLE_NAME + " ("
+                    + CakeEntry.COLUMN_CAKE_OCCASION + ", " + column + ")");
+        }
     }
 
     /**
@@ -67,6 +395,71 @@ public class CakeDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+        // Apply every upgrade step between the old version and the current one, in order.
+        if (oldVersion < 2) {
+            // Version 2 adds the photo file name column
+            db.execSQL("ALTER TABLE " + CakeEntry.TABLE_NAME + " ADD COLUMN "
+                    + CakeEntry.COLUMN_CAKE_IMAGE + " TEXT");
+        }
+        if (oldVersion < 3) {
+            // Version 3 adds the indexes for sorting and filtering the catalog
+            createSortIndexes(db);
+        }
+        if (oldVersion < 4) {
+            // Version 4 adds the cost and stocking time used by the reports. Existing cakes are
+            // treated as stocked at the time of the upgrade.
+            db.execSQL("ALTER TABLE " + CakeEntry.TABLE_NAME + " ADD COLUMN "
+                    + CakeEntry.COLUMN_CAKE_COST + " REAL NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + CakeEntry.TABLE_NAME + " ADD COLUMN "
+                    + CakeEntry.COLUMN_CAKE_STOCKED_AT + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("UPDATE " + CakeEntry.TABLE_NAME + " SET "
+                    + CakeEntry.COLUMN_CAKE_STOCKED_AT + "=" + System.currentTimeMillis());
+        }
+        if (oldVersion < 5) {
+            // Version 5 adds the internal settings used by the cheap "delete all"
+            createMetaTable(db);
+        }
+        if (oldVersion < 6) {
+            // Version 6 adds the price history. The current prices of the existing cakes are
+            // taken to have held since the cakes were stocked.
+            createPriceHistory(db);
+            db.execSQL("INSERT INTO " + PriceHistoryEntry.TABLE_NAME + " ("
+                    + PriceHistoryEntry.COLUMN_CAKE_ID + ", " + PriceHistoryEntry.COLUMN_PRICE
+                    + ", " + PriceHistoryEntry.COLUMN_EFFECTIVE_AT + ") SELECT " + CakeEntry._ID
+                    + ", " + CakeEntry.COLUMN_CAKE_PRICE + ", " + CakeEntry.COLUMN_CAKE_STOCKED_AT
+                    + " FROM " + CakeEntry.TABLE_NAME);
+        }
+        if (oldVersion < 7) {
+            // Version 7 adds the SKU, which existing cakes don't have yet
+            db.execSQL("ALTER TABLE " + CakeEntry.TABLE_NAME + " ADD COLUMN "
+                    + CakeEntry.COLUMN_CAKE_SKU + " TEXT");
+            createSkuIndex(db);
+        }
+        if (oldVersion < 8) {
+            // Version 8 adds the stock batches. The quantities of existing cakes aren't in any
+            // batch, so they are sold after the batches stocked from now on.
+            createStockBatches(db);
+        }
+        if (oldVersion < 9) {
+            // Version 9 adds the pickup slots and reservations of custom orders
+            createReservations(db);
+        }
+        if (oldVersion < 10) {
+            // Version 10 adds the ingredients and recipes used to plan production
+            createRecipes(db);
+        }
+        if (oldVersion < 11) {
+            // Version 11 adds the trigram index of the names. The existing cakes are queued, and
+            // their names are indexed in the background, or by the first lookup.
+            createNameIndex(db);
+            db.execSQL("INSERT INTO " + NAME_QUEUE_TABLE + " (" + NAME_QUEUE_CAKE_ID + ") SELECT "
+                    + CakeEntry._ID + " FROM " + CakeEntry.TABLE_NAME);
+        }
+        if (oldVersion < 12) {
+            // Version 12 rounds the time of the price history entries to the millisecond
+            db.execSQL("DROP TRIGGER IF EXISTS " + CakeEntry.TABLE_NAME + "_price_insert");
+            db.execSQL("DROP TRIGGER IF EXISTS " + CakeEntry.TABLE_NAME + "_price_update");
+            createPriceTriggers(db);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+
+/**
+ * Writes the cakes of a cursor in the compact binary form served by
+ * {@link CakeContract#EXPORT_URI}.
+ *
+ * The rows are written one at a time as they are read from the cursor, through a single
+ * reused {@link CakeRow}, so an export of any size takes the same small amount of memory and
+ * the reader gets the first cakes while the last ones are still being read from the database.
+ * {@link #write(CakeProvider, SQLiteDatabase, FileDescriptor)} reads the cakes a page at a
+ * time, each page picking up after the _id of the last cake of the one before, so no page has
+ * to skip over the rows already written.
+ * It is meant to be read with a {@link java.io.DataInputStream}.
+ *
+ * Layout of an export, all numbers big-endian and all text as read by
+ * {@link java.io.DataInputStream#readUTF}:
+ * <pre>
+ *     int     MAGIC
+ *     short   VERSION
+ *     for each cake:
+ *         byte    TAG_CAKE
+ *         long    _id
+ *         text    name
+ *         int     occasion
+ *         double  price
+ *         int     quantity
+ *         double  cost
+ *         long    stocked_at
+ *         byte    1 and the text of the SKU, or 0 if there is none
+ *         byte    1 and the text of the photo file name, or 0 if there is none
+ *     byte    TAG_END
+ *     int     number of cakes
+ * </pre>
+ * A stream that stops before TAG_END was cut off, for example because the export failed.
+ */
+public final class CakeExport {
+
+    /** MIME type of an export */
+    public static final String MIME_TYPE = "application/vnd." + CakeContract.CONTENT_AUTHORITY
+            + ".cakes";
+
+    /** First int of every export. Change it when the layout changes incompatibly. */
+    public static final int MAGIC = 0x43414b58;
+
+    /** Version of the layout, raised when fields are added at the end of a cake */
+    public static final short VERSION = 1;
+
+    /** Byte in front of each cake */
+    public static final byte TAG_CAKE = 1;
+
+    /** Byte after the last cake, followed by the number of cakes */
+    public static final byte TAG_END = 0;
+
+    private static final String LOG_TAG = CakeExport.class.getSimpleName();
+
+    /** Number of cakes read from the database per query */
+    private static final int PAGE_SIZE = 1000;
+
+    /** Size of the buffer between an export and its pipe, in bytes */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Stream the export is written to */
+    private final DataOutputStream mOut;
+
+    /** Row every cake is read into, and the column offsets of the cursor being read */
+    private final CakeRow mRow = new CakeRow();
+    private CakeRow.Mapper mMapper;
+
+    /** Number of cakes written so far */
+    private int mCount;
+
+    /**
+     * Constructs a new {@link CakeExport} that writes to the given stream, and writes the
+     * start of the export.
+     */
+    CakeExport(DataOutputStream out) throws IOException {
+        mOut = out;
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+    }
+
+    /**
+     * Write every visible cake of the catalog to the given file descriptor, in order of _id.
+     * The cakes are read a page at a time, each page a range of the primary key after the last
+     * cake written, so the database never has to step over the cakes already written, and a
+     * write to the catalog only ever waits for one page. Each page is limited to the cakes the
+     * provider shows at the time it is read. The file descriptor isn't closed, as closing it is
+     * what tells the reader of a pipe how the export ended. Return the number of cakes written.
+     */
+    static int write(CakeProvider provider, SQLiteDatabase database, FileDescriptor fd)
+            throws IOException {
+        CakeExport export = new CakeExport(new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(fd), BUFFER_SIZE)));
+        String[] selectionArgs = { "-1" };
+        long lastId;
+        do {
+            Cursor cursor = database.query(CakeEntry.TABLE_NAME, CakeRow.COLUMNS,
+                    provider.visibleSelection(CakeEntry._ID + ">?"), selectionArgs, null, null,
+                    CakeEntry._ID + " ASC", String.valueOf(PAGE_SIZE));
+            try {
+                lastId = export.writeRows(cursor);
+            } finally {
+                cursor.close();
+            }
+            selectionArgs[0] = String.valueOf(lastId);
+        } while (lastId != -1);
+        return export.finish();
+    }
+
+    /**
+     * Close the write end of an export pipe, passing the error on to the reader if there is one
+     * and the platform supports it.
+     */
+    static void close(ParcelFileDescriptor output, String error) {
+        try {
+            if (error != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                output.closeWithError(error);
+            } else {
+                output.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to close the export pipe", e);
+        }
+    }
+
+    /**
+     * Write every row of the cursor, from its current position on. The cursor must have the
+     * columns of {@link CakeRow}. The cakes may come in several cursors, one after the other.
+     * Return the _id of the last cake written, or -1 if the cursor had no rows.
+     */
+    long writeRows(Cursor cursor) throws IOException {
+        if (mMapper == null || !mMapper.matches(cursor)) {
+            mMapper = new CakeRow.Mapper(cursor);
+        }
+        DataOutputStream out = mOut;
+        CakeRow row = mRow;
+        long lastId = -1;
+        while (cursor.moveToNext()) {
+            mMapper.read(cursor, row);
+            out.writeByte(TAG_CAKE);
+            out.writeLong(row.getId());
+            writeText(out, row.getNameBuffer());
+            out.writeInt(row.getOccasion());
+            out.writeDouble(row.getPrice());
+            out.writeInt(row.getQuantity());
+            out.writeDouble(row.getCost());
+            out.writeLong(row.getStockedAt());
+            out.writeBoolean(row.hasSku());
+            if (row.hasSku()) {
+                writeText(out, row.getSkuBuffer());
+            }
+            out.writeBoolean(row.hasImage());
+            if (row.hasImage()) {
+                writeText(out, row.getImageBuffer());
+            }
+            lastId = row.getId();
+            mCount++;
+        }
+        return lastId;
+    }
+
+    /**
+     * Write the end of the export and flush it. Return the number of cakes written.
+     */
+    int finish() throws IOException {
+        mOut.writeByte(TAG_END);
+        mOut.writeInt(mCount);
+        mOut.flush();
+        return mCount;
+    }
+
+    /**
+     * Write the chars in the buffer the way {@link DataOutputStream#writeUTF} writes a string,
+     * straight from the buffer rather than through a string and a byte array.
+     */
+    private static void writeText(DataOutputStream out, CharArrayBuffer text) throws IOException {
+        char[] chars = text.data;
+        int length = text.sizeCopied;
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            size += c >= 0x0001 && c <= 0x007f ? 1 : c <= 0x07ff ? 2 : 3;
+        }
+        if (size > 0xffff) {
+            throw new UTFDataFormatException("Text too long: " + size + " bytes");
+        }
+        out.writeShort(size);
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c >= 0x0001 && c <= 0x007f) {
+                out.write(c);
+            } else if (c <= 0x07ff) {
+                out.write(0xc0 | (c >> 6));
+                out.write(0x80 | (c & 0x3f));
+            } else {
+                out.write(0xe0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3f));
+                out.write(0x80 | (c & 0x3f));
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+/**
+ * Undoes and redoes the changes recorded in {@link CakeJournal} on the database, for
+ * {@link CakeProvider}.
+ *
+ * Each entry is applied in a transaction of its own, together with giving back or taking away
+ * the SKU the change took from a cake hidden by a "delete all", so the database never holds
+ * half of a change. Moving through the history, and telling the caches and observers of the
+ * change, is up to the provider, which holds the lock of its writers throughout.
+ */
+final class CakeHistory {
+
+    private CakeHistory() {}
+
+    /**
+     * Undo or redo the change of a history entry on the database, in a transaction of its own.
+     * Return the number of cakes changed.
+     */
+    static int apply(SQLiteDatabase database, CakeJournal.Entry entry, boolean undo) {
+        // A SKU the change took from a hidden cake goes back to it once the change is undone,
+        // and is taken from it again before the change is redone
+        ContentValues released = entry.releasedSku;
+        database.beginTransaction();
+        try {
+            if (released != null && !undo) {
+                CakeSkuCache.setSku(database, released.getAsLong(CakeEntry._ID), null);
+            }
+            int rows = applyChange(database, entry, undo);
+            if (released != null && undo) {
+                CakeSkuCache.setSku(database, released.getAsLong(CakeEntry._ID),
+                        released.getAsString(CakeEntry.COLUMN_CAKE_SKU));
+            }
+            database.setTransactionSuccessful();
+            return rows;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Return the number of cakes with an _id above the first one, up to and including the
+     * second one.
+     */
+    static int countCakesBetween(SQLiteDatabase database, long afterId, long throughId) {
+        return (int) DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM "
+                + CakeEntry.TABLE_NAME + " WHERE " + CakeEntry._ID + ">? AND " + CakeEntry._ID
+                + "<=?", new String[] { String.valueOf(afterId), String.valueOf(throughId) });
+    }
+
+    /**
+     * Undo or redo the change of a history entry itself, inside the transaction of
+     * {@link #apply}. Return the number of cakes changed.
+     */
+    private static int applyChange(SQLiteDatabase database, CakeJournal.Entry entry,
+                                   boolean undo) {
+        switch (entry.type) {
+            case CakeJournal.TYPE_INSERT:
+            case CakeJournal.TYPE_DELETE:
+                if (undo == (entry.type == CakeJournal.TYPE_INSERT)) {
+                    // Take the cakes out again, keeping their current rows to bring them back
+                    entry.rows = CakeProvider.queryRows(database, null,
+                            CakeProvider.idSelection(CakeEntry._ID, entry.ids), null);
+                    return database.delete(CakeEntry.TABLE_NAME,
+                            CakeProvider.idSelection(CakeEntry._ID, entry.ids), null);
+                }
+                // Put the kept rows back, with their old ids. A SKU that has been given to
+                // another cake in the meantime stays with that cake.
+                for (ContentValues row : entry.rows) {
+                    try {
+                        database.insertOrThrow(CakeEntry.TABLE_NAME, null, row);
+                    } catch (SQLiteConstraintException e) {
+                        if (row.getAsString(CakeEntry.COLUMN_CAKE_SKU) == null) {
+                            throw e;
+                        }
+                        row.putNull(CakeEntry.COLUMN_CAKE_SKU);
+                        database.insertOrThrow(CakeEntry.TABLE_NAME, null, row);
+                    }
+                }
+                return entry.rows.length;
+            case CakeJournal.TYPE_UPDATE:
+                int rowsUpdated = 0;
+                for (int i = 0; i < entry.rows.length; i++) {
+                    ContentValues row = entry.rows[i];
+                    ContentValues values;
+                    if (undo) {
+                        values = new ContentValues(row);
+                        values.remove(CakeEntry._ID);
+                    } else if (entry.change != null) {
+                        values = entry.change;
+                    } else {
+                        values = entry.after[i];
+                    }
+                    rowsUpdated += database.update(CakeEntry.TABLE_NAME, values,
+                            CakeEntry._ID + "=?",
+                            new String[] { row.getAsString(CakeEntry._ID) });
+                }
+                // The batches of a change to the stock go and come back with the quantities
+                if (entry.batches != null) {
+                    if (undo == entry.batchesAdded) {
+                        CakeStockBatches.delete(database, entry.batches);
+                    } else {
+                        CakeStockBatches.restore(database, entry.batches);
+                    }
+                }
+                return rowsUpdated;
+            case CakeJournal.TYPE_DELETE_ALL:
+                long deletedThroughId =
+                        undo ? entry.oldDeletedThroughId : entry.newDeletedThroughId;
+                CakeDbHelper.writeMeta(database, CakeDbHelper.META_DELETED_THROUGH_ID,
+                        deletedThroughId);
+                return countCakesBetween(database, entry.oldDeletedThroughId,
+                        entry.newDeletedThroughId);
+            default:
+                throw new IllegalStateException("Unknown history entry " + entry.type);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentValues;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Undo and redo history of the changes made through {@link CakeProvider}.
+ *
+ * The history is a ring buffer of a fixed number of entries. The entries up to the current one
+ * can be undone, the ones after it, which have been undone, can be redone. Recording a new change
+ * drops the entries that could be redone, and when the buffer is full the oldest entry is dropped.
+ * Every entry keeps just what it needs to reverse its change: the ids of inserted cakes, the old
+ * values of the updated columns, the whole rows of deleted cakes, or the previous mark of a
+ * "delete all". A change to the stock batches is an update of the quantities of their cakes
+ * that also keeps the whole rows of the batches it added or removed, so that the batches and
+ * the quantities always go back and forth together. An insert or update that took a SKU away
+ * from a cake hidden by a "delete all" keeps that cake's _id and SKU, so an undo gives it back.
+ *
+ * Dropped entries are handed back to the caller, which can then let go of what was only kept
+ * for them, such as the photo files of deleted cakes. The journal is not thread safe; the provider
+ * holds its lock while it changes the database and records the change.
+ */
+final class CakeJournal {
+
+    /** Types of change */
+    static final int TYPE_INSERT = 0;
+    static final int TYPE_UPDATE = 1;
+    static final int TYPE_DELETE = 2;
+    static final int TYPE_DELETE_ALL = 3;
+
+    /** Largest number of entries kept */
+    static final int MAX_ENTRIES = 32;
+
+    /**
+     * Largest number of rows kept over all entries. A single change of more rows than this isn't
+     * recorded at all, and clears the history instead.
+     */
+    static final int MAX_ROWS = 1000;
+
+    /**
+     * A single change to the cakes table.
+     */
+    static final class Entry {
+
+        /** One of the TYPE_ constants */
+        final int type;
+
+        /** Ids of the cakes that were changed */
+        final long[] ids;
+
+        /**
+         * For an update, the old values of the changed columns of every cake, with its _id. For a
+         * delete, the whole rows of the deleted cakes. For an insert, the whole rows of the cakes
+         * once the insert has been undone. Null otherwise.
+         */
+        ContentValues[] rows;
+
+        /** For an update that set every cake to the same values, the new values */
+        final ContentValues change;
+
+        /**
+         * For an update that set every cake to values of its own, the new values of each, in the
+         * order of {@link #rows}. Null otherwise.
+         */
+        final ContentValues[] after;
+
+        /** For a "delete all", the deleted-through id before and after the change */
+        final long oldDeletedThroughId;
+        final long newDeletedThroughId;
+
+        /**
+         * For a change to the stock batches, the whole rows of the batches, each with its _id.
+         * The _id changes whenever a batch is put back. Null otherwise.
+         */
+        final ContentValues[] batches;
+
+        /** Whether the change added the {@link #batches}, rather than removed them */
+        final boolean batchesAdded;
+
+        /**
+         * The _id and SKU of the hidden cake the change took its SKU from, for an insert or
+         * update that wrote a SKU a hidden cake still held. Null otherwise.
+         */
+        ContentValues releasedSku;
+
+        /** Whether the change is currently applied, rather than undone */
+        boolean applied = true;
+
+        private Entry(int type, long[] ids, ContentValues[] rows, ContentValues change,
+                      ContentValues[] after, long oldDeletedThroughId, long newDeletedThroughId,
+                      ContentValues[] batches, boolean batchesAdded) {
+            this.type = type;
+            this.ids = ids;
+            this.rows = rows;
+            this.change = change;
+            this.after = after;
+            this.oldDeletedThroughId = oldDeletedThroughId;
+            this.newDeletedThroughId = newDeletedThroughId;
+            this.batches = batches;
+            this.batchesAdded = batchesAdded;
+        }
+
+        /**
+         * Return the number of rows the entry accounts for.
+         */
+        int size() {
+            return (ids != null ? ids.length : 0) + (batches != null ? batches.length : 0);
+        }
+
+        /**
+         * Return whether the cakes of the entry are currently not in the table, so that their
+         * rows in the entry are the only thing left of them.
+         */
+        boolean holdsRemovedRows() {
+            return (type == TYPE_DELETE && applied) || (type == TYPE_INSERT && !applied);
+        }
+    }
+
+    /**
+     * Return an entry for the insert of a single cake.
+     */
+    static Entry insert(long id) {
+        return new Entry(TYPE_INSERT, new long[] { id }, null, null, null, 0, 0, null, false);
+    }
+
+    /**
+     * Return an entry for an update.
+     *
+     * @param before old values of the changed columns, one per cake, each with its _id
+     * @param change new values of the changed columns
+     */
+    static Entry update(ContentValues[] before, ContentValues change) {
+        return new Entry(TYPE_UPDATE, idsOf(before), before, new ContentValues(change), null,
+                0, 0, null, false);
+    }
+
+    /**
+     * Return an entry for an update that gave every cake values of its own.
+     *
+     * @param before old values of the changed columns, one per cake, each with its _id
+     * @param after  new values of the changed columns, in the same order
+     */
+    static Entry update(ContentValues[] before, ContentValues[] after) {
+        return new Entry(TYPE_UPDATE, idsOf(before), before, null, after, 0, 0, null, false);
+    }
+
+    /**
+     * Return an entry for a change to the stock batches of some cakes and to their quantities.
+     *
+     * @param before  old quantities of the cakes, one per cake, each with its _id
+     * @param after   new quantities, in the same order
+     * @param batches whole rows of the batches, each with its _id
+     * @param added   whether the change added the batches, rather than removed them
+     */
+    static Entry stock(ContentValues[] before, ContentValues[] after, ContentValues[] batches,
+                       boolean added) {
+        return new Entry(TYPE_UPDATE, idsOf(before), before, null, after, 0, 0, batches, added);
+    }
+
+    /**
+     * Return an entry for the delete of the given rows, each with its _id.
+     */
+    static Entry delete(ContentValues[] rows) {
+        return new Entry(TYPE_DELETE, idsOf(rows), rows, null, null, 0, 0, null, false);
+    }
+
+    /**
+     * Return an entry for a "delete all" that moved the deleted-through id.
+     */
+    static Entry deleteAll(long oldDeletedThroughId, long newDeletedThroughId) {
+        return new Entry(TYPE_DELETE_ALL, null, null, null, null, oldDeletedThroughId,
+                newDeletedThroughId, null, false);
+    }
+
+    /**
+     * Return the _id of every row.
+     */
+    private static long[] idsOf(ContentValues[] rows) {
+        long[] ids = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            ids[i] = rows[i].getAsLong(CakeContract.CakeEntry._ID);
+        }
+        return ids;
+    }
+
+    /** The entries, starting at {@link #mFirst} and wrapping around */
+    private final Entry[] mEntries = new Entry[MAX_ENTRIES];
+
+    /** Position of the oldest entry */
+    private int mFirst;
+
+    /** Number of entries */
+    private int mSize;
+
+    /** Number of entries that are applied, counted from the oldest */
+    private int mApplied;
+
+    /** Number of rows over all entries */
+    private int mRows;
+
+    /**
+     * Return the entry at the given position from the oldest one.
+     */
+    private Entry get(int index) {
+        return mEntries[(mFirst + index) % MAX_ENTRIES];
+    }
+
+    /**
+     * Add a change that has just been made. Return the entries that were dropped to make room,
+     * which can't be undone or redone any more.
+     */
+    List<Entry> record(Entry entry) {
+        List<Entry> dropped = new ArrayList<Entry>();
+
+        // A new change replaces whatever could be redone
+        while (mSize > mApplied) {
+            dropped.add(removeLast());
+        }
+
+        // Make room for the new entry, oldest first
+        while (mSize > 0 && (mSize == MAX_ENTRIES || mRows + entry.size() > MAX_ROWS)) {
+            dropped.add(removeFirst());
+            mApplied--;
+        }
+
+        mEntries[(mFirst + mSize) % MAX_ENTRIES] = entry;
+        mSize++;
+        mApplied++;
+        mRows += entry.size();
+        return dropped;
+    }
+
+    /**
+     * Drop every entry. Return the dropped entries.
+     */
+    List<Entry> clear() {
+        List<Entry> dropped = new ArrayList<Entry>();
+        while (mSize > 0) {
+            dropped.add(removeLast());
+        }
+        mApplied = 0;
+        return dropped;
+    }
+
+    private Entry removeFirst() {
+        Entry entry = mEntries[mFirst];
+        mEntries[mFirst] = null;
+        mFirst = (mFirst + 1) % MAX_ENTRIES;
+        mSize--;
+        mRows -= entry.size();
+        return entry;
+    }
+
+    private Entry removeLast() {
+        int index = (mFirst + mSize - 1) % MAX_ENTRIES;
+        Entry entry = mEntries[index];
+        mEntries[index] = null;
+        mSize--;
+        mRows -= entry.size();
+        return entry;
+    }
+
+    /**
+     * Return the entry that would be undone next, or null if there is none.
+     */
+    Entry peekUndo() {
+        return mApplied > 0 ? get(mApplied - 1) : null;
+    }
+
+    /**
+     * Return the entry that would be redone next, or null if there is none.
+     */
+    Entry peekRedo() {
+        return mApplied < mSize ? get(mApplied) : null;
+    }
+
+    /**
+     * Mark the entry returned by {@link #peekUndo()} as undone.
+     */
+    void undone() {
+        mApplied--;
+        get(mApplied).applied = false;
+    }
+
+    /**
+     * Mark the entry returned by {@link #peekRedo()} as applied again.
+     */
+    void redone() {
+        get(mApplied).applied = true;
+        mApplied++;
+    }
+
+    /**
+     * Return the lowest deleted-through id that an entry could bring back, or Long.MAX_VALUE if
+     * there is none. Hidden cakes with an _id up to this one can't come back and may be removed.
+     */
+    long getLowestRestorableId() {
+        long lowest = Long.MAX_VALUE;
+        for (int i = 0; i < mSize; i++) {
+            Entry entry = get(i);
+            if (entry.type == TYPE_DELETE_ALL) {
+                lowest = Math.min(lowest, entry.oldDeletedThroughId);
+            }
+        }
+        return lowest;
+    }
+}
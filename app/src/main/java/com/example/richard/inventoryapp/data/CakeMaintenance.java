@@ -0,0 +1,533 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+import com.example.richard.inventoryapp.data.CakeContract.PriceHistoryEntry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs upkeep of the database while the app isn't using it.
+ *
+ * The work is split into tasks, and every task into small steps that each hold the write lock
+ * for a few milliseconds at most. A run only starts once the provider has been idle for
+ * {@link #IDLE_DELAY} milliseconds, stops as soon as the provider is used again or after
+ * {@link #RUN_BUDGET} milliseconds, and picks up where it left off in the next idle window.
+ * Tasks that take more than one run keep their progress in the meta table of
+ * {@link CakeDbHelper}, so it also survives the app being stopped.
+ *
+ * The built-in tasks are:
+ * <ul>
+ *     <li>incremental vacuum, which hands the pages freed by deletes back to the file system,
+ *     sized so that each step stays within {@link #STEP_BUDGET},</li>
+ *     <li>ANALYZE, one index at a time, once enough rows have changed since the last one,</li>
+ *     <li>pruning of the price history, which keeps only the last of the entries of each cake
+ *     older than {@link #PRICE_HISTORY_RETENTION}, a range of entries at a time, once a
+ *     day,</li>
+ *     <li>a passive checkpoint of the write-ahead log, which never waits for readers.</li>
+ * </ul>
+ * The provider adds its own tasks, such as removing the rows of a "delete all".
+ *
+ * The runs take place on a thread shared with the upkeep of the other shops' catalogs, given
+ * by {@link CakeTenantPool}, so they never run at the same time as each other, and opening a
+ * catalog doesn't start a thread.
+ *
+ * A database created before incremental vacuum was turned on has to be rebuilt once with a full
+ * VACUUM to switch, which holds the write lock for as long as copying the file takes and can't
+ * be split into steps. Only a tiny database, such as a new one, is rebuilt in the first idle
+ * window, as copying it takes a few milliseconds. Any other one is only rebuilt once the screen
+ * is off and the app has been left alone for {@link #CONVERT_IDLE_DELAY}, such as a till after
+ * closing time, when nobody is there to save a cake; that one step is allowed to run past
+ * {@link #RUN_BUDGET}.
+ */
+final class CakeMaintenance {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = CakeMaintenance.class.getSimpleName();
+
+    /** How long the provider has to be idle before maintenance runs, in milliseconds */
+    static final long IDLE_DELAY = 10 * 1000;
+
+    /** Longest a single run may take, in milliseconds */
+    static final long RUN_BUDGET = 500;
+
+    /** Longest a single step of the incremental vacuum should take, in milliseconds */
+    static final long STEP_BUDGET = RUN_BUDGET / 10;
+
+    /**
+     * Number of pages handed back by the first step of the incremental vacuum, and the fewest
+     * and most of the later ones, which are sized from how long the previous one took
+     */
+    private static final int VACUUM_PAGES_PER_STEP = 64;
+    private static final int VACUUM_MIN_PAGES_PER_STEP = 8;
+    private static final int VACUUM_MAX_PAGES_PER_STEP = 1024;
+
+    /** Number of free pages below which the file isn't worth shrinking */
+    private static final int VACUUM_MIN_FREE_PAGES = 64;
+
+    /**
+     * Largest database that is converted to incremental vacuum in the first idle window.
+     * Databases created before incremental vacuum was turned on need a full VACUUM once to
+     * switch, which holds the write lock for as long as it takes to copy the file; for a file
+     * this small that is a few milliseconds.
+     */
+    private static final long VACUUM_CONVERT_MAX_BYTES = 128 * 1024;
+
+    /**
+     * How long the provider has to be idle, with the screen off, before a larger database is
+     * converted, in milliseconds. Also how often the conditions are checked again while a
+     * conversion waits.
+     */
+    static final long CONVERT_IDLE_DELAY = 5 * 60 * 1000;
+
+    /** Value of PRAGMA auto_vacuum for incremental vacuum */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    /** Number of changed rows after which the statistics are gathered again */
+    private static final long ANALYZE_THRESHOLD = 1000;
+
+    /**
+     * Age after which the price history is thinned out, in milliseconds. Of the entries of a
+     * cake older than this, only the last one is kept, which is the price in effect at the
+     * start of the retained period.
+     */
+    static final long PRICE_HISTORY_RETENTION = 365L * 24 * 60 * 60 * 1000;
+
+    /** Shortest time between two passes of pruning over the price history, in milliseconds */
+    private static final long PRUNE_INTERVAL = 24 * 60 * 60 * 1000;
+
+    /** Number of price history entries, by _id, looked at per step of pruning */
+    private static final int PRUNE_CHUNK_SIZE = 500;
+
+    /** Meta keys of the progress of the tasks */
+    private static final String META_CHANGES = "maintenance_changes";
+    private static final String META_ANALYZE_POSITION = "maintenance_analyze_position";
+    private static final String META_PRUNE_POSITION = "maintenance_prune_position";
+    private static final String META_PRUNED_AT = "maintenance_pruned_at";
+
+    /**
+     * A piece of maintenance work, done in small steps.
+     */
+    interface Task {
+
+        /**
+         * Do one small step of the work, short enough not to hold up other writers noticeably.
+         * Called on the maintenance thread.
+         *
+         * @return true if there is more work left to do
+         */
+        boolean runStep(SQLiteDatabase database);
+    }
+
+    private final Context mContext;
+    private final CakeDbHelper mDbHelper;
+    private final List<Task> mTasks = new ArrayList<Task>();
+    private final Handler mHandler;
+
+    /** Uptime of the last use of the provider */
+    private volatile long mLastActivity;
+
+    /** Whether a run has been posted to the maintenance thread */
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    /** Number of rows changed since the count was last added to {@link #META_CHANGES} */
+    private final AtomicLong mChanges = new AtomicLong();
+
+    /** Position in {@link #mTasks} of the task the last run stopped at */
+    private int mNextTask;
+
+    /** Number of pages the next step of the incremental vacuum hands back */
+    private int mVacuumPagesPerStep = VACUUM_PAGES_PER_STEP;
+
+    /** Whether the database still has to be converted to incremental vacuum */
+    private boolean mConvertPending;
+
+    /** Whether {@link #shutdown} has run, after which nothing more is run */
+    private volatile boolean mShutdown;
+
+    private final Runnable mRun = new Runnable() {
+        @Override
+        public void run() {
+            runIfIdle();
+        }
+    };
+
+    /**
+     * Constructs a new {@link CakeMaintenance}.
+     *
+     * @param context  of the app, to check whether the screen is on
+     * @param dbHelper to get the database from
+     * @param looper   of the background thread to run on, which may be shared with others
+     */
+    CakeMaintenance(Context context, CakeDbHelper dbHelper, Looper looper) {
+        mContext = context;
+        mDbHelper = dbHelper;
+        mHandler = new Handler(looper);
+
+        mTasks.add(new Task() {
+            @Override
+            public boolean runStep(SQLiteDatabase database) {
+                return analyzeStep(database);
+            }
+        });
+        mTasks.add(new Task() {
+            @Override
+            public boolean runStep(SQLiteDatabase database) {
+                return pruneStep(database, System.currentTimeMillis());
+            }
+        });
+        mTasks.add(new Task() {
+            @Override
+            public boolean runStep(SQLiteDatabase database) {
+                return vacuumStep(database);
+            }
+        });
+    }
+
+    /**
+     * Add a task, which runs before the built-in ones. Call this before the first run.
+     */
+    void addTask(Task task) {
+        mTasks.add(0, task);
+    }
+
+    /**
+     * Run a piece of work once on the maintenance thread, straight away.
+     */
+    void execute(Runnable runnable) {
+        mHandler.post(runnable);
+    }
+
+    /**
+     * Stop running once the work already posted to the maintenance thread is done, then run the
+     * given piece of work on it as the very last thing, such as closing the database. Runs that
+     * were waiting for an idle window are dropped; their progress is in the meta table. The
+     * thread itself keeps running for the other catalogs.
+     */
+    void shutdown(final Runnable last) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mShutdown = true;
+                mHandler.removeCallbacksAndMessages(null);
+                last.run();
+            }
+        });
+    }
+
+    /**
+     * Note that the provider has just been used, which puts off maintenance for a while.
+     *
+     * @param rowsChanged number of rows written, 0 for a read. Writes make sure a run follows.
+     */
+    void onActivity(int rowsChanged) {
+        mLastActivity = SystemClock.uptimeMillis();
+        if (rowsChanged > 0) {
+            mChanges.addAndGet(rowsChanged);
+            schedule(IDLE_DELAY);
+        }
+    }
+
+    /**
+     * Make sure a run follows in the next idle window.
+     */
+    void schedule() {
+        schedule(IDLE_DELAY);
+    }
+
+    private void schedule(long delay) {
+        if (!mShutdown && mScheduled.compareAndSet(false, true)) {
+            mHandler.postDelayed(mRun, delay);
+        }
+    }
+
+    /**
+     * Run the tasks if the provider has been idle long enough, or wait until it has.
+     */
+    private void runIfIdle() {
+        mScheduled.set(false);
+        if (mShutdown) {
+            return;
+        }
+        long start = SystemClock.uptimeMillis();
+        long idle = start - mLastActivity;
+        if (idle < IDLE_DELAY) {
+            schedule(IDLE_DELAY - idle);
+            return;
+        }
+
+        long metricsStart = CakeMetrics.begin("CakeMaintenance.run");
+        int steps = 0;
+        boolean finished = false;
+        try {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            saveChanges(database);
+
+            // Work through the tasks from where the last run stopped, until they are all done,
+            // the budget is spent or the provider is used again
+            int done = 0;
+            while (done < mTasks.size()) {
+                boolean more = mTasks.get(mNextTask).runStep(database);
+                steps++;
+                if (!more) {
+                    done++;
+                    mNextTask = (mNextTask + 1) % mTasks.size();
+                }
+                if (mLastActivity > start || SystemClock.uptimeMillis() - start > RUN_BUDGET) {
+                    break;
+                }
+            }
+            finished = done == mTasks.size();
+
+            if (finished) {
+                checkpoint(database);
+            }
+        } catch (RuntimeException e) {
+            // Maintenance is only an optimization, so never let it take the app down
+            Log.e(LOG_TAG, "Maintenance failed", e);
+            finished = true;
+        } finally {
+            CakeMetrics.end(metricsStart, "maintenance", "run", steps);
+        }
+
+        if (!finished) {
+            schedule(IDLE_DELAY);
+        } else if (mConvertPending) {
+            // Look again later whether the database can be converted by then
+            schedule(CONVERT_IDLE_DELAY);
+        }
+    }
+
+    /**
+     * Add the rows changed since the last run to the count kept in the meta table.
+     */
+    private void saveChanges(SQLiteDatabase database) {
+        long changes = mChanges.getAndSet(0);
+        if (changes != 0) {
+            CakeDbHelper.writeMeta(database, META_CHANGES,
+                    CakeDbHelper.readMeta(database, META_CHANGES, 0) + changes);
+        }
+    }
+
+    /**
+     * Gather the statistics of one index of the cakes table, if enough rows have changed since
+     * they were last gathered. The query planner uses them to pick between the sort indexes.
+     */
+    private boolean analyzeStep(SQLiteDatabase database) {
+        // A database that has never been analyzed is analyzed straight away
+        long position = CakeDbHelper.readMeta(database, META_ANALYZE_POSITION, 0);
+        if (position == 0 && hasStatistics(database)
+                && CakeDbHelper.readMeta(database, META_CHANGES, 0) < ANALYZE_THRESHOLD) {
+            return false;
+        }
+
+        List<String> indexes = new ArrayList<String>();
+        Cursor cursor = database.rawQuery("SELECT name FROM sqlite_master WHERE type='index'"
+                + " AND tbl_name=? AND sql IS NOT NULL ORDER BY name",
+                new String[] { CakeEntry.TABLE_NAME });
+        try {
+            while (cursor.moveToNext()) {
+                indexes.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (position < indexes.size()) {
+            database.execSQL("ANALYZE " + indexes.get((int) position));
+        }
+        position++;
+
+        if (position >= indexes.size()) {
+            CakeDbHelper.writeMeta(database, META_ANALYZE_POSITION, 0);
+            CakeDbHelper.writeMeta(database, META_CHANGES, 0);
+            return false;
+        }
+        CakeDbHelper.writeMeta(database, META_ANALYZE_POSITION, position);
+        return true;
+    }
+
+    /**
+     * Return whether statistics have ever been gathered for the database.
+     */
+    private static boolean hasStatistics(SQLiteDatabase database) {
+        return DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM sqlite_master"
+                + " WHERE name='sqlite_stat1'", null) != 0;
+    }
+
+    /**
+     * Remove the price history entries of a range of _ids that are older than
+     * {@link #PRICE_HISTORY_RETENTION} and followed by a later entry of the same cake that is
+     * too. The price at any time within the retained period is looked up just as before, as
+     * the entry in effect at its start is kept. A whole pass over the table is made at most
+     * once every {@link #PRUNE_INTERVAL}.
+     */
+    @VisibleForTesting
+    static boolean pruneStep(SQLiteDatabase database, long now) {
+        long position = CakeDbHelper.readMeta(database, META_PRUNE_POSITION, 0);
+        if (position == 0
+                && now - CakeDbHelper.readMeta(database, META_PRUNED_AT, 0) < PRUNE_INTERVAL) {
+            return false;
+        }
+
+        long cutoff = now - PRICE_HISTORY_RETENTION;
+        String history = PriceHistoryEntry.TABLE_NAME;
+        String id = PriceHistoryEntry._ID;
+        String cakeId = PriceHistoryEntry.COLUMN_CAKE_ID;
+        String effectiveAt = PriceHistoryEntry.COLUMN_EFFECTIVE_AT;
+        boolean more;
+        database.beginTransaction();
+        try {
+            // Each entry is checked through the index on the cake and time, for a later entry
+            // of the same cake from before the cutoff, in the order the lookups pick entries in
+            database.execSQL("DELETE FROM " + history + " WHERE " + id + " IN (SELECT h." + id
+                    + " FROM " + history + " h WHERE h." + id + ">? AND h." + id + "<=?"
+                    + " AND h." + effectiveAt + "<? AND EXISTS (SELECT 1 FROM " + history
+                    + " n WHERE n." + cakeId + "=h." + cakeId + " AND n." + effectiveAt + "<?"
+                    + " AND (n." + effectiveAt + ">h." + effectiveAt + " OR (n." + effectiveAt
+                    + "=h." + effectiveAt + " AND n." + id + ">h." + id + "))))",
+                    new Object[] { position, position + PRUNE_CHUNK_SIZE, cutoff, cutoff });
+
+            position += PRUNE_CHUNK_SIZE;
+            more = position < DatabaseUtils.longForQuery(database,
+                    "SELECT IFNULL(MAX(" + id + "), 0) FROM " + history, null);
+            if (more) {
+                CakeDbHelper.writeMeta(database, META_PRUNE_POSITION, position);
+            } else {
+                CakeDbHelper.writeMeta(database, META_PRUNE_POSITION, 0);
+                CakeDbHelper.writeMeta(database, META_PRUNED_AT, now);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return more;
+    }
+
+    /**
+     * Hand a batch of free pages back to the file system.
+     */
+    private boolean vacuumStep(SQLiteDatabase database) {
+        if (pragma(database, "auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            // Incremental vacuum can only be turned on by rebuilding the file with a full VACUUM,
+            // even for a new database, since Android creates a table of its own in it on open.
+            // A tiny database is rebuilt straight away, a larger one only once nobody is there
+            // to notice the writes waiting for it.
+            long bytes = pragma(database, "page_count") * pragma(database, "page_size");
+            mConvertPending = bytes > VACUUM_CONVERT_MAX_BYTES && !canConvert(database, bytes);
+            if (!mConvertPending) {
+                long start = SystemClock.uptimeMillis();
+                database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                database.execSQL("VACUUM");
+                Log.i(LOG_TAG, "Converted " + bytes + " bytes to incremental vacuum in "
+                        + (SystemClock.uptimeMillis() - start) + " ms");
+            }
+            return false;
+        }
+
+        long freePages = pragma(database, "freelist_count");
+        if (freePages < VACUUM_MIN_FREE_PAGES) {
+            return false;
+        }
+
+        // The pragma only does its work while its result is being read
+        int pages = mVacuumPagesPerStep;
+        long start = SystemClock.uptimeMillis();
+        Cursor cursor = database.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                // Keep stepping until the batch is done
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Size the next step so that it takes about the step budget on this device
+        long took = SystemClock.uptimeMillis() - start;
+        if (took > STEP_BUDGET) {
+            mVacuumPagesPerStep = Math.max(pages / 2, VACUUM_MIN_PAGES_PER_STEP);
+        } else if (took < STEP_BUDGET / 4) {
+            mVacuumPagesPerStep = Math.min(pages * 2, VACUUM_MAX_PAGES_PER_STEP);
+        }
+        return freePages - pages >= VACUUM_MIN_FREE_PAGES;
+    }
+
+    /**
+     * Return whether a database of the given size can be rebuilt now: the app has been idle for
+     * {@link #CONVERT_IDLE_DELAY}, the screen is off, and there is room for the copy of the
+     * file that VACUUM writes, and for the log that can grow as large again.
+     */
+    private boolean canConvert(SQLiteDatabase database, long bytes) {
+        if (SystemClock.uptimeMillis() - mLastActivity < CONVERT_IDLE_DELAY) {
+            return false;
+        }
+        if (isInteractive()) {
+            return false;
+        }
+        File directory = new File(database.getPath()).getParentFile();
+        return directory != null && directory.getUsableSpace() > bytes * 2;
+    }
+
+    /**
+     * Return whether the screen is on, so that someone may be using the app.
+     */
+    @SuppressWarnings("deprecation")
+    private boolean isInteractive() {
+        PowerManager power = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        if (power == null) {
+            return true;
+        }
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH
+                ? power.isInteractive() : power.isScreenOn();
+    }
+
+    /**
+     * Copy the write-ahead log back into the database file as far as readers allow, without
+     * waiting for them, so the log doesn't keep growing.
+     */
+    private static void checkpoint(SQLiteDatabase database) {
+        Cursor cursor = database.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the value of a pragma that returns a single number.
+     */
+    private static long pragma(SQLiteDatabase database, String name) {
+        return DatabaseUtils.longForQuery(database, "PRAGMA " + name, null);
+    }
+}
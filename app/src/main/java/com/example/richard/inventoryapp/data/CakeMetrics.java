@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.os.SystemClock;
+import android.support.v4.os.TraceCompat;
+
+import com.example.richard.inventoryapp.BuildConfig;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lightweight timing of the hot paths of the Cakes app.
+ *
+ * Every timed operation is wrapped in an android.os.Trace section, so it shows up in systrace,
+ * and its latency is added to a histogram that can be printed with {@link #dump(PrintWriter)}.
+ * Timing is on by default in debug builds only. When it is off, {@link #begin(String)} returns
+ * straight away and {@link #end(long, String, String, int)} does nothing, so the cost at the
+ * call sites is a single volatile read.
+ *
+ * Usage:
+ * <pre>
+ *     long start = CakeMetrics.begin("CakeProvider.query");
+ *     try {
+ *         ...
+ *     } finally {
+ *         CakeMetrics.end(start, "query", "cakes", rows);
+ *     }
+ * </pre>
+ */
+public final class CakeMetrics {
+
+    /** Number of histogram buckets. Bucket i holds latencies from 2^i up to 2^(i+1) microseconds. */
+    private static final int BUCKET_COUNT = 25;
+
+    /** Whether timing is turned on */
+    private static volatile boolean sEnabled = BuildConfig.DEBUG;
+
+    /** Recorded metrics, keyed by operation and target */
+    private static final ConcurrentHashMap<String, Metric> sMetrics =
+            new ConcurrentHashMap<String, Metric>();
+
+    /** Uptime at which each startup phase was first reached, in the order they were reached */
+    private static final Map<String, Long> sStartupMarks = new LinkedHashMap<String, Long>();
+
+    // Only static methods, so don't allow instances
+    private CakeMetrics() {}
+
+    /**
+     * Return whether timing is turned on.
+     */
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Turn timing on or off. Metrics recorded so far are kept.
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Start timing an operation on the current thread and open a trace section for it.
+     *
+     * @param section name of the trace section, which should be a constant string
+     * @return the start time to pass to {@link #end(long, String, String, int)}, or 0 if timing
+     *         is turned off
+     */
+    public static long begin(String section) {
+        if (!sEnabled) {
+            return 0;
+        }
+        TraceCompat.beginSection(section);
+        return System.nanoTime();
+    }
+
+    /**
+     * Finish timing an operation started with {@link #begin(String)}, close its trace section
+     * and record its latency.
+     *
+     * @param start     value returned by {@link #begin(String)}
+     * @param operation what was done, for example "query"
+     * @param target    what it was done to, for example the matched URI
+     * @param rows      number of rows returned or changed, or 0 if that doesn't apply
+     */
+    public static void end(long start, String operation, String target, int rows) {
+        if (start == 0) {
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        TraceCompat.endSection();
+        record(operation, target, elapsed, rows);
+    }
+
+    /**
+     * Return the current time, for timing operations that start and finish on different
+     * threads, such as loaders. Returns 0 if timing is turned off.
+     */
+    public static long now() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the latency of an operation that started at a time returned by {@link #now()}.
+     * Does nothing if timing was turned off when the operation started.
+     */
+    public static void recordSince(long start, String operation, String target, int rows) {
+        if (start != 0) {
+            record(operation, target, System.nanoTime() - start, rows);
+        }
+    }
+
+    /**
+     * Add a single measurement to the histogram of the given operation and target.
+     */
+    private static void record(String operation, String target, long elapsedNanos, int rows) {
+        String key = operation + " " + target;
+        Metric metric = sMetrics.get(key);
+        if (metric == null) {
+            Metric created = new Metric(key);
+            metric = sMetrics.putIfAbsent(key, created);
+            if (metric == null) {
+                metric = created;
+            }
+        }
+        metric.add(elapsedNanos, rows);
+    }
+
+    /**
+     * Record that a startup phase has been reached. Only the first time a phase is reached
+     * counts, until {@link #resetStartup()}. Startup marks are recorded even when timing is
+     * turned off, since there are only a handful of them per launch.
+     *
+     * @param phase name of the phase, for example "catalog_create"
+     */
+    public static void markStartup(String phase) {
+        long uptime = SystemClock.uptimeMillis();
+        synchronized (sStartupMarks) {
+            if (!sStartupMarks.containsKey(phase)) {
+                sStartupMarks.put(phase, uptime);
+            }
+        }
+    }
+
+    /**
+     * Return the uptime at which a startup phase was reached, or 0 if it hasn't been yet.
+     */
+    public static long getStartupMark(String phase) {
+        synchronized (sStartupMarks) {
+            Long uptime = sStartupMarks.get(phase);
+            return uptime != null ? uptime : 0;
+        }
+    }
+
+    /**
+     * Forget the startup marks, so the next launch of the catalog records them again.
+     */
+    public static void resetStartup() {
+        synchronized (sStartupMarks) {
+            sStartupMarks.clear();
+        }
+    }
+
+    /**
+     * Forget all recorded metrics.
+     */
+    public static void reset() {
+        sMetrics.clear();
+    }
+
+    /**
+     * Print a line per recorded metric with its count, latency percentiles and rows.
+     */
+    public static void dump(PrintWriter writer) {
+        writer.println("Cake metrics (" + (sEnabled ? "enabled" : "disabled") + ")");
+        writer.println("count  mean(us)  p50(us)  p90(us)  p99(us)  max(us)  rows  operation");
+
+        List<String> keys = new ArrayList<String>(sMetrics.keySet());
+        Collections.sort(keys);
+        for (String key : keys) {
+            sMetrics.get(key).dump(writer);
+        }
+
+        // Print the startup phases relative to the first one
+        synchronized (sStartupMarks) {
+            if (!sStartupMarks.isEmpty()) {
+                writer.println("Startup phases (ms since first phase)");
+                long first = sStartupMarks.values().iterator().next();
+                for (Map.Entry<String, Long> mark : sStartupMarks.entrySet()) {
+                    writer.println(String.format("%6d  %s", mark.getValue() - first,
+                            mark.getKey()));
+                }
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Return the output of {@link #dump(PrintWriter)} as a String.
+     */
+    public static String dumpToString() {
+        StringWriter out = new StringWriter();
+        dump(new PrintWriter(out));
+        return out.toString();
+    }
+
+    /**
+     * Count, total, maximum and log2 histogram of the latencies of one operation.
+     */
+    private static final class Metric {
+
+        private final String mName;
+        private final long[] mBuckets = new long[BUCKET_COUNT];
+        private long mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+        private long mRows;
+
+        Metric(String name) {
+            mName = name;
+        }
+
+        synchronized void add(long elapsedNanos, int rows) {
+            long micros = elapsedNanos / 1000;
+            int bucket = micros <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+            mBuckets[Math.min(bucket, BUCKET_COUNT - 1)]++;
+            mCount++;
+            mTotalNanos += elapsedNanos;
+            mMaxNanos = Math.max(mMaxNanos, elapsedNanos);
+            mRows += rows;
+        }
+
+        synchronized void dump(PrintWriter writer) {
+            writer.println(String.format("%5d  %8d  %7d  %7d  %7d  %7d  %4d  %s",
+                    mCount, mTotalNanos / 1000 / Math.max(mCount, 1), percentile(50),
+                    percentile(90), percentile(99), mMaxNanos / 1000, mRows, mName));
+        }
+
+        /**
+         * Return the upper bound, in microseconds, of the bucket that holds the given percentile.
+         */
+        private long percentile(int percent) {
+            long threshold = (mCount * percent + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets[i];
+                if (seen >= threshold) {
+                    return Math.min(1L << (i + 1), mMaxNanos / 1000);
+                }
+            }
+            return mMaxNanos / 1000;
+        }
+    }
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.v4.util.LongSparseArray;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The trigram index of the cake names, for {@link CakeProvider}, which finds cakes whose names
+ * are alike, such as "Racing Car" and "Racing-Car Cake".
+ *
+ * A name is split into words of letters and digits, in lower case, and each word padded with
+ * two spaces in front and one behind gives the trigrams of the name: "car" gives "  c", " ca",
+ * "car" and "ar ". Two names are as similar as the share of their trigrams they have in common,
+ * so punctuation, case and the order of the words don't matter, and a typo only changes a few
+ * trigrams. The trigrams of every cake are kept in {@link CakeDbHelper#NAME_TRIGRAM_TABLE},
+ * with an index on the trigram, so the cakes that share a trigram with a name are one seek
+ * each instead of a comparison with every name in the catalog.
+ *
+ * The triggers of the cakes table queue every new or renamed cake, and {@link #indexQueued}
+ * adds the trigrams of the queued names. The provider runs it in the background while the app
+ * is idle, and before every lookup, so a lookup sees the names as they were when it started.
+ * The lookups themselves only read, and are meant to run outside any transaction, on a read
+ * connection of the write-ahead log, so that they never hold up a writer.
+ */
+final class CakeNameIndex {
+
+    /**
+     * Most trigrams of a name that a lookup uses, which keeps the lookup well within the 999
+     * arguments SQLite allows. Only a name of well over a hundred letters has more.
+     */
+    static final int MAX_LOOKUP_TRIGRAMS = 256;
+
+    /** Most matches returned by a lookup of a single name */
+    static final int MAX_LOOKUP_MATCHES = 10;
+
+    /** Most pairs returned by a pass over the whole catalog */
+    static final int MAX_DUPLICATE_MATCHES = 500;
+
+    /** Number of queued names indexed in one step of the upkeep done while idle */
+    static final int INDEX_CHUNK_SIZE = 200;
+
+    /** Slack for rounding when working out how many trigrams two names must share */
+    private static final double EPSILON = 1e-6;
+
+    /**
+     * A pair of cakes with similar names.
+     */
+    private static final class Match {
+        final long id;
+        final long matchId;
+        final float similarity;
+
+        Match(long id, long matchId, float similarity) {
+            this.id = id;
+            this.matchId = matchId;
+            this.similarity = similarity;
+        }
+    }
+
+    /** Orders the matches most similar first, then by _id */
+    private static final Comparator<Match> MOST_SIMILAR_FIRST = new Comparator<Match>() {
+        @Override
+        public int compare(Match lhs, Match rhs) {
+            if (lhs.similarity != rhs.similarity) {
+                return lhs.similarity > rhs.similarity ? -1 : 1;
+            }
+            if (lhs.id != rhs.id) {
+                return lhs.id < rhs.id ? -1 : 1;
+            }
+            return lhs.matchId < rhs.matchId ? -1 : lhs.matchId > rhs.matchId ? 1 : 0;
+        }
+    };
+
+    private CakeNameIndex() {}
+
+    /**
+     * Return the distinct trigrams of a name, in sorted order. A name without letters or digits
+     * has none.
+     */
+    static String[] trigrams(String name) {
+        Set<String> trigrams = new HashSet<String>();
+        StringBuilder word = new StringBuilder("  ");
+        for (int i = 0; i <= name.length(); i++) {
+            char c = i < name.length() ? name.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 2) {
+                word.append(' ');
+                for (int j = 0; j + 3 <= word.length(); j++) {
+                    trigrams.add(word.substring(j, j + 3));
+                }
+                word.setLength(2);
+            }
+        }
+        String[] sorted = trigrams.toArray(new String[trigrams.size()]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Return the similarity of two names, between 0 for names without a trigram in common and
+     * 1 for names with the same trigrams.
+     */
+    static float similarity(String name, String otherName) {
+        String[] trigrams = trigrams(name);
+        String[] otherTrigrams = trigrams(otherName);
+        int shared = 0;
+        int i = 0;
+        int j = 0;
+        while (i < trigrams.length && j < otherTrigrams.length) {
+            int order = trigrams[i].compareTo(otherTrigrams[j]);
+            if (order == 0) {
+                shared++;
+            }
+            if (order <= 0) {
+                i++;
+            }
+            if (order >= 0) {
+                j++;
+            }
+        }
+        int union = trigrams.length + otherTrigrams.length - shared;
+        return union == 0 ? 0 : shared / (float) union;
+    }
+
+    /**
+     * Return the fewest trigrams a set of the given size must share with another set for the
+     * two to be at least as similar as the threshold. The union is at least as big as either
+     * set, so the share of the union in common is at most the share of either set.
+     */
+    private static int getMinShared(float threshold, int size) {
+        return Math.max(1, (int) Math.ceil(threshold * size - EPSILON));
+    }
+
+    /**
+     * Return whether any cakes are waiting for their names to be indexed.
+     */
+    static boolean hasQueued(SQLiteDatabase database) {
+        return DatabaseUtils.longForQuery(database, "SELECT EXISTS (SELECT 1 FROM "
+                + CakeDbHelper.NAME_QUEUE_TABLE + ")", null) != 0;
+    }
+
+    /**
+     * Add the trigrams of the names of up to the given number of queued cakes, or of every
+     * queued cake if the limit is 0, in the caller's transaction. Return the number of cakes
+     * taken off the queue.
+     */
+    static int indexQueued(SQLiteDatabase database, int limit) {
+        Cursor cursor = database.rawQuery("SELECT q." + CakeDbHelper.NAME_QUEUE_CAKE_ID + ", c."
+                + CakeEntry.COLUMN_CAKE_NAME + " FROM " + CakeDbHelper.NAME_QUEUE_TABLE
+                + " q LEFT JOIN " + CakeEntry.TABLE_NAME + " c ON c." + CakeEntry._ID + "=q."
+                + CakeDbHelper.NAME_QUEUE_CAKE_ID + " ORDER BY q."
+                + CakeDbHelper.NAME_QUEUE_CAKE_ID + (limit > 0 ? " LIMIT " + limit : ""), null);
+        long[] ids;
+        String[] names;
+        try {
+            ids = new long[cursor.getCount()];
+            names = new String[ids.length];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+                names[i] = cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (ids.length == 0) {
+            return 0;
+        }
+
+        SQLiteStatement clear = database.compileStatement("DELETE FROM "
+                + CakeDbHelper.NAME_TRIGRAM_TABLE + " WHERE "
+                + CakeDbHelper.NAME_TRIGRAM_CAKE_ID + "=?");
+        SQLiteStatement insert = database.compileStatement("INSERT INTO "
+                + CakeDbHelper.NAME_TRIGRAM_TABLE + " (" + CakeDbHelper.NAME_TRIGRAM_CAKE_ID
+                + ", " + CakeDbHelper.NAME_TRIGRAM_TRIGRAM + ") VALUES (?, ?)");
+        SQLiteStatement dequeue = database.compileStatement("DELETE FROM "
+                + CakeDbHelper.NAME_QUEUE_TABLE + " WHERE " + CakeDbHelper.NAME_QUEUE_CAKE_ID
+                + "=?");
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                // A cake queued twice may already have been indexed once
+                clear.bindLong(1, ids[i]);
+                clear.executeUpdateDelete();
+                if (names[i] != null) {
+                    for (String trigram : trigrams(names[i])) {
+                        insert.bindLong(1, ids[i]);
+                        insert.bindString(2, trigram);
+                        insert.executeInsert();
+                    }
+                }
+                dequeue.bindLong(1, ids[i]);
+                dequeue.executeUpdateDelete();
+            }
+        } finally {
+            clear.close();
+            insert.close();
+            dequeue.close();
+        }
+        return ids.length;
+    }
+
+    /**
+     * Return the cakes whose names are at least as similar to the given name as the threshold,
+     * most similar first. The queue must have been indexed first.
+     *
+     * Only cakes that share enough trigrams with the name can be similar enough, so the lookup
+     * counts the shared trigrams of each cake through the index, and only the cakes with enough
+     * of them have their own trigrams counted, to work out how similar they are.
+     *
+     * @param cakeId           _id of the cake the name is for, which is left out, or -1
+     * @param deletedThroughId highest _id of the cakes hidden by a "delete all"
+     */
+    static CakeNameMatches findSimilar(SQLiteDatabase database, String name, long cakeId,
+                                       float threshold, long deletedThroughId) {
+        String[] trigrams = trigrams(name);
+        int size = Math.min(trigrams.length, MAX_LOOKUP_TRIGRAMS);
+        List<Match> matches = new ArrayList<Match>();
+        LongSparseArray<String> names = new LongSparseArray<String>();
+        if (size > 0) {
+            StringBuilder in = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                in.append(i == 0 ? "?" : ",?");
+            }
+            String trigramId = "g." + CakeDbHelper.NAME_TRIGRAM_CAKE_ID;
+            Cursor cursor = database.rawQuery("SELECT " + trigramId + ", c."
+                    + CakeEntry.COLUMN_CAKE_NAME + ", g.shared, (SELECT COUNT(*) FROM "
+                    + CakeDbHelper.NAME_TRIGRAM_TABLE + " n WHERE n."
+                    + CakeDbHelper.NAME_TRIGRAM_CAKE_ID + "=" + trigramId + ") FROM (SELECT "
+                    + CakeDbHelper.NAME_TRIGRAM_CAKE_ID + ", COUNT(*) AS shared FROM "
+                    + CakeDbHelper.NAME_TRIGRAM_TABLE + " WHERE "
+                    + CakeDbHelper.NAME_TRIGRAM_TRIGRAM + " IN (" + in + ") AND "
+                    + CakeDbHelper.NAME_TRIGRAM_CAKE_ID + ">" + deletedThroughId + " AND "
+                    + CakeDbHelper.NAME_TRIGRAM_CAKE_ID + "<>" + cakeId + " GROUP BY "
+                    + CakeDbHelper.NAME_TRIGRAM_CAKE_ID + " HAVING COUNT(*)>="
+                    + getMinShared(threshold, size) + ") g JOIN " + CakeEntry.TABLE_NAME
+                    + " c ON c." + CakeEntry._ID + "=" + trigramId,
+                    Arrays.copyOf(trigrams, size));
+            try {
+                while (cursor.moveToNext()) {
+                    int shared = cursor.getInt(2);
+                    float similarity = shared / (float) (size + cursor.getInt(3) - shared);
+                    if (similarity >= threshold) {
+                        matches.add(new Match(cakeId, cursor.getLong(0), similarity));
+                        names.put(cursor.getLong(0), cursor.getString(1));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        names.put(cakeId, name);
+        return toMatches(matches, MAX_LOOKUP_MATCHES, names);
+    }
+
+    /**
+     * Return the pairs of cakes whose names are at least as similar as the threshold, most
+     * similar first. The queue must have been indexed first.
+     *
+     * Comparing every pair of names would take as long as the square of the size of the
+     * catalog, so the pass filters the pairs by prefix instead. The trigrams are ranked from
+     * rarest to most common across the catalog, and two names that share at least t of their
+     * trigrams must share one of the |x| - t + 1 rarest trigrams of either name. So only that
+     * prefix of each name is put in an inverted index, each name is only compared with the
+     * names that come up in the lists of its own prefix, and as the prefix is made of the rare
+     * trigrams, the lists are short.
+     *
+     * @param deletedThroughId highest _id of the cakes hidden by a "delete all"
+     */
+    static CakeNameMatches findDuplicates(SQLiteDatabase database, float threshold,
+                                          long deletedThroughId) {
+        // Read the trigrams of every cake through the index on the cake, giving each distinct
+        // trigram a number and counting the cakes that have it
+        long[] cakeIds = new long[64];
+        int[] starts = new int[65];
+        int[] items = new int[1024];
+        int cakeCount = 0;
+        int itemCount = 0;
+        Map<String, Integer> numbers = new HashMap<String, Integer>();
+        int[] frequencies = new int[256];
+        Cursor cursor = database.rawQuery("SELECT " + CakeDbHelper.NAME_TRIGRAM_CAKE_ID + ", "
+                + CakeDbHelper.NAME_TRIGRAM_TRIGRAM + " FROM " + CakeDbHelper.NAME_TRIGRAM_TABLE
+                + " WHERE " + CakeDbHelper.NAME_TRIGRAM_CAKE_ID + ">" + deletedThroughId
+                + " ORDER BY " + CakeDbHelper.NAME_TRIGRAM_CAKE_ID, null);
+        try {
+            while (cursor.moveToNext()) {
+                long cakeId = cursor.getLong(0);
+                if (cakeCount == 0 || cakeIds[cakeCount - 1] != cakeId) {
+                    if (cakeCount == cakeIds.length) {
+                        cakeIds = Arrays.copyOf(cakeIds, cakeCount * 2);
+                        starts = Arrays.copyOf(starts, cakeCount * 2 + 1);
+                    }
+                    cakeIds[cakeCount] = cakeId;
+                    starts[cakeCount] = itemCount;
+                    cakeCount++;
+                }
+                String trigram = cursor.getString(1);
+                Integer number = numbers.get(trigram);
+                if (number == null) {
+                    number = numbers.size();
+                    numbers.put(trigram, number);
+                    if (number == frequencies.length) {
+                        frequencies = Arrays.copyOf(frequencies, number * 2);
+                    }
+                }
+                frequencies[number]++;
+                if (itemCount == items.length) {
+                    items = Arrays.copyOf(items, itemCount * 2);
+                }
+                items[itemCount++] = number;
+            }
+        } finally {
+            cursor.close();
+        }
+        starts[cakeCount] = itemCount;
+
+        // Rank the trigrams from rarest to most common, and put the trigrams of each cake in
+        // order of rank
+        final int[] counts = frequencies;
+        Integer[] order = new Integer[numbers.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                if (counts[lhs] != counts[rhs]) {
+                    return counts[lhs] < counts[rhs] ? -1 : 1;
+                }
+                return lhs.compareTo(rhs);
+            }
+        });
+        int[] ranks = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            ranks[order[i]] = i;
+        }
+        for (int i = 0; i < itemCount; i++) {
+            items[i] = ranks[items[i]];
+        }
+        for (int x = 0; x < cakeCount; x++) {
+            Arrays.sort(items, starts[x], starts[x + 1]);
+        }
+
+        // Compare each cake with the earlier cakes that share a trigram of both prefixes, then
+        // add its own prefix to the inverted index
+        int[][] lists = new int[order.length][];
+        int[] listSizes = new int[order.length];
+        int[] lastSeenBy = new int[cakeCount];
+        Arrays.fill(lastSeenBy, -1);
+        List<Match> matches = new ArrayList<Match>();
+        for (int x = 0; x < cakeCount; x++) {
+            int size = starts[x + 1] - starts[x];
+            int prefix = size - getMinShared(threshold, size) + 1;
+            for (int p = starts[x]; p < starts[x] + prefix; p++) {
+                int rank = items[p];
+                for (int k = 0; k < listSizes[rank]; k++) {
+                    int y = lists[rank][k];
+                    if (lastSeenBy[y] == x) {
+                        continue;
+                    }
+                    lastSeenBy[y] = x;
+                    float similarity = getSimilarity(items, starts[y], starts[y + 1], starts[x],
+                            starts[x + 1]);
+                    if (similarity >= threshold) {
+                        matches.add(new Match(cakeIds[y], cakeIds[x], similarity));
+                    }
+                }
+                if (lists[rank] == null) {
+                    lists[rank] = new int[4];
+                } else if (listSizes[rank] == lists[rank].length) {
+                    lists[rank] = Arrays.copyOf(lists[rank], listSizes[rank] * 2);
+                }
+                lists[rank][listSizes[rank]++] = x;
+            }
+        }
+
+        // Keep the most similar pairs, and read the names of their cakes. The names are read by
+        // a query of their own, so a cake deleted in between is left out.
+        Collections.sort(matches, MOST_SIMILAR_FIRST);
+        if (matches.size() > MAX_DUPLICATE_MATCHES) {
+            matches = matches.subList(0, MAX_DUPLICATE_MATCHES);
+        }
+        LongSparseArray<String> names = readNames(database, matches);
+        List<Match> named = new ArrayList<Match>(matches.size());
+        for (Match match : matches) {
+            if (names.get(match.id) != null && names.get(match.matchId) != null) {
+                named.add(match);
+            }
+        }
+        return toMatches(named, MAX_DUPLICATE_MATCHES, names);
+    }
+
+    /**
+     * Return the similarity of the two sorted ranges of trigram ranks.
+     */
+    private static float getSimilarity(int[] items, int from, int to, int otherFrom,
+                                       int otherTo) {
+        int size = to - from;
+        int otherSize = otherTo - otherFrom;
+        int shared = 0;
+        while (from < to && otherFrom < otherTo) {
+            if (items[from] == items[otherFrom]) {
+                shared++;
+                from++;
+                otherFrom++;
+            } else if (items[from] < items[otherFrom]) {
+                from++;
+            } else {
+                otherFrom++;
+            }
+        }
+        return shared / (float) (size + otherSize - shared);
+    }
+
+    /**
+     * Return the names of the cakes of the matches, by _id.
+     */
+    private static LongSparseArray<String> readNames(SQLiteDatabase database,
+                                                     List<Match> matches) {
+        LongSparseArray<String> names = new LongSparseArray<String>();
+        if (matches.isEmpty()) {
+            return names;
+        }
+        StringBuilder in = new StringBuilder();
+        for (Match match : matches) {
+            in.append(in.length() == 0 ? "" : ",").append(match.id).append(',')
+                    .append(match.matchId);
+        }
+        Cursor cursor = database.query(CakeEntry.TABLE_NAME,
+                new String[] { CakeEntry._ID, CakeEntry.COLUMN_CAKE_NAME },
+                CakeEntry._ID + " IN (" + in + ")", null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                names.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    /**
+     * Return the most similar of the matches, up to the given number, with their names.
+     */
+    private static CakeNameMatches toMatches(List<Match> matches, int max,
+                                             LongSparseArray<String> names) {
+        Collections.sort(matches, MOST_SIMILAR_FIRST);
+        int count = Math.min(matches.size(), max);
+        long[] ids = new long[count];
+        String[] firstNames = new String[count];
+        long[] matchIds = new long[count];
+        String[] matchNames = new String[count];
+        float[] similarities = new float[count];
+        for (int i = 0; i < count; i++) {
+            Match match = matches.get(i);
+            ids[i] = match.id;
+            firstNames[i] = names.get(match.id);
+            matchIds[i] = match.matchId;
+            matchNames[i] = names.get(match.matchId);
+            similarities[i] = match.similarity;
+        }
+        return new CakeNameMatches(ids, firstNames, matchIds, matchNames, similarities);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.os.Bundle;
+
+/**
+ * Pairs of cakes with similar names, as found by {@link CakeNameIndex}.
+ *
+ * The arrays are parallel: match i is the cake with _id ids[i] and name names[i], whose name
+ * is like that of the cake with _id matchIds[i] and name matchNames[i], with a similarity
+ * between 0 and 1 of similarities[i]. The matches come most similar first. For a lookup of a
+ * single name, the first cake is the one being edited, with an _id of -1 if it is new.
+ */
+public final class CakeNameMatches {
+
+    /** Keys of the matches in a Bundle */
+    private static final String KEY_IDS = "ids";
+    private static final String KEY_NAMES = "names";
+    private static final String KEY_MATCH_IDS = "match_ids";
+    private static final String KEY_MATCH_NAMES = "match_names";
+    private static final String KEY_SIMILARITIES = "similarities";
+
+    /** {@link CakeContract.CakeEntry#_ID} of the first cake of each pair */
+    public final long[] ids;
+
+    /** Name of the first cake of each pair */
+    public final String[] names;
+
+    /** {@link CakeContract.CakeEntry#_ID} of the second cake of each pair */
+    public final long[] matchIds;
+
+    /** Name of the second cake of each pair */
+    public final String[] matchNames;
+
+    /** Share of the trigrams of the two names that they have in common */
+    public final float[] similarities;
+
+    CakeNameMatches(long[] ids, String[] names, long[] matchIds, String[] matchNames,
+                    float[] similarities) {
+        this.ids = ids;
+        this.names = names;
+        this.matchIds = matchIds;
+        this.matchNames = matchNames;
+        this.similarities = similarities;
+    }
+
+    /**
+     * Return the number of matches.
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Return the matches as a Bundle, for returning them from the provider.
+     */
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLongArray(KEY_IDS, ids);
+        bundle.putStringArray(KEY_NAMES, names);
+        bundle.putLongArray(KEY_MATCH_IDS, matchIds);
+        bundle.putStringArray(KEY_MATCH_NAMES, matchNames);
+        bundle.putFloatArray(KEY_SIMILARITIES, similarities);
+        return bundle;
+    }
+
+    /**
+     * Read the matches from a Bundle made by {@link #toBundle()}.
+     */
+    public static CakeNameMatches fromBundle(Bundle bundle) {
+        return new CakeNameMatches(bundle.getLongArray(KEY_IDS),
+                bundle.getStringArray(KEY_NAMES), bundle.getLongArray(KEY_MATCH_IDS),
+                bundle.getStringArray(KEY_MATCH_NAMES), bundle.getFloatArray(KEY_SIMILARITIES));
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The photo files of a catalog's cakes, for {@link CakeProvider}.
+ *
+ * Each catalog keeps its photos in a private directory of its own, and a cake row only holds
+ * the name of its file. Every photo is stored under a new name, so cached copies of an old
+ * photo are never mistaken for the new one; pointing the row at the new file, and removing the
+ * old one, is up to the provider, which does it under the lock of its writers.
+ */
+final class CakePhotos {
+
+    private static final String LOG_TAG = CakePhotos.class.getSimpleName();
+
+    /** Name of the private directory that holds the cake photos of the device's own catalog */
+    private static final String DIRECTORY = "images";
+
+    /** Size of the buffer a photo is copied through, in bytes */
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Context mContext;
+
+    /** Name of the directory of the catalog's photos */
+    private final String mDirectoryName;
+
+    /** Time the catalog was opened, in milliseconds since the epoch */
+    private final long mCreatedAt = System.currentTimeMillis();
+
+    /**
+     * Constructs a new {@link CakePhotos}.
+     *
+     * @param context the photos are stored in the files directory of
+     * @param tenant  shop whose photos these are, or null for the device's own catalog
+     */
+    CakePhotos(Context context, String tenant) {
+        mContext = context;
+        mDirectoryName = tenant == null ? DIRECTORY : DIRECTORY + "_" + tenant;
+    }
+
+    /**
+     * Return the file of the photo with the given name.
+     */
+    File getFile(String imageName) {
+        return new File(getDirectory(), imageName);
+    }
+
+    /**
+     * Return a file, under a name no other photo has had, for a new photo of the given cake.
+     */
+    File newFile(long id) {
+        return getFile(id + "_" + System.currentTimeMillis() + ".jpg");
+    }
+
+    /**
+     * Copy a photo from the read end of a pipe into the given file, and close the pipe. Return
+     * whether the whole photo arrived; if not, the file is removed. From KitKat on a writer
+     * that gave up half way is told apart by the error it closed the pipe with. Before KitKat a
+     * photo that was cut short can't be told apart from a whole one.
+     *
+     * @param label of the photo in the log
+     */
+    boolean store(ParcelFileDescriptor source, File file, String label) {
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(source);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                // The end of the data is also what a writer that gave up sends, so only the
+                // status it closed with tells a whole photo from a part of one. It has to be
+                // read before our end is closed.
+                source.checkError();
+            }
+            // Closing can still fail to write the last of the file
+            out.close();
+            return true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to store photo for " + label, e);
+            file.delete();
+            return false;
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Remove a photo file. Does nothing for a null name.
+     */
+    void delete(String imageName) {
+        if (imageName != null) {
+            getFile(imageName).delete();
+        }
+    }
+
+    /**
+     * Remove photo files that no cake points at anymore. That happens when the app is stopped
+     * while deleted cakes are still in the undo history. Files written since the catalog was
+     * opened are left alone, since they may belong to a photo that is still being received.
+     */
+    void deleteOrphans(SQLiteDatabase database) {
+        File[] files = getDirectory().listFiles();
+        if (files == null || files.length == 0) {
+            return;
+        }
+
+        Set<String> imageNames = new HashSet<String>();
+        Cursor cursor = database.query(CakeEntry.TABLE_NAME,
+                new String[] { CakeEntry.COLUMN_CAKE_IMAGE },
+                CakeEntry.COLUMN_CAKE_IMAGE + " IS NOT NULL", null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                imageNames.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (File file : files) {
+            if (!imageNames.contains(file.getName()) && file.lastModified() < mCreatedAt) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Return the photo file name of the given cake, or null if it has none.
+     */
+    static String queryName(SQLiteDatabase database, long id) {
+        Cursor cursor = database.query(CakeEntry.TABLE_NAME,
+                new String[] { CakeEntry.COLUMN_CAKE_IMAGE }, CakeEntry._ID + "=?",
+                new String[] { String.valueOf(id) }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the photo file names of all cakes that match the selection.
+     */
+    static String[] queryNames(SQLiteDatabase database, String selection,
+                               String[] selectionArgs) {
+        String imageSelection = CakeEntry.COLUMN_CAKE_IMAGE + " IS NOT NULL";
+        if (selection != null) {
+            imageSelection = "(" + selection + ") AND " + imageSelection;
+        }
+        Cursor cursor = database.query(CakeEntry.TABLE_NAME,
+                new String[] { CakeEntry.COLUMN_CAKE_IMAGE }, imageSelection, selectionArgs,
+                null, null, null);
+        try {
+            String[] imageNames = new String[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                imageNames[i] = cursor.getString(0);
+            }
+            return imageNames;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the private directory that holds the photos, creating it if needed.
+     */
+    private File getDirectory() {
+        File directory = new File(mContext.getFilesDir(), mDirectoryName);
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        return directory;
+    }
+
+    /**
+     * Close a stream, ignoring null and any error while closing.
+     */
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+                // Nothing useful left to do with the stream
+            }
+        }
+    }
+}
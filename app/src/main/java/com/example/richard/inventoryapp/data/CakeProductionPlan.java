@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.os.Bundle;
+
+/**
+ * Ingredients needed for a production run, as worked out by {@link CakeProductionPlanner}.
+ *
+ * The arrays are parallel: entry i is the demand for and stock of the ingredient with _id
+ * ingredientIds[i], in ascending order of _id. Only ingredients the run uses are listed.
+ */
+public final class CakeProductionPlan {
+
+    /** Keys of the plan in a Bundle */
+    private static final String KEY_INGREDIENT_IDS = "ingredient_ids";
+    private static final String KEY_DEMAND = "demand";
+    private static final String KEY_STOCK = "stock";
+    private static final String KEY_CAKES_WITHOUT_RECIPE = "cakes_without_recipe";
+
+    /** {@link CakeContract.IngredientEntry#_ID} of each ingredient the run uses */
+    public final long[] ingredientIds;
+
+    /** Amount of each ingredient the run uses */
+    public final double[] demand;
+
+    /** Amount of each ingredient in stock */
+    public final double[] stock;
+
+    /** _id of the cakes in the run that have no recipe, and so no demand */
+    public final long[] cakesWithoutRecipe;
+
+    CakeProductionPlan(long[] ingredientIds, double[] demand, double[] stock,
+                       long[] cakesWithoutRecipe) {
+        this.ingredientIds = ingredientIds;
+        this.demand = demand;
+        this.stock = stock;
+        this.cakesWithoutRecipe = cakesWithoutRecipe;
+    }
+
+    /**
+     * Return how much of the ingredient at the given index has to be bought for the run, which
+     * is 0 if there is enough in stock.
+     */
+    public double getShortfall(int index) {
+        return Math.max(demand[index] - stock[index], 0);
+    }
+
+    /**
+     * Return whether there is enough of every ingredient in stock for the run.
+     */
+    public boolean isCovered() {
+        for (int i = 0; i < ingredientIds.length; i++) {
+            if (getShortfall(i) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the plan as a Bundle, for returning it from the provider.
+     */
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLongArray(KEY_INGREDIENT_IDS, ingredientIds);
+        bundle.putDoubleArray(KEY_DEMAND, demand);
+        bundle.putDoubleArray(KEY_STOCK, stock);
+        bundle.putLongArray(KEY_CAKES_WITHOUT_RECIPE, cakesWithoutRecipe);
+        return bundle;
+    }
+
+    /**
+     * Read a plan from a Bundle made by {@link #toBundle()}.
+     */
+    public static CakeProductionPlan fromBundle(Bundle bundle) {
+        return new CakeProductionPlan(bundle.getLongArray(KEY_INGREDIENT_IDS),
+                bundle.getDoubleArray(KEY_DEMAND), bundle.getDoubleArray(KEY_STOCK),
+                bundle.getLongArray(KEY_CAKES_WITHOUT_RECIPE));
+    }
+}
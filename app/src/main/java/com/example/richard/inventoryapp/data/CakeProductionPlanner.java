@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.v4.util.LongSparseArray;
+
+import com.example.richard.inventoryapp.data.CakeContract.IngredientEntry;
+import com.example.richard.inventoryapp.data.CakeContract.RecipeEntry;
+import com.example.richard.inventoryapp.data.CakeContract.RecipeItemEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Works out {@link CakeProductionPlan}s: how much of every ingredient a production run needs,
+ * and how much of it is missing.
+ *
+ * The ingredients, recipes and recipe lines are each read with a single query. Every recipe the
+ * run needs is then expanded once into the ingredients needed per unit it makes, with the parts
+ * it uses expanded along the way; a part shared by many cakes, like a sponge, is expanded the
+ * first time and remembered after that. Ingredients are numbered by their place in the sorted
+ * list of _ids and recipes are looked up in {@link LongSparseArray}s, so the work is done on
+ * primitive arrays. Finally the cakes of the run are split into chunks that add up their demand
+ * on separate threads, and the partial totals are added together.
+ */
+public final class CakeProductionPlanner {
+
+    /** Number of chunks per thread, so a slow chunk doesn't leave the other threads idle */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /** Runs with fewer cakes than this are added up on the calling thread */
+    private static final int PARALLEL_THRESHOLD = 512;
+
+    /** Marks a recipe that is being expanded, to catch recipes that use themselves */
+    private static final Requirement EXPANDING = new Requirement(new int[0], new double[0]);
+
+    /** Lines of a recipe, as read from the database */
+    private static final class Recipe {
+        final long id;
+        final double yield;
+
+        int[] ingredients = new int[4];
+        double[] ingredientAmounts = new double[4];
+        int ingredientCount;
+
+        long[] parts = new long[2];
+        double[] partAmounts = new double[2];
+        int partCount;
+
+        Recipe(long id, double yield) {
+            this.id = id;
+            this.yield = yield;
+        }
+
+        void addIngredient(int index, double amount) {
+            if (ingredientCount == ingredients.length) {
+                ingredients = Arrays.copyOf(ingredients, ingredientCount * 2);
+                ingredientAmounts = Arrays.copyOf(ingredientAmounts, ingredientCount * 2);
+            }
+            ingredients[ingredientCount] = index;
+            ingredientAmounts[ingredientCount++] = amount;
+        }
+
+        void addPart(long recipeId, double amount) {
+            if (partCount == parts.length) {
+                parts = Arrays.copyOf(parts, partCount * 2);
+                partAmounts = Arrays.copyOf(partAmounts, partCount * 2);
+            }
+            parts[partCount] = recipeId;
+            partAmounts[partCount++] = amount;
+        }
+    }
+
+    /** Ingredients needed for one unit of a recipe, in ascending order of index */
+    private static final class Requirement {
+        final int[] ingredients;
+        final double[] amounts;
+
+        Requirement(int[] ingredients, double[] amounts) {
+            this.ingredients = ingredients;
+            this.amounts = amounts;
+        }
+    }
+
+    private final SQLiteDatabase mDatabase;
+    private final int mParallelism;
+    private final ExecutorService mExecutor;
+
+    /** Whether {@link #mExecutor} was created for this object, so it is stopped with it */
+    private final boolean mOwnsExecutor;
+
+    /**
+     * Constructs a new {@link CakeProductionPlanner}. Call {@link #shutdown()} when done with it.
+     *
+     * @param database    to read the recipes from
+     * @param parallelism number of threads to add up the demand with, 1 for no threads
+     */
+    public CakeProductionPlanner(SQLiteDatabase database, int parallelism) {
+        mDatabase = database;
+        mParallelism = Math.max(parallelism, 1);
+        mExecutor = mParallelism > 1 ? Executors.newFixedThreadPool(mParallelism) : null;
+        mOwnsExecutor = true;
+    }
+
+    /**
+     * Constructs a new {@link CakeProductionPlanner} that runs on threads shared with other
+     * work, which {@link #shutdown()} leaves running.
+     *
+     * @param database    to read the recipes from
+     * @param executor    to run the parts on
+     * @param parallelism number of threads of the executor
+     */
+    public CakeProductionPlanner(SQLiteDatabase database, ExecutorService executor,
+                                 int parallelism) {
+        mDatabase = database;
+        mParallelism = Math.max(parallelism, 1);
+        mExecutor = mParallelism > 1 ? executor : null;
+        mOwnsExecutor = false;
+    }
+
+    /**
+     * Constructs a new {@link CakeProductionPlanner} with a thread per processor core.
+     */
+    public CakeProductionPlanner(SQLiteDatabase database) {
+        this(database, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Work out the plan of a production run.
+     *
+     * @param cakeIds _id of each cake to make; a cake may come more than once
+     * @param counts  number of each cake to make, in the same order
+     * @throws IllegalArgumentException if a recipe uses itself, directly or through its parts
+     */
+    public CakeProductionPlan plan(long[] cakeIds, int[] counts) {
+        // Ingredients are numbered by their place in the sorted ids
+        long[] ingredientIds;
+        double[] stock;
+        LongSparseArray<Recipe> recipes = new LongSparseArray<Recipe>();
+        LongSparseArray<Recipe> recipesByCake = new LongSparseArray<Recipe>();
+        // Read everything in one transaction, so the lines match the recipes and ingredients
+        mDatabase.beginTransactionNonExclusive();
+        try {
+            int ingredientCount = countIngredients();
+            ingredientIds = new long[ingredientCount];
+            stock = new double[ingredientCount];
+            queryIngredients(ingredientIds, stock);
+            queryRecipes(recipes, recipesByCake);
+            queryRecipeItems(recipes, ingredientIds);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        // Expand the recipe of every cake, each shared part only once
+        Requirement[] requirements = new Requirement[cakeIds.length];
+        LongSparseArray<Requirement> expanded = new LongSparseArray<Requirement>();
+        Scratch scratch = new Scratch(ingredientIds.length);
+        long[] withoutRecipe = new long[cakeIds.length];
+        int withoutRecipeCount = 0;
+        for (int i = 0; i < cakeIds.length; i++) {
+            Recipe recipe = recipesByCake.get(cakeIds[i]);
+            if (recipe == null) {
+                withoutRecipe[withoutRecipeCount++] = cakeIds[i];
+            } else {
+                requirements[i] = expand(recipe, recipes, expanded, scratch);
+            }
+        }
+
+        double[] demand = addDemand(requirements, counts, ingredientIds.length);
+
+        // Keep only the ingredients the run uses
+        int used = 0;
+        for (double amount : demand) {
+            if (amount > 0) {
+                used++;
+            }
+        }
+        long[] usedIds = new long[used];
+        double[] usedDemand = new double[used];
+        double[] usedStock = new double[used];
+        for (int i = 0, j = 0; i < demand.length; i++) {
+            if (demand[i] > 0) {
+                usedIds[j] = ingredientIds[i];
+                usedDemand[j] = demand[i];
+                usedStock[j++] = stock[i];
+            }
+        }
+        return new CakeProductionPlan(usedIds, usedDemand, usedStock,
+                Arrays.copyOf(withoutRecipe, withoutRecipeCount));
+    }
+
+    /**
+     * Stop the threads, unless they are shared.
+     */
+    public void shutdown() {
+        if (mExecutor != null && mOwnsExecutor) {
+            mExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Return the total demand for each ingredient of the cakes with the given requirements,
+     * made the given number of times each, split across the threads if there are enough.
+     */
+    private double[] addDemand(final Requirement[] requirements, final int[] counts,
+                               final int ingredientCount) {
+        if (mExecutor == null || requirements.length < PARALLEL_THRESHOLD) {
+            return addDemand(requirements, counts, ingredientCount, 0, requirements.length);
+        }
+
+        int chunkCount = mParallelism * CHUNKS_PER_THREAD;
+        int width = (requirements.length + chunkCount - 1) / chunkCount;
+        List<Future<double[]>> partials = new ArrayList<Future<double[]>>();
+        for (int start = 0; start < requirements.length; start += width) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(start + width, requirements.length);
+            partials.add(mExecutor.submit(new Callable<double[]>() {
+                @Override
+                public double[] call() {
+                    return addDemand(requirements, counts, ingredientCount, chunkStart,
+                            chunkEnd);
+                }
+            }));
+        }
+
+        double[] demand = new double[ingredientCount];
+        try {
+            for (Future<double[]> partial : partials) {
+                double[] part = partial.get();
+                for (int i = 0; i < ingredientCount; i++) {
+                    demand[i] += part[i];
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while planning production", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to plan production", e.getCause());
+        } finally {
+            for (Future<double[]> partial : partials) {
+                partial.cancel(true);
+            }
+        }
+        return demand;
+    }
+
+    /**
+     * Return the demand of the cakes in the given range of the run, end excluded.
+     */
+    private static double[] addDemand(Requirement[] requirements, int[] counts,
+                                      int ingredientCount, int start, int end) {
+        double[] demand = new double[ingredientCount];
+        for (int i = start; i < end; i++) {
+            Requirement requirement = requirements[i];
+            if (requirement == null) {
+                continue;
+            }
+            int count = counts[i];
+            for (int j = 0; j < requirement.ingredients.length; j++) {
+                demand[requirement.ingredients[j]] += requirement.amounts[j] * count;
+            }
+        }
+        return demand;
+    }
+
+    /**
+     * Return the ingredients needed for one unit of the recipe, expanding the parts it uses,
+     * and remember them for the next recipe that uses it.
+     */
+    private static Requirement expand(Recipe recipe, LongSparseArray<Recipe> recipes,
+                                      LongSparseArray<Requirement> expanded, Scratch scratch) {
+        Requirement known = expanded.get(recipe.id);
+        if (known == EXPANDING) {
+            throw new IllegalArgumentException("Recipe " + recipe.id + " uses itself");
+        }
+        if (known != null) {
+            return known;
+        }
+        expanded.put(recipe.id, EXPANDING);
+
+        // Expand the parts first, so the scratch space is free for this recipe after
+        Requirement[] parts = new Requirement[recipe.partCount];
+        for (int i = 0; i < recipe.partCount; i++) {
+            Recipe part = recipes.get(recipe.parts[i]);
+            if (part != null) {
+                parts[i] = expand(part, recipes, expanded, scratch);
+            }
+        }
+
+        // A batch makes yield units, so one unit needs 1/yield of each line
+        double scale = 1 / recipe.yield;
+        for (int i = 0; i < recipe.ingredientCount; i++) {
+            scratch.add(recipe.ingredients[i], recipe.ingredientAmounts[i] * scale);
+        }
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] == null) {
+                continue;
+            }
+            double partScale = recipe.partAmounts[i] * scale;
+            for (int j = 0; j < parts[i].ingredients.length; j++) {
+                scratch.add(parts[i].ingredients[j], parts[i].amounts[j] * partScale);
+            }
+        }
+        Requirement requirement = scratch.take();
+        expanded.put(recipe.id, requirement);
+        return requirement;
+    }
+
+    /**
+     * Amounts per ingredient being added up for one recipe, kept dense so adding is a single
+     * array access, along with the ingredients touched so taking them out is cheap.
+     */
+    private static final class Scratch {
+        private final double[] mAmounts;
+        private final int[] mTouched;
+        private int mTouchedCount;
+
+        Scratch(int ingredientCount) {
+            mAmounts = new double[ingredientCount];
+            mTouched = new int[ingredientCount];
+        }
+
+        void add(int ingredient, double amount) {
+            // Amounts are always above 0, so 0 means untouched
+            if (mAmounts[ingredient] == 0) {
+                mTouched[mTouchedCount++] = ingredient;
+            }
+            mAmounts[ingredient] += amount;
+        }
+
+        /**
+         * Return the amounts added so far, and start again from nothing.
+         */
+        Requirement take() {
+            Arrays.sort(mTouched, 0, mTouchedCount);
+            int[] ingredients = Arrays.copyOf(mTouched, mTouchedCount);
+            double[] amounts = new double[mTouchedCount];
+            for (int i = 0; i < mTouchedCount; i++) {
+                amounts[i] = mAmounts[ingredients[i]];
+                mAmounts[ingredients[i]] = 0;
+            }
+            mTouchedCount = 0;
+            return new Requirement(ingredients, amounts);
+        }
+    }
+
+    /**
+     * Return the number of ingredients.
+     */
+    private int countIngredients() {
+        return (int) DatabaseUtils.queryNumEntries(mDatabase, IngredientEntry.TABLE_NAME);
+    }
+
+    /**
+     * Read the _ids of the ingredients in ascending order, and their stock, into the arrays.
+     */
+    private void queryIngredients(long[] ids, double[] stock) {
+        Cursor cursor = mDatabase.query(IngredientEntry.TABLE_NAME,
+                new String[] { IngredientEntry._ID, IngredientEntry.COLUMN_STOCK },
+                null, null, null, null, IngredientEntry._ID + " ASC");
+        try {
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+                stock[i] = cursor.getDouble(1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Read every recipe, by _id and by the cake it is the recipe of.
+     */
+    private void queryRecipes(LongSparseArray<Recipe> recipes,
+                              LongSparseArray<Recipe> recipesByCake) {
+        Cursor cursor = mDatabase.query(RecipeEntry.TABLE_NAME,
+                new String[] { RecipeEntry._ID, RecipeEntry.COLUMN_CAKE_ID,
+                        RecipeEntry.COLUMN_YIELD },
+                null, null, null, null, RecipeEntry._ID + " ASC");
+        try {
+            while (cursor.moveToNext()) {
+                Recipe recipe = new Recipe(cursor.getLong(0), cursor.getDouble(2));
+                // Appending in ascending order of key is the cheap way into a LongSparseArray
+                recipes.append(recipe.id, recipe);
+                if (!cursor.isNull(1)) {
+                    recipesByCake.put(cursor.getLong(1), recipe);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Read every recipe line into its recipe. Lines of ingredients that no longer exist are
+     * left out.
+     */
+    private void queryRecipeItems(LongSparseArray<Recipe> recipes, long[] ingredientIds) {
+        Cursor cursor = mDatabase.query(RecipeItemEntry.TABLE_NAME,
+                new String[] { RecipeItemEntry.COLUMN_RECIPE_ID,
+                        RecipeItemEntry.COLUMN_INGREDIENT_ID, RecipeItemEntry.COLUMN_SUB_RECIPE_ID,
+                        RecipeItemEntry.COLUMN_AMOUNT },
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                Recipe recipe = recipes.get(cursor.getLong(0));
+                if (recipe == null) {
+                    continue;
+                }
+                if (!cursor.isNull(1)) {
+                    int index = Arrays.binarySearch(ingredientIds, cursor.getLong(1));
+                    if (index >= 0) {
+                        recipe.addIngredient(index, cursor.getDouble(3));
+                    }
+                } else {
+                    recipe.addPart(cursor.getLong(2), cursor.getDouble(3));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
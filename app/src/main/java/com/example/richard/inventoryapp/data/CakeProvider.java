@@ -15,16 +15,44 @@
  */
 package com.example.richard.inventoryapp.data;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.provider.BaseColumns;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.util.LongSparseArray;
 import android.util.Log;
 
 import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+import com.example.richard.inventoryapp.data.CakeContract.IngredientEntry;
+import com.example.richard.inventoryapp.data.CakeContract.PickupSlotEntry;
+import com.example.richard.inventoryapp.data.CakeContract.PriceHistoryEntry;
+import com.example.richard.inventoryapp.data.CakeContract.RecipeEntry;
+import com.example.richard.inventoryapp.data.CakeContract.RecipeItemEntry;
+import com.example.richard.inventoryapp.data.CakeContract.ReservationEntry;
+import com.example.richard.inventoryapp.data.CakeContract.StockBatchEntry;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * {@link ContentProvider} for Cakes app.
@@ -40,6 +68,51 @@ public class CakeProvider extends ContentProvider {
     /** URI matcher code for the content URI for a single cake in the cakes table */
     private static final int CAKE_ID = 101;
 
+    /** URI matcher code for the content URI for a single cake looked up by its SKU */
+    private static final int CAKE_SKU = 102;
+
+    /** URI matcher code for the prices of all cakes at a point in time */
+    private static final int PRICE_HISTORY = 200;
+
+    /** URI matcher code for the price history of a single cake */
+    private static final int PRICE_HISTORY_ID = 201;
+
+    /** URI matcher code for the stock batches of all cakes */
+    private static final int STOCK_BATCHES = 300;
+
+    /** URI matcher code for the stock batches of a single cake */
+    private static final int STOCK_BATCHES_ID = 301;
+
+    /** URI matcher code for the pickup slots of custom orders */
+    private static final int PICKUP_SLOTS = 400;
+
+    /** URI matcher code for a single pickup slot */
+    private static final int PICKUP_SLOT_ID = 401;
+
+    /** URI matcher code for the reservations of custom orders */
+    private static final int RESERVATIONS = 500;
+
+    /** URI matcher code for a single reservation */
+    private static final int RESERVATION_ID = 501;
+
+    /** URI matcher code for the export of every cake */
+    private static final int EXPORT = 600;
+
+    /** URI matcher code for the ingredients */
+    private static final int INGREDIENTS = 700;
+
+    /** URI matcher code for a single ingredient */
+    private static final int INGREDIENT_ID = 701;
+
+    /** URI matcher code for the recipes */
+    private static final int RECIPES = 800;
+
+    /** URI matcher code for a single recipe */
+    private static final int RECIPE_ID = 801;
+
+    /** URI matcher code for the lines of the recipes */
+    private static final int RECIPE_ITEMS = 900;
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -66,35 +139,422 @@ public class CakeProvider extends ContentProvider {
         // For example, "content://com.example.richard.inventoryapp/cakes/3" matches, but
         // "content://com.example.richard.inventoryapp/cakes" (without a number at the end) doesn't match.
         sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, CakeContract.PATH_CAKES + "/#", CAKE_ID);
+
+        // The content URI of the form "content://com.example.richard.inventoryapp/cakes/sku/*"
+        // looks up ONE single cake by the SKU printed on its label. The "*" wildcard matches
+        // any text, such as "content://com.example.richard.inventoryapp/cakes/sku/4006381333931".
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, CakeContract.PATH_CAKES + "/"
+                + CakeEntry.PATH_SKU + "/*", CAKE_SKU);
+
+        // The price history, of all cakes or of a single one
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, CakeContract.PATH_PRICE_HISTORY,
+                PRICE_HISTORY);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, CakeContract.PATH_PRICE_HISTORY + "/#",
+                PRICE_HISTORY_ID);
+
+        // The stock batches, of all cakes or of a single one
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, CakeContract.PATH_STOCK_BATCHES,
+                STOCK_BATCHES);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, CakeContract.PATH_STOCK_BATCHES + "/#",
+                STOCK_BATCHES_ID);
+
+        // The pickup slots and reservations of custom orders
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, CakeContract.PATH_PICKUP_SLOTS,
+                PICKUP_SLOTS);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, CakeContract.PATH_PICKUP_SLOTS + "/#",
+                PICKUP_SLOT_ID);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, CakeContract.PATH_RESERVATIONS,
+                RESERVATIONS);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, CakeContract.PATH_RESERVATIONS + "/#",
+                RESERVATION_ID);
+
+        // The export of every cake, read as a file
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, CakeContract.PATH_EXPORT, EXPORT);
+
+        // The ingredients and recipes the cakes are made with
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, CakeContract.PATH_INGREDIENTS,
+                INGREDIENTS);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, CakeContract.PATH_INGREDIENTS + "/#",
+                INGREDIENT_ID);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, CakeContract.PATH_RECIPES, RECIPES);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, CakeContract.PATH_RECIPES + "/#",
+                RECIPE_ID);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, CakeContract.PATH_RECIPE_ITEMS,
+                RECIPE_ITEMS);
+
+        // The same URIs in the catalog of another shop, such as
+        // "content://com.example.richard.inventoryapp/tenants/north/cakes/3". The "*" wildcard
+        // matches the name of the shop.
+        String tenant = CakeContract.PATH_TENANTS + "/*/";
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, tenant + CakeContract.PATH_CAKES,
+                CAKES);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, tenant + CakeContract.PATH_CAKES + "/#",
+                CAKE_ID);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, tenant + CakeContract.PATH_CAKES + "/"
+                + CakeEntry.PATH_SKU + "/*", CAKE_SKU);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY,
+                tenant + CakeContract.PATH_PRICE_HISTORY, PRICE_HISTORY);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY,
+                tenant + CakeContract.PATH_PRICE_HISTORY + "/#", PRICE_HISTORY_ID);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY,
+                tenant + CakeContract.PATH_STOCK_BATCHES, STOCK_BATCHES);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY,
+                tenant + CakeContract.PATH_STOCK_BATCHES + "/#", STOCK_BATCHES_ID);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY,
+                tenant + CakeContract.PATH_PICKUP_SLOTS, PICKUP_SLOTS);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY,
+                tenant + CakeContract.PATH_PICKUP_SLOTS + "/#", PICKUP_SLOT_ID);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY,
+                tenant + CakeContract.PATH_RESERVATIONS, RESERVATIONS);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY,
+                tenant + CakeContract.PATH_RESERVATIONS + "/#", RESERVATION_ID);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, tenant + CakeContract.PATH_EXPORT,
+                EXPORT);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY,
+                tenant + CakeContract.PATH_INGREDIENTS, INGREDIENTS);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY,
+                tenant + CakeContract.PATH_INGREDIENTS + "/#", INGREDIENT_ID);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY, tenant + CakeContract.PATH_RECIPES,
+                RECIPES);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY,
+                tenant + CakeContract.PATH_RECIPES + "/#", RECIPE_ID);
+        sUriMatcher.addURI(CakeContract.CONTENT_AUTHORITY,
+                tenant + CakeContract.PATH_RECIPE_ITEMS, RECIPE_ITEMS);
     }
 
+    /** Columns returned by the price history URIs */
+    private static final String PRICE_HISTORY_COLUMNS = "h." + PriceHistoryEntry._ID + ", h."
+            + PriceHistoryEntry.COLUMN_CAKE_ID + ", h." + PriceHistoryEntry.COLUMN_PRICE + ", h."
+            + PriceHistoryEntry.COLUMN_EFFECTIVE_AT;
+
+    /** Columns returned by the stock batch URIs */
+    private static final String STOCK_BATCH_COLUMNS = "b." + StockBatchEntry._ID + ", b."
+            + StockBatchEntry.COLUMN_CAKE_ID + ", b." + StockBatchEntry.COLUMN_QUANTITY + ", b."
+            + StockBatchEntry.COLUMN_BAKED_AT + ", b." + StockBatchEntry.COLUMN_EXPIRES_AT;
+
+
+    /** Number of hidden cakes removed from the table per step by {@link #purgeStep} */
+    private static final int PURGE_CHUNK_SIZE = 500;
+
     /** Database helper object */
     private CakeDbHelper mDbHelper;
 
+    /** Compiled statements for the common writes, tied to the current writable database */
+    private CakeStatementCache mStatements;
+
+    /** Engine that builds the inventory reports, created on first use */
+    private CakeReportEngine mReportEngine;
+
+    /** Planner of production runs, created on first use */
+    private CakeProductionPlanner mProductionPlanner;
+
+    /**
+     * Undo and redo history of the changes. Its lock is also held while a change is made, so
+     * the history is always in the same order as the changes.
+     */
+    private final CakeJournal mJournal = new CakeJournal();
+
+    /**
+     * Highest _id of the cakes removed by the last "delete all", or -1 until it has been read
+     * from the database. Cakes up to this _id are hidden from every query and are removed from
+     * the table later by {@link #purgeStep}.
+     */
+    private volatile long mDeletedThroughId = -1;
+
+    /** Upkeep of the database, run while the provider is idle */
+    private CakeMaintenance mMaintenance;
+
+    /** Photo files of the cakes */
+    private CakePhotos mPhotos;
+
+    /** The _id of the cakes of recently scanned SKUs */
+    private final CakeSkuCache mSkuCache = new CakeSkuCache();
+
+    /**
+     * Copy of the columns of the visible cakes that {@link CakeContract#METHOD_FIND_TOP_CAKES}
+     * filters and sorts on, loaded on first use. Told of every change to the cakes by
+     * {@link #notifyCakesChanged}.
+     */
+    private final CakeColumnIndex mColumnIndex = new CakeColumnIndex();
+
+    /** Name of the shop whose catalog this provider serves, or null for the device's own */
+    private final String mTenant;
+
+    /**
+     * For the provider of the device's own catalog, the open catalogs of other shops, which it
+     * hands their URIs to. For the provider of another shop's catalog, the pool it belongs to.
+     * Either way, the threads of the maintenance, reports and plans come from it.
+     */
+    private CakeTenantPool mTenants;
+
+    /**
+     * Constructs the provider of the device's own catalog. Called by the system.
+     */
+    public CakeProvider() {
+        this(null, null);
+    }
+
+    /**
+     * Constructs the provider of another shop's catalog.
+     *
+     * @param tenant name of the shop
+     * @param pool   the provider belongs to
+     */
+    CakeProvider(String tenant, CakeTenantPool pool) {
+        mTenant = tenant;
+        mTenants = pool;
+    }
+
     @Override
     public boolean onCreate() {
-        mDbHelper = new CakeDbHelper(getContext());
+        if (mTenant == null) {
+            CakeMetrics.markStartup("provider_create");
+        }
+        mDbHelper = new CakeDbHelper(getContext(), mTenant);
+        mPhotos = new CakePhotos(getContext(), mTenant);
+
+        // Let the SKU lookups, the copy of the columns, and the idle catalogs of other shops,
+        // go when memory runs low. The caches of another shop's catalog are counted with the
+        // catalog by the pool, and let go through it.
+        if (mTenant == null) {
+            mTenants = new CakeTenantPool(getContext());
+            CakeCacheRegistry caches = CakeCacheRegistry.getInstance();
+            caches.register("skus", CakeCacheRegistry.PRIORITY_HIGH, mSkuCache);
+            caches.register("columns", CakeCacheRegistry.PRIORITY_LOW, mColumnIndex);
+            caches.register("tenants", CakeCacheRegistry.PRIORITY_NORMAL, mTenants);
+        }
+
+        // Open the database in the background now, so that creating or upgrading the schema and
+        // setting up the connection are done by the time the catalog runs its first query,
+        // instead of on the path to its first frame
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                getStatements();
+                if (mTenant == null) {
+                    CakeMetrics.markStartup("database_open");
+                }
+            }
+        });
+
+        // Removing the hidden cakes of a "delete all" is part of the upkeep done while idle
+        mMaintenance = new CakeMaintenance(getContext(), mDbHelper,
+                mTenants.getMaintenanceLooper());
+        mMaintenance.addTask(new CakeMaintenance.Task() {
+            @Override
+            public boolean runStep(SQLiteDatabase database) {
+                return purgeStep(database);
+            }
+        });
+
+        // So is throwing away the stock batches that have expired since the last sweep
+        mMaintenance.addTask(new CakeMaintenance.Task() {
+            @Override
+            public boolean runStep(SQLiteDatabase database) {
+                return sweepExpired(System.currentTimeMillis())
+                        == CakeStockBatches.SWEEP_CHUNK_SIZE;
+            }
+        });
+
+        // And indexing the names of the cakes added or renamed since, a chunk at a time
+        mMaintenance.addTask(new CakeMaintenance.Task() {
+            @Override
+            public boolean runStep(SQLiteDatabase database) {
+                database.beginTransaction();
+                try {
+                    int indexed = CakeNameIndex.indexQueued(database,
+                            CakeNameIndex.INDEX_CHUNK_SIZE);
+                    database.setTransactionSuccessful();
+                    return indexed == CakeNameIndex.INDEX_CHUNK_SIZE;
+                } finally {
+                    database.endTransaction();
+                }
+            }
+        });
+
+        // Finish removing the cakes of a "delete all" from before the app was last stopped. The
+        // undo history didn't survive, so there is no way back for them anymore. Also tidy away
+        // photos that belonged to cakes whose delete couldn't be undone anymore.
+        mMaintenance.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPhotos.deleteOrphans(mDbHelper.getReadableDatabase());
+            }
+        });
+        mMaintenance.schedule();
         return true;
     }
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        return runQuery(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Perform the query for the given URI, and stop it once the cancellation signal is
+     * cancelled. The query is stopped both while it runs and while the cursor is being read,
+     * by throwing an {@link OperationCanceledException}, so a loader whose query has been
+     * superseded doesn't keep the database busy reading rows that nobody will look at.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        return runQuery(uri, projection, selection, selectionArgs, sortOrder, cancellationSignal);
+    }
+
+    /**
+     * Perform the query of either {@link #query} method. The cancellation signal is null before
+     * Jelly Bean, where {@link CancellationSignal} doesn't exist, and it is only used when it
+     * isn't null.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private Cursor runQuery(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder,
+                            CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            // Don't even open a catalog for a query that is no longer wanted
+            cancellationSignal.throwIfCanceled();
+        }
+
+        // Hand the URIs of another shop's catalog to its own provider
+        CakeProvider tenant = acquireTenant(CakeContract.getTenant(uri));
+        if (tenant != null) {
+            return queryTenant(tenant, uri, projection, selection, selectionArgs, sortOrder,
+                    cancellationSignal);
+        }
+
+        // Figure out if the URI matcher can match the URI to a specific code
+        int match = sUriMatcher.match(uri);
+
+        // This cursor will hold the result of the query
+        Cursor cursor = null;
+
+        long start = CakeMetrics.begin("CakeProvider.query");
+        int rows = 0;
+        try {
+            cursor = queryMatch(uri, match, projection, selection, selectionArgs, sortOrder,
+                    cancellationSignal);
+
+            // When timing, count the rows here, so the time includes running the query and not
+            // just preparing it. Counting can be cancelled too, and then the cursor is closed.
+            if (start != 0) {
+                rows = cursor.getCount();
+            }
+            return cursor;
+        } catch (RuntimeException e) {
+            if (cursor != null) {
+                cursor.close();
+            }
+            throw e;
+        } finally {
+            CakeMetrics.end(start, "query", getUriLabel(match), rows);
+            mMaintenance.onActivity(0);
+        }
+    }
+
+    /**
+     * Run a query on the catalog of another shop. The catalog stays open until the cursor is
+     * closed.
+     */
+    private Cursor queryTenant(CakeProvider tenant, Uri uri, String[] projection,
+                               String selection, String[] selectionArgs, String sortOrder,
+                               CancellationSignal cancellationSignal) {
+        Cursor cursor = null;
+        try {
+            cursor = tenant.runQuery(uri, projection, selection, selectionArgs, sortOrder,
+                    cancellationSignal);
+        } finally {
+            if (cursor == null) {
+                mTenants.release(tenant);
+            }
+        }
+        return mTenants.releaseOnClose(tenant, cursor);
+    }
+
+    /**
+     * Return the provider of the catalog of the given shop, or null if this provider serves the
+     * catalog itself. Release the provider through {@link #mTenants} when done.
+     */
+    private CakeProvider acquireTenant(String tenant) {
+        if (mTenant != null || tenant == null) {
+            return null;
+        }
+        return mTenants.acquire(tenant);
+    }
+
+    /**
+     * Return the pool of the catalogs of other shops, and of the threads shared with them.
+     */
+    @VisibleForTesting
+    CakeTenantPool getTenantPool() {
+        return mTenants;
+    }
+
+    /**
+     * Return the content URI of the cakes of the catalog this provider serves.
+     */
+    private Uri getCakesUri() {
+        return getOwnUri(CakeEntry.CONTENT_URI);
+    }
+
+    /**
+     * Tell the readers of the cakes that some of them have changed, once the change is
+     * committed: the copy of the columns in {@link #mColumnIndex}, and the observers of the
+     * cakes. A change to a single cake is announced on the URI of that cake, which reaches the
+     * observers of the list of cakes and of that cake, but not those of any other cake, such as
+     * an editor or the price history of another cake. A change to more cakes is announced on
+     * the URI of the list, which reaches them all.
+     *
+     * @param id _id of the only cake that changed, or -1 if more may have
+     */
+    private void notifyCakesChanged(long id) {
+        mColumnIndex.onCakesChanged(id);
+        Uri uri = getCakesUri();
+        if (id != -1) {
+            uri = ContentUris.withAppendedId(uri, id);
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * Return the URI that the changes to the cakes behind a query are announced on: that of the
+     * cake whose _id ends the query's URI, or that of the list of cakes.
+     */
+    private Uri getCakeNotificationUri(Uri uri, boolean singleCake) {
+        Uri cakesUri = getCakesUri();
+        return singleCake ? ContentUris.withAppendedId(cakesUri, ContentUris.parseId(uri))
+                : cakesUri;
+    }
+
+    /**
+     * Return the given URI of the device's own catalog in the catalog this provider serves.
+     */
+    private Uri getOwnUri(Uri uri) {
+        return mTenant == null ? uri : CakeContract.forTenant(uri, mTenant);
+    }
+
+    /**
+     * Run a query for a URI that has already been matched to the given code.
+     */
+    private Cursor queryMatch(Uri uri, int match, String[] projection, String selection,
+                              String[] selectionArgs, String sortOrder,
+                              CancellationSignal cancellationSignal) {
         // Get readable database
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
         // This cursor will hold the result of the query
         Cursor cursor;
 
-        // Figure out if the URI matcher can match the URI to a specific code
-        int match = sUriMatcher.match(uri);
         switch (match) {
             case CAKES:
                 // For the CAKES code, query the cakes table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the cakes table.
-                cursor = database.query(CakeEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = queryTable(database, CakeEntry.TABLE_NAME, projection,
+                        visibleSelection(selection), selectionArgs, sortOrder, getLimit(uri),
+                        cancellationSignal);
                 break;
             case CAKE_ID:
                 // For the CAKE_ID code, extract out the ID from the URI.
@@ -105,14 +565,64 @@ public class CakeProvider extends ContentProvider {
                 // For every "?" in the selection, we need to have an element in the selection
                 // arguments that will fill in the "?". Since we have 1 question mark in the
                 // selection, we have 1 String in the selection arguments' String array.
-                selection = CakeEntry._ID + "=?";
+                selection = visibleSelection(CakeEntry._ID + "=?");
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
 
                 // This will perform a query on the cakes table where the _id equals 3 to return a
                 // Cursor containing that row of the table.
-                cursor = database.query(CakeContract.CakeEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = queryTable(database, CakeContract.CakeEntry.TABLE_NAME, projection,
+                        selection, selectionArgs, sortOrder, null, cancellationSignal);
                 break;
+            case CAKE_SKU:
+                // Find the cake of the SKU, then read its row by _id like for CAKE_ID. Changes
+                // to the cake are announced on its _id URI, so follow the cakes.
+                cursor = queryTable(database, CakeEntry.TABLE_NAME, projection,
+                        visibleSelection(CakeEntry._ID + "=?"),
+                        new String[] { String.valueOf(resolveSku(uri.getLastPathSegment())) },
+                        sortOrder, null, cancellationSignal);
+                cursor.setNotificationUri(getContext().getContentResolver(), getCakesUri());
+                return cursor;
+            case PRICE_HISTORY:
+            case PRICE_HISTORY_ID:
+                cursor = queryPriceHistory(database, uri, match, cancellationSignal);
+
+                // Prices only change along with the cakes, so follow the cakes, or only the
+                // one cake whose prices these are
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        getCakeNotificationUri(uri, match == PRICE_HISTORY_ID));
+                return cursor;
+            case STOCK_BATCHES:
+            case STOCK_BATCHES_ID:
+                cursor = queryStockBatches(database, uri, match, cancellationSignal);
+
+                // Batches only change along with the quantities of their cakes
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        getCakeNotificationUri(uri, match == STOCK_BATCHES_ID));
+                return cursor;
+            case PICKUP_SLOTS:
+            case PICKUP_SLOT_ID:
+            case RESERVATIONS:
+            case RESERVATION_ID:
+                cursor = queryReservations(database, uri, match, cancellationSignal);
+
+                // Reservations only change along with the bookings of their slots
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        getOwnUri(PickupSlotEntry.CONTENT_URI));
+                return cursor;
+            case INGREDIENTS:
+            case INGREDIENT_ID:
+            case RECIPES:
+            case RECIPE_ID:
+            case RECIPE_ITEMS:
+                cursor = queryTable(database, getRecipeTable(match), projection,
+                        recipeSelection(uri, match, selection), selectionArgs, sortOrder, null,
+                        cancellationSignal);
+
+                // The ingredients and recipes change together, as deleting one deletes the
+                // lines that use it, so follow them all
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        getOwnUri(RecipeEntry.CONTENT_URI));
+                return cursor;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
@@ -126,14 +636,245 @@ public class CakeProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Query the price history. With the "at" parameter, return the entry in effect at that time,
+     * for a single cake or for every cake; otherwise return the whole history of a single cake,
+     * newest first. The columns are always those of {@link PriceHistoryEntry}.
+     */
+    private Cursor queryPriceHistory(SQLiteDatabase database, Uri uri, int match,
+                                     CancellationSignal cancellationSignal) {
+        String at = uri.getQueryParameter(PriceHistoryEntry.QUERY_PARAMETER_AT);
+        if (at != null) {
+            try {
+                at = String.valueOf(Long.parseLong(at));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid time in " + uri);
+            }
+        }
+
+        if (match == PRICE_HISTORY) {
+            if (at == null) {
+                throw new IllegalArgumentException("Prices of all cakes need a time in " + uri);
+            }
+            // One index seek per cake, to the entry in effect at the time. Cakes that didn't
+            // exist yet have no entry and are left out by the join.
+            String cakeId = "c." + CakeEntry._ID;
+            String visible = visibleSelection(cakeId, null);
+            return rawQuery(database, "SELECT " + PRICE_HISTORY_COLUMNS
+                    + " FROM " + CakeEntry.TABLE_NAME + " c JOIN " + PriceHistoryEntry.TABLE_NAME
+                    + " h ON h." + PriceHistoryEntry._ID + "=" + priceEntryAt(cakeId)
+                    + (visible != null ? " WHERE " + visible : "")
+                    + " ORDER BY " + cakeId, new String[] { at }, cancellationSignal);
+        }
+
+        long id = ContentUris.parseId(uri);
+        if (id <= getDeletedThroughId()) {
+            id = -1;
+        }
+        if (at != null) {
+            return rawQuery(database, "SELECT " + PRICE_HISTORY_COLUMNS
+                    + " FROM " + PriceHistoryEntry.TABLE_NAME + " h WHERE h." + PriceHistoryEntry._ID
+                    + "=" + priceEntryAt("?"),
+                    new String[] { String.valueOf(id), at }, cancellationSignal);
+        }
+        return rawQuery(database, "SELECT " + PRICE_HISTORY_COLUMNS
+                + " FROM " + PriceHistoryEntry.TABLE_NAME + " h WHERE h."
+                + PriceHistoryEntry.COLUMN_CAKE_ID + "=? ORDER BY h."
+                + PriceHistoryEntry.COLUMN_EFFECTIVE_AT + " DESC, h." + PriceHistoryEntry._ID
+                + " DESC", new String[] { String.valueOf(id) }, cancellationSignal);
+    }
+
+    /**
+     * Query the stock batches: of every cake, soonest to expire first, optionally only those
+     * that expire before the time in the "before" parameter, or of a single cake in the order
+     * they are sold from. The batches are read in order from an index, each joined to its cake
+     * by _id so the batches of deleted cakes are left out. The columns are always those of
+     * {@link StockBatchEntry}.
+     */
+    private Cursor queryStockBatches(SQLiteDatabase database, Uri uri, int match,
+                                     CancellationSignal cancellationSignal) {
+        String selection;
+        String[] selectionArgs;
+        if (match == STOCK_BATCHES) {
+            String before = uri.getQueryParameter(StockBatchEntry.QUERY_PARAMETER_EXPIRING_BEFORE);
+            if (before == null) {
+                selection = null;
+                selectionArgs = null;
+            } else {
+                try {
+                    before = String.valueOf(Long.parseLong(before));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid time in " + uri);
+                }
+                selection = "b." + StockBatchEntry.COLUMN_EXPIRES_AT + "<?";
+                selectionArgs = new String[] { before };
+            }
+        } else {
+            selection = "b." + StockBatchEntry.COLUMN_CAKE_ID + "=?";
+            selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+        }
+
+        // The cross join keeps the batches as the outer loop, so the index gives their order
+        String visible = visibleSelection("c." + CakeEntry._ID, selection);
+        return rawQuery(database, "SELECT " + STOCK_BATCH_COLUMNS
+                + " FROM " + StockBatchEntry.TABLE_NAME + " b CROSS JOIN " + CakeEntry.TABLE_NAME
+                + " c ON c." + CakeEntry._ID + "=b." + StockBatchEntry.COLUMN_CAKE_ID
+                + (visible != null ? " WHERE " + visible : "")
+                + " ORDER BY b." + StockBatchEntry.COLUMN_EXPIRES_AT + " ASC, b."
+                + StockBatchEntry._ID + " ASC", selectionArgs, cancellationSignal);
+    }
+
+    /**
+     * Query the pickup slots or the reservations through {@link CakeReservations}. A list of
+     * slots needs the "from" and "to" parameters, and a list of reservations the "slot"
+     * parameter.
+     */
+    private Cursor queryReservations(SQLiteDatabase database, Uri uri, int match,
+                                     CancellationSignal cancellationSignal) {
+        switch (match) {
+            case PICKUP_SLOTS:
+                return CakeReservations.querySlots(database,
+                        getLongParameter(uri, PickupSlotEntry.QUERY_PARAMETER_FROM),
+                        getLongParameter(uri, PickupSlotEntry.QUERY_PARAMETER_TO),
+                        cancellationSignal);
+            case PICKUP_SLOT_ID:
+                return CakeReservations.querySlot(database, ContentUris.parseId(uri),
+                        cancellationSignal);
+            case RESERVATIONS:
+                return CakeReservations.queryReservations(database,
+                        getLongParameter(uri, ReservationEntry.QUERY_PARAMETER_SLOT),
+                        cancellationSignal);
+            default:
+                return CakeReservations.queryReservation(database, ContentUris.parseId(uri),
+                        cancellationSignal);
+        }
+    }
+
+    /**
+     * Return a whole number query parameter of the URI as a selection argument, or throw if it
+     * is missing or not a number.
+     */
+    private static String getLongParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + name + " in " + uri);
+        }
+        try {
+            return String.valueOf(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " in " + uri);
+        }
+    }
+
+    /**
+     * Query a table like {@link SQLiteDatabase#query}, and stop once the cancellation signal,
+     * if there is one, is cancelled. A signal is only ever given on Jelly Bean and up.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static Cursor queryTable(SQLiteDatabase database, String table, String[] columns,
+                                     String selection, String[] selectionArgs, String orderBy,
+                                     String limit, CancellationSignal cancellationSignal) {
+        if (cancellationSignal == null) {
+            return database.query(table, columns, selection, selectionArgs, null, null, orderBy,
+                    limit);
+        }
+        return database.query(false, table, columns, selection, selectionArgs, null, null,
+                orderBy, limit, cancellationSignal);
+    }
+
+    /**
+     * Run a query like {@link SQLiteDatabase#rawQuery}, and stop once the cancellation signal,
+     * if there is one, is cancelled. A signal is only ever given on Jelly Bean and up.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    static Cursor rawQuery(SQLiteDatabase database, String sql, String[] selectionArgs,
+                           CancellationSignal cancellationSignal) {
+        if (cancellationSignal == null) {
+            return database.rawQuery(sql, selectionArgs);
+        }
+        return database.rawQuery(sql, selectionArgs, cancellationSignal);
+    }
+
+    /**
+     * Return the table of a URI matched to one of the ingredient or recipe codes.
+     */
+    private static String getRecipeTable(int match) {
+        switch (match) {
+            case INGREDIENTS:
+            case INGREDIENT_ID:
+                return IngredientEntry.TABLE_NAME;
+            case RECIPES:
+            case RECIPE_ID:
+                return RecipeEntry.TABLE_NAME;
+            default:
+                return RecipeItemEntry.TABLE_NAME;
+        }
+    }
+
+    /**
+     * Return the selection for a URI matched to one of the ingredient or recipe codes, limited
+     * to the row of the URI for the codes of a single row.
+     */
+    private static String recipeSelection(Uri uri, int match, String selection) {
+        if (match != INGREDIENT_ID && match != RECIPE_ID) {
+            return selection;
+        }
+        String idSelection = BaseColumns._ID + "=" + ContentUris.parseId(uri);
+        return selection != null ? idSelection + " AND (" + selection + ")" : idSelection;
+    }
+
+    /**
+     * Return a subquery of the _id of the price history entry in effect for the given cake at
+     * the time given as the subquery's argument. It seeks to the entry through the index on the
+     * cake and time and reads only that one, however long the history of the cake is.
+     *
+     * @param cakeId SQL expression of the cake's _id, such as a column or a "?" argument
+     */
+    private static String priceEntryAt(String cakeId) {
+        return "(SELECT " + PriceHistoryEntry._ID
+                + " FROM " + PriceHistoryEntry.TABLE_NAME
+                + " WHERE " + PriceHistoryEntry.COLUMN_CAKE_ID + "=" + cakeId
+                + " AND " + PriceHistoryEntry.COLUMN_EFFECTIVE_AT + "<=?"
+                + " ORDER BY " + PriceHistoryEntry.COLUMN_EFFECTIVE_AT + " DESC, "
+                + PriceHistoryEntry._ID + " DESC LIMIT 1)";
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        CakeProvider tenant = acquireTenant(CakeContract.getTenant(uri));
+        if (tenant != null) {
+            try {
+                return tenant.insert(uri, contentValues);
+            } finally {
+                mTenants.release(tenant);
+            }
+        }
+
         final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case CAKES:
-                return insertCake(uri, contentValues);
-            default:
-                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        Uri newUri = null;
+        long start = CakeMetrics.begin("CakeProvider.insert");
+        try {
+            switch (match) {
+                case CAKES:
+                    newUri = insertCake(uri, contentValues);
+                    return newUri;
+                case STOCK_BATCHES:
+                    newUri = insertStockBatch(uri, contentValues);
+                    return newUri;
+                case PICKUP_SLOTS:
+                    newUri = insertPickupSlot(uri, contentValues);
+                    return newUri;
+                case INGREDIENTS:
+                case RECIPES:
+                case RECIPE_ITEMS:
+                    newUri = insertRecipeRow(uri, match, contentValues);
+                    return newUri;
+                default:
+                    throw new IllegalArgumentException("Insertion is not supported for " + uri);
+            }
+        } finally {
+            CakeMetrics.end(start, "insert", getUriLabel(match), newUri != null ? 1 : 0);
+            mMaintenance.onActivity(newUri != null ? 1 : 0);
         }
     }
 
@@ -154,11 +895,60 @@ public class CakeProvider extends ContentProvider {
             throw new IllegalArgumentException("Cake requires valid occasion");
         }
 
-        // Get writeable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        // Insert the new cake with the given values. The usual shape of a new cake goes through
+        // the compiled insert statement with its values bound directly, anything else falls back
+        // to building the SQL from the content values. That includes values of another type than
+        // the statement binds, such as a fractional quantity or a null price, which binding
+        // would quietly change and the database stores or rejects as they are.
+        // A SKU is taken from any hidden cake in the same transaction, so it stays with that
+        // cake if the insert fails.
+        long id;
+        String sku = values.getAsString(CakeEntry.COLUMN_CAKE_SKU);
+        CakeStatementCache statements = getStatements();
+        SQLiteDatabase database = statements.getDatabase();
+        synchronized (mJournal) {
+            ContentValues released;
+            database.beginTransaction();
+            try {
+                released = releaseSku(statements, sku);
+                if (hasOnlyColumns(values, CakeStatementCache.INSERT_COLUMNS)
+                        && hasInsertTypes(values)) {
+                    try {
+                        id = statements.insert(name, type,
+                                getDouble(values, CakeEntry.COLUMN_CAKE_PRICE, 0),
+                                getInt(values, CakeEntry.COLUMN_CAKE_QUANTITY, 0),
+                                values.getAsString(CakeEntry.COLUMN_CAKE_IMAGE),
+                                getDouble(values, CakeEntry.COLUMN_CAKE_COST, 0),
+                                getLong(values, CakeEntry.COLUMN_CAKE_STOCKED_AT,
+                                        System.currentTimeMillis()),
+                                sku);
+                    } catch (SQLException e) {
+                        Log.e(LOG_TAG, "Failed to insert " + values, e);
+                        id = -1;
+                    }
+                } else {
+                    // Stamp the stocking time on a copy, the caller's values are left alone
+                    if (!values.containsKey(CakeEntry.COLUMN_CAKE_STOCKED_AT)) {
+                        values = new ContentValues(values);
+                        values.put(CakeEntry.COLUMN_CAKE_STOCKED_AT, System.currentTimeMillis());
+                    }
+                    id = database.insert(CakeEntry.TABLE_NAME, null, values);
+                }
+                if (id != -1) {
+                    database.setTransactionSuccessful();
+                }
+            } finally {
+                database.endTransaction();
+            }
+
+            // Only the id is needed to undo an insert, and the SKU it took, if any
+            if (id != -1) {
+                CakeJournal.Entry entry = CakeJournal.insert(id);
+                entry.releasedSku = released;
+                release(mJournal.record(entry));
+            }
+        }
 
-        // Insert the new cake with the given values
-        long id = database.insert(CakeEntry.TABLE_NAME, null, values);
         // If the ID is -1, then the insertion failed. Log an error and return null.
         if (id == -1) {
             Log.e(LOG_TAG, "Failed to insert row for " + uri);
@@ -166,26 +956,203 @@ public class CakeProvider extends ContentProvider {
         }
 
         // Notify all listeners that the data has changed for the cake content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyCakesChanged(id);
 
         // Return the new URI with the ID (of the newly inserted row) appended at the end
         return ContentUris.withAppendedId(uri, id);
     }
 
+    /**
+     * Add a batch of stock to a cake with the given content values, and add its quantity to the
+     * cake, in one transaction. Return the content URI of the batches of the cake.
+     */
+    private Uri insertStockBatch(Uri uri, ContentValues values) {
+        Long cakeId = values.getAsLong(StockBatchEntry.COLUMN_CAKE_ID);
+        if (cakeId == null) {
+            throw new IllegalArgumentException("Stock batch requires a cake");
+        }
+        Integer quantity = values.getAsInteger(StockBatchEntry.COLUMN_QUANTITY);
+        if (quantity == null || quantity <= 0) {
+            throw new IllegalArgumentException("Stock batch requires a positive quantity");
+        }
+        Long expiresAt = values.getAsLong(StockBatchEntry.COLUMN_EXPIRES_AT);
+        if (expiresAt == null) {
+            throw new IllegalArgumentException("Stock batch requires an expiry time");
+        }
+        long bakedAt = getLong(values, StockBatchEntry.COLUMN_BAKED_AT,
+                System.currentTimeMillis());
+        boolean hidden = cakeId <= getDeletedThroughId();
+
+        CakeStatementCache statements = getStatements();
+        SQLiteDatabase database = statements.getDatabase();
+        long batchId = -1;
+        synchronized (mJournal) {
+            Long oldQuantity;
+            database.beginTransaction();
+            try {
+                oldQuantity = hidden ? null : statements.queryQuantity(cakeId);
+                if (oldQuantity != null) {
+                    batchId = CakeStockBatches.insert(database, cakeId, quantity, bakedAt,
+                            expiresAt);
+                }
+                if (batchId != -1) {
+                    statements.updateQuantity(cakeId, oldQuantity.intValue() + quantity);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+
+            // Undo takes the cakes back off the quantity and the batch away with them, so the
+            // batches never hold more cakes than the quantity
+            if (batchId != -1) {
+                ContentValues before = new ContentValues();
+                before.put(CakeEntry._ID, cakeId);
+                before.put(CakeEntry.COLUMN_CAKE_QUANTITY, oldQuantity);
+                ContentValues after = new ContentValues();
+                after.put(CakeEntry.COLUMN_CAKE_QUANTITY, oldQuantity + quantity);
+                ContentValues batch = new ContentValues();
+                batch.put(StockBatchEntry._ID, batchId);
+                batch.put(StockBatchEntry.COLUMN_CAKE_ID, cakeId);
+                batch.put(StockBatchEntry.COLUMN_QUANTITY, quantity);
+                batch.put(StockBatchEntry.COLUMN_BAKED_AT, bakedAt);
+                batch.put(StockBatchEntry.COLUMN_EXPIRES_AT, expiresAt);
+                record(CakeJournal.stock(new ContentValues[] { before },
+                        new ContentValues[] { after }, new ContentValues[] { batch }, true));
+            }
+        }
+
+        if (batchId == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        // The quantity of the cake has changed along with its batches
+        notifyCakesChanged(cakeId);
+        return ContentUris.withAppendedId(getOwnUri(StockBatchEntry.CONTENT_URI), cakeId);
+    }
+
+    /**
+     * Add a pickup slot with nothing booked yet. Return the content URI of the new slot, or null
+     * if another slot already starts at the same time.
+     */
+    private Uri insertPickupSlot(Uri uri, ContentValues values) {
+        Long startsAt = values.getAsLong(PickupSlotEntry.COLUMN_STARTS_AT);
+        if (startsAt == null) {
+            throw new IllegalArgumentException("Pickup slot requires a start time");
+        }
+        Integer capacity = values.getAsInteger(PickupSlotEntry.COLUMN_CAPACITY);
+        if (capacity == null || capacity < 0) {
+            throw new IllegalArgumentException("Pickup slot requires a valid capacity");
+        }
+
+        // Slots aren't part of the undo history, so this doesn't wait for the journal
+        long id = CakeReservations.insertSlot(mDbHelper.getWritableDatabase(), startsAt,
+                capacity);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Add an ingredient, a recipe or a line of a recipe. Return the content URI of the new row,
+     * or null if the insert failed, for example because an ingredient of that name exists.
+     */
+    private Uri insertRecipeRow(Uri uri, int match, ContentValues values) {
+        long id = CakeRecipes.insert(mDbHelper.getWritableDatabase(), getRecipeTable(match),
+                values);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+        getContext().getContentResolver().notifyChange(getOwnUri(RecipeEntry.CONTENT_URI), null);
+        return ContentUris.withAppendedId(uri, id);
+    }
+
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection,
                       String[] selectionArgs) {
+        CakeProvider tenant = acquireTenant(CakeContract.getTenant(uri));
+        if (tenant != null) {
+            try {
+                return tenant.update(uri, contentValues, selection, selectionArgs);
+            } finally {
+                mTenants.release(tenant);
+            }
+        }
+
         final int match = sUriMatcher.match(uri);
+        int rowsUpdated = 0;
+        long start = CakeMetrics.begin("CakeProvider.update");
+        try {
+            rowsUpdated = updateMatch(uri, match, contentValues, selection, selectionArgs);
+            return rowsUpdated;
+        } finally {
+            CakeMetrics.end(start, "update", getUriLabel(match), rowsUpdated);
+            mMaintenance.onActivity(rowsUpdated);
+        }
+    }
+
+    /**
+     * Update the rows for a URI that has already been matched to the given code.
+     */
+    private int updateMatch(Uri uri, int match, ContentValues contentValues, String selection,
+                            String[] selectionArgs) {
         switch (match) {
             case CAKES:
                 return updateCake(uri, contentValues, selection, selectionArgs);
             case CAKE_ID:
+                // A change of just the quantity of one cake goes through the compiled
+                // quantity statement
+                if (contentValues.size() == 1) {
+                    Integer quantity = contentValues.getAsInteger(CakeEntry.COLUMN_CAKE_QUANTITY);
+                    if (quantity != null) {
+                        return updateCakeQuantity(uri, ContentUris.parseId(uri), quantity);
+                    }
+                }
+
                 // For the CAKE_ID code, extract out the ID from the URI,
                 // so we know which row to update. Selection will be "_id=?" and selection
                 // arguments will be a String array containing the actual ID.
                 selection = CakeEntry._ID + "=?";
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
                 return updateCake(uri, contentValues, selection, selectionArgs);
+            case CAKE_SKU:
+                // Update the cake of the SKU as if it had been given by its _id
+                long id = resolveSku(uri.getLastPathSegment());
+                if (id == -1) {
+                    return 0;
+                }
+                return updateMatch(ContentUris.withAppendedId(getCakesUri(), id), CAKE_ID,
+                        contentValues, null, null);
+            case PICKUP_SLOT_ID:
+                // Only the capacity of a slot can change; what is booked belongs to its
+                // reservations
+                Integer capacity = contentValues.getAsInteger(PickupSlotEntry.COLUMN_CAPACITY);
+                if (contentValues.size() != 1 || capacity == null || capacity < 0) {
+                    throw new IllegalArgumentException("Pickup slot only takes a valid capacity");
+                }
+                int rows = CakeReservations.setCapacity(mDbHelper.getWritableDatabase(),
+                        ContentUris.parseId(uri), capacity);
+                if (rows != 0) {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+                return rows;
+            case INGREDIENTS:
+            case INGREDIENT_ID:
+            case RECIPES:
+            case RECIPE_ID:
+            case RECIPE_ITEMS:
+                rows = CakeRecipes.update(mDbHelper.getWritableDatabase(), getRecipeTable(match),
+                        contentValues, recipeSelection(uri, match, selection), selectionArgs);
+                if (rows != 0) {
+                    getContext().getContentResolver().notifyChange(
+                            getOwnUri(RecipeEntry.CONTENT_URI), null);
+                }
+                return rows;
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
@@ -224,54 +1191,566 @@ public class CakeProvider extends ContentProvider {
 
         // Otherwise, get writeable database to update the data
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        selection = visibleSelection(selection);
 
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(CakeContract.CakeEntry.TABLE_NAME, values, selection, selectionArgs);
+        // Read the old values of the changed columns for the undo history, and perform the
+        // update on the database, in one transaction
+        int rowsUpdated;
+        synchronized (mJournal) {
+            String[] columns = new String[values.size() + 1];
+            columns[0] = CakeEntry._ID;
+            int i = 1;
+            for (String key : values.keySet()) {
+                columns[i++] = key;
+            }
+
+            // Cakes whose quantity goes down have sold some, which comes out of their batches
+            Integer quantity = values.getAsInteger(CakeEntry.COLUMN_CAKE_QUANTITY);
+
+            // A SKU is taken from any hidden cake in the same transaction as the update
+            ContentValues[] before;
+            ContentValues released;
+            database.beginTransaction();
+            try {
+                released = releaseSku(getStatements(),
+                        values.getAsString(CakeEntry.COLUMN_CAKE_SKU));
+                before = queryRows(database, columns, selection, selectionArgs);
+                long[][] sales = quantity != null
+                        ? querySales(database, selection, selectionArgs, quantity) : null;
+                rowsUpdated = database.update(CakeContract.CakeEntry.TABLE_NAME, values, selection,
+                        selectionArgs);
+                if (sales != null) {
+                    for (long[] sale : sales) {
+                        CakeStockBatches.allocateSale(database, sale[0], sale[1]);
+                    }
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+
+            if (rowsUpdated != 0) {
+                CakeJournal.Entry entry = null;
+                if (before != null) {
+                    entry = CakeJournal.update(before, values);
+                    entry.releasedSku = released;
+                }
+                record(entry);
+            }
+        }
 
         // If 1 or more rows were updated, then notify all listeners that the data at the
         // given URI has changed
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyCakesChanged(sUriMatcher.match(uri) == CAKE_ID ? ContentUris.parseId(uri) : -1);
         }
 
         // Return the number of rows updated
         return rowsUpdated;
     }
 
+    /**
+     * Set the quantity of a single cake through the compiled quantity statement.
+     * Return the number of rows that were updated.
+     */
+    private int updateCakeQuantity(Uri uri, long id, int quantity) {
+        if (id <= getDeletedThroughId()) {
+            return 0;
+        }
+
+        CakeStatementCache statements = getStatements();
+        SQLiteDatabase database = statements.getDatabase();
+        int rowsUpdated = 0;
+        synchronized (mJournal) {
+            Long oldQuantity;
+            database.beginTransaction();
+            try {
+                oldQuantity = statements.queryQuantity(id);
+                if (oldQuantity != null) {
+                    rowsUpdated = statements.updateQuantity(id, quantity);
+                }
+                if (rowsUpdated != 0) {
+                    CakeStockBatches.allocateSale(database, id, oldQuantity - quantity);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+
+            if (rowsUpdated != 0) {
+                ContentValues before = new ContentValues();
+                before.put(CakeEntry._ID, id);
+                before.put(CakeEntry.COLUMN_CAKE_QUANTITY, oldQuantity);
+                ContentValues change = new ContentValues();
+                change.put(CakeEntry.COLUMN_CAKE_QUANTITY, quantity);
+                record(CakeJournal.update(new ContentValues[] { before }, change));
+            }
+        }
+        if (rowsUpdated != 0) {
+            notifyCakesChanged(id);
+        }
+        return rowsUpdated;
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        CakeProvider tenant = acquireTenant(CakeContract.getTenant(uri));
+        if (tenant != null) {
+            try {
+                return tenant.delete(uri, selection, selectionArgs);
+            } finally {
+                mTenants.release(tenant);
+            }
+        }
+
+        final int match = sUriMatcher.match(uri);
+        int rowsDeleted = 0;
+        long start = CakeMetrics.begin("CakeProvider.delete");
+        try {
+            rowsDeleted = deleteMatch(uri, match, selection, selectionArgs);
+            return rowsDeleted;
+        } finally {
+            CakeMetrics.end(start, "delete", getUriLabel(match), rowsDeleted);
+            mMaintenance.onActivity(rowsDeleted);
+        }
+    }
+
+    /**
+     * Delete the rows for a URI that has already been matched to the given code.
+     */
+    private int deleteMatch(Uri uri, int match, String selection, String[] selectionArgs) {
         // Get writeable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
         // Track the number of rows that were deleted
         int rowsDeleted;
 
-        final int match = sUriMatcher.match(uri);
         switch (match) {
             case CAKES:
-                // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(CakeEntry.TABLE_NAME, selection, selectionArgs);
+                if (selection == null) {
+                    return deleteAllCakes(uri, database);
+                }
                 break;
             case CAKE_ID:
-                // Delete a single row given by the ID in the URI
-                selection = CakeContract.CakeEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                rowsDeleted = database.delete(CakeContract.CakeEntry.TABLE_NAME, selection, selectionArgs);
-                break;
+                // Delete a single row given by the ID in the URI, through the compiled
+                // delete statement
+                return deleteCake(uri, ContentUris.parseId(uri));
+            case CAKE_SKU:
+                long id = resolveSku(uri.getLastPathSegment());
+                if (id == -1) {
+                    return 0;
+                }
+                return deleteCake(ContentUris.withAppendedId(getCakesUri(), id), id);
+            case RESERVATION_ID:
+                return cancelReservation(database, ContentUris.parseId(uri));
+            case INGREDIENTS:
+            case INGREDIENT_ID:
+            case RECIPES:
+            case RECIPE_ID:
+            case RECIPE_ITEMS:
+                return deleteRecipeRows(database, uri, match, selection, selectionArgs);
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
+        selection = visibleSelection(selection);
+        synchronized (mJournal) {
+            // Keep the whole rows that are about to go for the undo history, and delete all rows
+            // that match the selection and selection args, in one transaction
+            ContentValues[] rows;
+            String[] imageNames = null;
+            database.beginTransaction();
+            try {
+                rows = queryRows(database, null, selection, selectionArgs);
+                if (rows == null) {
+                    // Too many rows to keep, so only remember which photos belong to them, so
+                    // the files can be removed once the rows are gone, and drop their prices
+                    // and stock batches
+                    imageNames = CakePhotos.queryNames(database, selection, selectionArgs);
+                    String cakeIds = " IN (SELECT " + CakeEntry._ID + " FROM "
+                            + CakeEntry.TABLE_NAME + " WHERE " + selection + ")";
+                    database.delete(PriceHistoryEntry.TABLE_NAME,
+                            PriceHistoryEntry.COLUMN_CAKE_ID + cakeIds, selectionArgs);
+                    database.delete(StockBatchEntry.TABLE_NAME,
+                            StockBatchEntry.COLUMN_CAKE_ID + cakeIds, selectionArgs);
+                }
+                rowsDeleted = database.delete(CakeEntry.TABLE_NAME, selection, selectionArgs);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+
+            // The photos of the kept rows stay until the delete can't be undone anymore
+            if (imageNames != null) {
+                for (String imageName : imageNames) {
+                    mPhotos.delete(imageName);
+                }
+            }
+            if (rowsDeleted != 0) {
+                record(rows != null ? CakeJournal.delete(rows) : null);
+            }
+        }
+
         // If 1 or more rows were deleted, then notify all listeners that the data at the
         // given URI has changed
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyCakesChanged(-1);
         }
 
         // Return the number of rows deleted
         return rowsDeleted;
     }
 
+    /**
+     * Cancel a reservation and give its room back to its slot, in one transaction. Return the
+     * number of reservations cancelled.
+     */
+    private int cancelReservation(SQLiteDatabase database, long id) {
+        int rowsDeleted;
+        database.beginTransactionNonExclusive();
+        try {
+            rowsDeleted = CakeReservations.cancel(database, id);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        // The booking of the slot has changed along with its reservations
+        if (rowsDeleted != 0) {
+            getContext().getContentResolver().notifyChange(
+                    getOwnUri(PickupSlotEntry.CONTENT_URI), null);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Delete ingredients, recipes or lines of the recipes through {@link CakeRecipes}, and
+     * announce the change. Return the number of rows deleted.
+     */
+    private int deleteRecipeRows(SQLiteDatabase database, Uri uri, int match, String selection,
+                                 String[] selectionArgs) {
+        int rowsDeleted = CakeRecipes.delete(database, getRecipeTable(match),
+                recipeSelection(uri, match, selection), selectionArgs);
+        if (rowsDeleted != 0) {
+            getContext().getContentResolver().notifyChange(getOwnUri(RecipeEntry.CONTENT_URI),
+                    null);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Delete a single cake, keeping its row for the undo history. Return the number of rows
+     * that were deleted.
+     */
+    private int deleteCake(Uri uri, long id) {
+        if (id <= getDeletedThroughId()) {
+            return 0;
+        }
+
+        CakeStatementCache statements = getStatements();
+        SQLiteDatabase database = statements.getDatabase();
+        int rowsDeleted = 0;
+        synchronized (mJournal) {
+            ContentValues[] rows;
+            database.beginTransaction();
+            try {
+                rows = queryRows(database, null, CakeEntry._ID + "=?",
+                        new String[] { String.valueOf(id) });
+                if (rows.length != 0) {
+                    rowsDeleted = statements.deleteById(id);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+
+            // The photo stays until the delete can't be undone anymore
+            if (rowsDeleted != 0) {
+                record(CakeJournal.delete(rows));
+            }
+        }
+
+        if (rowsDeleted != 0) {
+            notifyCakesChanged(id);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Delete every cake. Rather than removing the rows here, which takes a while on a big table,
+     * the highest _id in the table is stored as the deleted-through id, which hides every cake
+     * up to it straight away. The rows themselves are removed in the background by
+     * {@link #purgeStep} once the delete can't be undone anymore. Return the number of rows that
+     * were deleted.
+     */
+    private int deleteAllCakes(Uri uri, SQLiteDatabase database) {
+        int rowsDeleted;
+        synchronized (mJournal) {
+            long oldDeletedThroughId = getDeletedThroughId();
+            long newDeletedThroughId;
+            database.beginTransaction();
+            try {
+                newDeletedThroughId = DatabaseUtils.longForQuery(database,
+                        "SELECT IFNULL(MAX(" + CakeEntry._ID + "), 0) FROM " + CakeEntry.TABLE_NAME,
+                        null);
+                rowsDeleted = CakeHistory.countCakesBetween(database, oldDeletedThroughId,
+                        newDeletedThroughId);
+                if (rowsDeleted != 0) {
+                    CakeDbHelper.writeMeta(database, CakeDbHelper.META_DELETED_THROUGH_ID,
+                            newDeletedThroughId);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+
+            if (rowsDeleted != 0) {
+                mDeletedThroughId = newDeletedThroughId;
+                record(CakeJournal.deleteAll(oldDeletedThroughId, newDeletedThroughId));
+            }
+        }
+
+        if (rowsDeleted != 0) {
+            notifyCakesChanged(-1);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Return the _id of the visible cake with the given SKU, or -1 if there is none, through
+     * {@link #mSkuCache}.
+     */
+    private long resolveSku(String sku) {
+        return mSkuCache.resolve(getStatements(), getDeletedThroughId(), sku);
+    }
+
+    /**
+     * Take the given SKU from the hidden cake that still holds it, if any, see
+     * {@link CakeSkuCache#release}. Call this with the lock of {@link #mJournal} held, in the
+     * transaction of the write. Return the _id and SKU of the hidden cake, or null.
+     */
+    private ContentValues releaseSku(CakeStatementCache statements, String sku) {
+        return mSkuCache.release(statements, getDeletedThroughId(), sku);
+    }
+
+    /**
+     * Return the compiled statements for the current writable database. The statements are
+     * compiled again if the helper has reopened the database since they were last used.
+     */
+    private synchronized CakeStatementCache getStatements() {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        if (mStatements == null || mStatements.getDatabase() != database) {
+            if (mStatements != null) {
+                mStatements.close();
+            }
+            mStatements = new CakeStatementCache(database);
+        }
+        return mStatements;
+    }
+
+    /**
+     * Return whether the content values only contain keys from the given columns.
+     */
+    private static boolean hasOnlyColumns(ContentValues values, String[] columns) {
+        int known = 0;
+        for (String column : columns) {
+            if (values.containsKey(column)) {
+                known++;
+            }
+        }
+        return known == values.size();
+    }
+
+    /**
+     * Return whether the values of a new cake are all of the types the compiled insert statement
+     * binds them as, so binding them stores exactly what the caller gave. A number column may
+     * only be left out, not set to null, as the statement would put its default in place of the
+     * null that the table turns down.
+     */
+    private static boolean hasInsertTypes(ContentValues values) {
+        return values.get(CakeEntry.COLUMN_CAKE_NAME) instanceof String
+                && isInt(values.get(CakeEntry.COLUMN_CAKE_OCCASION))
+                && isAbsentOr(values, CakeEntry.COLUMN_CAKE_PRICE, Number.class)
+                && (!values.containsKey(CakeEntry.COLUMN_CAKE_QUANTITY)
+                        || isInt(values.get(CakeEntry.COLUMN_CAKE_QUANTITY)))
+                && isAbsentOr(values, CakeEntry.COLUMN_CAKE_COST, Number.class)
+                && (!values.containsKey(CakeEntry.COLUMN_CAKE_STOCKED_AT)
+                        || isWhole(values.get(CakeEntry.COLUMN_CAKE_STOCKED_AT)))
+                && isNullOr(values, CakeEntry.COLUMN_CAKE_IMAGE, String.class)
+                && isNullOr(values, CakeEntry.COLUMN_CAKE_SKU, String.class);
+    }
+
+    /**
+     * Return whether a value is a whole number, of one of the integer types.
+     */
+    private static boolean isWhole(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte;
+    }
+
+    /**
+     * Return whether a value is a whole number that fits in an int.
+     */
+    private static boolean isInt(Object value) {
+        return isWhole(value) && ((Number) value).longValue() == ((Number) value).intValue();
+    }
+
+    /**
+     * Return whether a content value is missing, or present and of the given type.
+     */
+    private static boolean isAbsentOr(ContentValues values, String key, Class<?> type) {
+        return !values.containsKey(key) || type.isInstance(values.get(key));
+    }
+
+    /**
+     * Return whether a content value is missing or null, or of the given type.
+     */
+    private static boolean isNullOr(ContentValues values, String key, Class<?> type) {
+        Object value = values.get(key);
+        return value == null || type.isInstance(value);
+    }
+
+    /**
+     * Return the row limit given in the URI's query parameters, or null if there is none.
+     */
+    private static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(CakeEntry.QUERY_PARAMETER_LIMIT);
+        if (limit == null) {
+            return null;
+        }
+        try {
+            return String.valueOf(Math.max(Integer.parseInt(limit), 0));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit in " + uri);
+        }
+    }
+
+    /**
+     * Return a content value as a double, or the default if it is missing or not a number.
+     */
+    static double getDouble(ContentValues values, String key, double defaultValue) {
+        Double value = values.getAsDouble(key);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Return a content value as a long, or the default if it is missing or not a number.
+     */
+    private static long getLong(ContentValues values, String key, long defaultValue) {
+        Long value = values.getAsLong(key);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Return a content value as an int, or the default if it is missing or not a number.
+     */
+    private static int getInt(ContentValues values, String key, int defaultValue) {
+        Integer value = values.getAsInteger(key);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Return a short label for a matched URI code, used to group the metrics.
+     */
+    private static String getUriLabel(int match) {
+        switch (match) {
+            case CAKES:
+                return "cakes";
+            case CAKE_ID:
+                return "cakes/#";
+            case CAKE_SKU:
+                return "cakes/sku/*";
+            case PRICE_HISTORY:
+                return "price_history";
+            case PRICE_HISTORY_ID:
+                return "price_history/#";
+            case STOCK_BATCHES:
+                return "stock_batches";
+            case STOCK_BATCHES_ID:
+                return "stock_batches/#";
+            case PICKUP_SLOTS:
+                return "pickup_slots";
+            case PICKUP_SLOT_ID:
+                return "pickup_slots/#";
+            case RESERVATIONS:
+                return "reservations";
+            case RESERVATION_ID:
+                return "reservations/#";
+            case EXPORT:
+                return "export";
+            case INGREDIENTS:
+                return "ingredients";
+            case INGREDIENT_ID:
+                return "ingredients/#";
+            case RECIPES:
+                return "recipes";
+            case RECIPE_ID:
+                return "recipes/#";
+            case RECIPE_ITEMS:
+                return "recipe_items";
+            default:
+                return "unknown";
+        }
+    }
+
+    /**
+     * Return an estimate of the memory the caches of the catalog take, in bytes. The pool counts
+     * them for the catalogs of other shops, as those don't register them themselves.
+     */
+    long getCacheSize() {
+        return mSkuCache.getSize() + mColumnIndex.getSize();
+    }
+
+    /**
+     * Empty the caches of the catalog. They fill again as it is used.
+     */
+    void trimCaches() {
+        mSkuCache.trimToSize(0);
+        mColumnIndex.trimToSize(0);
+    }
+
+    /**
+     * Close the database once the maintenance thread is done with it. Called when the catalog of
+     * another shop is closed by {@link CakeTenantPool}, after its last user has released it.
+     */
+    @Override
+    public void shutdown() {
+        if (mTenant == null) {
+            CakeCacheRegistry.getInstance().unregister(mSkuCache);
+            CakeCacheRegistry.getInstance().unregister(mColumnIndex);
+            CakeCacheRegistry.getInstance().unregister(mTenants);
+        }
+        mMaintenance.shutdown(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CakeProvider.this) {
+                    if (mStatements != null) {
+                        mStatements.close();
+                        mStatements = null;
+                    }
+                    if (mReportEngine != null) {
+                        mReportEngine.shutdown();
+                        mReportEngine = null;
+                    }
+                    if (mProductionPlanner != null) {
+                        mProductionPlanner.shutdown();
+                        mProductionPlanner = null;
+                    }
+                }
+                mDbHelper.close();
+            }
+        });
+    }
+
+    /**
+     * Print the recorded metrics. Run
+     * "adb shell dumpsys activity provider com.example.richard.inventoryapp" to see them.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        CakeMetrics.dump(writer);
+        CakeCacheRegistry.getInstance().dump(writer);
+    }
+
     @Override
     public String getType(Uri uri) {
         final int match = sUriMatcher.match(uri);
@@ -279,9 +1758,1011 @@ public class CakeProvider extends ContentProvider {
             case CAKES:
                 return CakeContract.CakeEntry.CONTENT_LIST_TYPE;
             case CAKE_ID:
+            case CAKE_SKU:
                 return CakeContract.CakeEntry.CONTENT_ITEM_TYPE;
+            case PRICE_HISTORY:
+                return PriceHistoryEntry.CONTENT_LIST_TYPE;
+            case PRICE_HISTORY_ID:
+                return PriceHistoryEntry.CONTENT_ITEM_TYPE;
+            case STOCK_BATCHES:
+                return StockBatchEntry.CONTENT_LIST_TYPE;
+            case STOCK_BATCHES_ID:
+                return StockBatchEntry.CONTENT_ITEM_TYPE;
+            case PICKUP_SLOTS:
+                return PickupSlotEntry.CONTENT_LIST_TYPE;
+            case PICKUP_SLOT_ID:
+                return PickupSlotEntry.CONTENT_ITEM_TYPE;
+            case RESERVATIONS:
+                return ReservationEntry.CONTENT_LIST_TYPE;
+            case RESERVATION_ID:
+                return ReservationEntry.CONTENT_ITEM_TYPE;
+            case EXPORT:
+                return CakeExport.MIME_TYPE;
+            case INGREDIENTS:
+                return IngredientEntry.CONTENT_LIST_TYPE;
+            case INGREDIENT_ID:
+                return IngredientEntry.CONTENT_ITEM_TYPE;
+            case RECIPES:
+                return RecipeEntry.CONTENT_LIST_TYPE;
+            case RECIPE_ID:
+                return RecipeEntry.CONTENT_ITEM_TYPE;
+            case RECIPE_ITEMS:
+                return RecipeItemEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
     }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        // The arg names the shop whose catalog the method is for
+        CakeProvider tenant = acquireTenant(arg);
+        if (tenant != null) {
+            try {
+                return tenant.call(method, arg, extras);
+            } finally {
+                mTenants.release(tenant);
+            }
+        }
+
+        if (CakeContract.METHOD_INVENTORY_REPORT.equals(method)) {
+            long start = CakeMetrics.begin("CakeProvider.report");
+            try {
+                // Built without the lock of the writers, which would hold up every save for as
+                // long as the scan takes; the ranges may each see a slightly different moment,
+                // see CakeReportEngine
+                return getReportEngine().buildReport(System.currentTimeMillis(),
+                        getDeletedThroughId()).toBundle();
+            } finally {
+                CakeMetrics.end(start, "call", method, 0);
+            }
+        }
+        if (CakeContract.METHOD_UNDO.equals(method) || CakeContract.METHOD_REDO.equals(method)) {
+            int rows = 0;
+            long start = CakeMetrics.begin("CakeProvider.undo");
+            try {
+                rows = undoOrRedo(CakeContract.METHOD_UNDO.equals(method));
+            } finally {
+                CakeMetrics.end(start, "call", method, rows);
+                mMaintenance.onActivity(rows);
+            }
+            Bundle result = new Bundle();
+            result.putInt(CakeContract.RESULT_ROWS, rows);
+            return result;
+        }
+        if (CakeContract.METHOD_ADJUST_QUANTITIES.equals(method)) {
+            long[] ids = extras != null ? extras.getLongArray(CakeContract.EXTRA_IDS) : null;
+            int[] deltas = extras != null ? extras.getIntArray(CakeContract.EXTRA_DELTAS) : null;
+            if (ids == null || deltas == null || ids.length != deltas.length) {
+                throw new IllegalArgumentException("Adjusting quantities requires as many ids"
+                        + " as deltas");
+            }
+            long batch = extras.getLong(CakeContract.EXTRA_BATCH, 0);
+            int rows = 0;
+            long committedAt;
+            long start = CakeMetrics.begin("CakeProvider.adjust");
+            try {
+                rows = adjustQuantities(ids, deltas, batch);
+
+                // Taken between the commit and the notification, so every query that starts
+                // after this time sees the change, including the ones the notification starts
+                committedAt = System.nanoTime();
+                if (rows != 0) {
+                    notifyCakesChanged(-1);
+                }
+            } finally {
+                CakeMetrics.end(start, "call", method, rows);
+                mMaintenance.onActivity(rows);
+            }
+            Bundle result = new Bundle();
+            result.putInt(CakeContract.RESULT_ROWS, rows);
+            result.putLong(CakeContract.RESULT_COMMITTED_AT, committedAt);
+            return result;
+        }
+        if (CakeContract.METHOD_SWEEP_EXPIRED.equals(method)) {
+            long now = extras != null && extras.containsKey(CakeContract.EXTRA_TIME)
+                    ? extras.getLong(CakeContract.EXTRA_TIME) : System.currentTimeMillis();
+            int rows = 0;
+            long start = CakeMetrics.begin("CakeProvider.sweep");
+            try {
+                // One chunk at a time, so other writes only ever wait for one chunk
+                int swept;
+                do {
+                    swept = sweepExpired(now);
+                    rows += swept;
+                } while (swept == CakeStockBatches.SWEEP_CHUNK_SIZE);
+            } finally {
+                CakeMetrics.end(start, "call", method, rows);
+                mMaintenance.onActivity(rows);
+            }
+            Bundle result = new Bundle();
+            result.putInt(CakeContract.RESULT_ROWS, rows);
+            return result;
+        }
+        if (CakeContract.METHOD_RESERVE.equals(method)) {
+            if (extras == null || !extras.containsKey(CakeContract.EXTRA_SLOT_ID)
+                    || !extras.containsKey(CakeContract.EXTRA_CAKE_ID)) {
+                throw new IllegalArgumentException("Reserving requires a slot and a cake");
+            }
+            int quantity = extras.getInt(CakeContract.EXTRA_QUANTITY, 1);
+            if (quantity <= 0) {
+                throw new IllegalArgumentException("Reserving requires a positive quantity");
+            }
+            long id = -1;
+            long start = CakeMetrics.begin("CakeProvider.reserve");
+            try {
+                id = reserve(extras.getLong(CakeContract.EXTRA_SLOT_ID),
+                        extras.getLong(CakeContract.EXTRA_CAKE_ID), quantity,
+                        extras.getString(CakeContract.EXTRA_CUSTOMER));
+            } finally {
+                CakeMetrics.end(start, "call", method, id != -1 ? 1 : 0);
+                mMaintenance.onActivity(id != -1 ? 1 : 0);
+            }
+            Bundle result = new Bundle();
+            result.putLong(CakeContract.RESULT_RESERVATION_ID, id);
+            return result;
+        }
+        if (CakeContract.METHOD_BULK_EDIT.equals(method)) {
+            if (extras == null || !extras.containsKey(CakeContract.EXTRA_OPERATION)
+                    || !extras.containsKey(CakeContract.EXTRA_VALUE)) {
+                throw new IllegalArgumentException("Bulk edit requires an operation and a value");
+            }
+            int operation = extras.getInt(CakeContract.EXTRA_OPERATION);
+            double value = extras.getDouble(CakeContract.EXTRA_VALUE);
+            if (!CakeBulkEdit.isValid(operation, value)) {
+                throw new IllegalArgumentException("Invalid bulk edit " + operation + " by "
+                        + value);
+            }
+            int rows = 0;
+            Bundle result = new Bundle();
+            long start = CakeMetrics.begin("CakeProvider.bulkEdit");
+            try {
+                rows = bulkEdit(extras.getLongArray(CakeContract.EXTRA_IDS),
+                        extras.getString(CakeContract.EXTRA_SELECTION),
+                        extras.getStringArray(CakeContract.EXTRA_SELECTION_ARGS), operation,
+                        value, result);
+            } finally {
+                CakeMetrics.end(start, "call", method, rows);
+                mMaintenance.onActivity(rows);
+            }
+            result.putInt(CakeContract.RESULT_ROWS, rows);
+            return result;
+        }
+        if (CakeContract.METHOD_PLAN_PRODUCTION.equals(method)) {
+            long[] ids = extras != null ? extras.getLongArray(CakeContract.EXTRA_IDS) : null;
+            int[] counts = extras != null ? extras.getIntArray(CakeContract.EXTRA_COUNTS) : null;
+            if (ids == null || counts == null || ids.length != counts.length) {
+                throw new IllegalArgumentException("Planning production requires as many ids"
+                        + " as counts");
+            }
+            for (int count : counts) {
+                if (count < 0) {
+                    throw new IllegalArgumentException("Planning production requires counts"
+                            + " of 0 or more");
+                }
+            }
+            long start = CakeMetrics.begin("CakeProvider.plan");
+            try {
+                return getProductionPlanner().plan(ids, counts).toBundle();
+            } finally {
+                CakeMetrics.end(start, "call", method, ids.length);
+            }
+        }
+        if (CakeContract.METHOD_FIND_SIMILAR_NAMES.equals(method)
+                || CakeContract.METHOD_FIND_DUPLICATE_NAMES.equals(method)) {
+            String name = null;
+            if (CakeContract.METHOD_FIND_SIMILAR_NAMES.equals(method)) {
+                name = extras != null ? extras.getString(CakeContract.EXTRA_NAME) : null;
+                if (name == null) {
+                    throw new IllegalArgumentException("Finding similar names requires a name");
+                }
+            }
+            long cakeId = extras != null ? extras.getLong(CakeContract.EXTRA_CAKE_ID, -1) : -1;
+            float similarity = extras != null ? extras.getFloat(CakeContract.EXTRA_SIMILARITY,
+                    CakeContract.DEFAULT_NAME_SIMILARITY) : CakeContract.DEFAULT_NAME_SIMILARITY;
+            if (!(similarity > 0 && similarity <= 1)) {
+                throw new IllegalArgumentException("Invalid similarity " + similarity);
+            }
+            CakeNameMatches matches = null;
+            long start = CakeMetrics.begin("CakeProvider.findNames");
+            try {
+                matches = findNames(name, cakeId, similarity);
+                return matches.toBundle();
+            } finally {
+                CakeMetrics.end(start, "call", method, matches != null ? matches.size() : 0);
+                mMaintenance.onActivity(0);
+            }
+        }
+        if (CakeContract.METHOD_FIND_TOP_CAKES.equals(method)) {
+            Bundle options = extras != null ? extras : Bundle.EMPTY;
+            int sort = options.getInt(CakeContract.EXTRA_SORT, CakeContract.SORT_ID);
+            if (sort < CakeContract.SORT_ID || sort > CakeContract.SORT_QUANTITY) {
+                throw new IllegalArgumentException("Invalid sort " + sort);
+            }
+            long[] ids = null;
+            long start = CakeMetrics.begin("CakeProvider.findTopCakes");
+            try {
+                ids = findTopCakes(
+                        options.getInt(CakeContract.EXTRA_OCCASION, CakeContract.ANY_OCCASION),
+                        options.getInt(CakeContract.EXTRA_MIN_QUANTITY, 0), sort,
+                        options.getBoolean(CakeContract.EXTRA_DESCENDING, false),
+                        options.getInt(CakeContract.EXTRA_LIMIT, Integer.MAX_VALUE));
+            } finally {
+                CakeMetrics.end(start, "call", method, ids != null ? ids.length : 0);
+                mMaintenance.onActivity(0);
+            }
+            Bundle result = new Bundle();
+            result.putLongArray(CakeContract.RESULT_IDS, ids);
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Return the cakes whose names are like the given one, or the pairs of cakes with similar
+     * names in the whole catalog if there is no name.
+     *
+     * The names still queued are indexed first, in short write transactions of a chunk each, so
+     * writers only ever wait for one chunk, and only if anything is queued. The lookup itself
+     * runs outside any transaction: each of its queries reads a snapshot of its own on a read
+     * connection of the write-ahead log, so even the pass over the whole catalog never holds up
+     * a writer, such as the quantities flushed when the catalog stops.
+     */
+    private CakeNameMatches findNames(String name, long cakeId, float similarity) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        while (CakeNameIndex.hasQueued(database)) {
+            database.beginTransaction();
+            try {
+                CakeNameIndex.indexQueued(database, CakeNameIndex.INDEX_CHUNK_SIZE);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+
+        long deletedThroughId = getDeletedThroughId();
+        return name != null
+                ? CakeNameIndex.findSimilar(database, name, cakeId, similarity, deletedThroughId)
+                : CakeNameIndex.findDuplicates(database, similarity, deletedThroughId);
+    }
+
+    /**
+     * Return the ids of the visible cakes that match the filter, in the requested order, from
+     * the copy of the columns in {@link #mColumnIndex}. A catalog too large to copy is queried
+     * from the database instead, sorted the same way, prices to the cent and ties by _id.
+     */
+    private long[] findTopCakes(int occasion, int minQuantity, int sort, boolean descending,
+                                int limit) {
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        long[] ids = mColumnIndex.query(database, getDeletedThroughId(), occasion, minQuantity,
+                sort, descending, limit);
+        if (ids != null) {
+            return ids;
+        }
+
+        String selection = CakeEntry.COLUMN_CAKE_QUANTITY + ">=?";
+        String[] selectionArgs = { String.valueOf(minQuantity) };
+        if (occasion != CakeContract.ANY_OCCASION) {
+            selection += " AND " + CakeEntry.COLUMN_CAKE_OCCASION + "=?";
+            selectionArgs = new String[] { selectionArgs[0], String.valueOf(occasion) };
+        }
+        String column;
+        switch (sort) {
+            case CakeContract.SORT_NAME:
+                column = CakeEntry.COLUMN_CAKE_NAME;
+                break;
+            case CakeContract.SORT_PRICE:
+                column = "ROUND(" + CakeEntry.COLUMN_CAKE_PRICE + "*100)";
+                break;
+            case CakeContract.SORT_QUANTITY:
+                column = CakeEntry.COLUMN_CAKE_QUANTITY;
+                break;
+            default:
+                column = CakeEntry._ID;
+                break;
+        }
+        Cursor cursor = database.query(CakeEntry.TABLE_NAME, new String[] { CakeEntry._ID },
+                visibleSelection(selection), selectionArgs, null, null,
+                column + (descending ? " DESC, " : ", ") + CakeEntry._ID,
+                String.valueOf(Math.max(limit, 0)));
+        try {
+            ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Change the price or quantity of the given cakes, or of the cakes that match the selection
+     * if no ids are given, with a single UPDATE in a single transaction, and notify once. The
+     * old and new values of the changed cakes are read around the UPDATE for the undo history.
+     * Return the number of cakes changed, and put whether the change can be undone in the result
+     * under {@link CakeContract#RESULT_UNDOABLE}. It can't be if more cakes changed than the
+     * history keeps, in which case the history is cleared, as none of it can be undone past the
+     * change either.
+     */
+    private int bulkEdit(long[] ids, String selection, String[] selectionArgs, int operation,
+                         double value, Bundle result) {
+        result.putBoolean(CakeContract.RESULT_UNDOABLE, false);
+        if (ids != null) {
+            if (ids.length == 0) {
+                return 0;
+            }
+            selection = idSelection(ids);
+            selectionArgs = null;
+        }
+        selection = visibleSelection(selection);
+
+        // The cakes the UPDATE changes, which takes the amount as a last argument
+        String column = CakeBulkEdit.getColumn(operation);
+        String[] columns = { CakeEntry._ID, column };
+        String changed = CakeBulkEdit.changedSelection(operation, selection);
+        int argCount = selectionArgs != null ? selectionArgs.length : 0;
+        String[] changedArgs = new String[argCount + 1];
+        if (argCount != 0) {
+            System.arraycopy(selectionArgs, 0, changedArgs, 0, argCount);
+        }
+        changedArgs[argCount] = String.valueOf(value);
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsUpdated;
+        synchronized (mJournal) {
+            ContentValues[] before;
+            ContentValues[] after = null;
+            database.beginTransaction();
+            try {
+                before = queryRows(database, columns, changed, changedArgs);
+                long[][] sales = operation == CakeContract.BULK_SET_QUANTITY
+                        ? querySales(database, selection, selectionArgs, (int) value) : null;
+                rowsUpdated = CakeBulkEdit.apply(database, operation, value, selection,
+                        selectionArgs);
+                if (sales != null) {
+                    for (long[] sale : sales) {
+                        CakeStockBatches.allocateSale(database, sale[0], sale[1]);
+                    }
+                }
+                if (before != null && rowsUpdated != 0) {
+                    after = queryNewValues(database, before, column);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+
+            if (rowsUpdated != 0) {
+                record(after != null ? CakeJournal.update(before, after) : null);
+                result.putBoolean(CakeContract.RESULT_UNDOABLE, after != null);
+            }
+        }
+        if (rowsUpdated != 0) {
+            notifyCakesChanged(-1);
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Read the current value of the column of each of the given rows, in the same order, for
+     * the undo history of an update that gave every cake a value of its own.
+     */
+    private static ContentValues[] queryNewValues(SQLiteDatabase database,
+                                                  ContentValues[] before, String column) {
+        long[] ids = new long[before.length];
+        for (int i = 0; i < before.length; i++) {
+            ids[i] = before[i].getAsLong(CakeEntry._ID);
+        }
+        LongSparseArray<ContentValues> values = new LongSparseArray<ContentValues>(ids.length);
+        Cursor cursor = database.query(CakeEntry.TABLE_NAME,
+                new String[] { CakeEntry._ID, column }, idSelection(ids), null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                ContentValues row = new ContentValues();
+                DatabaseUtils.cursorRowToContentValues(cursor, row);
+                row.remove(CakeEntry._ID);
+                values.put(cursor.getLong(0), row);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ContentValues[] after = new ContentValues[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            after[i] = values.get(ids[i]);
+        }
+        return after;
+    }
+
+    /**
+     * Book a custom order of a cake into a pickup slot and record the reservation, in one
+     * transaction. Return the _id of the reservation, or -1 if the slot doesn't have room.
+     *
+     * This doesn't take the lock of the undo history, or any other lock in the app: the booking
+     * is a single conditional UPDATE in {@link CakeReservations#reserve}, and SQLite runs each
+     * write transaction on its own, so tills booking the same slot at once simply take turns
+     * and the ones that come too late find it full. Queries carry on during the write, as the
+     * database is in write-ahead logging mode.
+     */
+    private long reserve(long slotId, long cakeId, int quantity, String customer) {
+        CakeStatementCache statements = getStatements();
+        SQLiteDatabase database = statements.getDatabase();
+        long id = -1;
+        database.beginTransactionNonExclusive();
+        try {
+            // Only cakes that are in the catalog can be ordered
+            if (cakeId <= getDeletedThroughId() || statements.queryQuantity(cakeId) == null) {
+                throw new IllegalArgumentException("Reserving requires a cake in the catalog");
+            }
+            id = CakeReservations.reserve(database, slotId, cakeId, quantity, customer,
+                    System.currentTimeMillis());
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        if (id != -1) {
+            getContext().getContentResolver().notifyChange(
+                    getOwnUri(PickupSlotEntry.CONTENT_URI), null);
+        }
+        return id;
+    }
+
+    /**
+     * Throw away a chunk of the stock batches that expired at or before the given time, taking
+     * what was left of them off their cakes, in a single transaction with a single notification.
+     * The chunk is a history entry of its own, so an undo puts the batches and the quantities
+     * back together rather than a quantity from before the sweep. Return the number of batches
+     * removed.
+     */
+    private int sweepExpired(long now) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int swept = 0;
+        synchronized (mJournal) {
+            ContentValues[] batches;
+            ContentValues[] before = null;
+            ContentValues[] after = null;
+            database.beginTransaction();
+            try {
+                batches = CakeStockBatches.queryExpired(database, now);
+                if (batches.length != 0) {
+                    Map<Long, Long> expired = CakeStockBatches.sumByCake(batches);
+                    long[] cakeIds = new long[expired.size()];
+                    int i = 0;
+                    for (long cakeId : expired.keySet()) {
+                        cakeIds[i++] = cakeId;
+                    }
+                    before = queryRows(database,
+                            new String[] { CakeEntry._ID, CakeEntry.COLUMN_CAKE_QUANTITY },
+                            idSelection(cakeIds), null);
+                    after = new ContentValues[before.length];
+                    for (i = 0; i < before.length; i++) {
+                        after[i] = new ContentValues();
+                        after[i].put(CakeEntry.COLUMN_CAKE_QUANTITY, Math.max(
+                                before[i].getAsLong(CakeEntry.COLUMN_CAKE_QUANTITY)
+                                        - expired.get(before[i].getAsLong(CakeEntry._ID)), 0));
+                    }
+                    CakeStockBatches.removeExpired(database, batches);
+                    swept = batches.length;
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            if (swept != 0) {
+                record(CakeJournal.stock(before, after, batches, false));
+            }
+        }
+        if (swept != 0) {
+            notifyCakesChanged(-1);
+        }
+        return swept;
+    }
+
+    /**
+     * Add to the quantities of a batch of cakes, never going below 0. The whole batch is a single
+     * transaction through the compiled quantity statements, and recorded as a single history
+     * entry. A numbered batch is skipped if it has already been applied, and its number is
+     * recorded in the same transaction otherwise. The caller announces the change. Return the
+     * number of cakes changed.
+     *
+     * @param batch number of the batch, or 0 if it isn't numbered
+     */
+    private int adjustQuantities(long[] ids, int[] deltas, long batch) {
+        CakeStatementCache statements = getStatements();
+        SQLiteDatabase database = statements.getDatabase();
+        long deletedThroughId = getDeletedThroughId();
+        List<ContentValues> before = new ArrayList<ContentValues>();
+        List<ContentValues> after = new ArrayList<ContentValues>();
+        synchronized (mJournal) {
+            database.beginTransaction();
+            try {
+                if (batch > 0) {
+                    if (batch <= CakeDbHelper.readMeta(database,
+                            CakeDbHelper.META_QUANTITY_BATCH, 0)) {
+                        return 0;
+                    }
+                    CakeDbHelper.writeMeta(database, CakeDbHelper.META_QUANTITY_BATCH, batch);
+                }
+                for (int i = 0; i < ids.length; i++) {
+                    if (ids[i] <= deletedThroughId || deltas[i] == 0) {
+                        continue;
+                    }
+                    Long oldQuantity = statements.queryQuantity(ids[i]);
+                    if (oldQuantity == null) {
+                        continue;
+                    }
+                    int quantity = (int) Math.max(oldQuantity + deltas[i], 0);
+                    if (quantity == oldQuantity
+                            || statements.updateQuantity(ids[i], quantity) == 0) {
+                        continue;
+                    }
+                    CakeStockBatches.allocateSale(database, ids[i], oldQuantity - quantity);
+
+                    ContentValues oldValues = new ContentValues();
+                    oldValues.put(CakeEntry._ID, ids[i]);
+                    oldValues.put(CakeEntry.COLUMN_CAKE_QUANTITY, oldQuantity);
+                    before.add(oldValues);
+                    ContentValues newValues = new ContentValues();
+                    newValues.put(CakeEntry.COLUMN_CAKE_QUANTITY, quantity);
+                    after.add(newValues);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+
+            if (before.size() > CakeJournal.MAX_ROWS) {
+                record(null);
+            } else if (!before.isEmpty()) {
+                record(CakeJournal.update(before.toArray(new ContentValues[before.size()]),
+                        after.toArray(new ContentValues[after.size()])));
+            }
+        }
+        return before.size();
+    }
+
+    /**
+     * Undo the last change, or redo the last change that was undone. The whole change is applied
+     * in a single transaction, with a single notification. Return the number of cakes changed.
+     */
+    private int undoOrRedo(boolean undo) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rows;
+        synchronized (mJournal) {
+            CakeJournal.Entry entry = undo ? mJournal.peekUndo() : mJournal.peekRedo();
+            if (entry == null) {
+                return 0;
+            }
+
+            rows = CakeHistory.apply(database, entry, undo);
+
+            // Only move through the history once the change is in the database
+            if (entry.type == CakeJournal.TYPE_DELETE_ALL) {
+                mDeletedThroughId =
+                        undo ? entry.oldDeletedThroughId : entry.newDeletedThroughId;
+            }
+            if (undo) {
+                mJournal.undone();
+            } else {
+                mJournal.redone();
+            }
+            // The change may have given SKUs back to cakes, or taken them away
+            mSkuCache.clear();
+        }
+
+        notifyCakesChanged(-1);
+        return rows;
+    }
+
+    /**
+     * Add a change to the undo history, or clear the history if the change was too big to keep.
+     * Call this with the lock of {@link #mJournal} held.
+     */
+    private void record(CakeJournal.Entry entry) {
+        if (entry == null) {
+            release(mJournal.clear());
+        } else {
+            release(mJournal.record(entry));
+        }
+    }
+
+    /**
+     * Let go of what was only kept for history entries that have been dropped: the photos, price
+     * history and stock batches of cakes that can't come back anymore, and the hidden rows of a
+     * "delete all".
+     */
+    private void release(List<CakeJournal.Entry> dropped) {
+        boolean purge = false;
+        for (CakeJournal.Entry entry : dropped) {
+            if (entry.holdsRemovedRows()) {
+                for (ContentValues row : entry.rows) {
+                    mPhotos.delete(row.getAsString(CakeEntry.COLUMN_CAKE_IMAGE));
+                }
+                mDbHelper.getWritableDatabase().delete(PriceHistoryEntry.TABLE_NAME,
+                        idSelection(PriceHistoryEntry.COLUMN_CAKE_ID, entry.ids), null);
+                mDbHelper.getWritableDatabase().delete(StockBatchEntry.TABLE_NAME,
+                        idSelection(StockBatchEntry.COLUMN_CAKE_ID, entry.ids), null);
+            } else if (entry.type == CakeJournal.TYPE_DELETE_ALL) {
+                purge = true;
+            }
+        }
+        if (purge) {
+            mMaintenance.schedule();
+        }
+    }
+
+    /**
+     * Remove a chunk of the hidden cakes that can't be brought back by an undo from the table,
+     * along with their photos. Each chunk of {@link #PURGE_CHUNK_SIZE} rows is a short
+     * transaction of its own, so other writes only ever wait for one chunk. Runs on the
+     * maintenance thread. Return whether there are more hidden cakes to remove.
+     */
+    private boolean purgeStep(SQLiteDatabase database) {
+        long throughId;
+        synchronized (mJournal) {
+            throughId = Math.min(getDeletedThroughId(), mJournal.getLowestRestorableId());
+        }
+        if (throughId <= 0) {
+            return false;
+        }
+
+        int rowsPurged = 0;
+        List<String> imageNames = new ArrayList<String>();
+        database.beginTransaction();
+        try {
+            Cursor cursor = database.query(CakeEntry.TABLE_NAME,
+                    new String[] { CakeEntry._ID, CakeEntry.COLUMN_CAKE_IMAGE },
+                    CakeEntry._ID + "<=?", new String[] { String.valueOf(throughId) },
+                    null, null, CakeEntry._ID + " ASC", String.valueOf(PURGE_CHUNK_SIZE));
+            long firstId = 0;
+            long lastId = 0;
+            try {
+                if (cursor.moveToFirst()) {
+                    firstId = cursor.getLong(0);
+                    do {
+                        lastId = cursor.getLong(0);
+                        if (!cursor.isNull(1)) {
+                            imageNames.add(cursor.getString(1));
+                        }
+                    } while (cursor.moveToNext());
+                }
+            } finally {
+                cursor.close();
+            }
+            if (lastId != 0) {
+                String[] range = { String.valueOf(firstId), String.valueOf(lastId) };
+                rowsPurged = database.delete(CakeEntry.TABLE_NAME,
+                        CakeEntry._ID + " BETWEEN ? AND ?", range);
+                database.delete(PriceHistoryEntry.TABLE_NAME,
+                        PriceHistoryEntry.COLUMN_CAKE_ID + " BETWEEN ? AND ?", range);
+                database.delete(StockBatchEntry.TABLE_NAME,
+                        StockBatchEntry.COLUMN_CAKE_ID + " BETWEEN ? AND ?", range);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        for (String imageName : imageNames) {
+            mPhotos.delete(imageName);
+        }
+        return rowsPurged == PURGE_CHUNK_SIZE;
+    }
+
+    /**
+     * Return the highest _id of the cakes hidden by a "delete all", reading it from the database
+     * the first time.
+     */
+    private long getDeletedThroughId() {
+        long deletedThroughId = mDeletedThroughId;
+        if (deletedThroughId < 0) {
+            synchronized (mJournal) {
+                if (mDeletedThroughId < 0) {
+                    mDeletedThroughId = CakeDbHelper.readMeta(mDbHelper.getReadableDatabase(),
+                            CakeDbHelper.META_DELETED_THROUGH_ID, 0);
+                }
+                deletedThroughId = mDeletedThroughId;
+            }
+        }
+        return deletedThroughId;
+    }
+
+    /**
+     * Return the given selection, limited to the cakes that haven't been hidden by a "delete
+     * all". The unary plus keeps SQLite from using the _id condition to pick its index, so
+     * filters and sort orders keep their own indexes while hidden rows are still around.
+     */
+    String visibleSelection(String selection) {
+        return visibleSelection(CakeEntry._ID, selection);
+    }
+
+    /**
+     * Like {@link #visibleSelection(String)}, for a cake _id in the given column.
+     */
+    private String visibleSelection(String idColumn, String selection) {
+        long deletedThroughId = getDeletedThroughId();
+        if (deletedThroughId == 0) {
+            return selection;
+        }
+        String visible = "+" + idColumn + ">" + deletedThroughId;
+        return selection == null ? visible : visible + " AND (" + selection + ")";
+    }
+
+    /**
+     * Return a selection that matches the cakes with the given ids.
+     */
+    private static String idSelection(long[] ids) {
+        return idSelection(CakeEntry._ID, ids);
+    }
+
+    /**
+     * Return a selection that matches the given ids in the given column.
+     */
+    static String idSelection(String column, long[] ids) {
+        StringBuilder selection = new StringBuilder(column + " IN (");
+        for (int i = 0; i < ids.length; i++) {
+            selection.append(i == 0 ? "" : ",").append(ids[i]);
+        }
+        return selection.append(")").toString();
+    }
+
+    /**
+     * Return the rows that match the selection, with the given columns or all of them if null,
+     * or null if there are more than {@link CakeJournal#MAX_ROWS} of them.
+     */
+    static ContentValues[] queryRows(SQLiteDatabase database, String[] columns,
+                                     String selection, String[] selectionArgs) {
+        Cursor cursor = database.query(CakeEntry.TABLE_NAME, columns, selection, selectionArgs,
+                null, null, null, String.valueOf(CakeJournal.MAX_ROWS + 1));
+        try {
+            if (cursor.getCount() > CakeJournal.MAX_ROWS) {
+                return null;
+            }
+            ContentValues[] rows = new ContentValues[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                rows[i] = new ContentValues();
+                DatabaseUtils.cursorRowToContentValues(cursor, rows[i]);
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the _id of every cake that matches the selection and has more than the given
+     * quantity, with how many it has above it. These are the cakes that sell some when their
+     * quantity is set to the given one.
+     */
+    private static long[][] querySales(SQLiteDatabase database, String selection,
+                                       String[] selectionArgs, int quantity) {
+        Cursor cursor = database.query(CakeEntry.TABLE_NAME,
+                new String[] { CakeEntry._ID, CakeEntry.COLUMN_CAKE_QUANTITY }, selection,
+                selectionArgs, null, null, null);
+        try {
+            List<long[]> sales = new ArrayList<long[]>();
+            while (cursor.moveToNext()) {
+                if (cursor.getLong(1) > quantity) {
+                    sales.add(new long[] { cursor.getLong(0), cursor.getLong(1) - quantity });
+                }
+            }
+            return sales.toArray(new long[sales.size()][]);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the report engine, creating it on first use.
+     */
+    private synchronized CakeReportEngine getReportEngine() {
+        if (mReportEngine == null) {
+            mReportEngine = new CakeReportEngine(mDbHelper.getWritableDatabase(),
+                    mTenants.getWorkers(), CakeTenantPool.WORKER_COUNT);
+        }
+        return mReportEngine;
+    }
+
+    /**
+     * Return the production planner, creating it on first use.
+     */
+    private synchronized CakeProductionPlanner getProductionPlanner() {
+        if (mProductionPlanner == null) {
+            mProductionPlanner = new CakeProductionPlanner(mDbHelper.getWritableDatabase(),
+                    mTenants.getWorkers(), CakeTenantPool.WORKER_COUNT);
+        }
+        return mProductionPlanner;
+    }
+
+    /**
+     * Open the photo of a single cake. Mode "r" returns the current photo, and any mode that
+     * contains "w" returns the write end of a pipe. The photo is streamed from the pipe into a new
+     * file on a background thread, and the cake row only starts pointing at the new file once the
+     * caller has closed the pipe, so readers never see a half-written photo.
+     *
+     * The export URI can only be opened in mode "r", and returns the read end of a pipe that the
+     * export is streamed into.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        CakeProvider tenant = acquireTenant(CakeContract.getTenant(uri));
+        if (tenant != null) {
+            try {
+                return tenant.openFile(uri, mode);
+            } finally {
+                mTenants.release(tenant);
+            }
+        }
+
+        int match = sUriMatcher.match(uri);
+        if (match == EXPORT) {
+            if (!"r".equals(mode)) {
+                throw new FileNotFoundException("Exports can only be read: " + uri);
+            }
+            return openExport(uri);
+        }
+        if (match != CAKE_ID) {
+            throw new FileNotFoundException("Files are not supported for " + uri);
+        }
+        long id = ContentUris.parseId(uri);
+        if (id <= getDeletedThroughId()) {
+            throw new FileNotFoundException("No cake for " + uri);
+        }
+
+        if (mode.contains("w")) {
+            return openImageForWrite(uri, id);
+        }
+
+        String imageName = CakePhotos.queryName(mDbHelper.getReadableDatabase(), id);
+        if (imageName == null) {
+            throw new FileNotFoundException("No photo for " + uri);
+        }
+        return ParcelFileDescriptor.open(mPhotos.getFile(imageName),
+                ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Return the read end of a pipe that every visible cake is written into, in the layout of
+     * {@link CakeExport}, on a background thread. From KitKat on the pipe is a reliable one, so
+     * a reader that closes it with {@link ParcelFileDescriptor.AutoCloseInputStream} learns of
+     * an export that failed part way instead of taking the cakes written so far for all of them.
+     */
+    private ParcelFileDescriptor openExport(final Uri uri) throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe = createPipe(uri);
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                writeExport(uri, pipe[1]);
+            }
+        });
+        return pipe[0];
+    }
+
+    /**
+     * Write every visible cake into the pipe with {@link CakeExport}, and close it. If the
+     * export fails, the pipe is closed with the error where the platform supports it. Runs on a
+     * background thread.
+     */
+    private void writeExport(Uri uri, ParcelFileDescriptor output) {
+        int rows = 0;
+        String error = null;
+        long start = CakeMetrics.begin("CakeProvider.export");
+        try {
+            rows = CakeExport.write(this, mDbHelper.getReadableDatabase(),
+                    output.getFileDescriptor());
+        } catch (IOException e) {
+            // Most often the reader closed its end of the pipe before the end of the export
+            Log.w(LOG_TAG, "Export of " + uri + " stopped", e);
+            error = "Export stopped: " + e.getMessage();
+        } catch (RuntimeException e) {
+            // Such as the database failing part way through. The export runs on a thread of
+            // its own, where an uncaught exception would take the whole app down.
+            Log.e(LOG_TAG, "Export of " + uri + " failed", e);
+            error = "Export failed: " + e;
+        } finally {
+            CakeMetrics.end(start, "export", getUriLabel(EXPORT), rows);
+            CakeExport.close(output, error);
+        }
+    }
+
+    /**
+     * Create a pipe for the caller to write a new photo into, and start copying whatever
+     * arrives on the other end into the images directory. From KitKat on the pipe is a reliable
+     * one, so a writer that fails half way through closes it with
+     * {@link ParcelFileDescriptor#closeWithError(String)} and the cake keeps its old photo.
+     * Before KitKat a photo that was cut short can't be told apart from a whole one.
+     */
+    private ParcelFileDescriptor openImageForWrite(final Uri uri, final long id)
+            throws FileNotFoundException {
+        // Make sure the cake exists before accepting any data for it
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        Cursor cursor = database.query(CakeEntry.TABLE_NAME, new String[] { CakeEntry._ID },
+                CakeEntry._ID + "=?", new String[] { String.valueOf(id) }, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                throw new FileNotFoundException("No cake for " + uri);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        final ParcelFileDescriptor[] pipe = createPipe(uri);
+        runInBackground(new Runnable() {
+            @Override
+            public void run() {
+                receiveImage(uri, id, pipe[0]);
+            }
+        });
+        return pipe[1];
+    }
+
+    /**
+     * Create a pipe to stream a file of the given URI through: a reliable one from KitKat on,
+     * so either end learns of the other failing part way, and a plain one before.
+     */
+    private static ParcelFileDescriptor[] createPipe(Uri uri) throws FileNotFoundException {
+        try {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                    ? ParcelFileDescriptor.createReliablePipe()
+                    : ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Unable to create pipe for " + uri);
+        }
+    }
+
+    /**
+     * Run work that streams a file on a background thread. The catalog of another shop is kept
+     * open by {@link #mTenants} until the work is done.
+     */
+    private void runInBackground(Runnable work) {
+        if (mTenant != null) {
+            mTenants.execute(this, work);
+        } else {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(work);
+        }
+    }
+
+    /**
+     * Copy the photo from the read end of the pipe into a fresh file, then point the cake row at
+     * it and remove the file it replaces. The row is only changed if the writer closed its end
+     * without an error. Runs on a background thread.
+     */
+    private void receiveImage(Uri uri, long id, ParcelFileDescriptor source) {
+        File file = mPhotos.newFile(id);
+        if (!mPhotos.store(source, file, uri.toString())) {
+            return;
+        }
+
+        // Swap the names under the lock of the writers, so that two photos written at once
+        // for the same cake can't both see the same old name: one would be leaked and the
+        // other removed twice
+        String oldImageName;
+        int rowsUpdated;
+        synchronized (mJournal) {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            database.beginTransaction();
+            try {
+                oldImageName = CakePhotos.queryName(database, id);
+
+                ContentValues values = new ContentValues();
+                values.put(CakeEntry.COLUMN_CAKE_IMAGE, file.getName());
+                rowsUpdated = database.update(CakeEntry.TABLE_NAME, values,
+                        visibleSelection(CakeEntry._ID + "=?"),
+                        new String[] { String.valueOf(id) });
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+
+        if (rowsUpdated == 0) {
+            // The cake was deleted while the photo was being written
+            file.delete();
+            return;
+        }
+
+        mPhotos.delete(oldImageName);
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
 }
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.annotation.TargetApi;
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.provider.BaseColumns;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link CakeQueryLoader} keeps the result of a query on {@link CakeProvider} up to date, and
+ * says which rows changed each time.
+ *
+ * Like a {@link android.content.CursorLoader}, it runs the query in the background and again
+ * whenever the provider notifies a change. Each new result is compared with the one delivered
+ * before, row by row, and delivered with a {@link CakeChangeSet} of the ids that were inserted,
+ * updated or removed, so the screen only has to redraw those rows. The first result comes with
+ * {@link CakeChangeSet#isInitial()} set.
+ *
+ * Every change it is told of costs the whole query again, and a pass over all of its rows that
+ * hashes each one and compares it with the result before, however few rows changed. Only the
+ * redrawing is limited to the changed rows. What keeps the cost down is that it is only told
+ * of the changes that can affect its rows: the provider announces a change to a single cake on
+ * the URI of that cake, and every other change on the URI of the list of cakes of its catalog.
+ * So a loader of the list runs again for any change to a cake of its catalog, a loader of a
+ * single cake only for changes to that cake or to many cakes at once, and neither for changes
+ * to another shop's catalog or to anything but the cakes.
+ *
+ * A burst of changes is taken as one: a new query starts at most once every
+ * {@link #UPDATE_THROTTLE} milliseconds, and only the last result of the ones that were
+ * waiting is delivered. If nothing the query returns has changed, for example because the
+ * change was to a cake the query leaves out, the rows already delivered are delivered again,
+ * with an empty change set and the time of the newer query, so the receiver learns that they
+ * are still current without anything being redrawn.
+ *
+ * The loader owns the cursors it delivers and closes each one once the next has been
+ * delivered, so the receiver must not close them.
+ */
+public class CakeQueryLoader extends AsyncTaskLoader<CakeQueryLoader.Result> {
+
+    /** Shortest time between the end of one query and the start of the next, in milliseconds */
+    static final long UPDATE_THROTTLE = 200;
+
+    /** Offset basis and prime of the 64-bit FNV-1a hash the rows are compared with */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * A result of the query: the rows, what has changed since the last result, and the
+     * fingerprint of each row that the next result is compared with.
+     */
+    public static final class Result {
+
+        private final Cursor mCursor;
+        private final CakeChangeSet mChanges;
+
+        /** Ids of the rows, in the order of the cursor */
+        final long[] ids;
+
+        /** Hash of the values of each row, in the order of the cursor */
+        final long[] hashes;
+
+        /** {@link System#nanoTime()} at which the query of the result started */
+        private long mStartedAt;
+
+        Result(Cursor cursor, CakeChangeSet changes, long[] ids, long[] hashes) {
+            mCursor = cursor;
+            mChanges = changes;
+            this.ids = ids;
+            this.hashes = hashes;
+        }
+
+        /**
+         * Return the rows of the result. The cursor belongs to the loader.
+         */
+        public Cursor getCursor() {
+            return mCursor;
+        }
+
+        /**
+         * Return the rows that changed since the result delivered before this one.
+         */
+        public CakeChangeSet getChanges() {
+            return mChanges;
+        }
+
+        /**
+         * Return the {@link System#nanoTime()} at which the query of the result started. The
+         * rows hold every change committed before then.
+         */
+        public long getStartedAt() {
+            return mStartedAt;
+        }
+
+        void close() {
+            if (!mCursor.isClosed()) {
+                mCursor.close();
+            }
+        }
+    }
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final String mSortOrder;
+
+    /**
+     * Result delivered last. Set on the main thread and read by the query in the background,
+     * which only runs once the result before it has been delivered.
+     */
+    private volatile Result mResult;
+
+    /**
+     * Cancels the query running in the background, if there is one. Only used on Jelly Bean and
+     * up, and guarded by the loader's lock.
+     */
+    private CancellationSignal mCancellationSignal;
+
+    /**
+     * Constructs a new {@link CakeQueryLoader}. The arguments are those of
+     * {@link android.content.ContentResolver#query}, and the projection must include
+     * {@link BaseColumns#_ID}.
+     */
+    public CakeQueryLoader(Context context, Uri uri, String[] projection, String selection,
+                           String[] selectionArgs, String sortOrder) {
+        super(context);
+        mUri = uri;
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mSortOrder = sortOrder;
+        setUpdateThrottle(UPDATE_THROTTLE);
+    }
+
+    @Override
+    public Result loadInBackground() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return load(null);
+        }
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            mCancellationSignal = cancellationSignal;
+        }
+        try {
+            return load(cancellationSignal);
+        } finally {
+            synchronized (this) {
+                mCancellationSignal = null;
+            }
+        }
+    }
+
+    /**
+     * Stop the query running in the background. This is called when the loader is reset, and
+     * when its content changes or it is restarted with another selection while the query runs,
+     * so a query whose rows would be thrown away stops reading them. The query then throws an
+     * {@link OperationCanceledException}, which the loader takes as a cancelled load.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+    }
+
+    /**
+     * Run the query and compare its rows with the last result. Both the query and counting its
+     * rows stop once the cancellation signal, if there is one, is cancelled.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private Result load(CancellationSignal cancellationSignal) {
+        long startedAt = System.nanoTime();
+        Cursor cursor;
+        if (cancellationSignal == null) {
+            cursor = getContext().getContentResolver().query(mUri, mProjection, mSelection,
+                    mSelectionArgs, mSortOrder);
+        } else {
+            cursor = getContext().getContentResolver().query(mUri, mProjection, mSelection,
+                    mSelectionArgs, mSortOrder, cancellationSignal);
+        }
+        if (cursor == null) {
+            return null;
+        }
+        long start = CakeMetrics.begin("CakeQueryLoader.diff");
+        int rows = 0;
+        try {
+            // Counting runs the query, so the rows are all read before they are compared
+            rows = cursor.getCount();
+            Result result = compare(mResult, cursor);
+            if (result.getChanges().isEmpty()) {
+                // The rows already on screen are still right, so keep their cursor, and only
+                // tell the receiver that they are as of this query
+                cursor.close();
+                result = new Result(mResult.mCursor, result.getChanges(), mResult.ids,
+                        mResult.hashes);
+            } else {
+                cursor.registerContentObserver(mObserver);
+            }
+            result.mStartedAt = startedAt;
+            return result;
+        } catch (RuntimeException e) {
+            cursor.close();
+            throw e;
+        } finally {
+            CakeMetrics.end(start, "diff", mUri.getLastPathSegment(), rows);
+        }
+    }
+
+    /**
+     * Read the ids and values of every row of the cursor, and find the rows that differ from
+     * the previous result, if there is one.
+     */
+    static Result compare(Result previous, Cursor cursor) {
+        int count = cursor.getCount();
+        int idColumn = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+        int columnCount = cursor.getColumnCount();
+        long[] ids = new long[count];
+        long[] hashes = new long[count];
+        cursor.moveToPosition(-1);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(idColumn);
+            hashes[i] = hashRow(cursor, columnCount);
+        }
+        // Put the cursor back before its first row, as the query returned it
+        cursor.moveToPosition(-1);
+
+        if (previous == null) {
+            return new Result(cursor, CakeChangeSet.INITIAL, ids, hashes);
+        }
+
+        // Position of every previous row, by id
+        Map<Long, Integer> oldPositions = new HashMap<Long, Integer>(previous.ids.length * 2);
+        for (int i = 0; i < previous.ids.length; i++) {
+            oldPositions.put(previous.ids[i], i);
+        }
+
+        boolean[] kept = new boolean[previous.ids.length];
+        long[] inserted = new long[count];
+        long[] updated = new long[count];
+        int insertedCount = 0;
+        int updatedCount = 0;
+        int lastOldPosition = -1;
+        boolean moved = false;
+        for (int i = 0; i < count; i++) {
+            Integer oldPosition = oldPositions.get(ids[i]);
+            if (oldPosition == null) {
+                inserted[insertedCount++] = ids[i];
+                continue;
+            }
+            kept[oldPosition] = true;
+            if (hashes[i] != previous.hashes[oldPosition]) {
+                updated[updatedCount++] = ids[i];
+            }
+            // The rows in both results should come in the same order unless something moved
+            if (oldPosition < lastOldPosition) {
+                moved = true;
+            }
+            lastOldPosition = oldPosition;
+        }
+
+        long[] removed = new long[previous.ids.length - (count - insertedCount)];
+        int removedCount = 0;
+        for (int i = 0; i < kept.length; i++) {
+            if (!kept[i]) {
+                removed[removedCount++] = previous.ids[i];
+            }
+        }
+
+        CakeChangeSet changes = new CakeChangeSet(false, trim(inserted, insertedCount),
+                trim(updated, updatedCount), removed, moved);
+        return new Result(cursor, changes, ids, hashes);
+    }
+
+    /**
+     * Return a 64-bit hash of the values in the current row. Two rows with the same hash are
+     * taken to be the same, which a 64-bit hash makes safe for any catalog that fits a phone.
+     */
+    private static long hashRow(Cursor cursor, int columnCount) {
+        long hash = FNV_OFFSET;
+        for (int c = 0; c < columnCount; c++) {
+            int type = cursor.getType(c);
+            hash = (hash ^ type) * FNV_PRIME;
+            switch (type) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    hash = hashLong(hash, cursor.getLong(c));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    hash = hashLong(hash, Double.doubleToLongBits(cursor.getDouble(c)));
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    String string = cursor.getString(c);
+                    for (int i = 0; i < string.length(); i++) {
+                        hash = (hash ^ string.charAt(i)) * FNV_PRIME;
+                    }
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    byte[] blob = cursor.getBlob(c);
+                    for (byte b : blob) {
+                        hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return hash;
+    }
+
+    private static long hashLong(long hash, long value) {
+        for (int shift = 0; shift < 64; shift += 8) {
+            hash = (hash ^ ((value >>> shift) & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long[] trim(long[] values, int length) {
+        if (length == values.length) {
+            return values;
+        }
+        long[] trimmed = new long[length];
+        System.arraycopy(values, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    /* Runs on the UI thread */
+    @Override
+    public void deliverResult(Result result) {
+        if (isReset()) {
+            // An async query came in while the loader is stopped
+            if (result != null) {
+                result.close();
+            }
+            return;
+        }
+        Result oldResult = mResult;
+        mResult = result;
+
+        if (isStarted()) {
+            super.deliverResult(result);
+        }
+
+        // A result of unchanged rows shares the cursor of the one before
+        if (oldResult != null && (result == null || oldResult.mCursor != result.mCursor)) {
+            oldResult.close();
+        }
+    }
+
+    /**
+     * Starts an asynchronous load of the data. When the result is ready the callbacks
+     * will be called on the UI thread. If a previous load has been completed and is still valid
+     * the result may be passed to the callbacks immediately.
+     *
+     * Must be called from the UI thread
+     */
+    @Override
+    protected void onStartLoading() {
+        if (mResult != null) {
+            deliverResult(mResult);
+        }
+        if (takeContentChanged() || mResult == null) {
+            forceLoad();
+        }
+    }
+
+    /**
+     * Must be called from the UI thread
+     */
+    @Override
+    protected void onStopLoading() {
+        // Attempt to cancel the current load task if possible.
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(Result result) {
+        // A result that was never delivered, unless it shares the cursor of the last one
+        // because nothing had changed
+        if (result != null && (mResult == null || result.mCursor != mResult.mCursor)) {
+            result.close();
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+
+        // Ensure the loader is stopped
+        onStopLoading();
+
+        if (mResult != null) {
+            mResult.close();
+        }
+        mResult = null;
+    }
+}
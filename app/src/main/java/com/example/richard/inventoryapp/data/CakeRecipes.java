@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.support.v4.util.LongSparseArray;
+
+import com.example.richard.inventoryapp.data.CakeContract.IngredientEntry;
+import com.example.richard.inventoryapp.data.CakeContract.RecipeEntry;
+import com.example.richard.inventoryapp.data.CakeContract.RecipeItemEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes to the ingredients, the recipes and the lines of the recipes, for {@link CakeProvider}.
+ *
+ * Each write is a transaction of its own, which also holds the checks of what it writes: the
+ * values of the rows, and that no line makes a recipe use itself through other recipes, however
+ * deep. So no other write can slip in between a check and the change it allows. Recipes aren't
+ * part of the undo history, so none of this waits for its lock either. The caller announces the
+ * changes.
+ */
+final class CakeRecipes {
+
+    private CakeRecipes() {}
+
+    /**
+     * Add an ingredient, a recipe or a line of a recipe. Return the new row ID, or -1 if the
+     * insert failed, for example because an ingredient of that name exists.
+     *
+     * @param table of {@link IngredientEntry}, {@link RecipeEntry} or {@link RecipeItemEntry}
+     */
+    static long insert(SQLiteDatabase database, String table, ContentValues values) {
+        checkValues(table, values, true);
+
+        // A line that uses another recipe is checked for a cycle in the same transaction as the
+        // insert, so no other line can close one in between
+        database.beginTransactionNonExclusive();
+        try {
+            Long subRecipeId = values.getAsLong(RecipeItemEntry.COLUMN_SUB_RECIPE_ID);
+            if (RecipeItemEntry.TABLE_NAME.equals(table) && subRecipeId != null) {
+                checkNoCycle(database, values.getAsLong(RecipeItemEntry.COLUMN_RECIPE_ID),
+                        subRecipeId);
+            }
+            long id = database.insert(table, null, values);
+            database.setTransactionSuccessful();
+            return id;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Update ingredients, recipes or lines of the recipes. Only the values that are there are
+     * checked, except for lines, which are checked whole as they are after the change. Return
+     * the number of rows updated.
+     *
+     * @param table of {@link IngredientEntry}, {@link RecipeEntry} or {@link RecipeItemEntry}
+     */
+    static int update(SQLiteDatabase database, String table, ContentValues values,
+                      String selection, String[] selectionArgs) {
+        if (RecipeItemEntry.TABLE_NAME.equals(table)) {
+            return updateItems(database, values, selection, selectionArgs);
+        }
+        checkValues(table, values, false);
+        return database.update(table, values, selection, selectionArgs);
+    }
+
+    /**
+     * Delete ingredients or recipes along with the lines of the recipes that use them, or
+     * some lines of the recipes, in one transaction. Return the number of rows deleted, not
+     * counting the lines that went with an ingredient or recipe.
+     *
+     * @param table of {@link IngredientEntry}, {@link RecipeEntry} or {@link RecipeItemEntry}
+     */
+    static int delete(SQLiteDatabase database, String table, String selection,
+                      String[] selectionArgs) {
+        database.beginTransactionNonExclusive();
+        try {
+            if (!RecipeItemEntry.TABLE_NAME.equals(table)) {
+                // The lines go first, picked by the same selection as the rows they use
+                String rows = "(SELECT " + BaseColumns._ID + " FROM " + table
+                        + (selection != null ? " WHERE " + selection : "") + ")";
+                if (IngredientEntry.TABLE_NAME.equals(table)) {
+                    database.delete(RecipeItemEntry.TABLE_NAME,
+                            RecipeItemEntry.COLUMN_INGREDIENT_ID + " IN " + rows, selectionArgs);
+                } else {
+                    // The subquery is there twice, and so are its arguments
+                    String[] lineArgs = null;
+                    if (selectionArgs != null) {
+                        lineArgs = new String[selectionArgs.length * 2];
+                        System.arraycopy(selectionArgs, 0, lineArgs, 0, selectionArgs.length);
+                        System.arraycopy(selectionArgs, 0, lineArgs, selectionArgs.length,
+                                selectionArgs.length);
+                    }
+                    database.delete(RecipeItemEntry.TABLE_NAME,
+                            RecipeItemEntry.COLUMN_RECIPE_ID + " IN " + rows + " OR "
+                                    + RecipeItemEntry.COLUMN_SUB_RECIPE_ID + " IN " + rows,
+                            lineArgs);
+                }
+            }
+            int rowsDeleted = database.delete(table, selection, selectionArgs);
+            database.setTransactionSuccessful();
+            return rowsDeleted;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Update lines of the recipes, then check every changed line as it now is, in the same
+     * transaction, so a change that leaves a line invalid or makes a recipe use itself is
+     * thrown out whole. Return the number of lines updated.
+     */
+    private static int updateItems(SQLiteDatabase database, ContentValues values,
+                                   String selection, String[] selectionArgs) {
+        database.beginTransactionNonExclusive();
+        try {
+            // The selection may be on the columns being changed, so find the lines first
+            Cursor cursor = database.query(RecipeItemEntry.TABLE_NAME,
+                    new String[] { RecipeItemEntry._ID }, selection, selectionArgs, null, null,
+                    null);
+            long[] ids;
+            try {
+                ids = new long[cursor.getCount()];
+                for (int i = 0; cursor.moveToNext(); i++) {
+                    ids[i] = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (ids.length == 0) {
+                return 0;
+            }
+
+            String idSelection = CakeProvider.idSelection(RecipeItemEntry._ID, ids);
+            int rows = database.update(RecipeItemEntry.TABLE_NAME, values, idSelection, null);
+            cursor = database.query(RecipeItemEntry.TABLE_NAME, null, idSelection, null, null,
+                    null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    ContentValues line = new ContentValues();
+                    DatabaseUtils.cursorRowToContentValues(cursor, line);
+                    checkValues(RecipeItemEntry.TABLE_NAME, line, true);
+                    Long subRecipeId = line.getAsLong(RecipeItemEntry.COLUMN_SUB_RECIPE_ID);
+                    if (subRecipeId != null) {
+                        checkNoCycle(database, line.getAsLong(RecipeItemEntry.COLUMN_RECIPE_ID),
+                                subRecipeId);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            database.setTransactionSuccessful();
+            return rows;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Check the values of an ingredient, a recipe or a line of a recipe, and throw if they are
+     * invalid. For an insert the values must be complete; for an update only the values that
+     * are there are checked.
+     */
+    private static void checkValues(String table, ContentValues values, boolean insert) {
+        if (IngredientEntry.TABLE_NAME.equals(table)) {
+            if ((insert || values.containsKey(IngredientEntry.COLUMN_NAME))
+                    && values.getAsString(IngredientEntry.COLUMN_NAME) == null) {
+                throw new IllegalArgumentException("Ingredient requires a name");
+            }
+            if (CakeProvider.getDouble(values, IngredientEntry.COLUMN_STOCK, 0) < 0) {
+                throw new IllegalArgumentException("Ingredient requires a valid stock");
+            }
+        } else if (RecipeEntry.TABLE_NAME.equals(table)) {
+            if ((insert || values.containsKey(RecipeEntry.COLUMN_NAME))
+                    && values.getAsString(RecipeEntry.COLUMN_NAME) == null) {
+                throw new IllegalArgumentException("Recipe requires a name");
+            }
+            if (CakeProvider.getDouble(values, RecipeEntry.COLUMN_YIELD, 1) <= 0) {
+                throw new IllegalArgumentException("Recipe requires a valid yield");
+            }
+        } else {
+            Long recipeId = values.getAsLong(RecipeItemEntry.COLUMN_RECIPE_ID);
+            Long ingredientId = values.getAsLong(RecipeItemEntry.COLUMN_INGREDIENT_ID);
+            Long subRecipeId = values.getAsLong(RecipeItemEntry.COLUMN_SUB_RECIPE_ID);
+            if (recipeId == null || (ingredientId == null) == (subRecipeId == null)) {
+                throw new IllegalArgumentException("Recipe line requires a recipe and either"
+                        + " an ingredient or another recipe");
+            }
+            if (recipeId.equals(subRecipeId)) {
+                throw new IllegalArgumentException("Recipe cannot use itself");
+            }
+            if (CakeProvider.getDouble(values, RecipeItemEntry.COLUMN_AMOUNT, 0) <= 0) {
+                throw new IllegalArgumentException("Recipe line requires a valid amount");
+            }
+        }
+    }
+
+    /**
+     * Throw if a line of the given recipe that uses the given other recipe would make a recipe
+     * use itself, because the other recipe already uses the first one through its own lines,
+     * however deep. The recipes are followed a level at a time, one query per level through the
+     * index on the recipe of the lines, and each recipe is only followed once.
+     */
+    private static void checkNoCycle(SQLiteDatabase database, long recipeId, long subRecipeId) {
+        LongSparseArray<Boolean> seen = new LongSparseArray<Boolean>();
+        List<Long> level = new ArrayList<Long>();
+        level.add(subRecipeId);
+        seen.put(subRecipeId, Boolean.TRUE);
+        while (!level.isEmpty()) {
+            long[] ids = new long[level.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = level.get(i);
+            }
+            level.clear();
+            Cursor cursor = database.query(true, RecipeItemEntry.TABLE_NAME,
+                    new String[] { RecipeItemEntry.COLUMN_SUB_RECIPE_ID },
+                    CakeProvider.idSelection(RecipeItemEntry.COLUMN_RECIPE_ID, ids) + " AND "
+                            + RecipeItemEntry.COLUMN_SUB_RECIPE_ID + " IS NOT NULL",
+                    null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    if (id == recipeId) {
+                        throw new IllegalArgumentException("Recipe " + recipeId
+                                + " cannot use recipe " + subRecipeId + ", which uses it");
+                    }
+                    if (seen.get(id) == null) {
+                        seen.put(id, Boolean.TRUE);
+                        level.add(id);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.os.Bundle;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+/**
+ * Totals of an inventory report: stock value and margin per occasion, and the age of the stock.
+ *
+ * Occasion totals are indexed with {@link #occasionIndex(int)}, age totals by the AGE_ bucket
+ * constants. Partial reports over parts of the table are combined with {@link #add(CakeReport)}.
+ */
+public final class CakeReport {
+
+    /** Number of occasions the totals are split into */
+    public static final int OCCASION_COUNT = 3;
+
+    /** Buckets of the stock age totals */
+    public static final int AGE_UNDER_1_DAY = 0;
+    public static final int AGE_1_TO_3_DAYS = 1;
+    public static final int AGE_3_TO_7_DAYS = 2;
+    public static final int AGE_OVER_7_DAYS = 3;
+    public static final int AGE_BUCKET_COUNT = 4;
+
+    /** Keys of the report in a Bundle */
+    private static final String KEY_CAKES = "cakes";
+    private static final String KEY_UNITS = "units";
+    private static final String KEY_RETAIL_VALUE = "retail_value";
+    private static final String KEY_COST_VALUE = "cost_value";
+    private static final String KEY_AGE_UNITS = "age_units";
+
+    /** Number of different cakes per occasion */
+    public final long[] cakes = new long[OCCASION_COUNT];
+
+    /** Number of cakes in stock per occasion */
+    public final long[] units = new long[OCCASION_COUNT];
+
+    /** Value of the stock at its selling price, per occasion */
+    public final double[] retailValue = new double[OCCASION_COUNT];
+
+    /** Value of the stock at its cost, per occasion */
+    public final double[] costValue = new double[OCCASION_COUNT];
+
+    /** Number of cakes in stock per age bucket */
+    public final long[] ageUnits = new long[AGE_BUCKET_COUNT];
+
+    /**
+     * Return the index of the given occasion in the occasion totals.
+     */
+    public static int occasionIndex(int occasion) {
+        switch (occasion) {
+            case CakeEntry.OCCASION_BIRTHDAY:
+                return 1;
+            case CakeEntry.OCCASION_WEDDING:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Return the age bucket of stock of the given age in milliseconds.
+     */
+    public static int ageBucket(long ageMillis) {
+        long days = ageMillis / (24L * 60 * 60 * 1000);
+        if (days < 1) {
+            return AGE_UNDER_1_DAY;
+        } else if (days < 3) {
+            return AGE_1_TO_3_DAYS;
+        } else if (days < 7) {
+            return AGE_3_TO_7_DAYS;
+        }
+        return AGE_OVER_7_DAYS;
+    }
+
+    /**
+     * Return the margin of the stock of the given occasion index: its retail value minus its cost.
+     */
+    public double getMargin(int occasionIndex) {
+        return retailValue[occasionIndex] - costValue[occasionIndex];
+    }
+
+    /**
+     * Return the retail value of the whole stock.
+     */
+    public double getTotalRetailValue() {
+        double total = 0;
+        for (double value : retailValue) {
+            total += value;
+        }
+        return total;
+    }
+
+    /**
+     * Add the totals of another report to this one.
+     */
+    public void add(CakeReport other) {
+        for (int i = 0; i < OCCASION_COUNT; i++) {
+            cakes[i] += other.cakes[i];
+            units[i] += other.units[i];
+            retailValue[i] += other.retailValue[i];
+            costValue[i] += other.costValue[i];
+        }
+        for (int i = 0; i < AGE_BUCKET_COUNT; i++) {
+            ageUnits[i] += other.ageUnits[i];
+        }
+    }
+
+    /**
+     * Return the report as a Bundle, for returning it from the provider.
+     */
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLongArray(KEY_CAKES, cakes);
+        bundle.putLongArray(KEY_UNITS, units);
+        bundle.putDoubleArray(KEY_RETAIL_VALUE, retailValue);
+        bundle.putDoubleArray(KEY_COST_VALUE, costValue);
+        bundle.putLongArray(KEY_AGE_UNITS, ageUnits);
+        return bundle;
+    }
+
+    /**
+     * Read a report from a Bundle made by {@link #toBundle()}.
+     */
+    public static CakeReport fromBundle(Bundle bundle) {
+        CakeReport report = new CakeReport();
+        System.arraycopy(bundle.getLongArray(KEY_CAKES), 0, report.cakes, 0, OCCASION_COUNT);
+        System.arraycopy(bundle.getLongArray(KEY_UNITS), 0, report.units, 0, OCCASION_COUNT);
+        System.arraycopy(bundle.getDoubleArray(KEY_RETAIL_VALUE), 0, report.retailValue, 0,
+                OCCASION_COUNT);
+        System.arraycopy(bundle.getDoubleArray(KEY_COST_VALUE), 0, report.costValue, 0,
+                OCCASION_COUNT);
+        System.arraycopy(bundle.getLongArray(KEY_AGE_UNITS), 0, report.ageUnits, 0,
+                AGE_BUCKET_COUNT);
+        return report;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds {@link CakeReport}s by scanning the cakes table in parallel.
+ *
+ * The table is split into ranges of _id, which SQLite can seek to directly through the primary
+ * key. Each range is read on its own thread; with write-ahead logging turned on in
+ * {@link CakeDbHelper} every thread gets a read connection of its own, so the reads really run
+ * at the same time. The partial reports are then added together.
+ *
+ * Since each range is read on its own connection, in a read transaction of its own, each sees
+ * the table as of the moment its read started, and SQLite can't share one snapshot between
+ * connections. Writes carry on while a report is built, so a change committed in the middle of
+ * it may be seen by some ranges and not by others. Every cake is still counted exactly once,
+ * as the ranges split the _ids and an _id never changes, but a change to several cakes at once,
+ * such as a bulk edit, may show up for only part of them, and the totals may then add up to no
+ * state the catalog was ever in. The ranges start reading at most the length of the scan
+ * apart, so that is as far apart as the moments they see can be. Build with a parallelism of 1
+ * for a report whose cakes are read with a single query, and so from a single state.
+ */
+public final class CakeReportEngine {
+
+    /** Number of ranges per thread, so a slow range doesn't leave the other threads idle */
+    private static final int RANGES_PER_THREAD = 4;
+
+    /** Columns read for the report, in the order {@link #scanRange} expects them */
+    private static final String SQL_SCAN_RANGE = "SELECT "
+            + CakeEntry.COLUMN_CAKE_OCCASION + ", "
+            + CakeEntry.COLUMN_CAKE_PRICE + ", "
+            + CakeEntry.COLUMN_CAKE_COST + ", "
+            + CakeEntry.COLUMN_CAKE_QUANTITY + ", "
+            + CakeEntry.COLUMN_CAKE_STOCKED_AT
+            + " FROM " + CakeEntry.TABLE_NAME
+            + " WHERE " + CakeEntry._ID + " BETWEEN ? AND ?";
+
+    private final SQLiteDatabase mDatabase;
+    private final int mParallelism;
+    private final ExecutorService mExecutor;
+
+    /** Whether {@link #mExecutor} was created for this object, so it is stopped with it */
+    private final boolean mOwnsExecutor;
+
+    /**
+     * Constructs a new {@link CakeReportEngine}. Call {@link #shutdown()} when done with it.
+     *
+     * @param database    to read the cakes from
+     * @param parallelism number of threads to scan with, 1 for a sequential scan
+     */
+    public CakeReportEngine(SQLiteDatabase database, int parallelism) {
+        mDatabase = database;
+        mParallelism = Math.max(parallelism, 1);
+        mExecutor = mParallelism > 1 ? Executors.newFixedThreadPool(mParallelism) : null;
+        mOwnsExecutor = true;
+    }
+
+    /**
+     * Constructs a new {@link CakeReportEngine} that runs on threads shared with other work, which
+     * {@link #shutdown()} leaves running.
+     *
+     * @param database    to read the cakes from
+     * @param executor    to run the parts on
+     * @param parallelism number of threads of the executor
+     */
+    public CakeReportEngine(SQLiteDatabase database, ExecutorService executor, int parallelism) {
+        mDatabase = database;
+        mParallelism = Math.max(parallelism, 1);
+        mExecutor = mParallelism > 1 ? executor : null;
+        mOwnsExecutor = false;
+    }
+
+    /**
+     * Constructs a new {@link CakeReportEngine} with a thread per processor core.
+     */
+    public CakeReportEngine(SQLiteDatabase database) {
+        this(database, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Build the report of the whole table, as of the given time.
+     *
+     * @param now time the stock ages are measured against, in milliseconds since the epoch
+     */
+    public CakeReport buildReport(long now) {
+        return buildReport(now, 0);
+    }
+
+    /**
+     * Build the report of the cakes with an _id above the given one, as of the given time.
+     *
+     * @param now              time the stock ages are measured against, in milliseconds since
+     *                         the epoch
+     * @param deletedThroughId highest _id of the cakes that have been deleted but may still be
+     *                         in the table, which are left out of the report
+     */
+    public CakeReport buildReport(final long now, long deletedThroughId) {
+        long[] bounds = queryIdBounds(deletedThroughId);
+        if (bounds == null) {
+            return new CakeReport();
+        }
+        long firstId = bounds[0];
+        long lastId = bounds[1];
+
+        if (mExecutor == null) {
+            // A single query, so a single snapshot of the table
+            return scanRange(firstId, lastId, now);
+        }
+
+        // Split the ids into ranges of about the same width and scan them in parallel
+        int rangeCount = mParallelism * RANGES_PER_THREAD;
+        long width = Math.max((lastId - firstId + 1 + rangeCount - 1) / rangeCount, 1);
+
+        List<Future<CakeReport>> partials = new ArrayList<Future<CakeReport>>();
+        for (long start = firstId; start <= lastId; start += width) {
+            final long rangeStart = start;
+            final long rangeEnd = Math.min(start + width - 1, lastId);
+            partials.add(mExecutor.submit(new Callable<CakeReport>() {
+                @Override
+                public CakeReport call() {
+                    return scanRange(rangeStart, rangeEnd, now);
+                }
+            }));
+        }
+
+        CakeReport report = new CakeReport();
+        try {
+            for (Future<CakeReport> partial : partials) {
+                report.add(partial.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building report", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to build report", e.getCause());
+        } finally {
+            for (Future<CakeReport> partial : partials) {
+                partial.cancel(true);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Stop the scanning threads, unless they are shared.
+     */
+    public void shutdown() {
+        if (mExecutor != null && mOwnsExecutor) {
+            mExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Return the smallest and largest id above the given one in the table, or null if there
+     * are none.
+     */
+    private long[] queryIdBounds(long afterId) {
+        Cursor cursor = mDatabase.rawQuery("SELECT MIN(" + CakeEntry._ID + "), MAX("
+                + CakeEntry._ID + ") FROM " + CakeEntry.TABLE_NAME
+                + " WHERE " + CakeEntry._ID + ">?", new String[] { String.valueOf(afterId) });
+        try {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return null;
+            }
+            return new long[] { cursor.getLong(0), cursor.getLong(1) };
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Build the report of the cakes with ids in the given range, both ends included.
+     */
+    private CakeReport scanRange(long firstId, long lastId, long now) {
+        CakeReport report = new CakeReport();
+        Cursor cursor = mDatabase.rawQuery(SQL_SCAN_RANGE,
+                new String[] { String.valueOf(firstId), String.valueOf(lastId) });
+        try {
+            while (cursor.moveToNext()) {
+                int occasion = CakeReport.occasionIndex(cursor.getInt(0));
+                double price = cursor.getDouble(1);
+                double cost = cursor.getDouble(2);
+                int quantity = cursor.getInt(3);
+                long stockedAt = cursor.getLong(4);
+
+                report.cakes[occasion]++;
+                report.units[occasion] += quantity;
+                report.retailValue[occasion] += price * quantity;
+                report.costValue[occasion] += cost * quantity;
+                report.ageUnits[CakeReport.ageBucket(now - stockedAt)] += quantity;
+            }
+        } finally {
+            cursor.close();
+        }
+        return report;
+    }
+}
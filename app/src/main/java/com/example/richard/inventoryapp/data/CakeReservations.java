@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+
+import com.example.richard.inventoryapp.data.CakeContract.PickupSlotEntry;
+import com.example.richard.inventoryapp.data.CakeContract.ReservationEntry;
+
+/**
+ * Reads and writes the pickup slots and reservations of custom orders, for {@link CakeProvider}.
+ *
+ * Booking never reads the slot and then writes it, which would let two tills both see the last
+ * free place and both take it. Instead the check and the booking are one conditional UPDATE,
+ * which SQLite runs atomically against every other writer of the database: either the slot had
+ * room and now holds the order, or nothing changed. So no lock is needed in the app, and a
+ * booking only waits for the write that is running at the time, not for the whole catalog. The
+ * CHECK constraint on the slots table backs this up, should anything else ever write to it.
+ */
+final class CakeReservations {
+
+    /** Columns returned by the pickup slot queries */
+    private static final String SLOT_COLUMNS = PickupSlotEntry._ID + ", "
+            + PickupSlotEntry.COLUMN_STARTS_AT + ", " + PickupSlotEntry.COLUMN_CAPACITY + ", "
+            + PickupSlotEntry.COLUMN_BOOKED + ", " + PickupSlotEntry.COLUMN_CAPACITY + "-"
+            + PickupSlotEntry.COLUMN_BOOKED + " AS " + PickupSlotEntry.COLUMN_AVAILABLE;
+
+    /** Columns returned by the reservation queries */
+    private static final String RESERVATION_COLUMNS = ReservationEntry._ID + ", "
+            + ReservationEntry.COLUMN_SLOT_ID + ", " + ReservationEntry.COLUMN_CAKE_ID + ", "
+            + ReservationEntry.COLUMN_QUANTITY + ", " + ReservationEntry.COLUMN_CUSTOMER + ", "
+            + ReservationEntry.COLUMN_CREATED_AT;
+
+    /** Book the cakes into the slot if, and only if, there is still room for them */
+    private static final String SQL_BOOK = "UPDATE " + PickupSlotEntry.TABLE_NAME
+            + " SET " + PickupSlotEntry.COLUMN_BOOKED + "=" + PickupSlotEntry.COLUMN_BOOKED + "+?"
+            + " WHERE " + PickupSlotEntry._ID + "=?"
+            + " AND " + PickupSlotEntry.COLUMN_BOOKED + "+?<=" + PickupSlotEntry.COLUMN_CAPACITY;
+
+    /** Give the room taken by a cancelled reservation back to its slot */
+    private static final String SQL_RELEASE = "UPDATE " + PickupSlotEntry.TABLE_NAME
+            + " SET " + PickupSlotEntry.COLUMN_BOOKED + "=" + PickupSlotEntry.COLUMN_BOOKED + "-?"
+            + " WHERE " + PickupSlotEntry._ID + "=?";
+
+    /** Change the capacity of a slot, unless it would leave the slot overbooked */
+    private static final String SQL_SET_CAPACITY = "UPDATE " + PickupSlotEntry.TABLE_NAME
+            + " SET " + PickupSlotEntry.COLUMN_CAPACITY + "=?"
+            + " WHERE " + PickupSlotEntry._ID + "=?"
+            + " AND " + PickupSlotEntry.COLUMN_BOOKED + "<=?";
+
+    private CakeReservations() {}
+
+    /**
+     * Return the slots that start in the given range, in order. This is a single range of the
+     * index on the start time. The columns are those of {@link PickupSlotEntry}.
+     *
+     * @param from               start of the range, inclusive, as a selection argument
+     * @param to                 end of the range, exclusive, as a selection argument
+     * @param cancellationSignal to stop the query with, or null
+     */
+    static Cursor querySlots(SQLiteDatabase database, String from, String to,
+                             CancellationSignal cancellationSignal) {
+        return CakeProvider.rawQuery(database, "SELECT " + SLOT_COLUMNS
+                + " FROM " + PickupSlotEntry.TABLE_NAME
+                + " WHERE " + PickupSlotEntry.COLUMN_STARTS_AT + ">=?"
+                + " AND " + PickupSlotEntry.COLUMN_STARTS_AT + "<?"
+                + " ORDER BY " + PickupSlotEntry.COLUMN_STARTS_AT + " ASC",
+                new String[] { from, to }, cancellationSignal);
+    }
+
+    /**
+     * Return a single slot, with the columns of {@link PickupSlotEntry}.
+     */
+    static Cursor querySlot(SQLiteDatabase database, long slotId,
+                            CancellationSignal cancellationSignal) {
+        return CakeProvider.rawQuery(database, "SELECT " + SLOT_COLUMNS
+                + " FROM " + PickupSlotEntry.TABLE_NAME
+                + " WHERE " + PickupSlotEntry._ID + "=?",
+                new String[] { String.valueOf(slotId) }, cancellationSignal);
+    }
+
+    /**
+     * Return the reservations of a slot, oldest first, read through the index on the slot. The
+     * columns are those of {@link ReservationEntry}.
+     *
+     * @param slotId _id of the slot, as a selection argument
+     */
+    static Cursor queryReservations(SQLiteDatabase database, String slotId,
+                                    CancellationSignal cancellationSignal) {
+        return CakeProvider.rawQuery(database, "SELECT " + RESERVATION_COLUMNS
+                + " FROM " + ReservationEntry.TABLE_NAME
+                + " WHERE " + ReservationEntry.COLUMN_SLOT_ID + "=?"
+                + " ORDER BY " + ReservationEntry._ID + " ASC",
+                new String[] { slotId }, cancellationSignal);
+    }
+
+    /**
+     * Return a single reservation, with the columns of {@link ReservationEntry}.
+     */
+    static Cursor queryReservation(SQLiteDatabase database, long reservationId,
+                                   CancellationSignal cancellationSignal) {
+        return CakeProvider.rawQuery(database, "SELECT " + RESERVATION_COLUMNS
+                + " FROM " + ReservationEntry.TABLE_NAME
+                + " WHERE " + ReservationEntry._ID + "=?",
+                new String[] { String.valueOf(reservationId) }, cancellationSignal);
+    }
+
+    /**
+     * Add a pickup slot with nothing booked. Return the new row ID, or -1 if the insert failed,
+     * for example because a slot already starts at that time.
+     */
+    static long insertSlot(SQLiteDatabase database, long startsAt, int capacity) {
+        ContentValues values = new ContentValues();
+        values.put(PickupSlotEntry.COLUMN_STARTS_AT, startsAt);
+        values.put(PickupSlotEntry.COLUMN_CAPACITY, capacity);
+        values.put(PickupSlotEntry.COLUMN_BOOKED, 0);
+        return database.insert(PickupSlotEntry.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Change the capacity of a slot. Return the number of slots changed, which is 0 if the slot
+     * doesn't exist or has more booked than the new capacity.
+     */
+    static int setCapacity(SQLiteDatabase database, long slotId, int capacity) {
+        SQLiteStatement statement = database.compileStatement(SQL_SET_CAPACITY);
+        try {
+            statement.bindLong(1, capacity);
+            statement.bindLong(2, slotId);
+            statement.bindLong(3, capacity);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Book an order into a slot and record the reservation, in the caller's transaction. Return
+     * the row ID of the reservation, or -1 if the slot doesn't exist or doesn't have room, in
+     * which case nothing was written.
+     */
+    static long reserve(SQLiteDatabase database, long slotId, long cakeId, int quantity,
+                        String customer, long now) {
+        SQLiteStatement book = database.compileStatement(SQL_BOOK);
+        try {
+            book.bindLong(1, quantity);
+            book.bindLong(2, slotId);
+            book.bindLong(3, quantity);
+            if (book.executeUpdateDelete() == 0) {
+                return -1;
+            }
+        } finally {
+            book.close();
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(ReservationEntry.COLUMN_SLOT_ID, slotId);
+        values.put(ReservationEntry.COLUMN_CAKE_ID, cakeId);
+        values.put(ReservationEntry.COLUMN_QUANTITY, quantity);
+        values.put(ReservationEntry.COLUMN_CUSTOMER, customer);
+        values.put(ReservationEntry.COLUMN_CREATED_AT, now);
+        // Throws rather than returning -1, so the caller's transaction undoes the booking
+        return database.insertOrThrow(ReservationEntry.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Remove a reservation and give its room back to its slot, in the caller's transaction.
+     * Return the number of reservations removed, which is 0 if there was no such reservation.
+     */
+    static int cancel(SQLiteDatabase database, long reservationId) {
+        String[] id = { String.valueOf(reservationId) };
+        long slotId;
+        long quantity;
+        Cursor cursor = database.query(ReservationEntry.TABLE_NAME,
+                new String[] { ReservationEntry.COLUMN_SLOT_ID, ReservationEntry.COLUMN_QUANTITY },
+                ReservationEntry._ID + "=?", id, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return 0;
+            }
+            slotId = cursor.getLong(0);
+            quantity = cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
+
+        int rows = database.delete(ReservationEntry.TABLE_NAME, ReservationEntry._ID + "=?", id);
+        if (rows > 0) {
+            SQLiteStatement release = database.compileStatement(SQL_RELEASE);
+            try {
+                release.bindLong(1, quantity);
+                release.bindLong(2, slotId);
+                release.executeUpdateDelete();
+            } finally {
+                release.close();
+            }
+        }
+        return rows;
+    }
+}
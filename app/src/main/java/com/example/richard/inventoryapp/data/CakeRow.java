@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import java.util.Arrays;
+
+/**
+ * {@link CakeRow} is one row of a cursor of cakes, read into typed fields.
+ *
+ * A row is meant to be reused: a {@link Mapper} looks up where each column of
+ * {@link CakeEntry} is in a cursor once, and then reads row after row into the same
+ * {@link CakeRow}. The numbers are kept as primitives and the text is copied into
+ * {@link CharArrayBuffer}s that grow as needed and are kept from row to row, so once the
+ * buffers are big enough, reading a row of a database cursor allocates nothing. Going over a
+ * whole catalog for an export or a report then makes no garbage, however many cakes it has.
+ *
+ * Columns that aren't in the cursor read as 0, or as empty text.
+ */
+public final class CakeRow {
+
+    /**
+     * Columns of {@link CakeEntry} that a {@link Mapper} reads, in the order of its offsets.
+     * Every column of the contract is here, which CakeRowTest checks.
+     */
+    static final String[] COLUMNS = {
+            CakeEntry._ID,
+            CakeEntry.COLUMN_CAKE_NAME,
+            CakeEntry.COLUMN_CAKE_OCCASION,
+            CakeEntry.COLUMN_CAKE_PRICE,
+            CakeEntry.COLUMN_CAKE_QUANTITY,
+            CakeEntry.COLUMN_CAKE_IMAGE,
+            CakeEntry.COLUMN_CAKE_COST,
+            CakeEntry.COLUMN_CAKE_STOCKED_AT,
+            CakeEntry.COLUMN_CAKE_SKU
+    };
+
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int OCCASION = 2;
+    private static final int PRICE = 3;
+    private static final int QUANTITY = 4;
+    private static final int IMAGE = 5;
+    private static final int COST = 6;
+    private static final int STOCKED_AT = 7;
+    private static final int SKU = 8;
+
+    /**
+     * Reads the rows of a cursor into a {@link CakeRow}. Made once per cursor, or once per set
+     * of columns, as it only depends on the column names.
+     */
+    public static final class Mapper {
+
+        /** Column names of the cursor the offsets were found in */
+        private final String[] mColumnNames;
+
+        /** Offset in the cursor of each of {@link #COLUMNS}, or -1 if it isn't there */
+        private final int[] mOffsets = new int[COLUMNS.length];
+
+        /**
+         * Constructs a new {@link Mapper} for the columns of the given cursor.
+         */
+        public Mapper(Cursor cursor) {
+            mColumnNames = cursor.getColumnNames();
+            for (int i = 0; i < COLUMNS.length; i++) {
+                mOffsets[i] = cursor.getColumnIndex(COLUMNS[i]);
+            }
+        }
+
+        /**
+         * Return whether the given cursor has the columns this mapper was made for, so that it
+         * can read it too.
+         */
+        public boolean matches(Cursor cursor) {
+            String[] columnNames = cursor.getColumnNames();
+            return columnNames == mColumnNames || Arrays.equals(columnNames, mColumnNames);
+        }
+
+        /**
+         * Read the current row of the cursor into the given row, and return it.
+         */
+        public CakeRow read(Cursor cursor, CakeRow row) {
+            int[] offsets = mOffsets;
+            row.mId = offsets[ID] != -1 ? cursor.getLong(offsets[ID]) : 0;
+            readText(cursor, offsets[NAME], row.mName);
+            row.mOccasion = offsets[OCCASION] != -1 ? cursor.getInt(offsets[OCCASION]) : 0;
+            row.mPrice = offsets[PRICE] != -1 ? cursor.getDouble(offsets[PRICE]) : 0;
+            row.mQuantity = offsets[QUANTITY] != -1 ? cursor.getInt(offsets[QUANTITY]) : 0;
+            row.mHasImage = readText(cursor, offsets[IMAGE], row.mImage);
+            row.mCost = offsets[COST] != -1 ? cursor.getDouble(offsets[COST]) : 0;
+            row.mStockedAt = offsets[STOCKED_AT] != -1 ? cursor.getLong(offsets[STOCKED_AT]) : 0;
+            row.mHasSku = readText(cursor, offsets[SKU], row.mSku);
+            return row;
+        }
+
+        /**
+         * Copy a text column into the buffer, leaving it empty if the column is missing or
+         * null. Return whether the column had a value.
+         */
+        private static boolean readText(Cursor cursor, int offset, CharArrayBuffer buffer) {
+            if (offset == -1 || cursor.isNull(offset)) {
+                buffer.sizeCopied = 0;
+                return false;
+            }
+            cursor.copyStringToBuffer(offset, buffer);
+            return true;
+        }
+    }
+
+    private long mId;
+    private final CharArrayBuffer mName = new CharArrayBuffer(32);
+    private int mOccasion;
+    private double mPrice;
+    private int mQuantity;
+    private final CharArrayBuffer mImage = new CharArrayBuffer(32);
+    private boolean mHasImage;
+    private double mCost;
+    private long mStockedAt;
+    private final CharArrayBuffer mSku = new CharArrayBuffer(16);
+    private boolean mHasSku;
+
+    /**
+     * Return the {@link CakeEntry#_ID} of the cake.
+     */
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * Return the name of the cake as a new string. Use {@link #getNameBuffer} to read it
+     * without allocating.
+     */
+    public String getName() {
+        return new String(mName.data, 0, mName.sizeCopied);
+    }
+
+    /**
+     * Return the buffer that holds the name of the cake, in its first
+     * {@link CharArrayBuffer#sizeCopied} chars. It is overwritten by the next row.
+     */
+    public CharArrayBuffer getNameBuffer() {
+        return mName;
+    }
+
+    /**
+     * Return the occasion of the cake, one of the OCCASION constants of {@link CakeEntry}.
+     */
+    public int getOccasion() {
+        return mOccasion;
+    }
+
+    public double getPrice() {
+        return mPrice;
+    }
+
+    public int getQuantity() {
+        return mQuantity;
+    }
+
+    /**
+     * Return whether the cake has a photo.
+     */
+    public boolean hasImage() {
+        return mHasImage;
+    }
+
+    /**
+     * Return the file name of the photo of the cake as a new string, or null if it doesn't
+     * have one.
+     */
+    public String getImageName() {
+        return mHasImage ? new String(mImage.data, 0, mImage.sizeCopied) : null;
+    }
+
+    /**
+     * Return the buffer that holds the file name of the photo of the cake, which is empty if it
+     * doesn't have one. It is overwritten by the next row.
+     */
+    public CharArrayBuffer getImageBuffer() {
+        return mImage;
+    }
+
+    public double getCost() {
+        return mCost;
+    }
+
+    /**
+     * Return the time the cake was stocked, in milliseconds since the epoch.
+     */
+    public long getStockedAt() {
+        return mStockedAt;
+    }
+
+    /**
+     * Return whether the cake has a SKU.
+     */
+    public boolean hasSku() {
+        return mHasSku;
+    }
+
+    /**
+     * Return the SKU of the cake as a new string, or null if it doesn't have one.
+     */
+    public String getSku() {
+        return mHasSku ? new String(mSku.data, 0, mSku.sizeCopied) : null;
+    }
+
+    /**
+     * Return the buffer that holds the SKU of the cake, which is empty if it doesn't have one.
+     * It is overwritten by the next row.
+     */
+    public CharArrayBuffer getSkuBuffer() {
+        return mSku;
+    }
+}
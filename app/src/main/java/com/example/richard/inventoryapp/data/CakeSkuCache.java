@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.v4.util.LruCache;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+/**
+ * The _id of the cakes of recently scanned SKUs, for {@link CakeProvider}, so that scanning the
+ * same labels again and again during a rush doesn't go to the database to find them.
+ *
+ * Only SKUs that were found are kept. The provider clears the cache whenever a write could give
+ * a SKU to another cake; every clear starts a new generation, and an answer looked up in an
+ * older generation isn't kept, so a lookup that races a write never caches what the write
+ * changed. The entries and the generation are guarded by the lock of the object.
+ *
+ * The cache is registered with {@link CakeCacheRegistry}. Trimming it only forgets answers, so
+ * unlike clearing it, it doesn't need a new generation.
+ */
+final class CakeSkuCache implements CakeCacheRegistry.Cache {
+
+    /** Number of SKUs whose cake is remembered */
+    private static final int MAX_ENTRIES = 256;
+
+    /**
+     * Rough number of bytes taken by an entry: a short SKU string, its boxed _id and the node of
+     * the map
+     */
+    private static final int ENTRY_SIZE = 96;
+
+    private final LruCache<String, Long> mIds = new LruCache<String, Long>(MAX_ENTRIES);
+
+    /** Number of times the cache has been cleared */
+    private int mGeneration;
+
+    /**
+     * Return the _id of the visible cake with the given SKU, or -1 if there is none. A SKU that
+     * was found recently is answered from the cache without going to the database; otherwise
+     * it is a single seek in the unique index on the SKU.
+     *
+     * @param deletedThroughId highest _id of the cakes hidden by a "delete all"
+     */
+    long resolve(CakeStatementCache statements, long deletedThroughId, String sku) {
+        int generation;
+        synchronized (this) {
+            Long id = mIds.get(sku);
+            if (id != null) {
+                return id;
+            }
+            generation = mGeneration;
+        }
+
+        long id = statements.queryIdBySku(sku);
+        if (id == -1 || id <= deletedThroughId) {
+            return -1;
+        }
+        synchronized (this) {
+            // Don't keep an answer that a write may have changed while it was looked up
+            if (generation == mGeneration) {
+                mIds.put(sku, id);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Forget every SKU.
+     */
+    synchronized void clear() {
+        mIds.evictAll();
+        mGeneration++;
+    }
+
+    /**
+     * Get ready to write the given SKU, if it isn't null: take it away from the cake hidden by a
+     * "delete all" that still holds it in the unique index until its row is removed, if there
+     * is one, and forget the cached SKUs. Call this with the writers' lock of the provider
+     * held, in the transaction of the write, so the hidden cake keeps its SKU if the write
+     * fails. Return the _id and SKU of the hidden cake, for the history entry of the write, or
+     * null if no hidden cake held the SKU.
+     *
+     * @param deletedThroughId highest _id of the cakes hidden by a "delete all"
+     */
+    ContentValues release(CakeStatementCache statements, long deletedThroughId, String sku) {
+        if (sku == null) {
+            return null;
+        }
+        clear();
+        long id = statements.queryIdBySku(sku);
+        if (id == -1 || id > deletedThroughId) {
+            return null;
+        }
+        setSku(statements.getDatabase(), id, null);
+        ContentValues released = new ContentValues();
+        released.put(CakeEntry._ID, id);
+        released.put(CakeEntry.COLUMN_CAKE_SKU, sku);
+        return released;
+    }
+
+    /**
+     * Give a cake the given SKU, or take its SKU away if null, in the caller's transaction. A
+     * SKU that another cake holds by now stays with that cake.
+     */
+    static void setSku(SQLiteDatabase database, long id, String sku) {
+        ContentValues values = new ContentValues();
+        if (sku != null) {
+            values.put(CakeEntry.COLUMN_CAKE_SKU, sku);
+        } else {
+            values.putNull(CakeEntry.COLUMN_CAKE_SKU);
+        }
+        database.updateWithOnConflict(CakeEntry.TABLE_NAME, values, CakeEntry._ID + "=?",
+                new String[] { String.valueOf(id) }, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    @Override
+    public synchronized long getSize() {
+        return (long) mIds.size() * ENTRY_SIZE;
+    }
+
+    @Override
+    public synchronized void trimToSize(long maxSize) {
+        mIds.trimToSize((int) Math.min(maxSize / ENTRY_SIZE, MAX_ENTRIES));
+    }
+}
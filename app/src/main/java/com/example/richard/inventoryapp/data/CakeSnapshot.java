@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A copy of the first screen of the catalog, kept in a file so it can be shown on the next
+ * launch before the database has been opened.
+ *
+ * The file is a header followed by a fixed size record per cake and then the bytes of the names
+ * and image file names. It is read through a memory mapping with {@link #open}, and the cursor
+ * returned reads the records straight from the mapping, so nothing is parsed up front. Strings are
+ * only decoded when a list item asks for them.
+ *
+ * Layout of the file, all numbers big-endian:
+ * <pre>
+ *     int    MAGIC
+ *     int    occasion filter
+ *     int    number of records
+ *     int    length of the sort order, followed by the sort order in UTF-8
+ *     record * number of records (see RECORD_SIZE)
+ *     string bytes
+ * </pre>
+ */
+public final class CakeSnapshot {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = CakeSnapshot.class.getSimpleName();
+
+    /** First int of every snapshot file. Change it when the layout changes. */
+    private static final int MAGIC = 0x43414b31;
+
+    /**
+     * Size of a record: id, price, occasion, quantity, then the offset and length of the name and
+     * of the image file name in the string bytes. A missing image has a length of -1.
+     */
+    private static final int RECORD_SIZE = 8 + 8 + 4 + 4 + 4 + 4 + 4 + 4;
+
+    /** Offsets of the fields in a record */
+    private static final int OFFSET_ID = 0;
+    private static final int OFFSET_PRICE = 8;
+    private static final int OFFSET_OCCASION = 16;
+    private static final int OFFSET_QUANTITY = 20;
+    private static final int OFFSET_NAME = 24;
+    private static final int OFFSET_IMAGE = 32;
+
+    /** Columns of the cursor returned by {@link #open}, which match the catalog's projection */
+    private static final String[] COLUMNS = {
+            CakeEntry._ID,
+            CakeEntry.COLUMN_CAKE_NAME,
+            CakeEntry.COLUMN_CAKE_QUANTITY,
+            CakeEntry.COLUMN_CAKE_OCCASION,
+            CakeEntry.COLUMN_CAKE_PRICE,
+            CakeEntry.COLUMN_CAKE_IMAGE
+    };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Contents of the file */
+    private final ByteBuffer mBuffer;
+
+    private CakeSnapshot(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Copy the first rows of a catalog cursor into a new snapshot. The cursor must have the
+     * catalog's columns; its position is left where it was.
+     *
+     * @param cursor         with the cakes in the order they are shown
+     * @param maxRows        largest number of rows to copy
+     * @param sortOrder      sort order the cursor was queried with
+     * @param occasionFilter occasion the cursor was filtered on
+     */
+    public static CakeSnapshot capture(Cursor cursor, int maxRows, String sortOrder,
+                                       int occasionFilter) {
+        int count = Math.min(cursor.getCount(), maxRows);
+        int idColumn = cursor.getColumnIndexOrThrow(CakeEntry._ID);
+        int nameColumn = cursor.getColumnIndexOrThrow(CakeEntry.COLUMN_CAKE_NAME);
+        int quantityColumn = cursor.getColumnIndexOrThrow(CakeEntry.COLUMN_CAKE_QUANTITY);
+        int occasionColumn = cursor.getColumnIndexOrThrow(CakeEntry.COLUMN_CAKE_OCCASION);
+        int priceColumn = cursor.getColumnIndexOrThrow(CakeEntry.COLUMN_CAKE_PRICE);
+        int imageColumn = cursor.getColumnIndexOrThrow(CakeEntry.COLUMN_CAKE_IMAGE);
+
+        // Encode the strings first, so the size of the file is known
+        byte[] sortBytes = sortOrder.getBytes(UTF_8);
+        byte[][] names = new byte[count][];
+        byte[][] images = new byte[count][];
+        int stringSize = 0;
+        int position = cursor.getPosition();
+        for (int i = 0; i < count; i++) {
+            cursor.moveToPosition(i);
+            String name = cursor.getString(nameColumn);
+            names[i] = (name != null ? name : "").getBytes(UTF_8);
+            stringSize += names[i].length;
+            String image = cursor.getString(imageColumn);
+            if (image != null) {
+                images[i] = image.getBytes(UTF_8);
+                stringSize += images[i].length;
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(16 + sortBytes.length + count * RECORD_SIZE
+                + stringSize);
+        buffer.putInt(MAGIC);
+        buffer.putInt(occasionFilter);
+        buffer.putInt(count);
+        buffer.putInt(sortBytes.length);
+        buffer.put(sortBytes);
+
+        int stringOffset = 0;
+        for (int i = 0; i < count; i++) {
+            cursor.moveToPosition(i);
+            buffer.putLong(cursor.getLong(idColumn));
+            buffer.putDouble(cursor.getDouble(priceColumn));
+            buffer.putInt(cursor.getInt(occasionColumn));
+            buffer.putInt(cursor.getInt(quantityColumn));
+            buffer.putInt(stringOffset);
+            buffer.putInt(names[i].length);
+            stringOffset += names[i].length;
+            buffer.putInt(stringOffset);
+            buffer.putInt(images[i] != null ? images[i].length : -1);
+            stringOffset += images[i] != null ? images[i].length : 0;
+        }
+        for (int i = 0; i < count; i++) {
+            buffer.put(names[i]);
+            if (images[i] != null) {
+                buffer.put(images[i]);
+            }
+        }
+        cursor.moveToPosition(position);
+
+        buffer.flip();
+        return new CakeSnapshot(buffer);
+    }
+
+    /**
+     * Write the snapshot to a file. It is written to a temporary file first and then renamed, so
+     * a reader never sees half a snapshot. Call this on a background thread.
+     */
+    public void writeTo(File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = mBuffer.duplicate();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Failed to rename " + temporary + " to " + file);
+        }
+    }
+
+    /**
+     * Map a snapshot file and return a cursor over its cakes, or null if there is no snapshot, it
+     * was taken with a different sort order or occasion filter, or it isn't a whole, well formed
+     * snapshot. The caller then loads the first page from the database instead.
+     *
+     * @param file           the snapshot was written to
+     * @param sortOrder      sort order the list is about to be shown in
+     * @param occasionFilter occasion the list is about to be filtered on
+     */
+    public static Cursor open(File file, String sortOrder, int occasionFilter) {
+        if (!file.exists()) {
+            return null;
+        }
+        ByteBuffer buffer;
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = in.getChannel();
+                // The mapping stays valid after the file is closed
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to map snapshot " + file, e);
+            return null;
+        }
+
+        // Check that the header is whole, and that the records and strings it describes fit
+        if (buffer.remaining() < 16 || buffer.getInt(0) != MAGIC) {
+            Log.w(LOG_TAG, "Ignoring snapshot " + file + " with a bad header");
+            return null;
+        }
+        int count = buffer.getInt(8);
+        int sortLength = buffer.getInt(12);
+        long recordsStart = 16 + (long) sortLength;
+        if (count < 0 || sortLength < 0
+                || recordsStart + (long) count * RECORD_SIZE > buffer.limit()
+                || !hasValidStrings(buffer, (int) recordsStart, count)) {
+            Log.w(LOG_TAG, "Ignoring snapshot " + file + " with " + count + " bad records");
+            return null;
+        }
+
+        // And that it was taken of what is about to be shown
+        if (buffer.getInt(4) != occasionFilter) {
+            return null;
+        }
+        byte[] sortBytes = new byte[sortLength];
+        buffer.position(16);
+        buffer.get(sortBytes);
+        if (!sortOrder.equals(new String(sortBytes, UTF_8))) {
+            return null;
+        }
+        return new SnapshotCursor(buffer, (int) recordsStart, count);
+    }
+
+    /**
+     * Return whether the strings of the records, in the order {@link #capture} writes them,
+     * exactly fill the rest of the buffer after the records. This catches a file that was cut
+     * short or has been overwritten, before the cursor reads any string out of bounds.
+     */
+    private static boolean hasValidStrings(ByteBuffer buffer, int recordsStart, int count) {
+        int stringsStart = recordsStart + count * RECORD_SIZE;
+        long stringOffset = 0;
+        for (int i = 0; i < count; i++) {
+            int record = recordsStart + i * RECORD_SIZE;
+            int nameLength = buffer.getInt(record + OFFSET_NAME + 4);
+            if (buffer.getInt(record + OFFSET_NAME) != stringOffset || nameLength < 0) {
+                return false;
+            }
+            stringOffset += nameLength;
+            int imageLength = buffer.getInt(record + OFFSET_IMAGE + 4);
+            if (buffer.getInt(record + OFFSET_IMAGE) != stringOffset || imageLength < -1) {
+                return false;
+            }
+            stringOffset += Math.max(imageLength, 0);
+        }
+        return stringsStart + stringOffset == buffer.limit();
+    }
+
+    /**
+     * Read-only cursor over the records of a mapped snapshot.
+     */
+    private static final class SnapshotCursor extends AbstractCursor {
+
+        private final ByteBuffer mBuffer;
+        private final int mRecordsStart;
+        private final int mStringsStart;
+        private final int mCount;
+
+        SnapshotCursor(ByteBuffer buffer, int recordsStart, int count) {
+            mBuffer = buffer;
+            mRecordsStart = recordsStart;
+            mStringsStart = recordsStart + count * RECORD_SIZE;
+            mCount = count;
+        }
+
+        /**
+         * Return the position in the buffer of a field of the current record.
+         */
+        private int field(int offset) {
+            return mRecordsStart + mPos * RECORD_SIZE + offset;
+        }
+
+        /**
+         * Decode the string whose offset and length are at the given field of the current record.
+         */
+        private String readString(int offset) {
+            int length = mBuffer.getInt(field(offset) + 4);
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            ByteBuffer strings = mBuffer.duplicate();
+            strings.position(mStringsStart + mBuffer.getInt(field(offset)));
+            strings.get(bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return COLUMNS;
+        }
+
+        @Override
+        public String getString(int column) {
+            switch (column) {
+                case 1:
+                    return readString(OFFSET_NAME);
+                case 5:
+                    return readString(OFFSET_IMAGE);
+                case 4:
+                    return String.valueOf(getDouble(column));
+                default:
+                    return String.valueOf(getLong(column));
+            }
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            switch (column) {
+                case 0:
+                    return mBuffer.getLong(field(OFFSET_ID));
+                case 2:
+                    return mBuffer.getInt(field(OFFSET_QUANTITY));
+                case 3:
+                    return mBuffer.getInt(field(OFFSET_OCCASION));
+                case 4:
+                    return (long) getDouble(column);
+                default:
+                    return 0;
+            }
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            if (column == 4) {
+                return mBuffer.getDouble(field(OFFSET_PRICE));
+            }
+            return getLong(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return column == 5 && mBuffer.getInt(field(OFFSET_IMAGE) + 4) < 0;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+/**
+ * Compiled statements for the most common writes to the cakes table.
+ *
+ * {@link SQLiteDatabase#insert}, {@link SQLiteDatabase#update} and {@link SQLiteDatabase#delete}
+ * build a new SQL string from a ContentValues on every call, which then has to be compiled again.
+ * The statements here are compiled once for the database they belong to and only have their
+ * arguments bound on each call. Each statement is used by one thread at a time.
+ */
+final class CakeStatementCache {
+
+    /** Columns bound by {@link #insert}, in the order of the statement's arguments */
+    static final String[] INSERT_COLUMNS = {
+            CakeEntry.COLUMN_CAKE_NAME,
+            CakeEntry.COLUMN_CAKE_OCCASION,
+            CakeEntry.COLUMN_CAKE_PRICE,
+            CakeEntry.COLUMN_CAKE_QUANTITY,
+            CakeEntry.COLUMN_CAKE_IMAGE,
+            CakeEntry.COLUMN_CAKE_COST,
+            CakeEntry.COLUMN_CAKE_STOCKED_AT,
+            CakeEntry.COLUMN_CAKE_SKU
+    };
+
+    /** Database the statements were compiled for */
+    private final SQLiteDatabase mDatabase;
+
+    /** Compiled statements, created on first use */
+    private SQLiteStatement mInsert;
+    private SQLiteStatement mUpdateQuantity;
+    private SQLiteStatement mQueryQuantity;
+    private SQLiteStatement mQueryIdBySku;
+    private SQLiteStatement mDeleteById;
+
+    /**
+     * Constructs a new {@link CakeStatementCache}.
+     *
+     * @param database the statements are compiled for
+     */
+    CakeStatementCache(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Return the database the statements were compiled for.
+     */
+    SQLiteDatabase getDatabase() {
+        return mDatabase;
+    }
+
+    /**
+     * Insert a cake with all of its columns. Return the new row ID, or -1 if the insert failed.
+     */
+    synchronized long insert(String name, int occasion, double price, int quantity, String image,
+                             double cost, long stockedAt, String sku) {
+        if (mInsert == null) {
+            StringBuilder sql = new StringBuilder("INSERT INTO " + CakeEntry.TABLE_NAME + " (");
+            StringBuilder arguments = new StringBuilder();
+            for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+                sql.append(i == 0 ? "" : ", ").append(INSERT_COLUMNS[i]);
+                arguments.append(i == 0 ? "?" : ", ?");
+            }
+            sql.append(") VALUES (").append(arguments).append(")");
+            mInsert = mDatabase.compileStatement(sql.toString());
+        }
+
+        mInsert.bindString(1, name);
+        mInsert.bindLong(2, occasion);
+        mInsert.bindDouble(3, price);
+        mInsert.bindLong(4, quantity);
+        if (image == null) {
+            mInsert.bindNull(5);
+        } else {
+            mInsert.bindString(5, image);
+        }
+        mInsert.bindDouble(6, cost);
+        mInsert.bindLong(7, stockedAt);
+        if (sku == null) {
+            mInsert.bindNull(8);
+        } else {
+            mInsert.bindString(8, sku);
+        }
+        try {
+            return mInsert.executeInsert();
+        } finally {
+            mInsert.clearBindings();
+        }
+    }
+
+    /**
+     * Set the quantity of a single cake. Return the number of rows updated.
+     */
+    synchronized int updateQuantity(long id, int quantity) {
+        if (mUpdateQuantity == null) {
+            mUpdateQuantity = mDatabase.compileStatement("UPDATE " + CakeEntry.TABLE_NAME
+                    + " SET " + CakeEntry.COLUMN_CAKE_QUANTITY + "=? WHERE " + CakeEntry._ID + "=?");
+        }
+
+        mUpdateQuantity.bindLong(1, quantity);
+        mUpdateQuantity.bindLong(2, id);
+        return mUpdateQuantity.executeUpdateDelete();
+    }
+
+    /**
+     * Return the quantity of a single cake, or null if there is no such cake.
+     */
+    synchronized Long queryQuantity(long id) {
+        if (mQueryQuantity == null) {
+            mQueryQuantity = mDatabase.compileStatement("SELECT " + CakeEntry.COLUMN_CAKE_QUANTITY
+                    + " FROM " + CakeEntry.TABLE_NAME + " WHERE " + CakeEntry._ID + "=?");
+        }
+
+        mQueryQuantity.bindLong(1, id);
+        try {
+            return mQueryQuantity.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return the _id of the cake with the given SKU, or -1 if there is no such cake. The lookup
+     * is a single seek in the unique index on the SKU.
+     */
+    synchronized long queryIdBySku(String sku) {
+        if (mQueryIdBySku == null) {
+            mQueryIdBySku = mDatabase.compileStatement("SELECT " + CakeEntry._ID + " FROM "
+                    + CakeEntry.TABLE_NAME + " WHERE " + CakeEntry.COLUMN_CAKE_SKU + "=?");
+        }
+
+        mQueryIdBySku.bindString(1, sku);
+        try {
+            return mQueryIdBySku.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Delete a single cake. Return the number of rows deleted.
+     */
+    synchronized int deleteById(long id) {
+        if (mDeleteById == null) {
+            mDeleteById = mDatabase.compileStatement("DELETE FROM " + CakeEntry.TABLE_NAME
+                    + " WHERE " + CakeEntry._ID + "=?");
+        }
+
+        mDeleteById.bindLong(1, id);
+        return mDeleteById.executeUpdateDelete();
+    }
+
+    /**
+     * Release the compiled statements.
+     */
+    synchronized void close() {
+        if (mInsert != null) {
+            mInsert.close();
+        }
+        if (mUpdateQuantity != null) {
+            mUpdateQuantity.close();
+        }
+        if (mQueryQuantity != null) {
+            mQueryQuantity.close();
+        }
+        if (mQueryIdBySku != null) {
+            mQueryIdBySku.close();
+        }
+        if (mDeleteById != null) {
+            mDeleteById.close();
+        }
+        mInsert = null;
+        mUpdateQuantity = null;
+        mQueryQuantity = null;
+        mQueryIdBySku = null;
+        mDeleteById = null;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+import com.example.richard.inventoryapp.data.CakeContract.StockBatchEntry;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes to the stock batches of the cakes, for {@link CakeProvider}.
+ *
+ * Each method runs inside the caller's transaction, so the batches and the quantities of their
+ * cakes always change together. Every method reads the batches through one of the indexes
+ * created by {@link CakeDbHelper}, so the work is in proportion to the batches it changes and
+ * not to the size of the table.
+ */
+final class CakeStockBatches {
+
+    /** Largest number of expired batches returned by one call of {@link #queryExpired} */
+    static final int SWEEP_CHUNK_SIZE = 200;
+
+    private CakeStockBatches() {}
+
+    /**
+     * Add a batch of a cake. The caller adds its quantity to the cake. Return the new row ID, or
+     * -1 if the insert failed.
+     */
+    static long insert(SQLiteDatabase database, long cakeId, int quantity, long bakedAt,
+                       long expiresAt) {
+        ContentValues values = new ContentValues();
+        values.put(StockBatchEntry.COLUMN_CAKE_ID, cakeId);
+        values.put(StockBatchEntry.COLUMN_QUANTITY, quantity);
+        values.put(StockBatchEntry.COLUMN_BAKED_AT, bakedAt);
+        values.put(StockBatchEntry.COLUMN_EXPIRES_AT, expiresAt);
+        return database.insert(StockBatchEntry.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Take cakes that were sold out of the batches of their cake, first in first out: from the
+     * batch that expires first on, removing each batch that is used up. The caller has already
+     * taken them off the quantity of the cake. Return the number of cakes taken from batches,
+     * which is less than the number sold if the batches run out.
+     */
+    static long allocateSale(SQLiteDatabase database, long cakeId, long sold) {
+        if (sold <= 0) {
+            return 0;
+        }
+
+        // Find the batches the sale comes out of, reading no further than needed. Each entry
+        // is a batch's _id and the quantity it has left afterwards.
+        List<long[]> changes = new ArrayList<long[]>();
+        long left = sold;
+        Cursor cursor = database.query(StockBatchEntry.TABLE_NAME,
+                new String[] { StockBatchEntry._ID, StockBatchEntry.COLUMN_QUANTITY },
+                StockBatchEntry.COLUMN_CAKE_ID + "=?", new String[] { String.valueOf(cakeId) },
+                null, null, StockBatchEntry.SORT_ALLOCATION);
+        try {
+            while (left > 0 && cursor.moveToNext()) {
+                long quantity = cursor.getLong(1);
+                long taken = Math.min(quantity, left);
+                left -= taken;
+                changes.add(new long[] { cursor.getLong(0), quantity - taken });
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (long[] change : changes) {
+            String[] id = { String.valueOf(change[0]) };
+            if (change[1] == 0) {
+                database.delete(StockBatchEntry.TABLE_NAME, StockBatchEntry._ID + "=?", id);
+            } else {
+                ContentValues values = new ContentValues();
+                values.put(StockBatchEntry.COLUMN_QUANTITY, change[1]);
+                database.update(StockBatchEntry.TABLE_NAME, values, StockBatchEntry._ID + "=?",
+                        id);
+            }
+        }
+        return sold - left;
+    }
+
+    /**
+     * Return the whole rows of up to {@link #SWEEP_CHUNK_SIZE} of the batches that expired at or
+     * before the given time, each with its _id. Only the expired range of the expiry index is
+     * read. If there are {@link #SWEEP_CHUNK_SIZE} of them, there may be more.
+     */
+    static ContentValues[] queryExpired(SQLiteDatabase database, long now) {
+        Cursor cursor = database.query(StockBatchEntry.TABLE_NAME, null,
+                StockBatchEntry.COLUMN_EXPIRES_AT + "<=?", new String[] { String.valueOf(now) },
+                null, null, StockBatchEntry.COLUMN_EXPIRES_AT + " ASC",
+                String.valueOf(SWEEP_CHUNK_SIZE));
+        try {
+            ContentValues[] batches = new ContentValues[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                batches[i] = new ContentValues();
+                DatabaseUtils.cursorRowToContentValues(cursor, batches[i]);
+            }
+            return batches;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return what is left of the given batches, added up by cake, in the order the cakes first
+     * appear in.
+     */
+    static Map<Long, Long> sumByCake(ContentValues[] batches) {
+        Map<Long, Long> sums = new LinkedHashMap<Long, Long>();
+        for (ContentValues batch : batches) {
+            long cakeId = batch.getAsLong(StockBatchEntry.COLUMN_CAKE_ID);
+            Long sum = sums.get(cakeId);
+            sums.put(cakeId, (sum != null ? sum : 0)
+                    + batch.getAsLong(StockBatchEntry.COLUMN_QUANTITY));
+        }
+        return sums;
+    }
+
+    /**
+     * Remove the given batches, as returned by {@link #queryExpired}, and take what was left of
+     * them off the quantities of their cakes, never going below 0.
+     */
+    static void removeExpired(SQLiteDatabase database, ContentValues[] batches) {
+        SQLiteStatement takeOff = database.compileStatement("UPDATE " + CakeEntry.TABLE_NAME
+                + " SET " + CakeEntry.COLUMN_CAKE_QUANTITY + "=MAX("
+                + CakeEntry.COLUMN_CAKE_QUANTITY + "-?, 0) WHERE " + CakeEntry._ID + "=?");
+        try {
+            for (Map.Entry<Long, Long> entry : sumByCake(batches).entrySet()) {
+                takeOff.bindLong(1, entry.getValue());
+                takeOff.bindLong(2, entry.getKey());
+                takeOff.executeUpdateDelete();
+            }
+        } finally {
+            takeOff.close();
+        }
+        delete(database, batches);
+    }
+
+    /**
+     * Remove the given batches, each with its _id, leaving the quantities of their cakes alone.
+     */
+    static void delete(SQLiteDatabase database, ContentValues[] batches) {
+        SQLiteStatement delete = database.compileStatement("DELETE FROM "
+                + StockBatchEntry.TABLE_NAME + " WHERE " + StockBatchEntry._ID + "=?");
+        try {
+            for (ContentValues batch : batches) {
+                delete.bindLong(1, batch.getAsLong(StockBatchEntry._ID));
+                delete.executeUpdateDelete();
+            }
+        } finally {
+            delete.close();
+        }
+    }
+
+    /**
+     * Put back batches that were removed, leaving the quantities of their cakes alone. Each batch
+     * gets a new _id, as its old one may have been given to another batch since, and the new
+     * _id is written into its row.
+     */
+    static void restore(SQLiteDatabase database, ContentValues[] batches) {
+        for (ContentValues batch : batches) {
+            ContentValues values = new ContentValues(batch);
+            values.remove(StockBatchEntry._ID);
+            batch.put(StockBatchEntry._ID,
+                    database.insertOrThrow(StockBatchEntry.TABLE_NAME, null, values));
+        }
+    }
+}
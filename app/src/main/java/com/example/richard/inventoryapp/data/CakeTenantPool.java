@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.richard.inventoryapp.data;
+
+import android.content.Context;
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+import android.util.LruCache;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The open catalogs of other shops, for {@link CakeProvider}, and the threads every catalog
+ * shares.
+ *
+ * Each shop's catalog is served by a {@link CakeProvider} of its own, with its own database,
+ * statements, undo history and caches, created the first time one of its URIs is used. Up to
+ * {@link #MAX_OPEN} of them are kept open, least recently used first out, so going back to a
+ * recent shop doesn't open anything. A catalog that hasn't been used for {@link #IDLE_TIMEOUT}
+ * milliseconds is closed to free its memory.
+ *
+ * The threads aren't per catalog: the upkeep of every catalog, the device's own included, runs
+ * on the single {@link #getMaintenanceLooper() maintenance thread}, one run at a time, and
+ * reports and production plans are built on the shared {@link #getWorkers() workers}, which
+ * only exist while there is work for them. Opening a shop's catalog starts no thread. The
+ * caches of the other shops' catalogs aren't registered with {@link CakeCacheRegistry} one by
+ * one either; the pool's entry counts them with the catalogs, and gives them up when memory
+ * runs low.
+ *
+ * A catalog is only closed once nothing uses it anymore: every {@link #acquire} or
+ * {@link #retain} has to be followed by a {@link #release}, and the cursors handed out by the
+ * provider hold on to their catalog until they are closed.
+ */
+final class CakeTenantPool implements CakeCacheRegistry.Cache {
+
+    /** Tag of the maintenance thread */
+    private static final String LOG_TAG = CakeTenantPool.class.getSimpleName();
+
+    /** Largest number of catalogs kept open */
+    static final int MAX_OPEN = 4;
+
+    /** How long a catalog may go unused before it is closed, in milliseconds */
+    static final long IDLE_TIMEOUT = 2 * 60 * 1000;
+
+    /**
+     * Rough number of bytes an open catalog takes besides its caches: the page cache of its
+     * database connection, its compiled statements and its undo history
+     */
+    static final long CATALOG_SIZE = 384 * 1024;
+
+    /** Number of workers, which is also how many parts a report or plan is split over */
+    static final int WORKER_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /** How long a worker waits for work before it stops, in seconds */
+    private static final long WORKER_KEEP_ALIVE = 30;
+
+    /**
+     * An open catalog and its users.
+     */
+    private static final class Tenant {
+
+        final String name;
+        final CakeProvider provider;
+
+        /** Number of users that haven't released the catalog yet */
+        int references;
+
+        /** Uptime of the last release */
+        long lastUsed;
+
+        /** Whether the catalog has left the pool, so it is closed on its last release */
+        boolean removed;
+
+        Tenant(String name, CakeProvider provider) {
+            this.name = name;
+            this.provider = provider;
+        }
+    }
+
+    private final Context mContext;
+
+    /** Open catalogs by shop name, guarded by the pool's lock */
+    private final LruCache<String, Tenant> mOpen = new LruCache<String, Tenant>(MAX_OPEN) {
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Tenant oldValue,
+                                    Tenant newValue) {
+            oldValue.removed = true;
+            if (oldValue.references == 0) {
+                oldValue.provider.shutdown();
+            }
+        }
+    };
+
+    /** Catalogs in use, including ones that have left the pool, by provider */
+    private final Map<CakeProvider, Tenant> mInUse = new IdentityHashMap<CakeProvider, Tenant>();
+
+    /** Handler that closes idle catalogs */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Thread the upkeep of every catalog runs on, started on first use. Guarded by the lock. */
+    private HandlerThread mMaintenanceThread;
+
+    /** Threads that reports and plans are built on, created on first use. Guarded by the lock. */
+    private ExecutorService mWorkers;
+
+    /** Whether {@link #mCloseIdle} is waiting to run. Guarded by the lock. */
+    private boolean mCloseIdlePosted;
+
+    private final Runnable mCloseIdle = new Runnable() {
+        @Override
+        public void run() {
+            closeIdle();
+        }
+    };
+
+    /**
+     * Constructs a new {@link CakeTenantPool}.
+     *
+     * @param context the catalogs are created with
+     */
+    CakeTenantPool(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Return the looper of the thread that the upkeep of every catalog runs on.
+     */
+    synchronized Looper getMaintenanceLooper() {
+        if (mMaintenanceThread == null) {
+            mMaintenanceThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            mMaintenanceThread.start();
+        }
+        return mMaintenanceThread.getLooper();
+    }
+
+    /**
+     * Return the threads that every catalog builds its reports and production plans on. There
+     * are {@link #WORKER_COUNT} of them at most, and they stop after a while without work.
+     */
+    synchronized ExecutorService getWorkers() {
+        if (mWorkers == null) {
+            ThreadPoolExecutor workers = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT,
+                    WORKER_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            workers.allowCoreThreadTimeOut(true);
+            mWorkers = workers;
+        }
+        return mWorkers;
+    }
+
+    /**
+     * Return the number of catalogs that are open, in use or not.
+     */
+    @VisibleForTesting
+    synchronized int getOpenCount() {
+        return mOpen.size();
+    }
+
+    /**
+     * Return the number of catalogs in use, including ones that have left the pool.
+     */
+    @VisibleForTesting
+    synchronized int getInUseCount() {
+        return mInUse.size();
+    }
+
+    /**
+     * Return the provider of a shop's catalog, opening it if needed. Release it when done.
+     */
+    synchronized CakeProvider acquire(String name) {
+        if (!CakeContract.isValidTenant(name)) {
+            throw new IllegalArgumentException("Invalid tenant " + name);
+        }
+        Tenant tenant = mOpen.get(name);
+        if (tenant == null) {
+            CakeProvider provider = new CakeProvider(name, this);
+            provider.attachInfo(mContext, null);
+            tenant = new Tenant(name, provider);
+            mOpen.put(name, tenant);
+        }
+        tenant.references++;
+        mInUse.put(tenant.provider, tenant);
+        return tenant.provider;
+    }
+
+    /**
+     * Keep a catalog that is already in use open for another user, such as work the provider
+     * finishes in the background. Release it when done.
+     */
+    synchronized void retain(CakeProvider provider) {
+        Tenant tenant = mInUse.get(provider);
+        if (tenant == null) {
+            throw new IllegalStateException("Catalog is not in use");
+        }
+        tenant.references++;
+    }
+
+    /**
+     * Let go of a catalog returned by {@link #acquire} or kept by {@link #retain}.
+     */
+    synchronized void release(CakeProvider provider) {
+        Tenant tenant = mInUse.get(provider);
+        if (tenant == null) {
+            throw new IllegalStateException("Catalog is not in use");
+        }
+        if (--tenant.references > 0) {
+            return;
+        }
+        mInUse.remove(provider);
+        if (tenant.removed) {
+            provider.shutdown();
+        } else {
+            tenant.lastUsed = SystemClock.uptimeMillis();
+
+            // A check that is already waiting is due before this catalog times out, and posts
+            // the next one for it
+            if (!mCloseIdlePosted) {
+                mCloseIdlePosted = mHandler.postDelayed(mCloseIdle, IDLE_TIMEOUT);
+            }
+        }
+    }
+
+    /**
+     * Return a cursor of a catalog in use that releases the catalog once it is closed, in place
+     * of the caller's own {@link #release}. Closing it more than once only releases it once.
+     */
+    Cursor releaseOnClose(final CakeProvider provider, Cursor cursor) {
+        return new CrossProcessCursorWrapper(cursor) {
+            private boolean mReleased;
+
+            @Override
+            public void close() {
+                super.close();
+                synchronized (this) {
+                    if (mReleased) {
+                        return;
+                    }
+                    mReleased = true;
+                }
+                release(provider);
+            }
+        };
+    }
+
+    /**
+     * Run work of a catalog that is in use on a background thread, and keep the catalog open
+     * until the work is done, even if every other user releases it in the meantime.
+     */
+    void execute(final CakeProvider provider, final Runnable work) {
+        retain(provider);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    work.run();
+                } finally {
+                    release(provider);
+                }
+            }
+        });
+    }
+
+    /**
+     * Close every catalog that isn't in use, for example when memory runs low.
+     */
+    synchronized void closeAll() {
+        trimToSize(0);
+    }
+
+    /**
+     * Return an estimate of the memory the open catalogs take, with their caches, in bytes.
+     */
+    @Override
+    public synchronized long getSize() {
+        long size = 0;
+        for (Tenant tenant : mOpen.snapshot().values()) {
+            size += CATALOG_SIZE + tenant.provider.getCacheSize();
+        }
+        return size;
+    }
+
+    /**
+     * Close catalogs that aren't in use, least recently used first, until the open ones take
+     * at most the given number of bytes or only catalogs in use are left. Those stay open, but
+     * if they are still too big, they empty their caches, least recently used first too.
+     */
+    @Override
+    public synchronized void trimToSize(long maxSize) {
+        // The snapshot is in order of use, least recent first
+        for (Tenant tenant : mOpen.snapshot().values()) {
+            if (getSize() <= maxSize) {
+                return;
+            }
+            if (tenant.references == 0) {
+                mOpen.remove(tenant.name);
+            }
+        }
+        for (Tenant tenant : mOpen.snapshot().values()) {
+            if (getSize() <= maxSize) {
+                return;
+            }
+            tenant.provider.trimCaches();
+        }
+    }
+
+    /**
+     * Close the catalogs that have been unused for {@link #IDLE_TIMEOUT}, and check again when
+     * the next one would time out.
+     */
+    private synchronized void closeIdle() {
+        mCloseIdlePosted = false;
+        long now = SystemClock.uptimeMillis();
+        long nextTimeout = Long.MAX_VALUE;
+        for (Tenant tenant : mOpen.snapshot().values()) {
+            if (tenant.references != 0) {
+                continue;
+            }
+            long idle = now - tenant.lastUsed;
+            if (idle >= IDLE_TIMEOUT) {
+                mOpen.remove(tenant.name);
+            } else {
+                nextTimeout = Math.min(nextTimeout, IDLE_TIMEOUT - idle);
+            }
+        }
+        if (nextTimeout != Long.MAX_VALUE) {
+            mCloseIdlePosted = mHandler.postDelayed(mCloseIdle, nextTimeout);
+        }
+    }
+}
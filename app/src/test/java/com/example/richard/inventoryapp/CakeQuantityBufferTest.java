@@ -0,0 +1,197 @@
+package com.example.richard.inventoryapp;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabaseLockedException;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Looper;
+
+import com.example.richard.inventoryapp.data.CakeContract;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+import com.example.richard.inventoryapp.data.CakeProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that {@link CakeQuantityBuffer} writes quick taps as one batch, keeps and tries again a
+ * batch that fails, counts written changes until the list has read them, and writes the changes
+ * saved when the app was stopped from the next process, exactly once.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeQuantityBufferTest {
+
+    /**
+     * Provider that fails to adjust the quantities as many times as asked, and counts the
+     * batches it is sent.
+     */
+    public static class FlakyCakeProvider extends CakeProvider {
+
+        static int sFailures;
+        static int sBatches;
+
+        @Override
+        public Bundle call(String method, String arg, Bundle extras) {
+            if (CakeContract.METHOD_ADJUST_QUANTITIES.equals(method)) {
+                sBatches++;
+                if (sFailures > 0) {
+                    sFailures--;
+                    throw new SQLiteDatabaseLockedException("database is locked");
+                }
+            }
+            return super.call(method, arg, extras);
+        }
+    }
+
+    private FlakyCakeProvider mProvider;
+    private long mSponge;
+    private long mLemon;
+
+    @Before
+    public void setUp() {
+        FlakyCakeProvider.sFailures = 0;
+        FlakyCakeProvider.sBatches = 0;
+        mProvider = Robolectric.buildContentProvider(FlakyCakeProvider.class)
+                .create(CakeContract.CONTENT_AUTHORITY).get();
+        mSponge = insertCake("Sponge", 10);
+        mLemon = insertCake("Lemon", 10);
+    }
+
+    @Test
+    public void adjust_coalescesTapsIntoOneBatch() {
+        CakeQuantityBuffer buffer = newBuffer();
+        buffer.adjust(mSponge, -1);
+        buffer.adjust(mSponge, -1);
+        buffer.adjust(mLemon, 2);
+        buffer.adjust(mSponge, -1);
+
+        // Shown at once, but nothing written until the batching window is over
+        assertEquals(-3, buffer.getPendingDelta(mSponge));
+        assertEquals(2, buffer.getPendingDelta(mLemon));
+        assertEquals(0, FlakyCakeProvider.sBatches);
+
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(1, FlakyCakeProvider.sBatches);
+        assertEquals(7, queryQuantity(mSponge));
+        assertEquals(12, queryQuantity(mLemon));
+    }
+
+    @Test
+    public void failedBatch_isTriedAgainBeforeLaterTaps() {
+        CakeQuantityBuffer buffer = newBuffer();
+        FlakyCakeProvider.sFailures = 1;
+        buffer.adjust(mSponge, -1);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(1, FlakyCakeProvider.sBatches);
+        assertEquals(10, queryQuantity(mSponge));
+        assertEquals(-1, buffer.getPendingDelta(mSponge));
+
+        // Taps made while the failed batch waits are written after it, in a batch of their own
+        buffer.adjust(mSponge, -2);
+        buffer.adjust(mLemon, -1);
+        assertEquals(-3, buffer.getPendingDelta(mSponge));
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(3, FlakyCakeProvider.sBatches);
+        assertEquals(7, queryQuantity(mSponge));
+        assertEquals(9, queryQuantity(mLemon));
+    }
+
+    @Test
+    public void onDataReloaded_onlyQueriesStartedAfterTheCommitClearChanges() {
+        CakeQuantityBuffer buffer = newBuffer();
+        long beforeCommit = System.nanoTime();
+        buffer.adjust(mSponge, -1);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(9, queryQuantity(mSponge));
+
+        // Written, but still counted until the list has read the new quantity
+        assertEquals(-1, buffer.getPendingDelta(mSponge));
+        assertFalse(buffer.onDataReloaded(beforeCommit));
+        assertEquals(-1, buffer.getPendingDelta(mSponge));
+
+        assertTrue(buffer.onDataReloaded(System.nanoTime()));
+        assertEquals(0, buffer.getPendingDelta(mSponge));
+        assertFalse(buffer.onDataReloaded(System.nanoTime()));
+    }
+
+    @Test
+    public void savedChanges_areWrittenByTheNextProcess() {
+        CakeQuantityBuffer buffer = newBuffer();
+        FlakyCakeProvider.sFailures = Integer.MAX_VALUE;
+        buffer.adjust(mSponge, -1);
+        buffer.adjust(mLemon, -2);
+        buffer.flushInBackground();
+        assertEquals(10, queryQuantity(mSponge));
+
+        // The app is killed, and the next process finds the changes saved when it was stopped
+        FlakyCakeProvider.sFailures = 0;
+        CakeQuantityBuffer next = newBuffer();
+        assertEquals(-1, next.getPendingDelta(mSponge));
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(9, queryQuantity(mSponge));
+        assertEquals(8, queryQuantity(mLemon));
+
+        // Once written they are gone from the saved changes
+        newBuffer();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(9, queryQuantity(mSponge));
+    }
+
+    @Test
+    public void savedBatch_isOnlyAppliedOnce() {
+        ShadowLooper.pauseMainLooper();
+        CakeQuantityBuffer buffer = newBuffer();
+        buffer.adjust(mSponge, -1);
+        buffer.flushInBackground();
+
+        // The batch is written, but the app is killed before it can note that, so the next
+        // process sends it again
+        CakeQuantityBuffer next = newBuffer();
+        ShadowLooper.unPauseMainLooper();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(2, FlakyCakeProvider.sBatches);
+        assertEquals(9, queryQuantity(mSponge));
+
+        // Later batches of the next process are still applied
+        next.adjust(mSponge, -1);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(8, queryQuantity(mSponge));
+    }
+
+    private static CakeQuantityBuffer newBuffer() {
+        return new CakeQuantityBuffer(RuntimeEnvironment.application, Looper.getMainLooper());
+    }
+
+    private long insertCake(String name, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, name);
+        values.put(CakeEntry.COLUMN_CAKE_OCCASION, CakeEntry.OCCASION_BIRTHDAY);
+        values.put(CakeEntry.COLUMN_CAKE_QUANTITY, quantity);
+        Uri uri = mProvider.insert(CakeEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+
+    private int queryQuantity(long id) {
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(CakeEntry.CONTENT_URI, id),
+                new String[] { CakeEntry.COLUMN_CAKE_QUANTITY }, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.richard.inventoryapp;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.example.richard.inventoryapp.data.CakeContract;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+import com.example.richard.inventoryapp.data.CakeMetrics;
+import com.example.richard.inventoryapp.data.CakeProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of the start of {@link CatalogActivity}, run on the JVM under Robolectric so it is
+ * repeatable on any build machine. Launches the catalog a number of times over a seeded
+ * database and logs the median and best wall clock time from creating the activity to showing
+ * the first page and to showing the full list.
+ *
+ * The first launch has no cached first page yet, so it fills the screen with the short first
+ * page query. It saves the first page when the full list arrives, and every later launch must
+ * show that cached page from onCreate, without asking the database for a first page at all.
+ *
+ * Robolectric's clock only moves when a test moves it, so the startup marks of
+ * {@link CakeMetrics} are only checked for being reached, and the times are taken here. They
+ * measure the app's own work on the JVM, not a phone; cold starts on a device are still
+ * measured with "adb shell am start -W" after "adb shell am force-stop".
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CatalogStartupBenchmark {
+
+    private static final String LOG_TAG = CatalogStartupBenchmark.class.getSimpleName();
+
+    /** Number of cakes in the catalog, several screens of them */
+    private static final int CAKES = 500;
+
+    /** Number of measured launches, after the first one that saves the cached first page */
+    private static final int LAUNCHES = 10;
+
+    /** Most rounds of background work to run while waiting for the full list of a launch */
+    private static final int MAX_ROUNDS = 100;
+
+    @Before
+    public void setUp() {
+        ShadowLog.stream = System.out;
+        Robolectric.buildContentProvider(CakeProvider.class)
+                .create(CakeContract.CONTENT_AUTHORITY);
+
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+        for (int i = 0; i < CAKES; i++) {
+            ContentValues values = new ContentValues();
+            values.put(CakeEntry.COLUMN_CAKE_NAME, String.format("Cake %04d", i));
+            values.put(CakeEntry.COLUMN_CAKE_OCCASION, i % 2 == 0
+                    ? CakeEntry.OCCASION_BIRTHDAY : CakeEntry.OCCASION_WEDDING);
+            values.put(CakeEntry.COLUMN_CAKE_PRICE, 5 + i % 20);
+            values.put(CakeEntry.COLUMN_CAKE_QUANTITY, i % 7);
+            assertNotNull(resolver.insert(CakeEntry.CONTENT_URI, values));
+        }
+    }
+
+    @Test
+    public void startup() throws Exception {
+        // Without a cached first page, the short query fills the screen
+        launch(null);
+        assertEquals(0, CakeMetrics.getStartupMark("snapshot_shown"));
+        assertTrue(CakeMetrics.getStartupMark("first_page_loaded") != 0);
+        waitForSnapshot();
+
+        long[] shown = new long[LAUNCHES];
+        long[] loaded = new long[LAUNCHES];
+        for (int i = 0; i < LAUNCHES; i++) {
+            long[] times = new long[2];
+            launch(times);
+            shown[i] = times[0];
+            loaded[i] = times[1];
+
+            // The cached first page is shown straight from onCreate, and takes the place of the
+            // first page query
+            assertTrue(CakeMetrics.getStartupMark("snapshot_shown") != 0);
+            assertEquals(0, CakeMetrics.getStartupMark("first_page_loaded"));
+        }
+
+        Arrays.sort(shown);
+        Arrays.sort(loaded);
+        Log.i(LOG_TAG, String.format("first page shown: median %d us, best %d us over %d launches",
+                shown[LAUNCHES / 2], shown[0], LAUNCHES));
+        Log.i(LOG_TAG, String.format("full list loaded: median %d us, best %d us over %d launches",
+                loaded[LAUNCHES / 2], loaded[0], LAUNCHES));
+    }
+
+    /**
+     * Launch the catalog, wait for its full list and close it again.
+     *
+     * @param times if not null, receives the time from the start of the launch to the end of
+     *              onCreate and to the full list, in microseconds
+     */
+    private void launch(long[] times) {
+        CakeMetrics.resetStartup();
+        long start = System.nanoTime();
+        ActivityController<CatalogActivity> controller =
+                Robolectric.buildActivity(CatalogActivity.class).create();
+        long created = System.nanoTime();
+        controller.start().resume().visible();
+
+        // Run the loaders and deliver their results, until the full list has arrived
+        for (int round = 0; CakeMetrics.getStartupMark("full_list_loaded") == 0; round++) {
+            assertTrue("The full list did not load", round < MAX_ROUNDS);
+            Robolectric.flushBackgroundThreadScheduler();
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        }
+        long loaded = System.nanoTime();
+        assertTrue(CakeMetrics.getStartupMark("catalog_create") != 0);
+
+        if (times != null) {
+            times[0] = TimeUnit.NANOSECONDS.toMicros(created - start);
+            times[1] = TimeUnit.NANOSECONDS.toMicros(loaded - start);
+        }
+        controller.pause().stop().destroy();
+    }
+
+    /**
+     * Wait for the first page that the catalog saves in the background to be written. It is
+     * written on the serial executor, so it is done once a task queued after it has run.
+     */
+    private static void waitForSnapshot() throws InterruptedException {
+        final CountDownLatch written = new CountDownLatch(1);
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                written.countDown();
+            }
+        });
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+    }
+}
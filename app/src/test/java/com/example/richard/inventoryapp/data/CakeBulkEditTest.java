@@ -0,0 +1,222 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+import com.example.richard.inventoryapp.data.CakeContract.StockBatchEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the values a {@link CakeContract#METHOD_BULK_EDIT} gives the cakes it changes, and of
+ * undoing it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeBulkEditTest {
+
+    private static final double DELTA = 1e-9;
+
+    private CakeProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(CakeProvider.class)
+                .create(CakeContract.CONTENT_AUTHORITY).get();
+    }
+
+    @Test
+    public void addPrice_roundsToTheCentAndStopsAtZero() {
+        long sponge = insertCake("Sponge", CakeEntry.OCCASION_BIRTHDAY, 10.25, 1);
+        long carrot = insertCake("Carrot", CakeEntry.OCCASION_BIRTHDAY, 3.5, 1);
+
+        Bundle result = bulkEdit(null, CakeContract.BULK_ADD_PRICE, -4.333);
+        assertEquals(2, result.getInt(CakeContract.RESULT_ROWS));
+        assertEquals(5.92, queryPrice(sponge), DELTA);
+        assertEquals(0, queryPrice(carrot), DELTA);
+
+        // Less than half a cent leaves the prices as they are, so nothing changes
+        result = bulkEdit(null, CakeContract.BULK_ADD_PRICE, 0.004);
+        assertEquals(0, result.getInt(CakeContract.RESULT_ROWS));
+        assertEquals(5.92, queryPrice(sponge), DELTA);
+    }
+
+    @Test
+    public void scalePrice_roundsToTheCentAndStopsAtZero() {
+        long sponge = insertCake("Sponge", CakeEntry.OCCASION_BIRTHDAY, 10, 1);
+        long carrot = insertCake("Carrot", CakeEntry.OCCASION_BIRTHDAY, 2.99, 1);
+
+        bulkEdit(null, CakeContract.BULK_SCALE_PRICE, 100.0 / 3);
+        assertEquals(13.33, queryPrice(sponge), DELTA);
+        assertEquals(3.99, queryPrice(carrot), DELTA);
+
+        bulkEdit(null, CakeContract.BULK_SCALE_PRICE, -100);
+        assertEquals(0, queryPrice(sponge), DELTA);
+        assertEquals(0, queryPrice(carrot), DELTA);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scalePrice_belowMinusOneHundredIsRejected() {
+        insertCake("Sponge", CakeEntry.OCCASION_BIRTHDAY, 10, 1);
+        bulkEdit(null, CakeContract.BULK_SCALE_PRICE, -101);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setQuantity_fractionIsRejected() {
+        insertCake("Sponge", CakeEntry.OCCASION_BIRTHDAY, 10, 1);
+        bulkEdit(null, CakeContract.BULK_SET_QUANTITY, 2.5);
+    }
+
+    @Test
+    public void setQuantity_sellsFromTheBatchThatExpiresFirst() {
+        long sponge = insertCake("Sponge", CakeEntry.OCCASION_BIRTHDAY, 10, 0);
+        insertBatch(sponge, 4, 2000);
+        insertBatch(sponge, 3, 1000);
+        assertEquals(7, queryQuantity(sponge));
+
+        bulkEdit(new long[] { sponge }, CakeContract.BULK_SET_QUANTITY, 2);
+        assertEquals(2, queryQuantity(sponge));
+
+        // The batch of 3 is used up first, then 2 of the batch of 4
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(StockBatchEntry.CONTENT_URI,
+                sponge), new String[] { StockBatchEntry.COLUMN_QUANTITY,
+                StockBatchEntry.COLUMN_EXPIRES_AT }, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(2, cursor.getLong(0));
+            assertEquals(2000, cursor.getLong(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void selection_changesOnlyTheCakesThatMatch() {
+        long sponge = insertCake("Sponge", CakeEntry.OCCASION_BIRTHDAY, 10, 1);
+        long tiered = insertCake("Tiered", CakeEntry.OCCASION_WEDDING, 80, 1);
+
+        Bundle extras = new Bundle();
+        extras.putString(CakeContract.EXTRA_SELECTION, CakeEntry.SELECTION_OCCASION);
+        extras.putStringArray(CakeContract.EXTRA_SELECTION_ARGS,
+                new String[] { String.valueOf(CakeEntry.OCCASION_WEDDING) });
+        extras.putInt(CakeContract.EXTRA_OPERATION, CakeContract.BULK_SET_PRICE);
+        extras.putDouble(CakeContract.EXTRA_VALUE, 95);
+        Bundle result = mProvider.call(CakeContract.METHOD_BULK_EDIT, null, extras);
+
+        assertEquals(1, result.getInt(CakeContract.RESULT_ROWS));
+        assertEquals(10, queryPrice(sponge), DELTA);
+        assertEquals(95, queryPrice(tiered), DELTA);
+    }
+
+    @Test
+    public void undo_restoresTheOldValues() {
+        long sponge = insertCake("Sponge", CakeEntry.OCCASION_BIRTHDAY, 10.2, 5);
+        long carrot = insertCake("Carrot", CakeEntry.OCCASION_BIRTHDAY, 3.5, 2);
+
+        Bundle result = bulkEdit(null, CakeContract.BULK_SCALE_PRICE, 10);
+        assertTrue(result.getBoolean(CakeContract.RESULT_UNDOABLE));
+        result = bulkEdit(new long[] { sponge, carrot }, CakeContract.BULK_SET_QUANTITY, 0);
+        assertTrue(result.getBoolean(CakeContract.RESULT_UNDOABLE));
+
+        // Each bulk edit is a single step of the history
+        assertEquals(2, call(CakeContract.METHOD_UNDO));
+        assertEquals(5, queryQuantity(sponge));
+        assertEquals(2, queryQuantity(carrot));
+        assertEquals(11.22, queryPrice(sponge), DELTA);
+
+        assertEquals(2, call(CakeContract.METHOD_UNDO));
+        assertEquals(10.2, queryPrice(sponge), DELTA);
+        assertEquals(3.5, queryPrice(carrot), DELTA);
+
+        assertEquals(2, call(CakeContract.METHOD_REDO));
+        assertEquals(11.22, queryPrice(sponge), DELTA);
+        assertEquals(3.85, queryPrice(carrot), DELTA);
+    }
+
+    @Test
+    public void tooManyCakes_cannotBeUndone() {
+        ContentValues[] cakes = new ContentValues[CakeJournal.MAX_ROWS + 1];
+        for (int i = 0; i < cakes.length; i++) {
+            cakes[i] = cakeValues("Cake " + i, CakeEntry.OCCASION_BIRTHDAY, 10, 1);
+        }
+        assertEquals(cakes.length, mProvider.bulkInsert(CakeEntry.CONTENT_URI, cakes));
+
+        Bundle result = bulkEdit(null, CakeContract.BULK_SET_PRICE, 12);
+        assertEquals(cakes.length, result.getInt(CakeContract.RESULT_ROWS));
+        assertFalse(result.getBoolean(CakeContract.RESULT_UNDOABLE));
+
+        // The history is cleared, rather than undoing the inserts from before the edit
+        assertEquals(0, call(CakeContract.METHOD_UNDO));
+    }
+
+    private Bundle bulkEdit(long[] ids, int operation, double value) {
+        Bundle extras = new Bundle();
+        if (ids != null) {
+            extras.putLongArray(CakeContract.EXTRA_IDS, ids);
+        }
+        extras.putInt(CakeContract.EXTRA_OPERATION, operation);
+        extras.putDouble(CakeContract.EXTRA_VALUE, value);
+        return mProvider.call(CakeContract.METHOD_BULK_EDIT, null, extras);
+    }
+
+    private int call(String method) {
+        return mProvider.call(method, null, null).getInt(CakeContract.RESULT_ROWS);
+    }
+
+    private static ContentValues cakeValues(String name, int occasion, double price,
+                                            int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, name);
+        values.put(CakeEntry.COLUMN_CAKE_OCCASION, occasion);
+        values.put(CakeEntry.COLUMN_CAKE_PRICE, price);
+        values.put(CakeEntry.COLUMN_CAKE_QUANTITY, quantity);
+        return values;
+    }
+
+    private long insertCake(String name, int occasion, double price, int quantity) {
+        Uri uri = mProvider.insert(CakeEntry.CONTENT_URI,
+                cakeValues(name, occasion, price, quantity));
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+
+    private void insertBatch(long cakeId, int quantity, long expiresAt) {
+        ContentValues values = new ContentValues();
+        values.put(StockBatchEntry.COLUMN_CAKE_ID, cakeId);
+        values.put(StockBatchEntry.COLUMN_QUANTITY, quantity);
+        values.put(StockBatchEntry.COLUMN_EXPIRES_AT, expiresAt);
+        assertNotNull(mProvider.insert(StockBatchEntry.CONTENT_URI, values));
+    }
+
+    private long queryQuantity(long id) {
+        return (long) queryValue(id, CakeEntry.COLUMN_CAKE_QUANTITY);
+    }
+
+    private double queryPrice(long id) {
+        return queryValue(id, CakeEntry.COLUMN_CAKE_PRICE);
+    }
+
+    private double queryValue(long id, String column) {
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(CakeEntry.CONTENT_URI, id),
+                new String[] { column }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getDouble(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
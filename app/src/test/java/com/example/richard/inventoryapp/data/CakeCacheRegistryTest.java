@@ -0,0 +1,124 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ComponentCallbacks2;
+
+import com.example.richard.inventoryapp.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of how {@link CakeCacheRegistry} shrinks the caches for each level of memory pressure.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeCacheRegistryTest {
+
+    /**
+     * A cache of a given size that records when it is trimmed.
+     */
+    private final class FakeCache implements CakeCacheRegistry.Cache {
+        final String name;
+        long size;
+
+        FakeCache(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public void trimToSize(long maxSize) {
+            mTrimmed.add(name);
+            size = Math.min(size, maxSize);
+        }
+    }
+
+    private CakeCacheRegistry mRegistry;
+    private List<String> mTrimmed;
+    private FakeCache mLow;
+    private FakeCache mNormal;
+    private FakeCache mHigh;
+
+    @Before
+    public void setUp() {
+        mRegistry = new CakeCacheRegistry();
+        mTrimmed = new ArrayList<String>();
+        mHigh = new FakeCache("high", 1000);
+        mLow = new FakeCache("low", 1000);
+        mNormal = new FakeCache("normal", 1000);
+        mRegistry.register("high", CakeCacheRegistry.PRIORITY_HIGH, mHigh);
+        mRegistry.register("low", CakeCacheRegistry.PRIORITY_LOW, mLow);
+        mRegistry.register("normal", CakeCacheRegistry.PRIORITY_NORMAL, mNormal);
+    }
+
+    @Test
+    public void getTotalSize_addsUpTheCaches() {
+        assertEquals(3000, mRegistry.getTotalSize());
+
+        mRegistry.unregister(mNormal);
+        assertEquals(2000, mRegistry.getTotalSize());
+    }
+
+    @Test
+    public void onTrimMemory_whileRunning_shrinksLowPriorityFirst() {
+        mRegistry.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(500, mLow.size);
+        assertEquals(1000, mNormal.size);
+        assertEquals(1000, mHigh.size);
+
+        mRegistry.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        assertEquals(0, mLow.size);
+        assertEquals(0, mNormal.size);
+        assertEquals(500, mHigh.size);
+    }
+
+    @Test
+    public void onTrimMemory_trimsInOrderOfPriority() {
+        mRegistry.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+
+        assertEquals(3, mTrimmed.size());
+        assertEquals("low", mTrimmed.get(0));
+        assertEquals("normal", mTrimmed.get(1));
+        assertEquals("high", mTrimmed.get(2));
+    }
+
+    @Test
+    public void onTrimMemory_uiHidden_dropsOnlyWhatTheScreenNeeds() {
+        mRegistry.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+
+        assertEquals(0, mLow.size);
+        assertEquals(1000, mNormal.size);
+        assertEquals(1000, mHigh.size);
+    }
+
+    @Test
+    public void onLowMemory_emptiesEverything() {
+        mRegistry.onLowMemory();
+
+        assertEquals(0, mRegistry.getTotalSize());
+    }
+
+    @Test
+    public void dump_listsBiggestFirst() {
+        mLow.size = 10;
+        mHigh.size = 5000;
+
+        String dump = mRegistry.dumpToString();
+        assertTrue(dump.indexOf("high") < dump.indexOf("normal"));
+        assertTrue(dump.indexOf("normal") < dump.indexOf("low"));
+        assertTrue(dump.contains("total: 6010"));
+    }
+}
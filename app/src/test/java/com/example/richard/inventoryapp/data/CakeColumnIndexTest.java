@@ -0,0 +1,173 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that {@link CakeContract#METHOD_FIND_TOP_CAKES} filters and sorts the cakes, and that
+ * the copy of the columns behind it follows every change, gives way when memory runs low and
+ * turns down catalogs larger than it may copy.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeColumnIndexTest {
+
+    private CakeProvider mProvider;
+
+    private long mSponge;
+    private long mLemon;
+    private long mTiered;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(CakeProvider.class)
+                .create(CakeContract.CONTENT_AUTHORITY).get();
+        mSponge = insert("Sponge", CakeEntry.OCCASION_BIRTHDAY, 12.5, 4);
+        mLemon = insert("Lemon", CakeEntry.OCCASION_BIRTHDAY, 9.99, 10);
+        mTiered = insert("Tiered", CakeEntry.OCCASION_WEDDING, 120, 1);
+    }
+
+    @Test
+    public void findTopCakes_filtersAndSorts() {
+        assertArrayEquals(new long[] { mLemon, mSponge, mTiered },
+                findTopCakes(CakeContract.ANY_OCCASION, 0, CakeContract.SORT_NAME, false, 10));
+        assertArrayEquals(new long[] { mTiered, mSponge, mLemon },
+                findTopCakes(CakeContract.ANY_OCCASION, 0, CakeContract.SORT_PRICE, true, 10));
+        assertArrayEquals(new long[] { mLemon },
+                findTopCakes(CakeEntry.OCCASION_BIRTHDAY, 0, CakeContract.SORT_QUANTITY, true, 1));
+        assertArrayEquals(new long[] { mSponge, mLemon },
+                findTopCakes(CakeContract.ANY_OCCASION, 2, CakeContract.SORT_ID, false, 10));
+    }
+
+    @Test
+    public void findTopCakes_followsChanges() {
+        // Load the copy first, so that the changes below have to reach it
+        findTopCakes(CakeContract.ANY_OCCASION, 0, CakeContract.SORT_ID, false, 10);
+
+        // A change to a single cake
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, "Apple");
+        mProvider.update(ContentUris.withAppendedId(CakeEntry.CONTENT_URI, mTiered), values,
+                null, null);
+        assertArrayEquals(new long[] { mTiered, mLemon, mSponge },
+                findTopCakes(CakeContract.ANY_OCCASION, 0, CakeContract.SORT_NAME, false, 10));
+
+        // An insert and a delete
+        long carrot = insert("Carrot", CakeEntry.OCCASION_BIRTHDAY, 15, 2);
+        mProvider.delete(ContentUris.withAppendedId(CakeEntry.CONTENT_URI, mLemon), null, null);
+        assertArrayEquals(new long[] { mTiered, carrot, mSponge },
+                findTopCakes(CakeContract.ANY_OCCASION, 0, CakeContract.SORT_NAME, false, 10));
+
+        // A change to many cakes at once
+        values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_QUANTITY, 0);
+        mProvider.update(CakeEntry.CONTENT_URI, values, null, null);
+        assertArrayEquals(new long[0],
+                findTopCakes(CakeContract.ANY_OCCASION, 1, CakeContract.SORT_ID, false, 10));
+
+        // A "delete all", and its undo
+        mProvider.delete(CakeEntry.CONTENT_URI, null, null);
+        assertArrayEquals(new long[0],
+                findTopCakes(CakeContract.ANY_OCCASION, 0, CakeContract.SORT_ID, false, 10));
+        mProvider.call(CakeContract.METHOD_UNDO, null, null);
+        assertArrayEquals(new long[] { mSponge, mTiered, carrot },
+                findTopCakes(CakeContract.ANY_OCCASION, 0, CakeContract.SORT_ID, false, 10));
+    }
+
+    @Test
+    public void trim_dropsTheCopyUntilTheNextQuery() {
+        SQLiteDatabase database = new CakeDbHelper(RuntimeEnvironment.application)
+                .getWritableDatabase();
+        insert(database, "Sponge", 4);
+        insert(database, "Lemon", 10);
+        CakeColumnIndex index = new CakeColumnIndex();
+
+        assertEquals(2, query(index, database).length);
+        assertTrue(index.getSize() > 0);
+
+        index.trimToSize(0);
+        assertEquals(0, index.getSize());
+
+        // The next query loads it again, including what changed in the meantime
+        insert(database, "Carrot", 2);
+        assertEquals(3, query(index, database).length);
+        assertTrue(index.getSize() > 0);
+    }
+
+    @Test
+    public void query_catalogTooLarge_returnsNull() {
+        SQLiteDatabase database = new CakeDbHelper(RuntimeEnvironment.application)
+                .getWritableDatabase();
+        CakeColumnIndex index = new CakeColumnIndex(2);
+        long sponge = insert(database, "Sponge", 4);
+        long lemon = insert(database, "Lemon", 10);
+        assertArrayEquals(new long[] { sponge, lemon }, query(index, database));
+
+        // A cake inserted past the cap gives up on the copy, a delete brings it back
+        long carrot = insert(database, "Carrot", 2);
+        index.onCakesChanged(carrot);
+        assertNull(query(index, database));
+        assertEquals(0, index.getSize());
+
+        database.delete(CakeEntry.TABLE_NAME, CakeEntry._ID + "=" + sponge, null);
+        index.onCakesChanged(sponge);
+        assertArrayEquals(new long[] { lemon, carrot }, query(index, database));
+    }
+
+    private long insert(String name, int occasion, double price, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, name);
+        values.put(CakeEntry.COLUMN_CAKE_OCCASION, occasion);
+        values.put(CakeEntry.COLUMN_CAKE_PRICE, price);
+        values.put(CakeEntry.COLUMN_CAKE_QUANTITY, quantity);
+        Uri uri = mProvider.insert(CakeEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+
+    private static long insert(SQLiteDatabase database, String name, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, name);
+        values.put(CakeEntry.COLUMN_CAKE_OCCASION, CakeEntry.OCCASION_BIRTHDAY);
+        values.put(CakeEntry.COLUMN_CAKE_QUANTITY, quantity);
+        return database.insert(CakeEntry.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Return the ids of every cake inserted straight into the database by the test. The cakes
+     * inserted through the provider by {@link #setUp()} are in the same database, and are
+     * hidden as if by a "delete all".
+     */
+    private long[] query(CakeColumnIndex index, SQLiteDatabase database) {
+        return index.query(database, mTiered, CakeContract.ANY_OCCASION, 0,
+                CakeContract.SORT_ID, false, Integer.MAX_VALUE);
+    }
+
+    private long[] findTopCakes(int occasion, int minQuantity, int sort, boolean descending,
+                                int limit) {
+        Bundle extras = new Bundle();
+        extras.putInt(CakeContract.EXTRA_OCCASION, occasion);
+        extras.putInt(CakeContract.EXTRA_MIN_QUANTITY, minQuantity);
+        extras.putInt(CakeContract.EXTRA_SORT, sort);
+        extras.putBoolean(CakeContract.EXTRA_DESCENDING, descending);
+        extras.putInt(CakeContract.EXTRA_LIMIT, limit);
+        Bundle result = mProvider.call(CakeContract.METHOD_FIND_TOP_CAKES, null, extras);
+        return result.getLongArray(CakeContract.RESULT_IDS);
+    }
+}
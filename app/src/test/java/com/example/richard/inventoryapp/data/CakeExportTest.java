@@ -0,0 +1,76 @@
+package com.example.richard.inventoryapp.data;
+
+import android.database.MatrixCursor;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the layout written by {@link CakeExport}, read back the way another app would.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeExportTest {
+
+    @Test
+    public void export_readsBackAcrossPages() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CakeExport export = new CakeExport(new DataOutputStream(bytes));
+
+        MatrixCursor first = new MatrixCursor(CakeRow.COLUMNS);
+        first.addRow(new Object[] { 1L, "Cr\u00e8me br\u00fbl\u00e9e \u2603",
+                CakeEntry.OCCASION_WEDDING, 120.5, 2, "1.jpg", 40.0, 1000L, "SKU1" });
+        MatrixCursor second = new MatrixCursor(CakeRow.COLUMNS);
+        second.addRow(new Object[] { 5L, "Sponge", CakeEntry.OCCASION_BIRTHDAY, 12.0, 7, null,
+                3.5, 2000L, null });
+
+        assertEquals(1L, export.writeRows(first));
+        assertEquals(5L, export.writeRows(second));
+        assertEquals(-1L, export.writeRows(new MatrixCursor(CakeRow.COLUMNS)));
+        assertEquals(2, export.finish());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(CakeExport.MAGIC, in.readInt());
+        assertEquals(CakeExport.VERSION, in.readShort());
+
+        assertEquals(CakeExport.TAG_CAKE, in.readByte());
+        assertEquals(1L, in.readLong());
+        assertEquals("Cr\u00e8me br\u00fbl\u00e9e \u2603", in.readUTF());
+        assertEquals(CakeEntry.OCCASION_WEDDING, in.readInt());
+        assertEquals(120.5, in.readDouble(), 0);
+        assertEquals(2, in.readInt());
+        assertEquals(40.0, in.readDouble(), 0);
+        assertEquals(1000L, in.readLong());
+        assertTrue(in.readBoolean());
+        assertEquals("SKU1", in.readUTF());
+        assertTrue(in.readBoolean());
+        assertEquals("1.jpg", in.readUTF());
+
+        assertEquals(CakeExport.TAG_CAKE, in.readByte());
+        assertEquals(5L, in.readLong());
+        assertEquals("Sponge", in.readUTF());
+        assertEquals(CakeEntry.OCCASION_BIRTHDAY, in.readInt());
+        assertEquals(12.0, in.readDouble(), 0);
+        assertEquals(7, in.readInt());
+        assertEquals(3.5, in.readDouble(), 0);
+        assertEquals(2000L, in.readLong());
+        assertFalse(in.readBoolean());
+        assertFalse(in.readBoolean());
+
+        assertEquals(CakeExport.TAG_END, in.readByte());
+        assertEquals(2, in.readInt());
+        assertEquals(-1, in.read());
+    }
+}
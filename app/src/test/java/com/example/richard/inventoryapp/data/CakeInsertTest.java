@@ -0,0 +1,109 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that inserting a cake stores its values as they were given, whether or not they are of
+ * the types the compiled insert statement of {@link CakeProvider} binds.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeInsertTest {
+
+    private CakeProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(CakeProvider.class)
+                .create(CakeContract.CONTENT_AUTHORITY).get();
+    }
+
+    @Test
+    public void typedValues_areStored() {
+        ContentValues values = cakeValues();
+        values.put(CakeEntry.COLUMN_CAKE_PRICE, 12.5);
+        values.put(CakeEntry.COLUMN_CAKE_QUANTITY, 3);
+        Cursor cursor = insertAndQuery(values);
+        try {
+            assertEquals(12.5, cursor.getDouble(0), 0);
+            assertEquals(3, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void missingNumbers_areZero() {
+        Cursor cursor = insertAndQuery(cakeValues());
+        try {
+            assertEquals(0, cursor.getDouble(0), 0);
+            assertEquals(0, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void fractionalQuantity_isNotTruncated() {
+        ContentValues values = cakeValues();
+        values.put(CakeEntry.COLUMN_CAKE_QUANTITY, 5.5);
+        Cursor cursor = insertAndQuery(values);
+        try {
+            assertEquals(5.5, cursor.getDouble(1), 0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void textPrice_isNotTurnedIntoZero() {
+        ContentValues values = cakeValues();
+        values.put(CakeEntry.COLUMN_CAKE_PRICE, "abc");
+        Cursor cursor = insertAndQuery(values);
+        try {
+            assertEquals("abc", cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void nullPrice_isRejected() {
+        ContentValues values = cakeValues();
+        values.putNull(CakeEntry.COLUMN_CAKE_PRICE);
+        assertNull(mProvider.insert(CakeEntry.CONTENT_URI, values));
+    }
+
+    private static ContentValues cakeValues() {
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, "Sponge");
+        values.put(CakeEntry.COLUMN_CAKE_OCCASION, CakeEntry.OCCASION_BIRTHDAY);
+        return values;
+    }
+
+    /**
+     * Insert a cake and return a cursor on its price and quantity, moved to its row.
+     */
+    private Cursor insertAndQuery(ContentValues values) {
+        Uri uri = mProvider.insert(CakeEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        Cursor cursor = mProvider.query(uri, new String[] {
+                CakeEntry.COLUMN_CAKE_PRICE, CakeEntry.COLUMN_CAKE_QUANTITY }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        return cursor;
+    }
+}
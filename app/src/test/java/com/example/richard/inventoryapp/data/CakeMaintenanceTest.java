@@ -0,0 +1,129 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+import com.example.richard.inventoryapp.data.CakeContract.PriceHistoryEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the pruning of the price history done by {@link CakeMaintenance} only removes the
+ * entries that no lookup within the retained period can pick.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeMaintenanceTest {
+
+    private static final long NOW = 1000000000000L;
+    private static final long DAY = 24 * 60 * 60 * 1000;
+    private static final long CUTOFF = NOW - CakeMaintenance.PRICE_HISTORY_RETENTION;
+
+    private SQLiteDatabase mDatabase;
+    private long mCakeId;
+
+    @Before
+    public void setUp() {
+        mDatabase = new CakeDbHelper(RuntimeEnvironment.application).getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, "Sponge");
+        values.put(CakeEntry.COLUMN_CAKE_OCCASION, CakeEntry.OCCASION_BIRTHDAY);
+        mCakeId = mDatabase.insert(CakeEntry.TABLE_NAME, null, values);
+
+        // Leave only the entries the tests add
+        mDatabase.delete(PriceHistoryEntry.TABLE_NAME, null, null);
+    }
+
+    @Test
+    public void prune_keepsTheLastEntryBeforeTheCutoff() {
+        addPrice(10, CUTOFF - 3 * DAY);
+        addPrice(11, CUTOFF - 2 * DAY);
+        addPrice(12, CUTOFF - DAY);
+        addPrice(13, CUTOFF + DAY);
+
+        pruneAll(NOW);
+
+        assertArrayEquals(new double[] { 12, 13 }, queryPrices(), 0);
+    }
+
+    @Test
+    public void prune_leavesOtherCakesAndRecentEntriesAlone() {
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, "Lemon");
+        values.put(CakeEntry.COLUMN_CAKE_OCCASION, CakeEntry.OCCASION_BIRTHDAY);
+        long lemonId = mDatabase.insert(CakeEntry.TABLE_NAME, null, values);
+        mDatabase.delete(PriceHistoryEntry.TABLE_NAME, null, null);
+
+        // The only old entry of a cake is still the price it had at the cutoff
+        addPrice(lemonId, 5, CUTOFF - DAY);
+        addPrice(20, CUTOFF + DAY);
+        addPrice(21, CUTOFF + 2 * DAY);
+
+        pruneAll(NOW);
+
+        assertArrayEquals(new double[] { 5, 20, 21 }, queryPrices(), 0);
+    }
+
+    @Test
+    public void prune_runsAtMostOncePerInterval() {
+        addPrice(10, CUTOFF - 2 * DAY);
+        addPrice(11, CUTOFF - DAY);
+        pruneAll(NOW);
+        assertEquals(1, queryPrices().length);
+
+        // A day later the entries have aged, but the next pass isn't due yet
+        addPrice(12, CUTOFF);
+        assertFalse(CakeMaintenance.pruneStep(mDatabase, NOW + DAY - 1));
+        assertEquals(2, queryPrices().length);
+
+        pruneAll(NOW + DAY + 1);
+        assertEquals(1, queryPrices().length);
+    }
+
+    private void pruneAll(long now) {
+        int steps = 0;
+        while (CakeMaintenance.pruneStep(mDatabase, now)) {
+            assertTrue("Pruning doesn't finish", ++steps < 1000);
+        }
+    }
+
+    private void addPrice(double price, long effectiveAt) {
+        addPrice(mCakeId, price, effectiveAt);
+    }
+
+    private void addPrice(long cakeId, double price, long effectiveAt) {
+        ContentValues values = new ContentValues();
+        values.put(PriceHistoryEntry.COLUMN_CAKE_ID, cakeId);
+        values.put(PriceHistoryEntry.COLUMN_PRICE, price);
+        values.put(PriceHistoryEntry.COLUMN_EFFECTIVE_AT, effectiveAt);
+        mDatabase.insert(PriceHistoryEntry.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Return the prices left in the history, oldest first.
+     */
+    private double[] queryPrices() {
+        Cursor cursor = mDatabase.query(PriceHistoryEntry.TABLE_NAME,
+                new String[] { PriceHistoryEntry.COLUMN_PRICE }, null, null, null, null,
+                PriceHistoryEntry.COLUMN_EFFECTIVE_AT);
+        try {
+            double[] prices = new double[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                prices[i] = cursor.getDouble(0);
+            }
+            return prices;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the trigram index of the names kept by {@link CakeNameIndex}, through the provider
+ * methods that look it up.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeNameIndexTest {
+
+    private static final String[] FLAVOURS = {
+            "Chocolate", "Choclate", "Lemon", "Carrot", "Red Velvet", "Vanilla", "Coffee",
+            "Banana", "Fruit", "Coconut"
+    };
+
+    private static final String[] KINDS = {
+            "Sponge", "Cake", "Gateau", "Torte", "Cupcakes", "Swiss Roll"
+    };
+
+    private CakeProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(CakeProvider.class)
+                .create(CakeContract.CONTENT_AUTHORITY).get();
+    }
+
+    @Test
+    public void trigrams_ignoreCaseAndPunctuation() {
+        assertArrayEquals(CakeNameIndex.trigrams("racing car"),
+                CakeNameIndex.trigrams("Racing-Car!"));
+        assertArrayEquals(new String[] { "  c", " ca", "ar ", "car" },
+                CakeNameIndex.trigrams("Car"));
+        assertEquals(0, CakeNameIndex.trigrams(" - ").length);
+    }
+
+    @Test
+    public void similarity_isHighForNearDuplicates() {
+        assertTrue(CakeNameIndex.similarity("Racing Car", "Racing-Car Cake") > 0.7f);
+        assertTrue(CakeNameIndex.similarity("Racing Car", "Lemon Drizzle") < 0.1f);
+        assertEquals(1, CakeNameIndex.similarity("Car Racing", "racing car"), 0);
+    }
+
+    @Test
+    public void findSimilarNames_findsNearDuplicatesOnly() {
+        long racingCar = insertCake("Racing Car");
+        insertCake("Lemon Drizzle");
+        insertCake("Carrot Cake");
+
+        CakeNameMatches matches = findSimilarNames("Racing-Car Cake", -1);
+
+        assertEquals(1, matches.size());
+        assertEquals(racingCar, matches.matchIds[0]);
+        assertEquals("Racing Car", matches.matchNames[0]);
+        assertEquals(CakeNameIndex.similarity("Racing-Car Cake", "Racing Car"),
+                matches.similarities[0], 0);
+    }
+
+    @Test
+    public void findSimilarNames_leavesOutTheCakeBeingEdited() {
+        long racingCar = insertCake("Racing Car");
+
+        assertEquals(0, findSimilarNames("Racing Car", racingCar).size());
+        assertEquals(1, findSimilarNames("Racing Car", -1).size());
+    }
+
+    @Test
+    public void findSimilarNames_followsRenamesAndDeletes() {
+        long id = insertCake("Racing Car");
+        Uri uri = ContentUris.withAppendedId(CakeEntry.CONTENT_URI, id);
+
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, "Fairy Castle");
+        mProvider.update(uri, values, null, null);
+        assertEquals(0, findSimilarNames("Racing Car", -1).size());
+        assertEquals(1, findSimilarNames("Fairy Castle Cake", -1).size());
+
+        mProvider.delete(uri, null, null);
+        assertEquals(0, findSimilarNames("Fairy Castle Cake", -1).size());
+    }
+
+    @Test
+    public void findDuplicateNames_findsTheSamePairsAsComparingEveryPair() {
+        List<String> names = new ArrayList<String>();
+        List<Long> ids = new ArrayList<Long>();
+        for (String flavour : FLAVOURS) {
+            for (String kind : KINDS) {
+                String name = flavour + " " + kind;
+                names.add(name);
+                ids.add(insertCake(name));
+            }
+        }
+
+        Set<String> expected = new HashSet<String>();
+        for (int i = 0; i < names.size(); i++) {
+            for (int j = i + 1; j < names.size(); j++) {
+                if (CakeNameIndex.similarity(names.get(i), names.get(j))
+                        >= CakeContract.DEFAULT_NAME_SIMILARITY) {
+                    expected.add(ids.get(i) + "/" + ids.get(j));
+                }
+            }
+        }
+        assertFalse(expected.isEmpty());
+        assertTrue(expected.size() < CakeNameIndex.MAX_DUPLICATE_MATCHES);
+
+        CakeNameMatches matches = CakeNameMatches.fromBundle(mProvider.call(
+                CakeContract.METHOD_FIND_DUPLICATE_NAMES, null, null));
+        Set<String> actual = new HashSet<String>();
+        for (int i = 0; i < matches.size(); i++) {
+            actual.add(matches.ids[i] + "/" + matches.matchIds[i]);
+            if (i > 0) {
+                assertTrue(matches.similarities[i] <= matches.similarities[i - 1]);
+            }
+        }
+        assertEquals(expected, actual);
+    }
+
+    private long insertCake(String name) {
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, name);
+        values.put(CakeEntry.COLUMN_CAKE_OCCASION, CakeEntry.OCCASION_BIRTHDAY);
+        values.put(CakeEntry.COLUMN_CAKE_PRICE, 10);
+        values.put(CakeEntry.COLUMN_CAKE_QUANTITY, 1);
+        return ContentUris.parseId(mProvider.insert(CakeEntry.CONTENT_URI, values));
+    }
+
+    private CakeNameMatches findSimilarNames(String name, long cakeId) {
+        Bundle extras = new Bundle();
+        extras.putString(CakeContract.EXTRA_NAME, name);
+        extras.putLong(CakeContract.EXTRA_CAKE_ID, cakeId);
+        return CakeNameMatches.fromBundle(mProvider.call(
+                CakeContract.METHOD_FIND_SIMILAR_NAMES, null, extras));
+    }
+}
@@ -0,0 +1,221 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+import com.example.richard.inventoryapp.data.CakeContract.PriceHistoryEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the point-in-time lookups of the price history of {@link CakeProvider}: the price of a
+ * cake before, at and between the times its price changed, the prices of every cake at a time,
+ * and how a "delete all" and an undo show up in them.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakePriceHistoryTest {
+
+    private CakeProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(CakeProvider.class)
+                .create(CakeContract.CONTENT_AUTHORITY).get();
+    }
+
+    @Test
+    public void priceAt_beforeTheFirstEntry_findsNothing() {
+        long id = insertCake("Sponge", 10);
+        long[] times = queryTimes(id);
+
+        assertNull(queryPriceAt(id, times[0] - 1));
+        assertFalse(queryPricesAt(times[0] - 1).containsKey(id));
+    }
+
+    @Test
+    public void priceAt_exactAndBetweenEntries() {
+        long id = insertCake("Sponge", 10);
+        waitForNextMillisecond();
+        updatePrice(id, 12);
+        long[] times = queryTimes(id);
+        assertEquals(2, times.length);
+        assertTrue(times[0] < times[1]);
+
+        // An entry is in effect from its own time on, until the time of the next one
+        assertEquals(10, queryPriceAt(id, times[0]), 0);
+        assertEquals(10, queryPriceAt(id, times[1] - 1), 0);
+        assertEquals(12, queryPriceAt(id, times[1]), 0);
+        assertEquals(12, queryPriceAt(id, Long.MAX_VALUE), 0);
+    }
+
+    @Test
+    public void priceAt_agreesWithTheClockOfTheApp() {
+        long id = insertCake("Sponge", 10);
+        waitForNextMillisecond();
+        long before = System.currentTimeMillis();
+        waitForNextMillisecond();
+        updatePrice(id, 12);
+        long after = System.currentTimeMillis();
+
+        assertEquals(10, queryPriceAt(id, before), 0);
+        assertEquals(12, queryPriceAt(id, after), 0);
+    }
+
+    @Test
+    public void pricesAt_everyCakeAtTheTime() {
+        long sponge = insertCake("Sponge", 10);
+        waitForNextMillisecond();
+        long lemon = insertCake("Lemon", 8);
+        waitForNextMillisecond();
+        updatePrice(sponge, 11);
+        long lemonAdded = queryTimes(lemon)[0];
+
+        // Before the lemon cake existed only the sponge cake has a price
+        Map<Long, Double> prices = queryPricesAt(lemonAdded - 1);
+        assertEquals(1, prices.size());
+        assertEquals(10, prices.get(sponge), 0);
+
+        prices = queryPricesAt(lemonAdded);
+        assertEquals(2, prices.size());
+        assertEquals(10, prices.get(sponge), 0);
+        assertEquals(8, prices.get(lemon), 0);
+
+        prices = queryPricesAt(Long.MAX_VALUE);
+        assertEquals(11, prices.get(sponge), 0);
+        assertEquals(8, prices.get(lemon), 0);
+    }
+
+    @Test
+    public void priceAt_cakeHiddenByDeleteAll_findsNothing() {
+        long id = insertCake("Sponge", 10);
+        long added = queryTimes(id)[0];
+        assertEquals(1, mProvider.delete(CakeEntry.CONTENT_URI, null, null));
+
+        assertNull(queryPriceAt(id, added));
+        assertTrue(queryPricesAt(added).isEmpty());
+
+        // Undoing the "delete all" brings its history back with it
+        mProvider.call(CakeContract.METHOD_UNDO, null, null);
+        assertEquals(10, queryPriceAt(id, added), 0);
+        assertEquals(10, queryPricesAt(added).get(id), 0);
+    }
+
+    @Test
+    public void undoPriceChange_addsAnEntry() {
+        long id = insertCake("Sponge", 10);
+        waitForNextMillisecond();
+        updatePrice(id, 12);
+        waitForNextMillisecond();
+        mProvider.call(CakeContract.METHOD_UNDO, null, null);
+
+        // The undo is a change of price of its own, so the history still shows the price the
+        // cake had in between
+        long[] times = queryTimes(id);
+        assertEquals(3, times.length);
+        assertEquals(10, queryPriceAt(id, times[0]), 0);
+        assertEquals(12, queryPriceAt(id, times[1]), 0);
+        assertEquals(10, queryPriceAt(id, times[2]), 0);
+    }
+
+    private long insertCake(String name, double price) {
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, name);
+        values.put(CakeEntry.COLUMN_CAKE_OCCASION, CakeEntry.OCCASION_BIRTHDAY);
+        values.put(CakeEntry.COLUMN_CAKE_PRICE, price);
+        values.put(CakeEntry.COLUMN_CAKE_QUANTITY, 1);
+        Uri uri = mProvider.insert(CakeEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+
+    private void updatePrice(long id, double price) {
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_PRICE, price);
+        assertEquals(1, mProvider.update(ContentUris.withAppendedId(CakeEntry.CONTENT_URI, id),
+                values, null, null));
+    }
+
+    /**
+     * Wait until the clock has moved on, so that the next change gets a time of its own.
+     */
+    private static void waitForNextMillisecond() {
+        long now = System.currentTimeMillis();
+        while (System.currentTimeMillis() == now) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Return the times of the entries in the history of a cake, oldest first.
+     */
+    private long[] queryTimes(long id) {
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(PriceHistoryEntry.CONTENT_URI,
+                id), null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            long[] times = new long[cursor.getCount()];
+            int column = cursor.getColumnIndexOrThrow(PriceHistoryEntry.COLUMN_EFFECTIVE_AT);
+            for (int i = times.length - 1; cursor.moveToNext(); i--) {
+                times[i] = cursor.getLong(column);
+            }
+            return times;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the price of a cake at a time, or null if there is none.
+     */
+    private Double queryPriceAt(long id, long at) {
+        Uri uri = ContentUris.withAppendedId(PriceHistoryEntry.CONTENT_URI, id).buildUpon()
+                .appendQueryParameter(PriceHistoryEntry.QUERY_PARAMETER_AT, String.valueOf(at))
+                .build();
+        Cursor cursor = mProvider.query(uri, null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.getCount() <= 1);
+            return cursor.moveToFirst() ? cursor.getDouble(
+                    cursor.getColumnIndexOrThrow(PriceHistoryEntry.COLUMN_PRICE)) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the price of every cake at a time, by the _id of the cake.
+     */
+    private Map<Long, Double> queryPricesAt(long at) {
+        Uri uri = PriceHistoryEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(PriceHistoryEntry.QUERY_PARAMETER_AT, String.valueOf(at))
+                .build();
+        Cursor cursor = mProvider.query(uri, null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            Map<Long, Double> prices = new HashMap<>();
+            int cakeId = cursor.getColumnIndexOrThrow(PriceHistoryEntry.COLUMN_CAKE_ID);
+            int price = cursor.getColumnIndexOrThrow(PriceHistoryEntry.COLUMN_PRICE);
+            while (cursor.moveToNext()) {
+                prices.put(cursor.getLong(cakeId), cursor.getDouble(price));
+            }
+            return prices;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.IngredientEntry;
+import com.example.richard.inventoryapp.data.CakeContract.RecipeEntry;
+import com.example.richard.inventoryapp.data.CakeContract.RecipeItemEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the plans worked out by {@link CakeProductionPlanner}, on recipes written straight
+ * into the database.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeProductionPlannerTest {
+
+    private SQLiteDatabase mDatabase;
+    private CakeProductionPlanner mPlanner;
+
+    private long mFlour;
+    private long mSugar;
+    private long mButter;
+
+    @Before
+    public void setUp() throws Exception {
+        mDatabase = new CakeDbHelper(RuntimeEnvironment.application).getWritableDatabase();
+        mPlanner = new CakeProductionPlanner(mDatabase, 4);
+
+        mFlour = insertIngredient("Flour", 1000);
+        mSugar = insertIngredient("Sugar", 100);
+        mButter = insertIngredient("Butter", 0);
+    }
+
+    @After
+    public void tearDown() {
+        mPlanner.shutdown();
+    }
+
+    @Test
+    public void plan_expandsSharedParts() {
+        // A batch of sponge makes 2 units from 400 flour and 200 sugar
+        long sponge = insertRecipe("Sponge", null, 2);
+        insertIngredientLine(sponge, mFlour, 400);
+        insertIngredientLine(sponge, mSugar, 200);
+
+        // Both cakes use a unit of sponge, and one adds butter
+        long plain = insertRecipe("Plain", 10L, 1);
+        insertPartLine(plain, sponge, 1);
+        long buttered = insertRecipe("Buttered", 11L, 1);
+        insertPartLine(buttered, sponge, 1);
+        insertIngredientLine(buttered, mButter, 50);
+
+        CakeProductionPlan plan = mPlanner.plan(new long[] { 10, 11 }, new int[] { 3, 1 });
+
+        assertArrayEquals(new long[] { mFlour, mSugar, mButter }, plan.ingredientIds);
+        assertArrayEquals(new double[] { 800, 400, 50 }, plan.demand, 1e-9);
+        assertEquals(0, plan.getShortfall(0), 1e-9);
+        assertEquals(300, plan.getShortfall(1), 1e-9);
+        assertEquals(50, plan.getShortfall(2), 1e-9);
+        assertFalse(plan.isCovered());
+        assertEquals(0, plan.cakesWithoutRecipe.length);
+    }
+
+    @Test
+    public void plan_listsCakesWithoutRecipe() {
+        long plain = insertRecipe("Plain", 10L, 4);
+        insertIngredientLine(plain, mFlour, 100);
+
+        CakeProductionPlan plan = mPlanner.plan(new long[] { 10, 12 }, new int[] { 4, 1 });
+
+        assertArrayEquals(new long[] { mFlour }, plan.ingredientIds);
+        assertArrayEquals(new double[] { 100 }, plan.demand, 1e-9);
+        assertTrue(plan.isCovered());
+        assertArrayEquals(new long[] { 12 }, plan.cakesWithoutRecipe);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void plan_rejectsRecipesThatUseThemselves() {
+        long cake = insertRecipe("Cake", 10L, 1);
+        long filling = insertRecipe("Filling", null, 1);
+        insertPartLine(cake, filling, 1);
+        insertPartLine(filling, cake, 1);
+
+        mPlanner.plan(new long[] { 10 }, new int[] { 1 });
+    }
+
+    @Test
+    public void plan_addsUpTheSameInParallel() {
+        long sponge = insertRecipe("Sponge", null, 3);
+        insertIngredientLine(sponge, mFlour, 250);
+        insertIngredientLine(sponge, mSugar, 120);
+        for (long cakeId = 1; cakeId <= 50; cakeId++) {
+            long recipe = insertRecipe("Cake " + cakeId, cakeId, 1);
+            insertPartLine(recipe, sponge, cakeId % 3 + 1);
+            insertIngredientLine(recipe, mButter, cakeId);
+        }
+
+        // Enough cakes for the run to be split across the threads
+        int size = 5000;
+        long[] cakeIds = new long[size];
+        int[] counts = new int[size];
+        for (int i = 0; i < size; i++) {
+            cakeIds[i] = i % 50 + 1;
+            counts[i] = i % 7;
+        }
+
+        CakeProductionPlanner sequential = new CakeProductionPlanner(mDatabase, 1);
+        try {
+            CakeProductionPlan expected = sequential.plan(cakeIds, counts);
+            CakeProductionPlan actual = mPlanner.plan(cakeIds, counts);
+            assertArrayEquals(expected.ingredientIds, actual.ingredientIds);
+            for (int i = 0; i < expected.demand.length; i++) {
+                assertEquals(expected.demand[i], actual.demand[i],
+                        Math.abs(expected.demand[i]) * 1e-12);
+            }
+        } finally {
+            sequential.shutdown();
+        }
+    }
+
+    @Test
+    public void plan_roundTripsThroughBundle() {
+        long plain = insertRecipe("Plain", 10L, 1);
+        insertIngredientLine(plain, mSugar, 30);
+
+        CakeProductionPlan plan = CakeProductionPlan.fromBundle(
+                mPlanner.plan(new long[] { 10, 13 }, new int[] { 5, 2 }).toBundle());
+
+        assertArrayEquals(new long[] { mSugar }, plan.ingredientIds);
+        assertTrue(Arrays.equals(new double[] { 150 }, plan.demand));
+        assertTrue(Arrays.equals(new double[] { 100 }, plan.stock));
+        assertArrayEquals(new long[] { 13 }, plan.cakesWithoutRecipe);
+    }
+
+    private long insertIngredient(String name, double stock) {
+        ContentValues values = new ContentValues();
+        values.put(IngredientEntry.COLUMN_NAME, name);
+        values.put(IngredientEntry.COLUMN_STOCK, stock);
+        return mDatabase.insertOrThrow(IngredientEntry.TABLE_NAME, null, values);
+    }
+
+    private long insertRecipe(String name, Long cakeId, double yield) {
+        ContentValues values = new ContentValues();
+        values.put(RecipeEntry.COLUMN_NAME, name);
+        values.put(RecipeEntry.COLUMN_CAKE_ID, cakeId);
+        values.put(RecipeEntry.COLUMN_YIELD, yield);
+        return mDatabase.insertOrThrow(RecipeEntry.TABLE_NAME, null, values);
+    }
+
+    private void insertIngredientLine(long recipeId, long ingredientId, double amount) {
+        ContentValues values = new ContentValues();
+        values.put(RecipeItemEntry.COLUMN_RECIPE_ID, recipeId);
+        values.put(RecipeItemEntry.COLUMN_INGREDIENT_ID, ingredientId);
+        values.put(RecipeItemEntry.COLUMN_AMOUNT, amount);
+        mDatabase.insertOrThrow(RecipeItemEntry.TABLE_NAME, null, values);
+    }
+
+    private void insertPartLine(long recipeId, long subRecipeId, double amount) {
+        ContentValues values = new ContentValues();
+        values.put(RecipeItemEntry.COLUMN_RECIPE_ID, recipeId);
+        values.put(RecipeItemEntry.COLUMN_SUB_RECIPE_ID, subRecipeId);
+        values.put(RecipeItemEntry.COLUMN_AMOUNT, amount);
+        mDatabase.insertOrThrow(RecipeItemEntry.TABLE_NAME, null, values);
+    }
+}
@@ -0,0 +1,874 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+import com.example.richard.inventoryapp.data.CakeContract.PickupSlotEntry;
+import com.example.richard.inventoryapp.data.CakeContract.PriceHistoryEntry;
+import com.example.richard.inventoryapp.data.CakeContract.ReservationEntry;
+import com.example.richard.inventoryapp.data.CakeContract.StockBatchEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowSQLiteConnection;
+import org.robolectric.util.ReflectionHelpers;
+import org.robolectric.util.ReflectionHelpers.ClassParameter;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Performance regression tests of {@link CakeProvider}, run on the JVM against Robolectric's
+ * SQLite, so they need no device.
+ *
+ * Timings on a build machine say little about a phone, so the tests check what makes the
+ * provider fast instead: the query plan of every URI and of the queries behind its methods and
+ * files, and the number of statements run and notifications sent by every kind of write. They
+ * are run at several table sizes, with fresh statistics, so a plan that only goes wrong once
+ * the table is big is caught too, and on the catalog of another shop as well as the device's
+ * own. A test fails when a change makes a query scan a table it used to search, sort rows it
+ * used to read in order, or run or notify more than it used to for the same write.
+ *
+ * The statements are counted by {@link StatementLog}, which sees every statement the provider
+ * runs without the provider having to know about it. The tests look at the database through
+ * a helper of their own, on the same file.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23,
+        shadows = CakeProviderPerformanceTest.StatementLog.class)
+public class CakeProviderPerformanceTest {
+
+    /** Number of cakes in the table for each round of checks */
+    private static final int[] TABLE_SIZES = { 10, 1000, 5000 };
+
+    /** Shop whose catalog the tenant tests run on */
+    private static final String TENANT = "north";
+
+    /** Directory of the photos of the device's own catalog, in the files directory */
+    private static final String IMAGE_DIRECTORY = "images";
+
+    /** Sort orders offered by the catalog */
+    private static final String[] SORT_ORDERS = {
+            CakeEntry.SORT_NAME,
+            CakeEntry.SORT_PRICE_ASC,
+            CakeEntry.SORT_PRICE_DESC,
+            CakeEntry.SORT_QUANTITY_ASC,
+            CakeEntry.SORT_QUANTITY_DESC
+    };
+
+    /** Columns read by the catalog */
+    private static final String[] PROJECTION = {
+            CakeEntry._ID,
+            CakeEntry.COLUMN_CAKE_NAME,
+            CakeEntry.COLUMN_CAKE_QUANTITY,
+            CakeEntry.COLUMN_CAKE_OCCASION,
+            CakeEntry.COLUMN_CAKE_PRICE,
+            CakeEntry.COLUMN_CAKE_IMAGE
+    };
+
+    /**
+     * Shadow of the connections to SQLite that keeps the SQL of every statement run, so the
+     * tests can count the statements behind each call to the provider and look at the plan of
+     * each of its queries. Every other part of a connection is left to Robolectric.
+     */
+    @Implements(className = "android.database.sqlite.SQLiteConnection", isInAndroidSdk = false)
+    public static class StatementLog extends ShadowSQLiteConnection {
+
+        /** SQL of every prepared statement, by its pointer */
+        private static final Map<Long, String> sStatements = new ConcurrentHashMap<Long, String>();
+
+        /** SQL of every statement run since the log was last cleared, in order */
+        private static final List<String> sExecuted =
+                Collections.synchronizedList(new ArrayList<String>());
+
+        /**
+         * Forget the statements run so far.
+         */
+        static void clear() {
+            sExecuted.clear();
+        }
+
+        /**
+         * Return the number of statements run since the log was cleared that write rows.
+         * The rows written by triggers are part of the statement that fired them.
+         */
+        static int countWrites() {
+            int writes = 0;
+            for (String sql : getExecuted()) {
+                if (DatabaseUtils.getSqlStatementType(sql) == DatabaseUtils.STATEMENT_UPDATE) {
+                    writes++;
+                }
+            }
+            return writes;
+        }
+
+        /**
+         * Return the SQL of the queries run since the log was cleared, in order.
+         */
+        static List<String> getQueries() {
+            List<String> queries = new ArrayList<String>();
+            for (String sql : getExecuted()) {
+                if (DatabaseUtils.getSqlStatementType(sql) == DatabaseUtils.STATEMENT_SELECT) {
+                    queries.add(sql);
+                }
+            }
+            return queries;
+        }
+
+        private static List<String> getExecuted() {
+            synchronized (sExecuted) {
+                return new ArrayList<String>(sExecuted);
+            }
+        }
+
+        private static void executed(long statementPtr) {
+            String sql = sStatements.get(statementPtr);
+            if (sql != null) {
+                sExecuted.add(sql);
+            }
+        }
+
+        @Implementation
+        public static long nativePrepareStatement(long connectionPtr, String sql) {
+            long statementPtr = ShadowSQLiteConnection.nativePrepareStatement(connectionPtr, sql);
+            sStatements.put(statementPtr, sql);
+            return statementPtr;
+        }
+
+        @Implementation
+        public static void nativeExecute(long connectionPtr, long statementPtr) {
+            executed(statementPtr);
+            ShadowSQLiteConnection.nativeExecute(connectionPtr, statementPtr);
+        }
+
+        @Implementation
+        public static long nativeExecuteForLong(long connectionPtr, long statementPtr) {
+            executed(statementPtr);
+            return ShadowSQLiteConnection.nativeExecuteForLong(connectionPtr, statementPtr);
+        }
+
+        @Implementation
+        public static String nativeExecuteForString(long connectionPtr, long statementPtr) {
+            executed(statementPtr);
+            return ShadowSQLiteConnection.nativeExecuteForString(connectionPtr, statementPtr);
+        }
+
+        @Implementation
+        public static int nativeExecuteForChangedRowCount(long connectionPtr, long statementPtr) {
+            executed(statementPtr);
+            return ShadowSQLiteConnection.nativeExecuteForChangedRowCount(connectionPtr,
+                    statementPtr);
+        }
+
+        @Implementation
+        public static long nativeExecuteForLastInsertedRowId(long connectionPtr,
+                                                             long statementPtr) {
+            executed(statementPtr);
+            return ShadowSQLiteConnection.nativeExecuteForLastInsertedRowId(connectionPtr,
+                    statementPtr);
+        }
+
+        @Implementation
+        public static long nativeExecuteForCursorWindow(long connectionPtr, long statementPtr,
+                                                        long windowPtr, int startPos,
+                                                        int requiredPos, boolean countAllRows) {
+            executed(statementPtr);
+            return ShadowSQLiteConnection.nativeExecuteForCursorWindow(connectionPtr,
+                    statementPtr, windowPtr, startPos, requiredPos, countAllRows);
+        }
+    }
+
+    private CakeProvider mProvider;
+    private ShadowContentResolver mResolver;
+
+    /** Shop whose catalog is being checked, or null for the device's own */
+    private String mTenant;
+
+    /** Helper of the tests' own connections to the database of the catalog */
+    private CakeDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+
+    /** Number of cakes added by {@link #growTo}, including any hidden since */
+    private int mSeeded;
+
+    /** Number of notifications sent before the write being checked */
+    private int mNotifications;
+
+    @Before
+    public void setUp() throws Exception {
+        mProvider = Robolectric.buildContentProvider(CakeProvider.class)
+                .create(CakeContract.CONTENT_AUTHORITY).get();
+        mResolver = shadowOf(RuntimeEnvironment.application.getContentResolver());
+        useCatalog(null);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+    }
+
+    @Test
+    public void queries_useIndexes() throws Exception {
+        for (int size : TABLE_SIZES) {
+            growTo(size);
+            checkQueries(size);
+        }
+    }
+
+    @Test
+    public void queries_useIndexesAfterDeleteAll() throws Exception {
+        growTo(TABLE_SIZES[0]);
+        assertEquals(TABLE_SIZES[0], mProvider.delete(uri(CakeEntry.CONTENT_URI), null, null));
+
+        // The hidden cakes are still in the table, behind the visible ones
+        for (int size : TABLE_SIZES) {
+            growTo(TABLE_SIZES[0] + size);
+            checkQueries(size);
+        }
+    }
+
+    @Test
+    public void queries_ofAnotherShop_useIndexes() throws Exception {
+        useCatalog(TENANT);
+        for (int size : TABLE_SIZES) {
+            growTo(size);
+            checkQueries(size);
+        }
+    }
+
+    @Test
+    public void writes_runOneStatementPerChange() throws Exception {
+        // Every write is recorded in the undo history, which has to stay below its limit for
+        // the counts to hold, so that no dropped entry is released in between
+        for (int size : TABLE_SIZES) {
+            growTo(size);
+            checkWrites(size);
+        }
+    }
+
+    @Test
+    public void writes_ofAnotherShop_runOneStatementPerChange() throws Exception {
+        useCatalog(TENANT);
+        for (int size : TABLE_SIZES) {
+            growTo(size);
+            checkWrites(size);
+        }
+    }
+
+    @Test
+    public void writes_toOneCake_notifyOnlyItsReaders() throws Exception {
+        growTo(TABLE_SIZES[0]);
+        long id = firstVisibleId();
+        Uri cakeUri = ContentUris.withAppendedId(uri(CakeEntry.CONTENT_URI), id);
+
+        // A change to a single cake is announced on its own URI, which the readers of its
+        // prices and batches follow, and a change to many on the list
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_QUANTITY, 3);
+        assertEquals(1, mProvider.update(cakeUri, values, null, null));
+        assertEquals(cakeUri, lastNotifiedUri());
+        assertEquals(TABLE_SIZES[0], mProvider.update(uri(CakeEntry.CONTENT_URI), values, null,
+                null));
+        assertEquals(uri(CakeEntry.CONTENT_URI), lastNotifiedUri());
+
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(
+                uri(PriceHistoryEntry.CONTENT_URI), id), null, null, null, null);
+        try {
+            assertEquals(cakeUri, cursor.getNotificationUri());
+        } finally {
+            cursor.close();
+        }
+        cursor = mProvider.query(ContentUris.withAppendedId(uri(StockBatchEntry.CONTENT_URI), id),
+                null, null, null, null);
+        try {
+            assertEquals(cakeUri, cursor.getNotificationUri());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void files_readByIdAndWriteOneRow() throws Exception {
+        int size = TABLE_SIZES[1];
+        growTo(size);
+        long id = firstVisibleId();
+        Uri cakeUri = ContentUris.withAppendedId(CakeEntry.CONTENT_URI, id);
+
+        // Reading a photo looks its name up by _id
+        File directory = new File(RuntimeEnvironment.application.getFilesDir(),
+                IMAGE_DIRECTORY);
+        assertTrue(directory.isDirectory() || directory.mkdirs());
+        writeFile(new File(directory, "old.jpg"), 16);
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_IMAGE, "old.jpg");
+        mDatabase.update(CakeEntry.TABLE_NAME, values, CakeEntry._ID + "=" + id, null);
+        begin();
+        ParcelFileDescriptor photo = mProvider.openFile(cakeUri, "r");
+        assertNotNull(photo);
+        photo.close();
+        assertReads(size, "read photo");
+
+        // A new photo only points its cake at the new file. The write end of the pipe can't be
+        // made on the JVM, so the photo arrives from a file, the way it leaves the pipe.
+        File upload = new File(RuntimeEnvironment.application.getCacheDir(), "upload.jpg");
+        writeFile(upload, 32);
+        begin();
+        ReflectionHelpers.callInstanceMethod(mProvider, "receiveImage",
+                ClassParameter.from(Uri.class, cakeUri), ClassParameter.from(long.class, id),
+                ClassParameter.from(ParcelFileDescriptor.class, ParcelFileDescriptor.open(upload,
+                        ParcelFileDescriptor.MODE_READ_ONLY)));
+        assertWrite(size, "store photo", 1);
+        assertFalse(new File(directory, "old.jpg").exists());
+
+        // The export reads a page at a time along the primary key, and writes nothing. It is
+        // written into a file rather than the pipe it is served through, for the same reason.
+        File exportFile = new File(RuntimeEnvironment.application.getCacheDir(), "export");
+        ParcelFileDescriptor output = ParcelFileDescriptor.open(exportFile,
+                ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE
+                        | ParcelFileDescriptor.MODE_TRUNCATE);
+        begin();
+        try {
+            ReflectionHelpers.callInstanceMethod(mProvider, "writeExport",
+                    ClassParameter.from(Uri.class, CakeContract.EXPORT_URI),
+                    ClassParameter.from(ParcelFileDescriptor.class, output));
+        } finally {
+            output.close();
+        }
+        assertReads(size, "export");
+        assertEquals(size, readExportCount(exportFile));
+    }
+
+    /**
+     * Point the tests at the catalog of a shop, or of the device itself for null. The provider
+     * opens the database first, so the tests' own helper finds it created.
+     */
+    private void useCatalog(String tenant) {
+        if (mDbHelper != null) {
+            mDbHelper.close();
+        }
+        mTenant = tenant;
+        mProvider.query(uri(CakeEntry.CONTENT_URI), new String[] { CakeEntry._ID }, null, null,
+                null).close();
+        mDbHelper = tenant == null ? new CakeDbHelper(RuntimeEnvironment.application)
+                : new CakeDbHelper(RuntimeEnvironment.application, tenant);
+        mDatabase = mDbHelper.getWritableDatabase();
+        mSeeded = 0;
+    }
+
+    /**
+     * Check the plan of every query URI on the current table, and of the queries behind the
+     * provider methods that only read.
+     */
+    private void checkQueries(int size) {
+        StatementLog.clear();
+        long id = firstVisibleId();
+        Uri cakeUri = ContentUris.withAppendedId(uri(CakeEntry.CONTENT_URI), id);
+        String at = String.valueOf(System.currentTimeMillis());
+
+        for (String sortOrder : SORT_ORDERS) {
+            assertListPlan(size, explain(mProvider.query(uri(CakeEntry.CONTENT_URI), PROJECTION,
+                    null, null, sortOrder)));
+            assertPointPlan(size, explain(mProvider.query(uri(CakeEntry.CONTENT_URI), PROJECTION,
+                    CakeEntry.SELECTION_OCCASION,
+                    new String[] { String.valueOf(CakeEntry.OCCASION_BIRTHDAY) }, sortOrder)));
+            assertListPlan(size, explain(mProvider.query(uri(CakeEntry.CONTENT_URI).buildUpon()
+                    .appendQueryParameter(CakeEntry.QUERY_PARAMETER_LIMIT, "20").build(),
+                    PROJECTION, null, null, sortOrder)));
+        }
+        assertPointPlan(size, explain(mProvider.query(cakeUri, null, null, null, null)));
+
+        // The SKU is looked up through a compiled statement, then the cake is read by _id
+        assertPointPlan(size, explain("SELECT " + CakeEntry._ID + " FROM " + CakeEntry.TABLE_NAME
+                + " WHERE " + CakeEntry.COLUMN_CAKE_SKU + "=?"));
+        Cursor skuCursor = mProvider.query(uri(CakeEntry.buildSkuUri("SKU" + (mSeeded - 1))),
+                null, null, null, null);
+        assertEquals(1, skuCursor.getCount());
+        assertPointPlan(size, explain(skuCursor));
+
+        assertListPlan(size, explain(mProvider.query(uri(PriceHistoryEntry.CONTENT_URI)
+                .buildUpon().appendQueryParameter(PriceHistoryEntry.QUERY_PARAMETER_AT, at)
+                .build(), null, null, null, null)));
+        Uri historyUri = ContentUris.withAppendedId(uri(PriceHistoryEntry.CONTENT_URI), id);
+        assertPointPlan(size, explain(mProvider.query(historyUri, null, null, null, null)));
+        assertPointPlan(size, explain(mProvider.query(historyUri.buildUpon()
+                .appendQueryParameter(PriceHistoryEntry.QUERY_PARAMETER_AT, at).build(),
+                null, null, null, null)));
+
+        // Batches are read in order from their indexes, each joined to its cake by _id
+        assertListPlan(size, explain(mProvider.query(uri(StockBatchEntry.CONTENT_URI), null,
+                null, null, null)));
+        assertPointPlan(size, explain(mProvider.query(uri(StockBatchEntry.CONTENT_URI)
+                .buildUpon()
+                .appendQueryParameter(StockBatchEntry.QUERY_PARAMETER_EXPIRING_BEFORE, at)
+                .build(), null, null, null, null)));
+        assertPointPlan(size, explain(mProvider.query(
+                ContentUris.withAppendedId(uri(StockBatchEntry.CONTENT_URI), id), null, null,
+                null, null)));
+        assertPointPlan(size, explain("SELECT " + StockBatchEntry._ID + ", "
+                + StockBatchEntry.COLUMN_CAKE_ID + ", " + StockBatchEntry.COLUMN_QUANTITY
+                + " FROM " + StockBatchEntry.TABLE_NAME + " WHERE "
+                + StockBatchEntry.COLUMN_EXPIRES_AT + "<=? ORDER BY "
+                + StockBatchEntry.COLUMN_EXPIRES_AT + " ASC LIMIT 200"));
+
+        // The slots of a month are one range of the index on their start time, in order
+        assertPointPlan(size, explain(mProvider.query(uri(PickupSlotEntry.CONTENT_URI)
+                .buildUpon()
+                .appendQueryParameter(PickupSlotEntry.QUERY_PARAMETER_FROM, "0")
+                .appendQueryParameter(PickupSlotEntry.QUERY_PARAMETER_TO, at).build(),
+                null, null, null, null)));
+        assertPointPlan(size, explain(mProvider.query(uri(ReservationEntry.CONTENT_URI)
+                .buildUpon()
+                .appendQueryParameter(ReservationEntry.QUERY_PARAMETER_SLOT, "1").build(),
+                null, null, null, null)));
+
+        // Reading never writes
+        assertEquals("Statements that write run by queries at " + size + " cakes", 0,
+                StatementLog.countWrites());
+
+        // The report reads the catalog in ranges of the primary key
+        begin();
+        assertNotNull(mProvider.call(CakeContract.METHOD_INVENTORY_REPORT, mTenant, null));
+        for (List<String> plan : explainQueries(size, "report")) {
+            assertListPlan(size, plan);
+        }
+
+        // The plan reads each recipe table once, in order of _id
+        Bundle extras = new Bundle();
+        extras.putLongArray(CakeContract.EXTRA_IDS, new long[] { id });
+        extras.putIntArray(CakeContract.EXTRA_COUNTS, new int[] { 1 });
+        begin();
+        assertNotNull(mProvider.call(CakeContract.METHOD_PLAN_PRODUCTION, mTenant, extras));
+        for (List<String> plan : explainQueries(size, "plan production")) {
+            assertListPlan(size, plan);
+        }
+
+        // A name is looked up through the trigram index, which is up to date, and the cakes it
+        // finds are read by _id
+        extras = new Bundle();
+        extras.putString(CakeContract.EXTRA_NAME, "Cake " + (mSeeded - 1));
+        begin();
+        CakeNameMatches matches = CakeNameMatches.fromBundle(mProvider.call(
+                CakeContract.METHOD_FIND_SIMILAR_NAMES, mTenant, extras));
+        assertTrue(matches.size() > 0);
+        assertEquals(1, matches.similarities[0], 0);
+        for (List<String> plan : explainQueries(size, "find similar names")) {
+            assertNoTableScan(size, plan, CakeEntry.TABLE_NAME);
+            assertNoTableScan(size, plan, CakeDbHelper.NAME_TRIGRAM_TABLE);
+        }
+
+        // The pass over the whole catalog reads the trigrams through the index on the cake
+        extras = new Bundle();
+        extras.putFloat(CakeContract.EXTRA_SIMILARITY, 0.9f);
+        begin();
+        assertNotNull(mProvider.call(CakeContract.METHOD_FIND_DUPLICATE_NAMES, mTenant, extras));
+        for (List<String> plan : explainQueries(size, "find duplicate names")) {
+            assertNoTableScan(size, plan, CakeEntry.TABLE_NAME);
+            assertNoTableScan(size, plan, CakeDbHelper.NAME_TRIGRAM_TABLE);
+        }
+    }
+
+    /**
+     * Check the statements run and the notifications sent by every kind of write. The rows
+     * that triggers write, such as the price history of a cake and its place in the queue of
+     * names still to be indexed, are part of the statement that fired them.
+     */
+    private void checkWrites(int size) {
+        long id = firstVisibleId();
+        Uri cakeUri = ContentUris.withAppendedId(uri(CakeEntry.CONTENT_URI), id);
+
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, "New cake");
+        values.put(CakeEntry.COLUMN_CAKE_OCCASION, CakeEntry.OCCASION_BIRTHDAY);
+        values.put(CakeEntry.COLUMN_CAKE_PRICE, 12.5);
+        values.put(CakeEntry.COLUMN_CAKE_QUANTITY, 3);
+        begin();
+        assertNotNull(mProvider.insert(uri(CakeEntry.CONTENT_URI), values));
+        assertWrite(size, "insert", 1);
+        mSeeded++;
+
+        values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_QUANTITY, 99);
+        begin();
+        assertEquals(1, mProvider.update(cakeUri, values, null, null));
+        assertWrite(size, "update quantity", 1);
+
+        values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_PRICE, 99.5);
+        begin();
+        assertEquals(1, mProvider.update(cakeUri, values, null, null));
+        assertWrite(size, "update price", 1);
+
+        values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, "Renamed cake");
+        begin();
+        assertEquals(1, mProvider.update(cakeUri, values, null, null));
+        assertWrite(size, "update name", 1);
+
+        // The batch and the quantity of its cake. It has expired already, for the sweep below.
+        values = new ContentValues();
+        values.put(StockBatchEntry.COLUMN_CAKE_ID, id);
+        values.put(StockBatchEntry.COLUMN_QUANTITY, 5);
+        values.put(StockBatchEntry.COLUMN_BAKED_AT, 1000);
+        values.put(StockBatchEntry.COLUMN_EXPIRES_AT, 2000);
+        begin();
+        assertNotNull(mProvider.insert(uri(StockBatchEntry.CONTENT_URI), values));
+        assertWrite(size, "insert batch", 2);
+
+        Bundle extras = new Bundle();
+        extras.putLongArray(CakeContract.EXTRA_IDS, new long[] { id, id + 1, id + 2 });
+        extras.putIntArray(CakeContract.EXTRA_DELTAS, new int[] { -1, -2, -3 });
+        begin();
+        assertEquals(3, mProvider.call(CakeContract.METHOD_ADJUST_QUANTITIES, mTenant, extras)
+                .getInt(CakeContract.RESULT_ROWS));
+        // The three cakes, and the batch the first one is sold from
+        assertWrite(size, "adjust quantities", 4);
+
+        begin();
+        assertEquals(3, mProvider.call(CakeContract.METHOD_UNDO, mTenant, null)
+                .getInt(CakeContract.RESULT_ROWS));
+        assertWrite(size, "undo", 3);
+
+        begin();
+        assertEquals(3, mProvider.call(CakeContract.METHOD_REDO, mTenant, null)
+                .getInt(CakeContract.RESULT_ROWS));
+        assertWrite(size, "redo", 3);
+
+        // A single UPDATE of the three cakes, however many there are
+        extras = new Bundle();
+        extras.putLongArray(CakeContract.EXTRA_IDS, new long[] { id, id + 1, id + 2 });
+        extras.putInt(CakeContract.EXTRA_OPERATION, CakeContract.BULK_ADD_PRICE);
+        extras.putDouble(CakeContract.EXTRA_VALUE, 1);
+        begin();
+        assertEquals(3, mProvider.call(CakeContract.METHOD_BULK_EDIT, mTenant, extras)
+                .getInt(CakeContract.RESULT_ROWS));
+        assertWrite(size, "bulk edit", 1);
+
+        // The same by a selection, whose cakes are found through an index
+        extras = new Bundle();
+        extras.putString(CakeContract.EXTRA_SELECTION, CakeEntry._ID + " BETWEEN ? AND ?");
+        extras.putStringArray(CakeContract.EXTRA_SELECTION_ARGS,
+                new String[] { String.valueOf(id), String.valueOf(id + 2) });
+        extras.putInt(CakeContract.EXTRA_OPERATION, CakeContract.BULK_ADD_PRICE);
+        extras.putDouble(CakeContract.EXTRA_VALUE, 1);
+        begin();
+        assertEquals(3, mProvider.call(CakeContract.METHOD_BULK_EDIT, mTenant, extras)
+                .getInt(CakeContract.RESULT_ROWS));
+        for (List<String> plan : explainQueries(size, "bulk edit by selection")) {
+            assertPointPlan(size, plan);
+        }
+        assertWrite(size, "bulk edit by selection", 1);
+
+        // The quantity of the cake, then the expired batch
+        extras = new Bundle();
+        extras.putLong(CakeContract.EXTRA_TIME, 3000);
+        begin();
+        assertEquals(1, mProvider.call(CakeContract.METHOD_SWEEP_EXPIRED, mTenant, extras)
+                .getInt(CakeContract.RESULT_ROWS));
+        assertWrite(size, "sweep expired", 2);
+
+        values = new ContentValues();
+        values.put(PickupSlotEntry.COLUMN_STARTS_AT, size);
+        values.put(PickupSlotEntry.COLUMN_CAPACITY, 2);
+        begin();
+        long slotId = ContentUris.parseId(mProvider.insert(uri(PickupSlotEntry.CONTENT_URI),
+                values));
+        assertWrite(size, "insert slot", 1);
+
+        // The booking of the slot and the reservation
+        extras = new Bundle();
+        extras.putLong(CakeContract.EXTRA_SLOT_ID, slotId);
+        extras.putLong(CakeContract.EXTRA_CAKE_ID, id);
+        extras.putInt(CakeContract.EXTRA_QUANTITY, 2);
+        begin();
+        long reservationId = mProvider.call(CakeContract.METHOD_RESERVE, mTenant, extras)
+                .getLong(CakeContract.RESULT_RESERVATION_ID);
+        assertTrue(reservationId != -1);
+        assertWrite(size, "reserve", 2);
+
+        // A full slot only runs the conditional booking, which changes nothing, and announces
+        // nothing
+        begin();
+        assertEquals(-1, mProvider.call(CakeContract.METHOD_RESERVE, mTenant, extras)
+                .getLong(CakeContract.RESULT_RESERVATION_ID));
+        assertEquals("Statements run by a full reserve at " + size + " cakes", 1,
+                StatementLog.countWrites());
+        assertEquals(mNotifications, notifications());
+
+        // The reservation and the booking of its slot
+        begin();
+        assertEquals(1, mProvider.delete(
+                ContentUris.withAppendedId(uri(ReservationEntry.CONTENT_URI), reservationId),
+                null, null));
+        assertWrite(size, "cancel reservation", 2);
+
+        // The price history stays for as long as the delete can be undone
+        begin();
+        assertEquals(1, mProvider.delete(cakeUri, null, null));
+        assertWrite(size, "delete", 1);
+
+        // Only the mark in the meta table, however many cakes there are
+        begin();
+        assertTrue(mProvider.delete(uri(CakeEntry.CONTENT_URI), null, null) > 0);
+        assertWrite(size, "delete all", 1);
+    }
+
+    /**
+     * Add cakes until the table holds the given number, then index their names and gather fresh
+     * statistics, as the maintenance of the provider would.
+     */
+    private void growTo(int size) {
+        SQLiteStatement insert = mDatabase.compileStatement("INSERT INTO "
+                + CakeEntry.TABLE_NAME + " (" + CakeEntry.COLUMN_CAKE_NAME + ", "
+                + CakeEntry.COLUMN_CAKE_OCCASION + ", " + CakeEntry.COLUMN_CAKE_PRICE + ", "
+                + CakeEntry.COLUMN_CAKE_QUANTITY + ", " + CakeEntry.COLUMN_CAKE_COST + ", "
+                + CakeEntry.COLUMN_CAKE_STOCKED_AT + ", " + CakeEntry.COLUMN_CAKE_SKU
+                + ") VALUES (?, ?, ?, ?, ?, ?, ?)");
+        int[] occasions = {
+                CakeEntry.OCCASION_UNKNOWN,
+                CakeEntry.OCCASION_BIRTHDAY,
+                CakeEntry.OCCASION_WEDDING
+        };
+        mDatabase.beginTransaction();
+        try {
+            for (; mSeeded < size; mSeeded++) {
+                insert.bindString(1, "Cake " + mSeeded);
+                insert.bindLong(2, occasions[mSeeded % occasions.length]);
+                insert.bindDouble(3, 5 + mSeeded % 50);
+                insert.bindLong(4, 10 + mSeeded % 20);
+                insert.bindDouble(5, 2 + mSeeded % 10);
+                insert.bindLong(6, System.currentTimeMillis());
+                insert.bindString(7, "SKU" + mSeeded);
+                insert.executeInsert();
+            }
+            CakeNameIndex.indexQueued(mDatabase, 0);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+            insert.close();
+        }
+        mDatabase.execSQL("ANALYZE");
+    }
+
+    /**
+     * Return the given URI of the device's own catalog in the catalog being checked.
+     */
+    private Uri uri(Uri uri) {
+        return mTenant == null ? uri : CakeContract.forTenant(uri, mTenant);
+    }
+
+    /**
+     * Return the lowest _id of the cakes the provider shows.
+     */
+    private long firstVisibleId() {
+        Cursor cursor = mProvider.query(uri(CakeEntry.CONTENT_URI),
+                new String[] { CakeEntry._ID }, null, null, CakeEntry._ID + " ASC");
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the plan of the query behind a cursor of the provider, one step per line, and
+     * close the cursor. The arguments are left unbound, which doesn't change the plan.
+     */
+    private List<String> explain(Cursor cursor) {
+        String sql;
+        try {
+            // The cursors of another shop's catalog wrap the cursor of its own provider
+            Cursor query = cursor;
+            while (query instanceof CursorWrapper) {
+                query = ((CursorWrapper) query).getWrappedCursor();
+            }
+            // SQLiteQuery describes itself as "SQLiteQuery: " followed by its SQL
+            Object sqliteQuery = ReflectionHelpers.getField(query, "mQuery");
+            sql = sqliteQuery.toString().substring(sqliteQuery.toString().indexOf(':') + 1)
+                    .trim();
+        } finally {
+            cursor.close();
+        }
+        return explain(sql);
+    }
+
+    /**
+     * Return the plan of a query, one step per line.
+     */
+    private List<String> explain(String sql) {
+        List<String> plan = new ArrayList<String>();
+        Cursor planCursor = mDatabase.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            int detailColumn = planCursor.getColumnIndexOrThrow("detail");
+            while (planCursor.moveToNext()) {
+                plan.add(planCursor.getString(detailColumn));
+            }
+        } finally {
+            planCursor.close();
+        }
+        assertFalse("No plan for " + sql, plan.isEmpty());
+        return plan;
+    }
+
+    /**
+     * Check that a provider method ran no statement that writes, and return the plans of the
+     * queries it ran.
+     */
+    private List<List<String>> explainQueries(int size, String method) {
+        List<String> queries = StatementLog.getQueries();
+        assertEquals("Statements that write run by " + method + " at " + size + " cakes", 0,
+                StatementLog.countWrites());
+        List<List<String>> plans = new ArrayList<List<String>>();
+        for (String sql : queries) {
+            plans.add(explain(sql));
+        }
+        return plans;
+    }
+
+    /**
+     * Check that reading a file ran no statement that writes, and that every query it ran found
+     * its rows through an index.
+     */
+    private void assertReads(int size, String read) {
+        for (List<String> plan : explainQueries(size, read)) {
+            assertPointPlan(size, plan);
+        }
+    }
+
+    /**
+     * Check the plan of a query that returns a whole list: it may read the one table the list
+     * comes from from start to end, but in the order of an index, without sorting it, and must
+     * find everything else it needs through an index.
+     */
+    private static void assertListPlan(int size, List<String> plan) {
+        int scans = 0;
+        for (String step : plan) {
+            assertFalse("Sorting step at " + size + " cakes: " + plan,
+                    step.contains("TEMP B-TREE"));
+            if (step.startsWith("SCAN")) {
+                scans++;
+            }
+        }
+        assertTrue("More than one scan at " + size + " cakes: " + plan, scans <= 1);
+    }
+
+    /**
+     * Check the plan of a query for a few rows: everything it reads must be found through an
+     * index, without scanning or sorting anything.
+     */
+    private static void assertPointPlan(int size, List<String> plan) {
+        for (String step : plan) {
+            assertFalse("Sorting step at " + size + " cakes: " + plan,
+                    step.contains("TEMP B-TREE"));
+            assertFalse("Scan at " + size + " cakes: " + plan, step.startsWith("SCAN"));
+        }
+    }
+
+    /**
+     * Check that a query never reads the given table from start to end without an index. It
+     * may group or sort the few rows it finds.
+     */
+    private static void assertNoTableScan(int size, List<String> plan, String table) {
+        for (String step : plan) {
+            boolean scan = step.startsWith("SCAN") && !step.contains("USING")
+                    && Arrays.asList(step.split(" ")).contains(table);
+            assertFalse("Scan of " + table + " at " + size + " cakes: " + plan, scan);
+        }
+    }
+
+    /**
+     * Start watching a write: forget the statements run so far, and note the notifications
+     * sent so far.
+     */
+    private void begin() {
+        StatementLog.clear();
+        mNotifications = notifications();
+    }
+
+    /**
+     * Check that the write since {@link #begin()} ran exactly the expected number of statements
+     * that write, and sent a single notification.
+     */
+    private void assertWrite(int size, String write, int expectedStatements) {
+        assertEquals("Statements run by " + write + " at " + size + " cakes",
+                expectedStatements, StatementLog.countWrites());
+        assertEquals("Notifications sent by " + write + " at " + size + " cakes", 1,
+                notifications() - mNotifications);
+    }
+
+    /**
+     * Return the URI of the last notification sent.
+     */
+    private Uri lastNotifiedUri() {
+        List<ShadowContentResolver.NotifiedUri> notified = mResolver.getNotifiedUris();
+        assertFalse(notified.isEmpty());
+        return notified.get(notified.size() - 1).uri;
+    }
+
+    /**
+     * Return the number of notifications sent so far.
+     */
+    private int notifications() {
+        return mResolver.getNotifiedUris().size();
+    }
+
+    /**
+     * Fill a file with the given number of bytes.
+     */
+    private static void writeFile(File file, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Return the number of cakes an export says it holds, in its last four bytes.
+     */
+    private static int readExportCount(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            long skip = file.length() - 4;
+            assertTrue("Export cut off", skip > 0);
+            while (skip > 0) {
+                skip -= in.skip(skip);
+            }
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+import com.example.richard.inventoryapp.data.CakeContract.PriceHistoryEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a query of {@link CakeProvider} stops once its cancellation signal is cancelled,
+ * before it runs and before any of its rows are read.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeQueryCancellationTest {
+
+    private static final String[] PROJECTION = {
+            CakeEntry._ID,
+            CakeEntry.COLUMN_CAKE_NAME,
+            CakeEntry.COLUMN_CAKE_PRICE
+    };
+
+    private CakeProvider mProvider;
+    private long mFirstId;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(CakeProvider.class)
+                .create(CakeContract.CONTENT_AUTHORITY).get();
+        for (int i = 0; i < 500; i++) {
+            ContentValues values = new ContentValues();
+            values.put(CakeEntry.COLUMN_CAKE_NAME, "Cake " + i);
+            values.put(CakeEntry.COLUMN_CAKE_OCCASION, CakeEntry.OCCASION_BIRTHDAY);
+            values.put(CakeEntry.COLUMN_CAKE_QUANTITY, i % 10);
+            values.put(CakeEntry.COLUMN_CAKE_PRICE, 5 + i % 20);
+            long id = ContentUris.parseId(mProvider.insert(CakeEntry.CONTENT_URI, values));
+            if (i == 0) {
+                mFirstId = id;
+            }
+        }
+    }
+
+    @Test
+    public void query_withoutCancelling_readsEveryRow() {
+        Cursor cursor = mProvider.query(CakeEntry.CONTENT_URI, PROJECTION, null, null, null,
+                new CancellationSignal());
+        try {
+            assertEquals(500, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test(expected = OperationCanceledException.class)
+    public void query_alreadyCancelled_doesNotRun() {
+        CancellationSignal signal = new CancellationSignal();
+        signal.cancel();
+
+        mProvider.query(CakeEntry.CONTENT_URI, PROJECTION, null, null, null, signal);
+    }
+
+    @Test
+    public void query_cancelledAfterReturning_readsNoRows() {
+        CancellationSignal signal = new CancellationSignal();
+        Cursor cursor = mProvider.query(CakeEntry.CONTENT_URI, PROJECTION, null, null,
+                CakeEntry.SORT_NAME, signal);
+        try {
+            // The query has been prepared but not run, as a loader superseded right away is
+            signal.cancel();
+            cursor.getCount();
+            fail("Read the rows of a cancelled query");
+        } catch (OperationCanceledException expected) {
+            // The query stopped before filling its first window
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void query_ofOneCake_isCancelledToo() {
+        CancellationSignal signal = new CancellationSignal();
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(CakeEntry.CONTENT_URI,
+                mFirstId), PROJECTION, null, null, null, signal);
+        try {
+            signal.cancel();
+            cursor.moveToFirst();
+            fail("Read the row of a cancelled query");
+        } catch (OperationCanceledException expected) {
+            // Expected
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void query_ofPriceHistory_isCancelledToo() {
+        Uri uri = ContentUris.withAppendedId(PriceHistoryEntry.CONTENT_URI, mFirstId);
+        CancellationSignal signal = new CancellationSignal();
+        Cursor cursor = mProvider.query(uri, null, null, null, null, signal);
+        try {
+            signal.cancel();
+            cursor.getCount();
+            fail("Read the rows of a cancelled query");
+        } catch (OperationCanceledException expected) {
+            // Expected
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the row-by-row comparison that {@link CakeQueryLoader} delivers changes with, and of
+ * cancelling its query while it runs.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeQueryLoaderTest {
+
+    private static final String[] COLUMNS = {
+            CakeEntry._ID,
+            CakeEntry.COLUMN_CAKE_NAME,
+            CakeEntry.COLUMN_CAKE_QUANTITY,
+            CakeEntry.COLUMN_CAKE_PRICE,
+            CakeEntry.COLUMN_CAKE_IMAGE
+    };
+
+    @Test
+    public void compare_firstResultIsInitial() {
+        CakeQueryLoader.Result result = CakeQueryLoader.compare(null, cakes(
+                new Object[] { 1L, "Sponge", 3, 12.5, null }));
+
+        assertTrue(result.getChanges().isInitial());
+        assertFalse(result.getChanges().isEmpty());
+    }
+
+    @Test
+    public void compare_sameRowsAreEmpty() {
+        CakeQueryLoader.Result first = CakeQueryLoader.compare(null, cakes(
+                new Object[] { 1L, "Sponge", 3, 12.5, null },
+                new Object[] { 2L, "Carrot", 1, 9.0, "2.jpg" }));
+        CakeQueryLoader.Result second = CakeQueryLoader.compare(first, cakes(
+                new Object[] { 1L, "Sponge", 3, 12.5, null },
+                new Object[] { 2L, "Carrot", 1, 9.0, "2.jpg" }));
+
+        assertTrue(second.getChanges().isEmpty());
+    }
+
+    @Test
+    public void compare_findsUpdatedRowsInPlace() {
+        CakeQueryLoader.Result first = CakeQueryLoader.compare(null, cakes(
+                new Object[] { 1L, "Sponge", 3, 12.5, null },
+                new Object[] { 2L, "Carrot", 1, 9.0, null },
+                new Object[] { 3L, "Lemon", 5, 7.0, null }));
+        CakeQueryLoader.Result second = CakeQueryLoader.compare(first, cakes(
+                new Object[] { 1L, "Sponge", 2, 12.5, null },
+                new Object[] { 2L, "Carrot", 1, 9.0, "2.jpg" },
+                new Object[] { 3L, "Lemon", 5, 7.0, null }));
+
+        CakeChangeSet changes = second.getChanges();
+        assertTrue(changes.isUpdateOnly());
+        assertArrayEquals(new long[] { 1L, 2L }, changes.getUpdated());
+        assertTrue(changes.isUpdated(2L));
+        assertFalse(changes.isUpdated(3L));
+    }
+
+    @Test
+    public void compare_findsInsertedRemovedAndMovedRows() {
+        CakeQueryLoader.Result first = CakeQueryLoader.compare(null, cakes(
+                new Object[] { 1L, "Sponge", 3, 12.5, null },
+                new Object[] { 2L, "Carrot", 1, 9.0, null },
+                new Object[] { 3L, "Lemon", 5, 7.0, null }));
+        CakeQueryLoader.Result second = CakeQueryLoader.compare(first, cakes(
+                new Object[] { 3L, "Lemon", 5, 7.0, null },
+                new Object[] { 1L, "Sponge", 3, 12.5, null },
+                new Object[] { 4L, "Fruit", 2, 15.0, null }));
+
+        CakeChangeSet changes = second.getChanges();
+        assertFalse(changes.isUpdateOnly());
+        assertArrayEquals(new long[] { 4L }, changes.getInserted());
+        assertArrayEquals(new long[] { 2L }, changes.getRemoved());
+        assertArrayEquals(new long[0], changes.getUpdated());
+    }
+
+    @Test
+    public void compare_removalAloneIsNotAMove() {
+        CakeQueryLoader.Result first = CakeQueryLoader.compare(null, cakes(
+                new Object[] { 1L, "Sponge", 3, 12.5, null },
+                new Object[] { 2L, "Carrot", 1, 9.0, null },
+                new Object[] { 3L, "Lemon", 5, 7.0, null }));
+        CakeQueryLoader.Result second = CakeQueryLoader.compare(first, cakes(
+                new Object[] { 1L, "Sponge", 3, 12.5, null },
+                new Object[] { 3L, "Lemon", 5, 7.0, null }));
+
+        assertEquals("CakeChangeSet{inserted=0, updated=0, removed=1, moved=false}",
+                second.getChanges().toString());
+    }
+
+    @Test
+    public void cancelLoadInBackground_stopsTheRunningQuery() throws Exception {
+        PausingProvider provider = Robolectric.buildContentProvider(PausingProvider.class)
+                .create(CakeContract.CONTENT_AUTHORITY).get();
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, "Sponge");
+        values.put(CakeEntry.COLUMN_CAKE_OCCASION, CakeEntry.OCCASION_BIRTHDAY);
+        assertNotNull(provider.insert(CakeEntry.CONTENT_URI, values));
+
+        // Timing counts the rows inside the provider, which would read them before the cancel
+        CakeMetrics.setEnabled(false);
+        final CakeQueryLoader loader = new CakeQueryLoader(RuntimeEnvironment.application,
+                CakeEntry.CONTENT_URI, COLUMNS, null, null, CakeEntry.SORT_NAME);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<CakeQueryLoader.Result> load = executor.submit(
+                    new Callable<CakeQueryLoader.Result>() {
+                        @Override
+                        public CakeQueryLoader.Result call() {
+                            return loader.loadInBackground();
+                        }
+                    });
+
+            // The query has been prepared but none of its rows read yet
+            assertTrue(provider.mQueried.await(5, TimeUnit.SECONDS));
+            loader.cancelLoadInBackground();
+            assertTrue(provider.mSignal.isCanceled());
+            provider.mResume.countDown();
+
+            try {
+                load.get(5, TimeUnit.SECONDS);
+                fail("Delivered the rows of a cancelled load");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof OperationCanceledException);
+            }
+            assertTrue(provider.mCursor.isClosed());
+        } finally {
+            executor.shutdownNow();
+            CakeMetrics.setEnabled(BuildConfig.DEBUG);
+        }
+    }
+
+    /**
+     * A {@link CakeProvider} that holds on to a query once it has been prepared, until the test
+     * lets it return.
+     */
+    public static class PausingProvider extends CakeProvider {
+
+        final CountDownLatch mQueried = new CountDownLatch(1);
+        final CountDownLatch mResume = new CountDownLatch(1);
+        volatile CancellationSignal mSignal;
+        volatile Cursor mCursor;
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder,
+                            CancellationSignal cancellationSignal) {
+            mSignal = cancellationSignal;
+            mCursor = super.query(uri, projection, selection, selectionArgs, sortOrder,
+                    cancellationSignal);
+            mQueried.countDown();
+            try {
+                assertTrue(mResume.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            return mCursor;
+        }
+    }
+
+    private static MatrixCursor cakes(Object[]... rows) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (Object[] row : rows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+}
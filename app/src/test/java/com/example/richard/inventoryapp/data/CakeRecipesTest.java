@@ -0,0 +1,188 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.IngredientEntry;
+import com.example.richard.inventoryapp.data.CakeContract.RecipeEntry;
+import com.example.richard.inventoryapp.data.CakeContract.RecipeItemEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the writes to the ingredients, recipes and recipe lines of {@link CakeProvider}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeRecipesTest {
+
+    private CakeProvider mProvider;
+    private long mFlour;
+    private long mSugar;
+    private long mCake;
+    private long mSponge;
+    private long mIcing;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(CakeProvider.class)
+                .create(CakeContract.CONTENT_AUTHORITY).get();
+        mFlour = insertIngredient("Flour");
+        mSugar = insertIngredient("Sugar");
+        mCake = insertRecipe("Birthday cake");
+        mSponge = insertRecipe("Sponge");
+        mIcing = insertRecipe("Icing");
+
+        // The cake uses the sponge and the icing, which use the flour and the sugar
+        insertLine(mCake, null, mSponge, 1);
+        insertLine(mCake, null, mIcing, 0.5);
+        insertLine(mSponge, mFlour, null, 200);
+        insertLine(mIcing, mSugar, null, 150);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void insertLine_directCycleIsRejected() {
+        insertLine(mSponge, null, mCake, 1);
+    }
+
+    @Test
+    public void insertLine_cycleThroughPartsIsRejected() {
+        insertLine(mIcing, null, mSponge, 1);
+        try {
+            // The sponge would use the icing, which uses the sponge
+            insertLine(mSponge, null, mIcing, 1);
+            fail("Cycle accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, countLines(RecipeItemEntry.COLUMN_RECIPE_ID + "=" + mSponge + " AND "
+                + RecipeItemEntry.COLUMN_SUB_RECIPE_ID + " IS NOT NULL"));
+    }
+
+    @Test
+    public void insertLine_sharedPartIsNotACycle() {
+        // Two recipes using the same part make a diamond, not a cycle
+        insertLine(mIcing, null, mSponge, 0.1);
+        assertEquals(5, countLines(null));
+    }
+
+    @Test
+    public void updateLines_changesTheSelectedLines() {
+        ContentValues values = new ContentValues();
+        values.put(RecipeItemEntry.COLUMN_AMOUNT, 250);
+        assertEquals(1, mProvider.update(RecipeItemEntry.CONTENT_URI, values,
+                RecipeItemEntry.COLUMN_INGREDIENT_ID + "=?",
+                new String[] { String.valueOf(mFlour) }));
+        assertEquals(1, countLines(RecipeItemEntry.COLUMN_AMOUNT + "=250"));
+    }
+
+    @Test
+    public void updateLines_cycleIsRejectedAndRolledBack() {
+        // Turn the flour of the sponge into a use of the cake, which uses the sponge
+        ContentValues values = new ContentValues();
+        values.putNull(RecipeItemEntry.COLUMN_INGREDIENT_ID);
+        values.put(RecipeItemEntry.COLUMN_SUB_RECIPE_ID, mCake);
+        try {
+            mProvider.update(RecipeItemEntry.CONTENT_URI, values,
+                    RecipeItemEntry.COLUMN_RECIPE_ID + "=" + mSponge, null);
+            fail("Cycle accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(1, countLines(RecipeItemEntry.COLUMN_INGREDIENT_ID + "=" + mFlour));
+    }
+
+    @Test
+    public void updateLines_invalidLineIsRejectedAndRolledBack() {
+        ContentValues values = new ContentValues();
+        values.put(RecipeItemEntry.COLUMN_AMOUNT, 0);
+        try {
+            mProvider.update(RecipeItemEntry.CONTENT_URI, values, null, null);
+            fail("Amount of 0 accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, countLines(RecipeItemEntry.COLUMN_AMOUNT + "=0"));
+    }
+
+    @Test
+    public void updateRecipes_changesTheSelectedRecipes() {
+        ContentValues values = new ContentValues();
+        values.put(RecipeEntry.COLUMN_YIELD, 2);
+        assertEquals(2, mProvider.update(RecipeEntry.CONTENT_URI, values,
+                RecipeEntry._ID + " IN (?, ?)",
+                new String[] { String.valueOf(mSponge), String.valueOf(mIcing) }));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void updateRecipes_invalidYieldIsRejected() {
+        ContentValues values = new ContentValues();
+        values.put(RecipeEntry.COLUMN_YIELD, 0);
+        mProvider.update(RecipeEntry.CONTENT_URI, values, null, null);
+    }
+
+    @Test
+    public void deleteIngredients_deletesTheirLines() {
+        assertEquals(1, mProvider.delete(IngredientEntry.CONTENT_URI,
+                IngredientEntry.COLUMN_NAME + "=?", new String[] { "Flour" }));
+        assertEquals(0, countLines(RecipeItemEntry.COLUMN_INGREDIENT_ID + "=" + mFlour));
+        assertEquals(1, countLines(RecipeItemEntry.COLUMN_INGREDIENT_ID + "=" + mSugar));
+    }
+
+    @Test
+    public void deleteRecipes_deletesTheirLinesAndTheLinesThatUseThem() {
+        assertEquals(1, mProvider.delete(RecipeEntry.CONTENT_URI,
+                RecipeEntry.COLUMN_NAME + "=?", new String[] { "Sponge" }));
+
+        // The sponge's own line and the cake's line that used it are gone
+        assertEquals(2, countLines(null));
+        assertEquals(0, countLines(RecipeItemEntry.COLUMN_RECIPE_ID + "=" + mSponge + " OR "
+                + RecipeItemEntry.COLUMN_SUB_RECIPE_ID + "=" + mSponge));
+    }
+
+    private long insertIngredient(String name) {
+        ContentValues values = new ContentValues();
+        values.put(IngredientEntry.COLUMN_NAME, name);
+        values.put(IngredientEntry.COLUMN_STOCK, 1000);
+        return insert(IngredientEntry.CONTENT_URI, values);
+    }
+
+    private long insertRecipe(String name) {
+        ContentValues values = new ContentValues();
+        values.put(RecipeEntry.COLUMN_NAME, name);
+        values.put(RecipeEntry.COLUMN_YIELD, 1);
+        return insert(RecipeEntry.CONTENT_URI, values);
+    }
+
+    private long insertLine(long recipeId, Long ingredientId, Long subRecipeId, double amount) {
+        ContentValues values = new ContentValues();
+        values.put(RecipeItemEntry.COLUMN_RECIPE_ID, recipeId);
+        values.put(RecipeItemEntry.COLUMN_INGREDIENT_ID, ingredientId);
+        values.put(RecipeItemEntry.COLUMN_SUB_RECIPE_ID, subRecipeId);
+        values.put(RecipeItemEntry.COLUMN_AMOUNT, amount);
+        return insert(RecipeItemEntry.CONTENT_URI, values);
+    }
+
+    private long insert(Uri uri, ContentValues values) {
+        Uri row = mProvider.insert(uri, values);
+        assertNotNull(row);
+        return ContentUris.parseId(row);
+    }
+
+    private int countLines(String selection) {
+        Cursor cursor = mProvider.query(RecipeItemEntry.CONTENT_URI,
+                new String[] { RecipeItemEntry._ID }, selection, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
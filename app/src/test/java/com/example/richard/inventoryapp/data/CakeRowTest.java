@@ -0,0 +1,105 @@
+package com.example.richard.inventoryapp.data;
+
+import android.database.MatrixCursor;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of reading cursors of cakes into a reused {@link CakeRow}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeRowTest {
+
+    @Test
+    public void columns_coverTheContract() throws Exception {
+        List<String> columns = Arrays.asList(CakeRow.COLUMNS);
+        for (Field field : CakeEntry.class.getFields()) {
+            if (field.getName().startsWith("COLUMN_CAKE_")) {
+                assertTrue(field.getName() + " is not read",
+                        columns.contains((String) field.get(null)));
+            }
+        }
+    }
+
+    @Test
+    public void read_reusesTheRow() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+                CakeEntry._ID,
+                CakeEntry.COLUMN_CAKE_NAME,
+                CakeEntry.COLUMN_CAKE_OCCASION,
+                CakeEntry.COLUMN_CAKE_PRICE,
+                CakeEntry.COLUMN_CAKE_QUANTITY,
+                CakeEntry.COLUMN_CAKE_IMAGE,
+                CakeEntry.COLUMN_CAKE_SKU
+        });
+        cursor.addRow(new Object[] { 1L, "A very long name for a wedding cake with three tiers",
+                CakeEntry.OCCASION_WEDDING, 120.5, 2, "1.jpg", "SKU1" });
+        cursor.addRow(new Object[] { 2L, "Sponge", CakeEntry.OCCASION_BIRTHDAY, 12.0, 7, null,
+                null });
+
+        CakeRow.Mapper mapper = new CakeRow.Mapper(cursor);
+        CakeRow row = new CakeRow();
+        assertTrue(cursor.moveToFirst());
+        assertSame(row, mapper.read(cursor, row));
+        assertEquals(1L, row.getId());
+        assertEquals("A very long name for a wedding cake with three tiers", row.getName());
+        assertEquals(CakeEntry.OCCASION_WEDDING, row.getOccasion());
+        assertEquals(120.5, row.getPrice(), 0);
+        assertEquals(2, row.getQuantity());
+        assertEquals("1.jpg", row.getImageName());
+        assertEquals("SKU1", row.getSku());
+
+        assertTrue(cursor.moveToNext());
+        mapper.read(cursor, row);
+        assertEquals(2L, row.getId());
+        assertEquals("Sponge", row.getName());
+        assertEquals(6, row.getNameBuffer().sizeCopied);
+        assertEquals(7, row.getQuantity());
+        assertFalse(row.hasImage());
+        assertNull(row.getImageName());
+        assertFalse(row.hasSku());
+        assertEquals(0, row.getSkuBuffer().sizeCopied);
+    }
+
+    @Test
+    public void read_leavesMissingColumnsEmpty() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {
+                CakeEntry._ID,
+                CakeEntry.COLUMN_CAKE_QUANTITY
+        });
+        cursor.addRow(new Object[] { 3L, 4 });
+
+        CakeRow.Mapper mapper = new CakeRow.Mapper(cursor);
+        CakeRow row = new CakeRow();
+        assertTrue(cursor.moveToFirst());
+        mapper.read(cursor, row);
+        assertEquals(3L, row.getId());
+        assertEquals(4, row.getQuantity());
+        assertEquals("", row.getName());
+        assertEquals(0, row.getPrice(), 0);
+        assertEquals(0, row.getStockedAt());
+        assertFalse(row.hasImage());
+    }
+
+    @Test
+    public void matches_onlyTheSameColumns() {
+        String[] columns = { CakeEntry._ID, CakeEntry.COLUMN_CAKE_NAME };
+        CakeRow.Mapper mapper = new CakeRow.Mapper(new MatrixCursor(columns));
+
+        assertTrue(mapper.matches(new MatrixCursor(columns.clone())));
+        assertFalse(mapper.matches(new MatrixCursor(new String[] { CakeEntry._ID })));
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a SKU taken from a cake hidden by a "delete all" goes back to it through the undo
+ * history of {@link CakeProvider}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeSkuTest {
+
+    private static final String SKU = "LEMON-1";
+
+    private CakeProvider mProvider;
+    private long mHiddenId;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(CakeProvider.class)
+                .create(CakeContract.CONTENT_AUTHORITY).get();
+        mHiddenId = insertCake("Lemon Drizzle", SKU);
+        assertEquals(1, mProvider.delete(CakeEntry.CONTENT_URI, null, null));
+    }
+
+    @Test
+    public void undoInsert_givesTheSkuBack() {
+        long id = insertCake("Lemon Tart", SKU);
+        assertEquals(id, querySkuOwner());
+
+        undo();
+        assertEquals(-1, querySkuOwner());
+
+        // Bringing the hidden cake back brings it back with its SKU
+        undo();
+        assertEquals(mHiddenId, querySkuOwner());
+
+        // And redoing takes it away again
+        redo();
+        redo();
+        assertEquals(id, querySkuOwner());
+    }
+
+    @Test
+    public void undoUpdate_givesTheSkuBack() {
+        long id = insertCake("Lemon Tart", null);
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_SKU, SKU);
+        assertEquals(1, mProvider.update(ContentUris.withAppendedId(CakeEntry.CONTENT_URI, id),
+                values, null, null));
+        assertEquals(id, querySkuOwner());
+
+        undo();
+        undo();
+        undo();
+        assertEquals(mHiddenId, querySkuOwner());
+    }
+
+    private long insertCake(String name, String sku) {
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, name);
+        values.put(CakeEntry.COLUMN_CAKE_OCCASION, CakeEntry.OCCASION_BIRTHDAY);
+        values.put(CakeEntry.COLUMN_CAKE_PRICE, 12);
+        values.put(CakeEntry.COLUMN_CAKE_QUANTITY, 1);
+        values.put(CakeEntry.COLUMN_CAKE_SKU, sku);
+        Uri uri = mProvider.insert(CakeEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+
+    private void undo() {
+        mProvider.call(CakeContract.METHOD_UNDO, null, null);
+    }
+
+    private void redo() {
+        mProvider.call(CakeContract.METHOD_REDO, null, null);
+    }
+
+    /**
+     * Return the _id of the visible cake with the SKU, or -1 if there is none.
+     */
+    private long querySkuOwner() {
+        Cursor cursor = mProvider.query(CakeEntry.buildSkuUri(SKU),
+                new String[] { CakeEntry._ID }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.richard.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that {@link CakeSnapshot} reads back what it saved, and turns down a file that doesn't
+ * hold a whole, well formed snapshot instead of reading past it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeSnapshotTest {
+
+    private static final String[] COLUMNS = {
+            CakeEntry._ID,
+            CakeEntry.COLUMN_CAKE_NAME,
+            CakeEntry.COLUMN_CAKE_QUANTITY,
+            CakeEntry.COLUMN_CAKE_OCCASION,
+            CakeEntry.COLUMN_CAKE_PRICE,
+            CakeEntry.COLUMN_CAKE_IMAGE
+    };
+
+    /** Where the records start in the snapshot written by {@link #setUp}, after its header */
+    private static final int RECORDS_START = 16 + CakeEntry.SORT_NAME.length();
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        MatrixCursor cakes = new MatrixCursor(COLUMNS);
+        cakes.addRow(new Object[] { 1L, "Sponge", 3, CakeEntry.OCCASION_BIRTHDAY, 12.5, null });
+        cakes.addRow(new Object[] { 2L, "Carrot", 0, CakeEntry.OCCASION_WEDDING, 9.0, "2.jpg" });
+        cakes.addRow(new Object[] { 3L, "Lemon", 5, CakeEntry.OCCASION_BIRTHDAY, 7.0, null });
+        mFile = new File(RuntimeEnvironment.application.getCacheDir(), "snapshot");
+        CakeSnapshot.capture(cakes, 2, CakeEntry.SORT_NAME, -1).writeTo(mFile);
+    }
+
+    @Test
+    public void open_readsBackTheFirstRows() {
+        Cursor cursor = CakeSnapshot.open(mFile, CakeEntry.SORT_NAME, -1);
+        assertNotNull(cursor);
+        assertEquals(2, cursor.getCount());
+
+        assertTrue(cursor.moveToFirst());
+        assertEquals(1L, cursor.getLong(0));
+        assertEquals("Sponge", cursor.getString(1));
+        assertEquals(3, cursor.getInt(2));
+        assertEquals(12.5, cursor.getDouble(4), 0);
+        assertTrue(cursor.isNull(5));
+
+        assertTrue(cursor.moveToNext());
+        assertEquals("Carrot", cursor.getString(1));
+        assertEquals(CakeEntry.OCCASION_WEDDING, cursor.getInt(3));
+        assertEquals("2.jpg", cursor.getString(5));
+        cursor.close();
+    }
+
+    @Test
+    public void open_otherSortOrFilterIsNull() {
+        assertNull(CakeSnapshot.open(mFile, CakeEntry.SORT_NAME + " DESC", -1));
+        assertNull(CakeSnapshot.open(mFile, CakeEntry.SORT_NAME, CakeEntry.OCCASION_BIRTHDAY));
+    }
+
+    @Test
+    public void open_missingFileIsNull() {
+        assertNull(CakeSnapshot.open(new File(mFile.getPath() + ".missing"),
+                CakeEntry.SORT_NAME, -1));
+    }
+
+    @Test
+    public void open_truncatedFileIsNull() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(file.length() - 1);
+        } finally {
+            file.close();
+        }
+        assertNull(CakeSnapshot.open(mFile, CakeEntry.SORT_NAME, -1));
+
+        // Cut off in the header too
+        file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(10);
+        } finally {
+            file.close();
+        }
+        assertNull(CakeSnapshot.open(mFile, CakeEntry.SORT_NAME, -1));
+    }
+
+    @Test
+    public void open_badCountIsNull() throws IOException {
+        writeInt(8, Integer.MAX_VALUE);
+        assertNull(CakeSnapshot.open(mFile, CakeEntry.SORT_NAME, -1));
+        writeInt(8, -1);
+        assertNull(CakeSnapshot.open(mFile, CakeEntry.SORT_NAME, -1));
+    }
+
+    @Test
+    public void open_badSortLengthIsNull() throws IOException {
+        writeInt(12, Integer.MAX_VALUE);
+        assertNull(CakeSnapshot.open(mFile, CakeEntry.SORT_NAME, -1));
+    }
+
+    @Test
+    public void open_stringOutOfBoundsIsNull() throws IOException {
+        // The length of the first name runs past the end of the file
+        writeInt(RECORDS_START + 28, 1000);
+        assertNull(CakeSnapshot.open(mFile, CakeEntry.SORT_NAME, -1));
+    }
+
+    @Test
+    public void open_badStringOffsetIsNull() throws IOException {
+        // The first name starts before the strings
+        writeInt(RECORDS_START + 24, -100);
+        assertNull(CakeSnapshot.open(mFile, CakeEntry.SORT_NAME, -1));
+    }
+
+    private void writeInt(long position, int value) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(position);
+            file.writeInt(value);
+        } finally {
+            file.close();
+        }
+    }
+}
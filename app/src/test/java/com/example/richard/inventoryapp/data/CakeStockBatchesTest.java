@@ -0,0 +1,125 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+import com.example.richard.inventoryapp.data.CakeContract.StockBatchEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the stock batches and the quantities of their cakes go back and forth together
+ * through the undo history of {@link CakeProvider}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeStockBatchesTest {
+
+    private static final long NOW = 1000000000000L;
+
+    private CakeProvider mProvider;
+    private long mCakeId;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(CakeProvider.class)
+                .create(CakeContract.CONTENT_AUTHORITY).get();
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, "Lemon Drizzle");
+        values.put(CakeEntry.COLUMN_CAKE_OCCASION, CakeEntry.OCCASION_BIRTHDAY);
+        values.put(CakeEntry.COLUMN_CAKE_PRICE, 12);
+        values.put(CakeEntry.COLUMN_CAKE_QUANTITY, 0);
+        mCakeId = ContentUris.parseId(mProvider.insert(CakeEntry.CONTENT_URI, values));
+    }
+
+    @Test
+    public void undoInsert_removesTheBatchWithItsCakes() {
+        insertBatch(5, NOW + 1000);
+        assertEquals(5, queryQuantity());
+        assertEquals(5, sumBatches());
+
+        assertEquals(1, call(CakeContract.METHOD_UNDO, null));
+        assertEquals(0, queryQuantity());
+        assertEquals(0, sumBatches());
+
+        // Redo puts the batch back along with its cakes
+        call(CakeContract.METHOD_REDO, null);
+        assertEquals(5, queryQuantity());
+        assertEquals(5, sumBatches());
+    }
+
+    @Test
+    public void undoSweep_bringsBackTheBatchesAndTheQuantities() {
+        insertBatch(3, NOW - 1000);
+        insertBatch(4, NOW + 1000);
+
+        Bundle extras = new Bundle();
+        extras.putLong(CakeContract.EXTRA_TIME, NOW);
+        assertEquals(1, call(CakeContract.METHOD_SWEEP_EXPIRED, extras));
+        assertEquals(4, queryQuantity());
+        assertEquals(4, sumBatches());
+
+        call(CakeContract.METHOD_UNDO, null);
+        assertEquals(7, queryQuantity());
+        assertEquals(7, sumBatches());
+
+        call(CakeContract.METHOD_REDO, null);
+        assertEquals(4, queryQuantity());
+        assertEquals(4, sumBatches());
+
+        // The batch the sweep brought back expires again, rather than being sold twice
+        call(CakeContract.METHOD_UNDO, null);
+        assertEquals(1, call(CakeContract.METHOD_SWEEP_EXPIRED, extras));
+        assertEquals(4, queryQuantity());
+    }
+
+    private void insertBatch(int quantity, long expiresAt) {
+        ContentValues values = new ContentValues();
+        values.put(StockBatchEntry.COLUMN_CAKE_ID, mCakeId);
+        values.put(StockBatchEntry.COLUMN_QUANTITY, quantity);
+        values.put(StockBatchEntry.COLUMN_EXPIRES_AT, expiresAt);
+        assertNotNull(mProvider.insert(StockBatchEntry.CONTENT_URI, values));
+    }
+
+    private int call(String method, Bundle extras) {
+        return mProvider.call(method, null, extras).getInt(CakeContract.RESULT_ROWS);
+    }
+
+    private long queryQuantity() {
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(CakeEntry.CONTENT_URI,
+                mCakeId), new String[] { CakeEntry.COLUMN_CAKE_QUANTITY }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long sumBatches() {
+        Uri uri = ContentUris.withAppendedId(StockBatchEntry.CONTENT_URI, mCakeId);
+        Cursor cursor = mProvider.query(uri, null, null, null, null);
+        try {
+            long sum = 0;
+            int column = cursor.getColumnIndexOrThrow(StockBatchEntry.COLUMN_QUANTITY);
+            while (cursor.moveToNext()) {
+                sum += cursor.getLong(column);
+            }
+            return sum;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.richard.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.richard.inventoryapp.BuildConfig;
+import com.example.richard.inventoryapp.data.CakeContract.CakeEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that {@link CakeTenantPool} keeps the catalog of a shop open while a cursor of it is
+ * open, even once it has left the pool, and closes the catalogs that have been left unused for
+ * {@link CakeTenantPool#IDLE_TIMEOUT}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class CakeTenantPoolTest {
+
+    private CakeProvider mProvider;
+    private CakeTenantPool mPool;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(CakeProvider.class)
+                .create(CakeContract.CONTENT_AUTHORITY).get();
+        mPool = mProvider.getTenantPool();
+    }
+
+    @After
+    public void tearDown() {
+        mPool.closeAll();
+    }
+
+    @Test
+    public void evictedCatalog_staysOpenUntilItsCursorIsClosed() {
+        insertCake("north", "Sponge");
+        CakeProvider north = mPool.acquire("north");
+        mPool.release(north);
+
+        Cursor cursor = mProvider.query(CakeContract.forTenant(CakeEntry.CONTENT_URI, "north"),
+                new String[] { CakeEntry.COLUMN_CAKE_NAME }, null, null, null);
+        assertNotNull(cursor);
+
+        // Opening as many other catalogs as the pool holds pushes this one out of it
+        for (int i = 0; i < CakeTenantPool.MAX_OPEN; i++) {
+            mPool.release(mPool.acquire("shop" + i));
+        }
+        assertEquals(CakeTenantPool.MAX_OPEN, mPool.getOpenCount());
+        assertEquals(1, mPool.getInUseCount());
+
+        // The catalog still answers, through the cursor and otherwise
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Sponge", cursor.getString(0));
+        Cursor again = north.query(CakeEntry.CONTENT_URI, null, null, null, null);
+        assertNotNull(again);
+        assertEquals(1, again.getCount());
+        again.close();
+
+        cursor.close();
+        assertEquals(0, mPool.getInUseCount());
+
+        // Closing the cursor twice doesn't release the catalog twice
+        cursor.close();
+        assertEquals(0, mPool.getInUseCount());
+    }
+
+    @Test
+    public void idleCatalogs_areClosedAfterTheTimeout() {
+        mPool.release(mPool.acquire("north"));
+        ShadowLooper.idleMainLooper(CakeTenantPool.IDLE_TIMEOUT / 2);
+        mPool.release(mPool.acquire("south"));
+        assertEquals(2, mPool.getOpenCount());
+        assertTrue(mPool.getSize() >= 2 * CakeTenantPool.CATALOG_SIZE);
+
+        // Only the catalog that was used first has been idle long enough
+        ShadowLooper.idleMainLooper(CakeTenantPool.IDLE_TIMEOUT / 2);
+        assertEquals(1, mPool.getOpenCount());
+
+        ShadowLooper.idleMainLooper(CakeTenantPool.IDLE_TIMEOUT / 2);
+        assertEquals(0, mPool.getOpenCount());
+        assertEquals(0, mPool.getSize());
+    }
+
+    @Test
+    public void catalogInUse_isNotClosedWhenIdleOrTrimmed() {
+        CakeProvider north = mPool.acquire("north");
+        mPool.release(mPool.acquire("south"));
+
+        ShadowLooper.idleMainLooper(CakeTenantPool.IDLE_TIMEOUT);
+        assertEquals(1, mPool.getOpenCount());
+        mPool.closeAll();
+        assertEquals(1, mPool.getOpenCount());
+
+        // Once released it times out like any other
+        mPool.release(north);
+        ShadowLooper.idleMainLooper(CakeTenantPool.IDLE_TIMEOUT);
+        assertEquals(0, mPool.getOpenCount());
+    }
+
+    private void insertCake(String tenant, String name) {
+        ContentValues values = new ContentValues();
+        values.put(CakeEntry.COLUMN_CAKE_NAME, name);
+        values.put(CakeEntry.COLUMN_CAKE_OCCASION, CakeEntry.OCCASION_BIRTHDAY);
+        Uri uri = mProvider.insert(CakeContract.forTenant(CakeEntry.CONTENT_URI, tenant), values);
+        assertNotNull(uri);
+    }
+}